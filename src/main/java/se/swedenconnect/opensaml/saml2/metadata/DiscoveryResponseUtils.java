@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata;
+
+import org.opensaml.saml.ext.idpdisco.DiscoveryResponse;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.RoleDescriptor;
+import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Utility methods for IdP discovery services that respond to a Service Provider according to the Identity Provider
+ * Discovery Service Protocol. The SP declares its response endpoints using {@code idpdisco:DiscoveryResponse}
+ * extensions, see {@link se.swedenconnect.opensaml.saml2.metadata.build.DiscoveryResponseBuilder}, and the discovery
+ * service returns the entityID of the selected IdP, for example a match from
+ * {@code MetadataProvider#searchIdentityProviders}, to one of these endpoints.
+ * <p>
+ * Note: {@link se.swedenconnect.opensaml.saml2.metadata.build.DiscoveryResponseBuilder} only builds the SP's
+ * {@code idpdisco:DiscoveryResponse} element, and has no notion of IdP selection. The IdP search index is therefore
+ * not integrated into the builder. Instead, this class connects the search results to the discovery response
+ * endpoints that the builder declares.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class DiscoveryResponseUtils {
+
+  /** The default name of the query parameter holding the entityID of the selected IdP. */
+  public static final String DEFAULT_RETURN_ID_PARAM = "entityID";
+
+  /**
+   * Gets the {@code idpdisco:DiscoveryResponse} elements of the supplied SP, sorted by their index.
+   *
+   * @param sp the SP entity descriptor
+   * @return a (possibly empty) list of discovery response elements
+   */
+  public static List<DiscoveryResponse> getDiscoveryResponses(final EntityDescriptor sp) {
+    final List<DiscoveryResponse> list = new ArrayList<>();
+    if (sp != null) {
+      for (final RoleDescriptor role : sp.getRoleDescriptors(SPSSODescriptor.DEFAULT_ELEMENT_NAME)) {
+        list.addAll(EntityDescriptorUtils.getMetadataExtensions(role.getExtensions(), DiscoveryResponse.class));
+      }
+    }
+    list.sort(Comparator.comparing(DiscoveryResponse::getIndex, Comparator.nullsLast(Comparator.naturalOrder())));
+    return list;
+  }
+
+  /**
+   * Gets the location to which the discovery service should send its response.
+   * <p>
+   * If {@code returnUrl} (the {@code return} parameter of the discovery request) is given, it is accepted if it,
+   * ignoring any query string, equals the location of one of the SP's {@code idpdisco:DiscoveryResponse} elements. If
+   * no {@code returnUrl} is given, the location of the discovery response element having the lowest index is used.
+   * </p>
+   *
+   * @param sp the SP entity descriptor
+   * @param returnUrl the return URL from the discovery request (may be {@code null})
+   * @return the response location, or {@code null} if the return URL is not registered for the SP (or if no return
+   *     URL is given and the SP has no discovery response elements)
+   */
+  public static String getResponseLocation(final EntityDescriptor sp, final String returnUrl) {
+    final List<DiscoveryResponse> responses = getDiscoveryResponses(sp);
+    if (returnUrl == null) {
+      return responses.stream().map(DiscoveryResponse::getLocation).findFirst().orElse(null);
+    }
+    final int queryStart = returnUrl.indexOf('?');
+    final String base = queryStart >= 0 ? returnUrl.substring(0, queryStart) : returnUrl;
+    return responses.stream()
+        .anyMatch(r -> base.equals(r.getLocation()) || returnUrl.equals(r.getLocation())) ? returnUrl : null;
+  }
+
+  /**
+   * Creates the URL for a discovery response, i.e., the response location with the entityID of the selected IdP added
+   * as a query parameter.
+   *
+   * @param location the response location, see {@link #getResponseLocation(EntityDescriptor, String)}
+   * @param returnIdParam the name of the query parameter (the {@code returnIDParam} of the discovery request), if
+   *     {@code null}, {@value #DEFAULT_RETURN_ID_PARAM} is used
+   * @param idpEntityId the entityID of the selected IdP, if {@code null}, no parameter is added (the user did not
+   *     select an IdP)
+   * @return the response URL
+   */
+  public static String createResponseUrl(final String location, final String returnIdParam,
+      final String idpEntityId) {
+    if (idpEntityId == null) {
+      return location;
+    }
+    return String.format("%s%s%s=%s", location, location.indexOf('?') >= 0 ? "&" : "?",
+        returnIdParam != null ? returnIdParam : DEFAULT_RETURN_ID_PARAM,
+        URLEncoder.encode(idpEntityId, StandardCharsets.UTF_8));
+  }
+
+  // Hidden
+  private DiscoveryResponseUtils() {
+  }
+
+}
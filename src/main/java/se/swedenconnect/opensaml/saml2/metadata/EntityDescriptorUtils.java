@@ -23,6 +23,8 @@ import org.opensaml.saml.ext.saml2mdattr.EntityAttributes;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml.saml2.metadata.Extensions;
 import org.opensaml.saml.saml2.metadata.KeyDescriptor;
+import org.opensaml.saml.saml2.metadata.NameIDFormat;
+import org.opensaml.saml.saml2.metadata.RoleDescriptor;
 import org.opensaml.saml.saml2.metadata.SSODescriptor;
 import org.opensaml.security.credential.UsageType;
 import org.opensaml.security.x509.BasicX509Credential;
@@ -241,6 +243,25 @@ public class EntityDescriptorUtils {
     return assuranceCertificationUris;
   }
 
+  /**
+   * Lists the {@code NameIDFormat} URI:s of all SSO role descriptors (SP and IdP) of the supplied entity descriptor.
+   *
+   * @param ed the entity descriptor
+   * @return a (possible empty) list of NameIDFormat URI:s
+   */
+  public static List<String> getNameIDFormats(final EntityDescriptor ed) {
+    final List<String> formats = new ArrayList<>();
+    for (final RoleDescriptor role : ed.getRoleDescriptors()) {
+      if (role instanceof final SSODescriptor sso) {
+        sso.getNameIDFormats().stream()
+            .map(NameIDFormat::getURI)
+            .filter(f -> f != null && !formats.contains(f))
+            .forEach(formats::add);
+      }
+    }
+    return formats;
+  }
+
   /**
    * Returns the SSODescriptor for the supplied SP or IdP entity descriptor.
    *
@@ -20,6 +20,13 @@ import org.opensaml.saml.ext.idpdisco.DiscoveryResponse;
 
 import se.swedenconnect.opensaml.common.builder.AbstractSAMLObjectBuilder;
 
+/**
+ * Builder for {@code idpdisco:DiscoveryResponse} elements, i.e., the endpoints where an SP receives responses from an
+ * IdP discovery service.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @see se.swedenconnect.opensaml.saml2.metadata.DiscoveryResponseUtils
+ */
 public class DiscoveryResponseBuilder extends AbstractSAMLObjectBuilder<DiscoveryResponse> {
 
   /**
@@ -22,19 +22,21 @@ import net.shibboleth.shared.resolver.ResolverException;
 import org.opensaml.core.criterion.EntityIdCriterion;
 import org.opensaml.core.xml.XMLObject;
 import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.core.xml.io.UnmarshallingException;
 import org.opensaml.core.xml.util.XMLObjectSupport;
 import org.opensaml.saml.common.xml.SAMLSchemaBuilder;
 import org.opensaml.saml.metadata.resolver.MetadataResolver;
 import org.opensaml.saml.metadata.resolver.RefreshableMetadataResolver;
+import org.opensaml.saml.metadata.resolver.filter.FilterException;
 import org.opensaml.saml.metadata.resolver.filter.MetadataFilter;
 import org.opensaml.saml.metadata.resolver.filter.MetadataFilterChain;
 import org.opensaml.saml.metadata.resolver.filter.MetadataFilterContext;
-import org.opensaml.saml.metadata.resolver.filter.impl.EntityRoleFilter;
-import org.opensaml.saml.metadata.resolver.filter.impl.PredicateFilter;
-import org.opensaml.saml.metadata.resolver.filter.impl.PredicateFilter.Direction;
 import org.opensaml.saml.metadata.resolver.filter.impl.SchemaValidationFilter;
 import org.opensaml.saml.metadata.resolver.filter.impl.SignatureValidationFilter;
 import org.opensaml.saml.metadata.resolver.impl.AbstractMetadataResolver;
+import org.opensaml.saml.metadata.resolver.impl.AbstractReloadingMetadataResolver;
+import org.opensaml.saml.saml2.common.CacheableSAMLObject;
+import org.opensaml.saml.saml2.common.TimeBoundSAMLObject;
 import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
@@ -47,16 +49,30 @@ import org.opensaml.xmlsec.signature.support.impl.ExplicitKeySignatureTrustEngin
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
 
 import javax.annotation.Nonnull;
+import javax.crypto.SecretKey;
 import javax.xml.namespace.QName;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Timer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -97,15 +113,93 @@ public abstract class AbstractMetadataProvider extends AbstractInitializableComp
   /** A list of exclusion predicates that will be applied to downloaded metadata. */
   private List<Predicate<EntityDescriptor>> exclusionPredicates = null;
 
+  /**
+   * Whether the DOM of the metadata should be released after the metadata has been filtered and verified. Default:
+   * false.
+   */
+  private boolean releaseDOM = false;
+
+  /** Whether metadata should be parsed in streaming mode (if supported by the provider). Default: false. */
+  private boolean streamingIngestion = false;
+
+  /** The streaming parser - only set if streaming ingestion is active. */
+  private StreamingMetadataParser streamingParser;
+
+  /** The file where verified metadata is cached. If not set, no cache is used. */
+  private File verifiedMetadataCacheFile;
+
+  /** The key used to protect the integrity of the verified metadata cache. If not set, the cache is not protected. */
+  private SecretKey verifiedMetadataCacheKey;
+
+  /** The cache for verified metadata - only set if a cache file has been assigned. */
+  private VerifiedMetadataCache verifiedMetadataCache;
+
+  /**
+   * The configuration that the metadata digests are bound to, see {@link #getCacheConfiguration()}. Assigned when the
+   * provider is initialized.
+   */
+  private String cacheConfiguration;
+
+  /**
+   * Whether verification and filtering should be skipped when refreshed metadata is identical to the previously
+   * verified metadata. Default: false.
+   */
+  private boolean skipUnchangedMetadata = false;
+
+  /**
+   * Metadata that has already been verified and filtered (loaded from the cache or unchanged since the last refresh)
+   * and that should not be filtered again.
+   */
+  private XMLObject cachedVerifiedMetadata;
+
+  /** The digest of the source bytes of the metadata that is being processed. */
+  private byte[] sourceDigest;
+
+  /** The digest of the source bytes of the metadata that was last verified. */
+  private byte[] lastVerifiedDigest;
+
+  /** The scheduler that handles refreshes for this provider. If not set, the resolver's own timer is used. */
+  private MetadataRefreshScheduler refreshScheduler;
+
+  /** Statistics for the last metadata download. */
+  private volatile TransferStatistics lastTransferStatistics;
+
+  /** The total number of bytes transferred when downloading metadata. */
+  private final AtomicLong totalTransferredBytes = new AtomicLong();
+
+  /** The total number of bytes of downloaded metadata (after decompression). */
+  private final AtomicLong totalUncompressedBytes = new AtomicLong();
+
+  /** The number of times metadata has been verified and filtered. */
+  private final AtomicLong verificationCount = new AtomicLong();
+
+  /** The number of times verification and filtering was skipped since the metadata was unchanged. */
+  private final AtomicLong skippedVerificationCount = new AtomicLong();
+
   /** The downloaded metadata. */
-  private XMLObject metadata;
+  private volatile XMLObject metadata;
 
   /** The time when the metadata was downloaded. */
-  private Instant downloadTime;
+  private volatile Instant downloadTime;
+
+  /** Indexed snapshot of the current metadata. */
+  private volatile MetadataSnapshot snapshot = MetadataSnapshot.EMPTY;
+
+  /** Listeners for metadata changes. */
+  private final List<MetadataChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
+  /** Keeps track of the entity fingerprints. Created when the first change listener is added. */
+  private volatile MetadataChangeTracker changeTracker;
+
+  /** The metrics instance that the provider reports to. */
+  private MetadataProviderMetrics metrics = NoOpMetadataProviderMetrics.INSTANCE;
+
+  /** The number of entities of the metadata being verified, before filtering (-1 if not known). */
+  private volatile int entitiesBeforeFiltering = -1;
 
   /** {@inheritDoc} */
   @Override
-  public synchronized XMLObject getMetadata() {
+  public XMLObject getMetadata() {
     return this.metadata;
   }
 
@@ -119,6 +213,14 @@ public abstract class AbstractMetadataProvider extends AbstractInitializableComp
     if (md.getDOM() != null) {
       return md.getDOM();
     }
+    if (this.releaseDOM) {
+      // Marshall and release the DOM again. The returned element is not affected by the release.
+      synchronized (md) {
+        final Element element = XMLObjectSupport.marshall(md);
+        releaseMetadataDOM(md);
+        return element;
+      }
+    }
     return XMLObjectSupport.marshall(md);
   }
 
@@ -145,13 +247,13 @@ public abstract class AbstractMetadataProvider extends AbstractInitializableComp
   /** {@inheritDoc} */
   @Override
   public Iterable<EntityDescriptor> iterator() {
-    return new EntityDescriptorIterator(this.getMetadata());
+    return this.getSnapshot().getEntityDescriptors();
   }
 
   /** {@inheritDoc} */
   @Override
   public Iterable<EntityDescriptor> iterator(final QName role) {
-    return new EntityDescriptorIterator(this.getMetadata(), role);
+    return this.getSnapshot().getEntityDescriptors(role);
   }
 
   /** {@inheritDoc} */
@@ -174,32 +276,195 @@ public abstract class AbstractMetadataProvider extends AbstractInitializableComp
     return ed;
   }
 
-  /** {@inheritDoc} */
+  /**
+   * Returns the IdP entity descriptors from the current {@link MetadataSnapshot}. The metadata is not traversed, but
+   * the returned list is a copy of the snapshot list, so the caller may modify it.
+   */
   @Override
   public List<EntityDescriptor> getIdentityProviders() throws ResolverException {
-    final List<EntityDescriptor> list = new ArrayList<>();
-    final Iterable<EntityDescriptor> it = this.iterator(IDPSSODescriptor.DEFAULT_ELEMENT_NAME);
-    it.forEach(list::add);
-    return list;
+    return new ArrayList<>(this.getSnapshot().getIdentityProviders());
   }
 
-  /** {@inheritDoc} */
+  /**
+   * Returns the SP entity descriptors from the current {@link MetadataSnapshot}. The metadata is not traversed, but the
+   * returned list is a copy of the snapshot list, so the caller may modify it.
+   */
   @Override
   public List<EntityDescriptor> getServiceProviders() throws ResolverException {
-    final List<EntityDescriptor> list = new ArrayList<>();
-    final Iterable<EntityDescriptor> it = this.iterator(SPSSODescriptor.DEFAULT_ELEMENT_NAME);
-    it.forEach(list::add);
-    return list;
+    return new ArrayList<>(this.getSnapshot().getServiceProviders());
+  }
+
+  /**
+   * Answers the query using the secondary indexes of the current {@link MetadataSnapshot}. The indexes are built when
+   * the first query is made, and after that, they are rebuilt each time the metadata is refreshed.
+   */
+  @Override
+  public List<EntityDescriptor> findEntityDescriptors(final MetadataQuery query) throws ResolverException {
+    return this.getSnapshot().getIndex().find(query);
+  }
+
+  /**
+   * Searches the IdP:s using the {@link IdpSearchIndex} of the current {@link MetadataSnapshot}. The index is built
+   * when the first search is made, and after that, it is rebuilt each time the metadata is refreshed.
+   */
+  @Override
+  public List<IdpSearchIndex.Match> searchIdentityProviders(final String query, final String language,
+      final int maxResults) throws ResolverException {
+    return this.getSnapshot().getIdpSearchIndex().search(query, language, maxResults);
+  }
+
+  /**
+   * Gets the indexed snapshot for the metadata currently held by the provider.
+   * <p>
+   * The snapshot is built once for each metadata object returned by {@link #getMetadata()}, i.e., when metadata is
+   * refreshed. Subclasses that override {@link #getMetadata()} get this behaviour without any further changes.
+   * </p>
+   *
+   * @return the metadata snapshot (never {@code null})
+   */
+  protected MetadataSnapshot getSnapshot() {
+    final XMLObject md = this.getMetadata();
+    MetadataSnapshot s = this.snapshot;
+    if (s.getMetadata() != md) {
+      s = createSnapshot(md, s);
+      this.snapshot = s;
+    }
+    return s;
+  }
+
+  /**
+   * Gets the {@code validUntil} of the metadata held by the provider. The value is read from the metadata of the current
+   * {@link MetadataSnapshot}, so subclasses that create their metadata on demand in {@link #getMetadata()} are not
+   * forced to do so.
+   *
+   * @return the {@code validUntil} instant, or {@code null} if not available
+   */
+  protected Instant getMetadataValidUntil() {
+    return this.getSnapshot().getMetadata() instanceof final TimeBoundSAMLObject t ? t.getValidUntil() : null;
+  }
+
+  /**
+   * Gets the {@code cacheDuration} of the metadata held by the provider. See {@link #getMetadataValidUntil()}.
+   *
+   * @return the cache duration, or {@code null} if not available
+   */
+  protected Duration getMetadataCacheDuration() {
+    return this.getSnapshot().getMetadata() instanceof final CacheableSAMLObject c ? c.getCacheDuration() : null;
   }
 
   /**
    * Assigns the metadata that was downloaded.
+   * <p>
+   * The snapshot for the new metadata is built before the metadata is published, so readers never block and will see
+   * the previous metadata until the new metadata is in place.
+   * </p>
    *
    * @param metadata metadata object
    */
   protected synchronized void setMetadata(final XMLObject metadata) {
-    this.metadata = metadata;
+    final boolean changed = metadata != this.metadata;
+    if (changed || this.snapshot.getMetadata() != metadata) {
+      this.snapshot = createSnapshot(metadata, this.snapshot);
+      if (metadata != null) {
+        this.metrics.snapshotUpdated(this.getID(), this.snapshot.size());
+      }
+    }
     this.downloadTime = Instant.now();
+    this.metadata = metadata;
+    if (changed) {
+      this.trackChanges(metadata, true);
+    }
+  }
+
+  /**
+   * Creates a snapshot for the supplied metadata. If the secondary indexes (or the IdP search index) were used for the
+   * previous snapshot, they are built for the new snapshot directly, so that the first query after a refresh does not
+   * pay for it.
+   *
+   * @param metadata the metadata
+   * @param previous the previous snapshot
+   * @return a new snapshot
+   */
+  private static MetadataSnapshot createSnapshot(final XMLObject metadata, final MetadataSnapshot previous) {
+    final MetadataSnapshot snapshot = new MetadataSnapshot(metadata);
+    if (previous.isIndexed()) {
+      snapshot.getIndex();
+    }
+    if (previous.isIdpSearchIndexed()) {
+      snapshot.getIdpSearchIndex();
+    }
+    return snapshot;
+  }
+
+  /**
+   * Adds a listener that is notified about the changes in the provider's metadata after each refresh. Entities are
+   * compared using a fingerprint of their contents, so the change set lists the entities that were added, removed and
+   * modified.
+   * <p>
+   * Fingerprints are only calculated when at least one listener has been added. If the provider already holds
+   * metadata, the fingerprints for this metadata are calculated when the first listener is added.
+   * </p>
+   *
+   * @param listener the listener
+   */
+  public void addChangeListener(final MetadataChangeListener listener) {
+    Objects.requireNonNull(listener, "listener must not be null");
+    synchronized (this.changeListeners) {
+      if (this.changeTracker == null) {
+        final MetadataChangeTracker tracker = new MetadataChangeTracker();
+        final XMLObject current = this.metadata;
+        if (current != null) {
+          tracker.update(this.getID(), current, true, this.releaseDOM);
+        }
+        this.changeTracker = tracker;
+      }
+      this.changeListeners.add(listener);
+    }
+  }
+
+  /**
+   * Removes a listener that was added using {@link #addChangeListener(MetadataChangeListener)}.
+   *
+   * @param listener the listener
+   */
+  public void removeChangeListener(final MetadataChangeListener listener) {
+    this.changeListeners.remove(listener);
+  }
+
+  /**
+   * Calculates the changes given the new metadata and notifies the change listeners (if any).
+   *
+   * @param metadata the new metadata
+   * @param complete whether the metadata is the complete metadata of the provider, if {@code false}, the metadata only
+   *     holds updated entities and no entities are reported as removed
+   */
+  protected void trackChanges(final XMLObject metadata, final boolean complete) {
+    final MetadataChangeTracker tracker = this.changeTracker;
+    if (tracker == null || metadata == null || this.changeListeners.isEmpty()) {
+      return;
+    }
+    final MetadataChangeSet changes = tracker.update(this.getID(), metadata, complete, this.releaseDOM);
+    if (!changes.isEmpty()) {
+      log.debug("{}: Metadata changed - {} added, {} removed, {} modified", this.getID(),
+          changes.added().size(), changes.removed().size(), changes.modified().size());
+      this.fireMetadataChanged(changes);
+    }
+  }
+
+  /**
+   * Notifies the change listeners.
+   *
+   * @param changes the changes
+   */
+  protected void fireMetadataChanged(final MetadataChangeSet changes) {
+    for (final MetadataChangeListener listener : this.changeListeners) {
+      try {
+        listener.metadataChanged(changes);
+      }
+      catch (final RuntimeException e) {
+        log.error("{}: Metadata change listener failed", this.getID(), e);
+      }
+    }
   }
 
   /** {@inheritDoc} */
@@ -207,13 +472,56 @@ public abstract class AbstractMetadataProvider extends AbstractInitializableComp
   protected final void doInitialize() throws ComponentInitializationException {
     super.doInitialize();
 
+    if (this.streamingIngestion) {
+      if (this.isCustomUnmarshallingSupported()) {
+        this.streamingParser = this.createStreamingParser();
+      }
+      else {
+        log.warn("Streaming ingestion is not supported by {} - ignoring setting", this.getClass().getSimpleName());
+      }
+    }
+    this.cacheConfiguration = this.getCacheConfiguration();
+    if (this.verifiedMetadataCacheFile != null) {
+      if (!this.isCustomUnmarshallingSupported()) {
+        log.warn("Verified metadata cache is not supported by {} - ignoring setting",
+            this.getClass().getSimpleName());
+      }
+      else if (this.cacheConfiguration == null) {
+        log.warn("{}: Inclusion/exclusion predicates can not be identified - verified metadata cache will not be used",
+            this.getID());
+      }
+      else {
+        this.verifiedMetadataCache =
+            new VerifiedMetadataCache(this.verifiedMetadataCacheFile, this.verifiedMetadataCacheKey);
+      }
+    }
+
     try {
       this.createMetadataResolver(this.requireValidMetadata, this.failFastInitialization, this.createFilter());
     }
     catch (final ResolverException e) {
       throw new ComponentInitializationException(e);
     }
+
+    boolean scheduled = false;
+    if (this.refreshScheduler != null) {
+      if (this.getMetadataResolver() instanceof final AbstractReloadingMetadataResolver resolver
+          && !resolver.isInitialized()) {
+        // Let the scheduler handle refreshes ...
+        resolver.setMinRefreshDelay(MetadataRefreshScheduler.EXTERNAL_REFRESH_DELAY);
+        resolver.setMaxRefreshDelay(MetadataRefreshScheduler.EXTERNAL_REFRESH_DELAY);
+        scheduled = true;
+      }
+      else {
+        log.warn("{} can not be refreshed by a refresh scheduler - ignoring setting", this.getClass().getSimpleName());
+      }
+    }
+
     this.initializeMetadataResolver();
+
+    if (scheduled) {
+      this.refreshScheduler.register(this);
+    }
   }
 
   /**
@@ -226,54 +534,65 @@ public abstract class AbstractMetadataProvider extends AbstractInitializableComp
 
     final List<MetadataFilter> filters = new ArrayList<>();
 
-    // Verify signature?
-    if (this.signatureVerificationCertificates != null && !this.signatureVerificationCertificates.isEmpty()) {
-      final CredentialResolver credentialResolver = new StaticCredentialResolver(
-          this.signatureVerificationCertificates.stream().map(BasicX509Credential::new)
-              .collect(Collectors.toList()));
-      final ExplicitKeySignatureTrustEngine trustEngine = new ExplicitKeySignatureTrustEngine(credentialResolver,
-          DefaultSecurityConfigurationBootstrap.buildBasicInlineKeyInfoCredentialResolver());
-      final SignatureValidationFilter signatureValidationFilter = new SignatureValidationFilter(trustEngine);
-      signatureValidationFilter.initialize();
-      filters.add(signatureValidationFilter);
-    }
-
-    // Schema validation?
-    if (this.performSchemaValidation) {
-      final SchemaValidationFilter schemaValidationFilter =
-          new SchemaValidationFilter(new SAMLSchemaBuilder(SAMLSchemaBuilder.SAML1Version.SAML_11));
-      schemaValidationFilter.initialize();
-      filters.add(schemaValidationFilter);
-    }
+    // In streaming mode, signature verification, schema validation and filtering are performed by the parser.
+    //
+    if (this.streamingParser == null) {
+      // Verify signature?
+      if (this.signatureVerificationCertificates != null && !this.signatureVerificationCertificates.isEmpty()) {
+        final CredentialResolver credentialResolver = new StaticCredentialResolver(
+            this.signatureVerificationCertificates.stream().map(BasicX509Credential::new)
+                .collect(Collectors.toList()));
+        final ExplicitKeySignatureTrustEngine trustEngine = new ExplicitKeySignatureTrustEngine(credentialResolver,
+            DefaultSecurityConfigurationBootstrap.buildBasicInlineKeyInfoCredentialResolver());
+        final SignatureValidationFilter signatureValidationFilter = new SignatureValidationFilter(trustEngine);
+        signatureValidationFilter.initialize();
+        filters.add(this.timed(MetadataProviderMetrics.FILTER_SIGNATURE, signatureValidationFilter));
+      }
 
-    // Keep only SP:s and IdP:s?
-    if (this.keepOnlySpAndIdps) {
-      final EntityRoleFilter entityRoleFilter = new EntityRoleFilter(
-          List.of(SPSSODescriptor.DEFAULT_ELEMENT_NAME, IDPSSODescriptor.DEFAULT_ELEMENT_NAME));
-      entityRoleFilter.initialize();
-      filters.add(entityRoleFilter);
-    }
+      // Schema validation?
+      if (this.performSchemaValidation) {
+        final SchemaValidationFilter schemaValidationFilter =
+            new SchemaValidationFilter(new SAMLSchemaBuilder(SAMLSchemaBuilder.SAML1Version.SAML_11));
+        schemaValidationFilter.initialize();
+        filters.add(this.timed(MetadataProviderMetrics.FILTER_SCHEMA, schemaValidationFilter));
+      }
 
-    // Inclusion predicates?
-    if (this.inclusionPredicates != null) {
-      for (final Predicate<EntityDescriptor> p : this.inclusionPredicates) {
-        final PredicateFilter predicateFilter = new PredicateFilter(Direction.INCLUDE, p);
-        predicateFilter.initialize();
-        filters.add(predicateFilter);
+      // Keep only SP:s and IdP:s, and apply the inclusion and exclusion predicates? This is done in one pass.
+      if (this.keepOnlySpAndIdps || this.inclusionPredicates != null && !this.inclusionPredicates.isEmpty()
+          || this.exclusionPredicates != null && !this.exclusionPredicates.isEmpty()) {
+        final EntitySelectionFilter selectionFilter = new EntitySelectionFilter(
+            this.keepOnlySpAndIdps
+                ? List.of(SPSSODescriptor.DEFAULT_ELEMENT_NAME, IDPSSODescriptor.DEFAULT_ELEMENT_NAME)
+                : null,
+            this.inclusionPredicates, this.exclusionPredicates);
+        if (this.metrics != NoOpMetadataProviderMetrics.INSTANCE) {
+          // The role restriction and the predicates are timed separately by the filter ...
+          selectionFilter.setFilterTimeConsumer((name, duration) -> this.metrics.filterCompleted(this.getID(), name,
+              duration));
+        }
+        filters.add(selectionFilter);
       }
-    }
 
-    // Exclusion predicates?
-    if (this.exclusionPredicates != null) {
-      for (final Predicate<EntityDescriptor> p : this.exclusionPredicates) {
-        final PredicateFilter predicateFilter = new PredicateFilter(Direction.EXCLUDE, p);
-        predicateFilter.initialize();
-        filters.add(predicateFilter);
+      // Count the entities before filtering?
+      if (!filters.isEmpty() && this.metrics != NoOpMetadataProviderMetrics.INSTANCE) {
+        filters.add(0, new MetadataFilter() {
+
+          @Override
+          public String getType() {
+            return "EntityCountFilter";
+          }
+
+          @Override
+          public XMLObject filter(final XMLObject metadata, @Nonnull final MetadataFilterContext context) {
+            AbstractMetadataProvider.this.entitiesBeforeFiltering = countEntities(metadata);
+            return metadata;
+          }
+        });
       }
     }
 
     // Install the mandatory filter that saves downloaded metadata.
-    filters.add(new MetadataFilter() {
+    final MetadataFilter saveFilter = new MetadataFilter() {
 
       @Override
       public String getType() {
@@ -282,26 +601,463 @@ public abstract class AbstractMetadataProvider extends AbstractInitializableComp
 
       @Override
       public XMLObject filter(final XMLObject metadata, @Nonnull final MetadataFilterContext context) {
-        AbstractMetadataProvider.this.setMetadata(metadata);
+        final AbstractMetadataProvider provider = AbstractMetadataProvider.this;
+        final boolean alreadyVerified = metadata != null && metadata == provider.cachedVerifiedMetadata;
+        provider.cachedVerifiedMetadata = null;
+        if (!alreadyVerified) {
+          provider.verificationCount.incrementAndGet();
+          provider.reportEntitiesFiltered(metadata);
+        }
+        if (metadata != null && provider.sourceDigest != null) {
+          if (!alreadyVerified && provider.verifiedMetadataCache != null) {
+            provider.verifiedMetadataCache.store(provider.sourceDigest, metadata);
+          }
+          provider.lastVerifiedDigest = provider.sourceDigest;
+        }
+        provider.sourceDigest = null;
+        if (metadata != null && provider.releaseDOM) {
+          releaseMetadataDOM(metadata);
+        }
+        provider.setMetadata(metadata);
         return metadata;
       }
-    });
+    };
+    filters.add(saveFilter);
 
     if (filters.size() == 1) {
-      return filters.get(0);
+      return saveFilter;
     }
-    else {
-      final MetadataFilterChain chain = new MetadataFilterChain();
-      chain.setFilters(filters);
-      chain.initialize();
+    final MetadataFilterChain chain = new MetadataFilterChain();
+    chain.setFilters(filters);
+    chain.initialize();
+    if (this.verifiedMetadataCache == null && !this.skipUnchangedMetadata && this.refreshScheduler == null) {
       return chain;
     }
+
+    // Metadata loaded from the verified metadata cache, or metadata that is unchanged since the last refresh, has
+    // already been verified and filtered, and is only saved. If a refresh scheduler is used, it limits the number of
+    // parallel verifications.
+    //
+    return new MetadataFilter() {
+
+      @Override
+      public String getType() {
+        return "MetadataProcessingFilter";
+      }
+
+      @Override
+      public XMLObject filter(final XMLObject metadata, @Nonnull final MetadataFilterContext context)
+          throws FilterException {
+        final AbstractMetadataProvider provider = AbstractMetadataProvider.this;
+        if (metadata != null && metadata == provider.cachedVerifiedMetadata) {
+          return saveFilter.filter(metadata, context);
+        }
+        return provider.refreshScheduler != null
+            ? provider.refreshScheduler.verify(chain, metadata, context)
+            : chain.filter(metadata, context);
+      }
+    };
+  }
+
+  /**
+   * Wraps the supplied filter so that the time it takes to apply the filter is reported to the provider's metrics. If
+   * no metrics are used, the filter is returned as is.
+   *
+   * @param name the filter name
+   * @param filter the filter
+   * @return a filter
+   */
+  private MetadataFilter timed(final String name, final MetadataFilter filter) {
+    if (this.metrics == NoOpMetadataProviderMetrics.INSTANCE) {
+      return filter;
+    }
+    return new MetadataFilter() {
+
+      @Override
+      public String getType() {
+        return filter.getType();
+      }
+
+      @Override
+      public XMLObject filter(final XMLObject metadata, @Nonnull final MetadataFilterContext context)
+          throws FilterException {
+        final long start = System.nanoTime();
+        try {
+          return filter.filter(metadata, context);
+        }
+        finally {
+          AbstractMetadataProvider.this.metrics.filterCompleted(AbstractMetadataProvider.this.getID(), name,
+              Duration.ofNanos(System.nanoTime() - start));
+        }
+      }
+    };
+  }
+
+  /**
+   * Reports the number of entities before and after filtering to the provider's metrics.
+   *
+   * @param metadata the filtered metadata
+   */
+  private void reportEntitiesFiltered(final XMLObject metadata) {
+    final int before = this.entitiesBeforeFiltering;
+    this.entitiesBeforeFiltering = -1;
+    if (this.metrics == NoOpMetadataProviderMetrics.INSTANCE || metadata == null && before < 0) {
+      return;
+    }
+    final int after = countEntities(metadata);
+    this.metrics.entitiesFiltered(this.getID(), before >= 0 ? before : after, after);
+  }
+
+  /**
+   * Counts the entity descriptors of the supplied metadata.
+   *
+   * @param metadata the metadata
+   * @return the number of entity descriptors
+   */
+  private static int countEntities(final XMLObject metadata) {
+    if (metadata instanceof EntityDescriptor) {
+      return 1;
+    }
+    int count = 0;
+    if (metadata instanceof final EntitiesDescriptor entities) {
+      count += entities.getEntityDescriptors().size();
+      for (final EntitiesDescriptor nested : entities.getEntitiesDescriptors()) {
+        count += countEntities(nested);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Fetches metadata using the resolver's fetch method, and reports the download to the provider's metrics. Providers
+   * whose resolver extends {@link AbstractReloadingMetadataResolver} let their resolver call this method instead of
+   * fetching the metadata directly.
+   *
+   * @param defaultFetcher the resolver's default fetch method
+   * @return the metadata bytes, or {@code null} if the metadata has not changed since the last fetch
+   * @throws ResolverException for fetch errors
+   */
+  protected byte[] fetchMetadata(final MetadataFetcher defaultFetcher) throws ResolverException {
+    final long start = System.nanoTime();
+    final byte[] bytes = defaultFetcher.fetch();
+    final Duration duration = Duration.ofNanos(System.nanoTime() - start);
+
+    final TransferStatistics statistics = MetadataTransferSupport.takeTransferStatistics();
+    this.reportTransferStatistics(statistics);
+    final long size = bytes != null ? bytes.length : 0L;
+    this.metrics.downloadCompleted(this.getID(), duration,
+        statistics != null ? statistics.transferredBytes() : size, size);
+    return bytes;
+  }
+
+  /**
+   * Refreshes metadata using the resolver's refresh method, and reports failures to the provider's metrics. Providers
+   * whose resolver extends {@link AbstractReloadingMetadataResolver} let their resolver call this method, so that
+   * failures for both scheduled and explicit refreshes are reported.
+   *
+   * @param defaultRefresher the resolver's default refresh method
+   * @throws ResolverException if the refresh fails
+   */
+  protected void refreshMetadata(final MetadataRefresher defaultRefresher) throws ResolverException {
+    try {
+      defaultRefresher.refresh();
+    }
+    catch (final ResolverException | RuntimeException e) {
+      this.metrics.refreshFailed(this.getID(), e);
+      throw e;
+    }
+  }
+
+  /**
+   * Unmarshalls metadata read by the provider's resolver. Providers that return {@code true} from
+   * {@link #isCustomUnmarshallingSupported()} let their resolver call this method instead of using the default
+   * unmarshalling.
+   * <p>
+   * If the source bytes are identical to the bytes of the metadata that was last verified, and that metadata is still
+   * valid, the current metadata is returned (see {@link #setSkipUnchangedMetadata(boolean)}). If a verified metadata
+   * cache is used and the cache was created from the same source bytes, the cached metadata is returned. Otherwise, the
+   * metadata is parsed using the streaming parser (if streaming ingestion is active) or the supplied default
+   * unmarshaller.
+   * </p>
+   *
+   * @param metadataInput the metadata input stream
+   * @param defaultUnmarshaller the resolver's default unmarshaller
+   * @return the unmarshalled metadata
+   * @throws UnmarshallingException for unmarshalling errors
+   */
+  protected XMLObject unmarshallMetadata(final InputStream metadataInput,
+      final MetadataUnmarshaller defaultUnmarshaller) throws UnmarshallingException {
+
+    this.reportTransferStatistics(MetadataTransferSupport.takeTransferStatistics());
+    if (this.refreshScheduler != null) {
+      this.refreshScheduler.downloadCompleted();
+    }
+
+    InputStream input = metadataInput;
+    this.cachedVerifiedMetadata = null;
+    this.sourceDigest = null;
+    this.entitiesBeforeFiltering = -1;
+
+    if (this.verifiedMetadataCache != null || this.skipUnchangedMetadata) {
+      final byte[] digest;
+      try {
+        // The resolvers hand us byte array streams, so the digest is normally calculated without copying.
+        if (!input.markSupported()) {
+          input = new ByteArrayInputStream(input.readAllBytes());
+        }
+        input.mark(Integer.MAX_VALUE);
+        digest = VerifiedMetadataCache.digest(input, this.cacheConfiguration);
+        input.reset();
+      }
+      catch (final IOException e) {
+        throw new UnmarshallingException("Failed to read metadata", e);
+      }
+      this.sourceDigest = digest;
+
+      final XMLObject current = this.getMetadata();
+      if (this.skipUnchangedMetadata && current != null && Arrays.equals(digest, this.lastVerifiedDigest)
+          && isValid(current)) {
+        log.debug("{}: Metadata is unchanged since last verification - skipping verification and filtering",
+            this.getID());
+        this.skippedVerificationCount.incrementAndGet();
+        this.cachedVerifiedMetadata = current;
+        return current;
+      }
+      if (this.verifiedMetadataCache != null) {
+        final XMLObject cached = this.verifiedMetadataCache.load(digest);
+        if (cached != null) {
+          log.debug("{}: Using metadata from verified metadata cache", this.getID());
+          this.cachedVerifiedMetadata = cached;
+          return cached;
+        }
+      }
+    }
+    final long start = System.nanoTime();
+    final XMLObject metadata = this.streamingParser != null
+        ? this.streamingParser.parse(input)
+        : defaultUnmarshaller.unmarshall(input);
+    this.metrics.parseCompleted(this.getID(), Duration.ofNanos(System.nanoTime() - start));
+    if (this.streamingParser != null) {
+      this.entitiesBeforeFiltering = this.streamingParser.getLastProcessedCount();
+    }
+    return metadata;
+  }
+
+  /**
+   * Records the statistics for a metadata download.
+   *
+   * @param statistics the statistics (if {@code null}, nothing is recorded)
+   */
+  protected void reportTransferStatistics(final TransferStatistics statistics) {
+    if (statistics == null) {
+      return;
+    }
+    this.lastTransferStatistics = statistics;
+    this.totalTransferredBytes.addAndGet(statistics.transferredBytes());
+    this.totalUncompressedBytes.addAndGet(statistics.uncompressedBytes());
+    log.debug("{}: Downloaded {} bytes of metadata ({} bytes transferred{})", this.getID(),
+        statistics.uncompressedBytes(), statistics.transferredBytes(),
+        statistics.isCompressed() ? ", " + statistics.contentEncoding() : "");
+  }
+
+  /**
+   * Gets the statistics for the last metadata download. Statistics are only available for providers that download
+   * metadata using an {@code HttpClient} that has been set up with the {@link MetadataTransferSupport} interceptors.
+   *
+   * @return the transfer statistics, or {@code null} if not available
+   */
+  public TransferStatistics getLastTransferStatistics() {
+    return this.lastTransferStatistics;
+  }
+
+  /**
+   * Gets the total number of bytes transferred when downloading metadata.
+   *
+   * @return the number of bytes
+   * @see #getLastTransferStatistics()
+   */
+  public long getTotalTransferredBytes() {
+    return this.totalTransferredBytes.get();
+  }
+
+  /**
+   * Gets the total number of bytes of downloaded metadata, after decompression.
+   *
+   * @return the number of bytes
+   * @see #getLastTransferStatistics()
+   */
+  public long getTotalUncompressedBytes() {
+    return this.totalUncompressedBytes.get();
+  }
+
+  /**
+   * Tells whether the supplied metadata is still valid, i.e., that its {@code validUntil} has not passed.
+   *
+   * @param metadata the metadata
+   * @return whether the metadata is valid
+   */
+  private static boolean isValid(final XMLObject metadata) {
+    return !(metadata instanceof final TimeBoundSAMLObject t) || t.getValidUntil() == null
+        || t.getValidUntil().isAfter(Instant.now());
+  }
+
+  /**
+   * Gets the number of times that metadata has been verified and filtered by this provider.
+   *
+   * @return the number of verifications
+   */
+  public long getVerificationCount() {
+    return this.verificationCount.get();
+  }
+
+  /**
+   * Gets the number of times that verification and filtering has been skipped because refreshed metadata was
+   * identical to the previously verified metadata.
+   *
+   * @return the number of skipped verifications
+   * @see #setSkipUnchangedMetadata(boolean)
+   */
+  public long getSkippedVerificationCount() {
+    return this.skippedVerificationCount.get();
+  }
+
+  /**
+   * Gets a string describing the configuration settings that affect verification and filtering. This is bound to the
+   * verified metadata cache so that a cache created using other settings is not used.
+   * <p>
+   * Inclusion and exclusion predicates are described using {@link MetadataProviderPredicates.DescribedPredicate}. If a
+   * predicate is not a described predicate, {@code null} is returned, and the verified metadata cache is not used.
+   * </p>
+   *
+   * @return a configuration string, or {@code null} if the configuration can not be described
+   */
+  private String getCacheConfiguration() {
+    final StringBuilder sb = new StringBuilder();
+    if (this.signatureVerificationCertificates != null) {
+      for (final X509Certificate c : this.signatureVerificationCertificates) {
+        try {
+          sb.append(Base64.getEncoder().encodeToString(c.getEncoded())).append(';');
+        }
+        catch (final CertificateEncodingException e) {
+          sb.append(c.getSerialNumber()).append(';');
+        }
+      }
+    }
+    sb.append("schema=").append(this.performSchemaValidation)
+        .append(";spAndIdps=").append(this.keepOnlySpAndIdps)
+        .append(";streaming=").append(this.streamingParser != null);
+
+    final String include = describePredicates(this.inclusionPredicates);
+    final String exclude = describePredicates(this.exclusionPredicates);
+    if (include == null || exclude == null) {
+      return null;
+    }
+    sb.append(";include=").append(include).append(";exclude=").append(exclude);
+    return sb.toString();
+  }
+
+  /**
+   * Describes the supplied predicates, see {@link #getCacheConfiguration()}.
+   *
+   * @param predicates the predicates (may be {@code null})
+   * @return a description, or {@code null} if any of the predicates can not be described
+   */
+  private static String describePredicates(final List<Predicate<EntityDescriptor>> predicates) {
+    final List<String> descriptions = new ArrayList<>();
+    if (predicates != null) {
+      for (final Predicate<EntityDescriptor> p : predicates) {
+        if (!(p instanceof final MetadataProviderPredicates.DescribedPredicate described)
+            || described.getDescription() == null) {
+          return null;
+        }
+        descriptions.add(described.getDescription());
+      }
+    }
+    return descriptions.toString();
+  }
+
+  /**
+   * Releases the cached DOM of the supplied metadata object and all of its children.
+   *
+   * @param metadata the metadata object
+   */
+  protected static void releaseMetadataDOM(final XMLObject metadata) {
+    metadata.releaseDOM();
+    metadata.releaseChildrenDOM(true);
+  }
+
+  /**
+   * Tells whether the resolver used by the provider unmarshalls metadata using
+   * {@link #unmarshallMetadata(InputStream, MetadataUnmarshaller)}. This is required for streaming ingestion and the
+   * verified metadata cache. The default implementation returns {@code false}.
+   *
+   * @return whether custom unmarshalling is supported
+   * @see #setStreamingIngestion(boolean)
+   * @see #setVerifiedMetadataCacheFile(File)
+   */
+  protected boolean isCustomUnmarshallingSupported() {
+    return false;
+  }
+
+  /**
+   * Gets the streaming parser that should be used when metadata is unmarshalled. If streaming ingestion is not active,
+   * {@code null} is returned.
+   *
+   * @return the streaming parser, or {@code null}
+   */
+  protected StreamingMetadataParser getStreamingParser() {
+    return this.streamingParser;
+  }
+
+  /**
+   * Creates the {@link StreamingMetadataParser} that is used when streaming ingestion is active. The parser is
+   * configured with the signature verification certificates, the schema validation setting and the filtering settings of
+   * this provider.
+   *
+   * @return a streaming parser
+   * @throws ComponentInitializationException if the parser can not be created
+   */
+  protected StreamingMetadataParser createStreamingParser() throws ComponentInitializationException {
+    final StreamingMetadataParser parser = new StreamingMetadataParser();
+    parser.setSignatureVerificationCertificates(this.signatureVerificationCertificates);
+    try {
+      parser.setPerformSchemaValidation(this.performSchemaValidation);
+    }
+    catch (final SAXException e) {
+      throw new ComponentInitializationException("Failed to load SAML schema", e);
+    }
+    parser.setKeepOnlySpAndIdps(this.keepOnlySpAndIdps);
+    parser.setInclusionPredicates(this.inclusionPredicates);
+    parser.setExclusionPredicates(this.exclusionPredicates);
+
+    // Entity ID set predicates can be evaluated before the entities are parsed ...
+    Predicate<String> entityIdPredicate = null;
+    if (this.inclusionPredicates != null) {
+      for (final Predicate<EntityDescriptor> p : this.inclusionPredicates) {
+        if (p instanceof final MetadataProviderPredicates.EntityIdSetPredicate set) {
+          entityIdPredicate = entityIdPredicate != null ? entityIdPredicate.and(set::contains) : set::contains;
+        }
+      }
+    }
+    if (this.exclusionPredicates != null) {
+      for (final Predicate<EntityDescriptor> p : this.exclusionPredicates) {
+        if (p instanceof final MetadataProviderPredicates.EntityIdSetPredicate set) {
+          final Predicate<String> notExcluded = id -> !set.contains(id);
+          entityIdPredicate = entityIdPredicate != null ? entityIdPredicate.and(notExcluded) : notExcluded;
+        }
+      }
+    }
+    parser.setEntityIdPredicate(entityIdPredicate);
+    return parser;
   }
 
   /** {@inheritDoc} */
   @Override
   protected void doDestroy() {
     super.doDestroy();
+    if (this.refreshScheduler != null) {
+      this.refreshScheduler.unregister(this);
+    }
     this.destroyMetadataResolver();
   }
 
@@ -432,6 +1188,216 @@ public abstract class AbstractMetadataProvider extends AbstractInitializableComp
     this.exclusionPredicates = exclusionPredicates;
   }
 
+  /**
+   * Assigns whether the DOM of the metadata should be released after the metadata has been filtered and its signature
+   * verified. The unmarshalled metadata objects keep a reference to the DOM they were unmarshalled from, which roughly
+   * doubles the heap used for metadata. If the DOM is released, {@link #getMetadataDOM()} will marshall the metadata
+   * on demand. Default: false.
+   * <p>
+   * No heap figures are given here since they depend on the metadata, the JVM and the garbage collector. The test
+   * sources contain a (disabled) benchmark, {@code FilesystemMetadataProviderTest#benchmarkReleaseDOMHeapUsage}, that
+   * compares the heap retained with and without the DOM for the test federation metadata.
+   * </p>
+   *
+   * @param releaseDOM whether the DOM should be released
+   */
+  public void setReleaseDOM(final boolean releaseDOM) {
+    this.checkSetterPreconditions();
+    this.releaseDOM = releaseDOM;
+  }
+
+  /**
+   * Tells whether the DOM of the metadata is released after the metadata has been filtered and verified.
+   *
+   * @return whether the DOM is released
+   */
+  public boolean isReleaseDOM() {
+    return this.releaseDOM;
+  }
+
+  /**
+   * Assigns whether metadata should be parsed in streaming mode. In this mode, metadata is read entity by entity and
+   * signature verification, schema validation and filtering are performed while the metadata is read. Only accepted
+   * entities are kept in memory, which makes a big difference for very large metadata aggregates.
+   * <p>
+   * The setting is ignored by providers that do not support streaming ingestion. Default: false.
+   * </p>
+   *
+   * @param streamingIngestion whether streaming ingestion should be used
+   * @see StreamingMetadataParser
+   */
+  public void setStreamingIngestion(final boolean streamingIngestion) {
+    this.checkSetterPreconditions();
+    this.streamingIngestion = streamingIngestion;
+  }
+
+  /**
+   * Assigns a file where verified and filtered metadata is cached. When the provider starts, or refreshes its metadata,
+   * and the metadata source bytes are the same as the bytes that the cached metadata was created from, the cached
+   * metadata is used directly. This saves the time for signature verification, schema validation and filtering.
+   * <p>
+   * If the cache file is missing, was created from other source bytes, has another format version, or holds metadata
+   * that is no longer valid, the metadata is processed as usual and the cache file is updated.
+   * </p>
+   * <p>
+   * The cache is bound to the provider's verification and filtering settings. Inclusion and exclusion predicates must
+   * therefore be identifiable, i.e., implement {@link MetadataProviderPredicates.DescribedPredicate} (the predicates
+   * created by {@link MetadataProviderPredicates} do, and other predicates may be described using
+   * {@link MetadataProviderPredicates#describedAs(String, Predicate)}). Otherwise, the cache is not used.
+   * </p>
+   * <p>
+   * <b>Note:</b> Metadata read from the cache is trusted without signature verification. The digest that binds the
+   * cache to its source can be calculated by anyone who knows the source bytes and the configuration, so unless a cache
+   * key is assigned (see {@link #setVerifiedMetadataCacheKey(SecretKey)}), anyone who can write to the cache file, or
+   * its directory, can inject metadata that the provider will trust. The cache file is created readable and writable by
+   * its owner only (on file systems that support POSIX permissions), but the directory must be protected as well.
+   * </p>
+   * <p>
+   * The setting is ignored by providers that do not support custom unmarshalling.
+   * </p>
+   *
+   * @param verifiedMetadataCacheFile the cache file
+   * @see VerifiedMetadataCache
+   */
+  public void setVerifiedMetadataCacheFile(final File verifiedMetadataCacheFile) {
+    this.checkSetterPreconditions();
+    this.verifiedMetadataCacheFile = verifiedMetadataCacheFile;
+  }
+
+  /**
+   * Assigns a key that is used to protect the integrity of the verified metadata cache (see
+   * {@link #setVerifiedMetadataCacheFile(File)}). The cache file is protected using an HMAC-SHA256 calculated with
+   * this key, and a cache file whose HMAC can not be verified is not used. The key should be kept by the application
+   * (for example in its key store), and not next to the cache file.
+   *
+   * @param verifiedMetadataCacheKey the HMAC key
+   */
+  public void setVerifiedMetadataCacheKey(final SecretKey verifiedMetadataCacheKey) {
+    this.checkSetterPreconditions();
+    this.verifiedMetadataCacheKey = verifiedMetadataCacheKey;
+  }
+
+  /**
+   * Gets the timer that a reloading resolver created by this provider should use. If the provider is refreshed by a
+   * refresh scheduler, the scheduler's shared timer is returned, otherwise {@code null} is returned (meaning that the
+   * resolver creates a timer of its own).
+   *
+   * @return a timer, or {@code null}
+   * @see #setRefreshScheduler(MetadataRefreshScheduler)
+   */
+  protected Timer getResolverTimer() {
+    return this.refreshScheduler != null ? this.refreshScheduler.getResolverTimer() : null;
+  }
+
+  /**
+   * Assigns whether signature verification, schema validation and filtering should be skipped when refreshed metadata
+   * is byte-identical to the metadata that was last verified. In these cases the current metadata, and its snapshot,
+   * are kept. Metadata whose {@code validUntil} has passed is always processed. Since the digest also covers the
+   * provider's signature verification certificates, a change of certificates means that the metadata is verified again.
+   * <p>
+   * Note that the digest covers the source bytes and the provider's own configuration only. Any state that a predicate
+   * depends on, but that is not reflected by its description (see {@link #setVerifiedMetadataCacheFile(File)}), is not
+   * covered, so a predicate whose outcome may change between refreshes should not be combined with this setting.
+   * </p>
+   * <p>
+   * The setting is ignored by providers that do not support custom unmarshalling. Default: false.
+   * </p>
+   *
+   * @param skipUnchangedMetadata whether to skip verification of unchanged metadata
+   */
+  public void setSkipUnchangedMetadata(final boolean skipUnchangedMetadata) {
+    this.checkSetterPreconditions();
+    this.skipUnchangedMetadata = skipUnchangedMetadata;
+  }
+
+  /**
+   * Assigns a refresh scheduler that should handle the refreshes of this provider instead of the resolver's own timer.
+   * The scheduler must be initialized before the provider is initialized, and should not be destroyed before the
+   * provider.
+   * <p>
+   * The setting only has effect for providers whose resolver extends {@link AbstractReloadingMetadataResolver}, and
+   * that has not already been initialized.
+   * </p>
+   * <p>
+   * Note: OpenSAML's reloading resolvers always schedule their refreshes on a {@code java.util.Timer}. The refreshes of
+   * the resolver are disabled, but its timer remains. Providers that create their resolver when they are initialized,
+   * such as {@link FilesystemMetadataProvider}, let the resolver use a timer shared by all providers of the scheduler
+   * (see {@link #getResolverTimer()}). Providers that create their resolver in their constructor, such as
+   * {@link HTTPMetadataProvider}, can not do this, so each such resolver keeps an (idle) timer thread of its own.
+   * </p>
+   *
+   * @param refreshScheduler the refresh scheduler
+   */
+  public void setRefreshScheduler(final MetadataRefreshScheduler refreshScheduler) {
+    this.checkSetterPreconditions();
+    this.refreshScheduler = refreshScheduler;
+  }
+
+  /**
+   * Assigns the metrics instance that the provider reports download, parse and filter times, entity counts, snapshot
+   * sizes and refresh failures to. The default is {@link NoOpMetadataProviderMetrics}.
+   *
+   * @param metrics the metrics instance
+   */
+  public void setMetrics(final MetadataProviderMetrics metrics) {
+    this.checkSetterPreconditions();
+    this.metrics = metrics != null ? metrics : NoOpMetadataProviderMetrics.INSTANCE;
+  }
+
+  /**
+   * Gets the metrics instance that the provider reports to.
+   *
+   * @return the metrics instance (never {@code null})
+   */
+  protected MetadataProviderMetrics getMetrics() {
+    return this.metrics;
+  }
+
+  /**
+   * Unmarshalls metadata from an input stream.
+   */
+  @FunctionalInterface
+  protected interface MetadataUnmarshaller {
+
+    /**
+     * Unmarshalls metadata from the supplied stream.
+     *
+     * @param metadataInput the input stream
+     * @return the metadata object
+     * @throws UnmarshallingException for unmarshalling errors
+     */
+    XMLObject unmarshall(final InputStream metadataInput) throws UnmarshallingException;
+  }
+
+  /**
+   * Fetches metadata bytes.
+   */
+  @FunctionalInterface
+  protected interface MetadataFetcher {
+
+    /**
+     * Fetches the metadata.
+     *
+     * @return the metadata bytes, or {@code null} if the metadata has not changed since the last fetch
+     * @throws ResolverException for fetch errors
+     */
+    byte[] fetch() throws ResolverException;
+  }
+
+  /**
+   * Refreshes metadata.
+   */
+  @FunctionalInterface
+  protected interface MetadataRefresher {
+
+    /**
+     * Refreshes the metadata.
+     *
+     * @throws ResolverException if the refresh fails
+     */
+    void refresh() throws ResolverException;
+  }
+
   /**
    * Iterates over EntitiesDescriptor or EntityDescriptor.
    */
@@ -16,6 +16,7 @@
 package se.swedenconnect.opensaml.saml2.metadata.provider;
 
 import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.resolver.CriteriaSet;
 import net.shibboleth.shared.resolver.ResolverException;
 import net.shibboleth.shared.security.RandomIdentifierParameterSpec;
 import net.shibboleth.shared.security.impl.RandomIdentifierGenerationStrategy;
@@ -27,6 +28,7 @@ import org.opensaml.core.xml.io.UnmarshallingException;
 import org.opensaml.core.xml.util.XMLObjectSupport;
 import org.opensaml.saml.metadata.resolver.MetadataResolver;
 import org.opensaml.saml.metadata.resolver.filter.MetadataFilter;
+import org.opensaml.saml.metadata.resolver.impl.AbstractDynamicMetadataResolver;
 import org.opensaml.saml.metadata.resolver.impl.CompositeMetadataResolver;
 import org.opensaml.saml.saml2.common.CacheableSAMLObject;
 import org.opensaml.saml.saml2.common.TimeBoundSAMLObject;
@@ -36,14 +38,33 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.xml.namespace.QName;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -74,11 +95,35 @@ public class CompositeMetadataProvider extends AbstractMetadataProvider {
   /** The time that this provider was initialized. */
   private Instant initTime;
 
-  /** The downloaded metadata from all providers. */
-  private EntitiesDescriptor compositeMetadata;
+  /** The read-only view of the entity descriptors from all providers. */
+  private volatile CompositeView compositeView;
 
-  /** A timestamp for when the {@code compositeMetadata} was put together. */
-  private Instant compositeMetadataCreationTime;
+  /**
+   * The metadata from all providers compiled into an {@code EntitiesDescriptor}. Only created when requested by
+   * {@link #getMetadata()}.
+   */
+  private volatile CompiledMetadata compositeMetadata;
+
+  /** Lock that is held when the composite view or the compiled metadata is created. */
+  private final Object rebuildLock = new Object();
+
+  /** Tells whether a background rebuild of the composite view is in progress. */
+  private final AtomicBoolean rebuildInProgress = new AtomicBoolean(false);
+
+  /** Whether the composite view should be re-collected in the background. Default: true. */
+  private boolean backgroundRebuild = true;
+
+  /**
+   * The providers that resolve entities dynamically (for example MDQ). Entities that are not found in the routing index
+   * of the composite view are only looked up using these providers.
+   */
+  private List<MetadataProvider> dynamicProviders = Collections.emptyList();
+
+  /**
+   * The entries read from each underlying provider at the last collection. Replaced at each collection, so that only
+   * the contributions of the current providers, and of their current metadata, are kept.
+   */
+  private Map<MetadataProvider, ProviderContribution> contributions = new IdentityHashMap<>();
 
   /** Generates ID. */
   private final RandomIdentifierGenerationStrategy idGenerator;
@@ -89,6 +134,48 @@ public class CompositeMetadataProvider extends AbstractMetadataProvider {
   /** Duration telling the cache duraction for the metadata returned by {@link #getMetadata()}. */
   private Duration cacheDuration;
 
+  /** Whether the underlying providers should be initialized concurrently. Default: false. */
+  private boolean parallelInitialization = false;
+
+  /** The executor to use for parallel initialization. If not assigned, virtual threads are used. */
+  private ExecutorService initializationExecutor;
+
+  /** The maximum time to wait for the underlying providers to initialize (in parallel mode). */
+  private Duration initializationTimeout;
+
+  /** Whether the underlying resolvers should be queried in parallel. Default: false. */
+  private boolean parallelResolution = false;
+
+  /** The executor to use for parallel resolution. If not assigned, virtual threads are used. */
+  private ExecutorService resolutionExecutor;
+
+  /** The maximum time to wait for the underlying resolvers during parallel resolution. Default: 5 seconds. */
+  private Duration resolutionTimeout = Duration.ofSeconds(5);
+
+  /** The time after which a lookup at one underlying resolver counts as a failure. Default: 10 seconds. */
+  private Duration childResolutionTimeout = Duration.ofSeconds(10);
+
+  /** The number of consecutive failures after which an underlying resolver is skipped. Default: 3. */
+  private int circuitBreakerThreshold = 3;
+
+  /** For how long a failing underlying resolver is skipped. Default: 30 seconds. */
+  private Duration circuitBreakerOpenDuration = Duration.ofSeconds(30);
+
+  /** Receives the change sets from the underlying providers. */
+  private final MetadataChangeListener childChangeListener = this::childMetadataChanged;
+
+  /** Whether the child change listener has been registered with the underlying providers. */
+  private final AtomicBoolean childChangeListenerRegistered = new AtomicBoolean(false);
+
+  /** Change sets from the underlying providers that have not yet been delivered. */
+  private final List<MetadataChangeSet> pendingChanges = new ArrayList<>();
+
+  /** Whether a delivery of the pending change sets has been scheduled. */
+  private boolean changeDeliveryScheduled = false;
+
+  /** The routing index of the view that the last delivered change set was calculated against. */
+  private Map<String, MetadataProvider> deliveredRouting;
+
   /**
    * Constructs a composite metadata provider by assigning it a list of provider instances that it shall read its
    * metadata from.
@@ -138,9 +225,267 @@ public class CompositeMetadataProvider extends AbstractMetadataProvider {
   /**
    * Collects all metadata from all underlying providers and creates an {@code EntitiesDescriptor} element. Any
    * duplicate entity ID:s will be removed.
+   * <p>
+   * The returned object is a standalone copy where each entity descriptor has been copied and had its signature,
+   * {@code cacheDuration} and {@code validUntil} removed. Since this is costly for large federations, the copy is only
+   * created when this method is called. Methods such as {@link #iterator()} and {@link #getIdentityProviders()} are
+   * served from a read-only view that holds the underlying providers' entity descriptors.
+   * </p>
+   * <p>
+   * The copy is kept until the metadata of an underlying provider changes, which means that once this method has been
+   * called, the provider holds a second copy of all metadata. If the underlying providers have been refreshed, but
+   * their metadata objects are the same, the previously returned copy is returned again. Otherwise a new copy is
+   * created, and copies returned earlier are left untouched.
+   * </p>
    */
   @Override
-  public synchronized XMLObject getMetadata() {
+  public XMLObject getMetadata() {
+    final CompositeView view = this.getCompositeView();
+    if (view == null) {
+      return null;
+    }
+    CompiledMetadata compiled = this.compositeMetadata;
+    if (compiled != null && compiled.view() == view) {
+      return compiled.metadata();
+    }
+    synchronized (this.rebuildLock) {
+      compiled = this.compositeMetadata;
+      if (compiled == null || compiled.view() != view) {
+        final EntitiesDescriptor metadata = compiled != null && compiled.isCompiledFrom(view)
+            ? compiled.metadata()
+            : this.compileMetadata(view);
+        compiled = new CompiledMetadata(view, metadata);
+        this.compositeMetadata = compiled;
+      }
+      return compiled.metadata();
+    }
+  }
+
+  /**
+   * Returns a read-only view of the entity descriptors from all underlying providers. The entity descriptors are the
+   * ones held by the underlying providers, i.e., they are not copied and may contain signatures and validity
+   * information.
+   */
+  @Override
+  protected MetadataSnapshot getSnapshot() {
+    final CompositeView view = this.getCompositeView();
+    return view != null ? view.snapshot() : MetadataSnapshot.EMPTY;
+  }
+
+  /**
+   * Returns the {@code validUntil} calculated for the composite view, without compiling the metadata.
+   */
+  @Override
+  protected Instant getMetadataValidUntil() {
+    final CompositeView view = this.getCompositeView();
+    return view != null ? view.validUntil() : null;
+  }
+
+  /**
+   * Returns the {@code cacheDuration} calculated for the composite view, without compiling the metadata.
+   */
+  @Override
+  protected Duration getMetadataCacheDuration() {
+    final CompositeView view = this.getCompositeView();
+    return view != null ? view.cacheDuration() : null;
+  }
+
+  /**
+   * Uses the routing index of the composite view to find the provider holding the requested entity, and queries only
+   * that provider. If the entity is not known, only the dynamic providers (such as {@link MDQMetadataProvider}) are
+   * queried.
+   * <p>
+   * If the view is older than the metadata of the underlying providers (which is the case while a new view is being
+   * collected in the background), all underlying providers are queried for an entity that is not known. This way an
+   * entity that was just added to a provider is found before the new view has been installed. For a view that is up to
+   * date, unknown entities (such as misspelled entityID:s) are never looked up at the static providers.
+   * </p>
+   */
+  @Override
+  public EntityDescriptor getEntityDescriptor(final String entityID, final QName role) throws ResolverException {
+    final CompositeView view = this.getCompositeView();
+    if (view == null || entityID == null) {
+      return super.getEntityDescriptor(entityID, role);
+    }
+    final MetadataProvider owner = view.routing().get(entityID);
+    if (owner != null) {
+      final EntityDescriptor ed = owner.getEntityDescriptor(entityID);
+      if (ed != null) {
+        return role == null || !ed.getRoleDescriptors(role).isEmpty() ? ed : null;
+      }
+      // The owner no longer has a (valid) entry. Query all providers ...
+      log.debug("Entity '{}' not found at provider '{}' - querying all providers", entityID, owner.getID());
+      return super.getEntityDescriptor(entityID, role);
+    }
+    final Instant lastUpdate = this.getLastUpdate();
+    if (lastUpdate != null && view.creationTime().isBefore(lastUpdate)) {
+      return super.getEntityDescriptor(entityID, role);
+    }
+    final EntityDescriptor ed = this.metadataResolver.resolveFirst(this.dynamicProviders.stream()
+        .map(p -> CompositeMetadataResolverEx.Child.of(p, entityID))
+        .toList());
+    return ed != null && (role == null || !ed.getRoleDescriptors(role).isEmpty()) ? ed : null;
+  }
+
+  /**
+   * Registers a listener for changes in the metadata of the underlying providers. The change sets of the underlying
+   * providers are merged (see {@link MetadataChangeSet#merge(String, List)}) and delivered with the ID of this
+   * provider. Change sets are delivered asynchronously, and change sets from several providers that are reported at
+   * about the same time are delivered as one.
+   * <p>
+   * A change set is delivered after the composite view holding the changes has been installed, and only changes that
+   * affect the entities served by this provider are reported. For example, an entity that is removed from one provider,
+   * but is still served by another, is not reported as removed.
+   * </p>
+   */
+  @Override
+  public void addChangeListener(final MetadataChangeListener listener) {
+    super.addChangeListener(listener);
+    if (this.childChangeListenerRegistered.compareAndSet(false, true)) {
+      for (final MetadataProvider provider : this.metadataProviders) {
+        if (provider instanceof final AbstractMetadataProvider p) {
+          p.addChangeListener(this.childChangeListener);
+        }
+        else {
+          log.info("Provider '{}' does not support change listeners - its changes will not be reported",
+              provider.getID());
+        }
+      }
+    }
+  }
+
+  /**
+   * Receives a change set from an underlying provider, and schedules delivery of the pending change sets.
+   *
+   * @param changes the changes
+   */
+  private void childMetadataChanged(final MetadataChangeSet changes) {
+    synchronized (this.pendingChanges) {
+      this.pendingChanges.add(changes);
+      if (this.changeDeliveryScheduled) {
+        return;
+      }
+      this.changeDeliveryScheduled = true;
+    }
+    Thread.ofVirtual().name("composite-changes-" + this.getID()).start(this::deliverPendingChanges);
+  }
+
+  /**
+   * Collects a new composite view holding the pending changes, and when it has been installed, merges the pending
+   * change sets and delivers the result to the listeners. Runs until there are no more pending change sets.
+   */
+  private void deliverPendingChanges() {
+    while (true) {
+      final List<MetadataChangeSet> changes;
+      synchronized (this.pendingChanges) {
+        if (this.pendingChanges.isEmpty()) {
+          this.changeDeliveryScheduled = false;
+          return;
+        }
+        changes = new ArrayList<>(this.pendingChanges);
+        this.pendingChanges.clear();
+      }
+      try {
+        final CompositeView current = this.compositeView;
+        final Map<String, MetadataProvider> previousRouting = this.deliveredRouting != null
+            ? this.deliveredRouting
+            : current != null ? current.routing() : Collections.emptyMap();
+
+        // The underlying providers publish their changes before their resolvers are updated, so we can not rely on
+        // the last update time, and force the collection of a new view ...
+        final CompositeView view = this.rebuildCompositeView(Instant.now());
+        this.deliveredRouting = view.routing();
+
+        final List<MetadataChangeSet> filtered = new ArrayList<>(changes.size());
+        for (final MetadataChangeSet c : changes) {
+          filtered.add(filterChanges(c, previousRouting, view.routing()));
+        }
+        final MetadataChangeSet merged = MetadataChangeSet.merge(this.getID(), filtered);
+        if (!merged.isEmpty()) {
+          this.fireMetadataChanged(merged);
+        }
+      }
+      catch (final RuntimeException e) {
+        log.error("Failed to deliver metadata changes for '{}'", this.getID(), e);
+      }
+    }
+  }
+
+  /**
+   * Filters the change set from an underlying provider, so that only the changes that affect the entities served by
+   * this provider remain. An entity is served by the provider that owns it according to the routing index.
+   *
+   * @param changes the change set from an underlying provider
+   * @param previousRouting the routing index before the changes
+   * @param routing the routing index after the changes
+   * @return the filtered change set
+   */
+  private static MetadataChangeSet filterChanges(final MetadataChangeSet changes,
+      final Map<String, MetadataProvider> previousRouting, final Map<String, MetadataProvider> routing) {
+
+    final Set<String> added = new LinkedHashSet<>();
+    final Set<String> removed = new LinkedHashSet<>();
+    final Set<String> modified = new LinkedHashSet<>();
+    for (final String id : changes.added()) {
+      if (routing.containsKey(id) && !isOwner(changes, routing.get(id))) {
+        continue;
+      }
+      (previousRouting.containsKey(id) ? modified : added).add(id);
+    }
+    for (final String id : changes.removed()) {
+      if (!routing.containsKey(id)) {
+        removed.add(id);
+      }
+      else if (isOwner(changes, previousRouting.get(id))) {
+        // Now served by another provider ...
+        modified.add(id);
+      }
+    }
+    for (final String id : changes.modified()) {
+      if (!routing.containsKey(id) || isOwner(changes, routing.get(id))) {
+        modified.add(id);
+      }
+    }
+    return new MetadataChangeSet(changes.providerId(), added, removed, modified);
+  }
+
+  /**
+   * Tells whether the supplied provider is the provider that reported the change set.
+   *
+   * @param changes the change set
+   * @param provider the provider (may be {@code null})
+   * @return whether the provider reported the change set
+   */
+  private static boolean isOwner(final MetadataChangeSet changes, final MetadataProvider provider) {
+    return provider != null && Objects.equals(provider.getID(), changes.providerId());
+  }
+
+  /**
+   * Tells whether the supplied provider resolves entities dynamically, i.e., whether it may return entities that are
+   * not part of the metadata that it currently holds.
+   *
+   * @param provider the provider
+   * @return {@code true} if the provider is dynamic and {@code false} otherwise
+   */
+  private static boolean isDynamic(final MetadataProvider provider) {
+    if (provider instanceof CompositeMetadataProvider || !(provider instanceof AbstractMetadataProvider)) {
+      return true;
+    }
+    return provider.getMetadataResolver() instanceof AbstractDynamicMetadataResolver;
+  }
+
+  /**
+   * Gets the composite view. If the underlying metadata has been updated since the view was created, a new view is
+   * collected.
+   * <p>
+   * Reads are lock-free. If a view exists and background rebuild is enabled (see
+   * {@link #setBackgroundRebuild(boolean)}), a new view is collected by a background thread and the current view is
+   * returned until the new view has been published.
+   * </p>
+   *
+   * @return the view, or {@code null} if no metadata is available
+   */
+  private CompositeView getCompositeView() {
 
     final Instant lastUpdate = this.getLastUpdate();
 
@@ -151,98 +496,213 @@ public class CompositeMetadataProvider extends AbstractMetadataProvider {
       return null;
     }
 
-    // Time to collect new metadata from the providers?
+    final CompositeView view = this.compositeView;
+    if (view != null && !view.creationTime().isBefore(lastUpdate)) {
+      return view;
+    }
+
+    // Time to collect new metadata from the providers ...
     //
-    if (this.compositeMetadata == null || this.compositeMetadataCreationTime.isBefore(lastUpdate)) {
+    if (view == null || !this.backgroundRebuild) {
+      return this.rebuildCompositeView(lastUpdate);
+    }
+    if (this.rebuildInProgress.compareAndSet(false, true)) {
+      log.debug("Metadata for '{}' has been updated - collecting metadata in background", this.getID());
+      try {
+        Thread.ofVirtual().name("composite-rebuild-" + this.getID()).start(() -> {
+          try {
+            this.rebuildCompositeView(lastUpdate);
+          }
+          catch (final RuntimeException e) {
+            log.error("Failed to collect composite metadata for '{}'", this.getID(), e);
+          }
+          finally {
+            this.rebuildInProgress.set(false);
+          }
+        });
+      }
+      catch (final RuntimeException e) {
+        this.rebuildInProgress.set(false);
+        throw e;
+      }
+    }
+    return view;
+  }
 
-      this.collectMetadata();
+  /**
+   * Collects a new composite view (unless another thread has already done so) and publishes it.
+   *
+   * @param lastUpdate the last update time of the underlying metadata
+   * @return the current view
+   */
+  private CompositeView rebuildCompositeView(final Instant lastUpdate) {
+    synchronized (this.rebuildLock) {
+      CompositeView view = this.compositeView;
+      if (view == null || view.creationTime().isBefore(lastUpdate)) {
+        final boolean indexed = view != null && view.snapshot().isIndexed();
+        final boolean searchIndexed = view != null && view.snapshot().isIdpSearchIndexed();
+        view = this.collectMetadata();
+        if (indexed) {
+          // The secondary indexes are in use, build them before the view is published ...
+          view.snapshot().getIndex();
+        }
+        if (searchIndexed) {
+          view.snapshot().getIdpSearchIndex();
+        }
+        this.compositeView = view;
+      }
+      return view;
     }
-    return this.compositeMetadata;
   }
 
   /**
    * Collects metadata from all underlying providers.
+   * <p>
+   * The entity descriptors of each provider are cached, and only providers whose metadata has changed since the last
+   * collection are read again. The contributions from all providers are then merged (in provider order) using a
+   * hash-based duplicate check. No entity descriptors are copied.
+   * </p>
+   *
+   * @return a composite view
    */
-  private synchronized void collectMetadata() {
+  private CompositeView collectMetadata() {
 
     log.debug("Collecting composite metadata for {} ...", this.getID());
 
-    final List<String> entityIds = new ArrayList<>();
-
-    final EntitiesDescriptor metadata =
-        (EntitiesDescriptor) XMLObjectSupport.buildXMLObject(EntitiesDescriptor.DEFAULT_ELEMENT_NAME);
-    metadata.setName(this.getID());
-    metadata.setID("metadata_" + this.idGenerator.generateIdentifier(true));
+    final Map<String, MetadataProvider> routing = new HashMap<>();
+    final List<EntityDescriptor> entityDescriptors = new ArrayList<>();
+    final Map<MetadataProvider, ProviderContribution> collected = new IdentityHashMap<>();
+    final List<ProviderContribution> viewContributions = new ArrayList<>();
 
     Instant calculatedValidUntil = null;
     Duration calculatedCacheDuration = null;
 
     for (final MetadataProvider provider : this.metadataProviders) {
-      if (this.validity == null || this.cacheDuration == null) {
+      final Object source;
+      final Instant providerValidUntil;
+      final Duration providerCacheDuration;
+      if (provider instanceof final AbstractMetadataProvider p) {
+        // Read the snapshot, so that a provider that compiles its metadata on demand (such as a nested composite
+        // provider) does not have to do so ...
+        source = p.getSnapshot();
+        providerValidUntil = p.getMetadataValidUntil();
+        providerCacheDuration = p.getMetadataCacheDuration();
+      }
+      else {
+        final XMLObject providerMetadata;
         try {
-          final XMLObject providerMetadata = provider.getMetadata();
-          final Instant providerValidUntil = ((TimeBoundSAMLObject) providerMetadata).getValidUntil();
-          if (calculatedValidUntil == null
-              || (providerValidUntil != null && providerValidUntil.isBefore(calculatedValidUntil)
-              && providerValidUntil.isAfter(Instant.now()))) {
-            calculatedValidUntil = providerValidUntil;
-          }
-          final Duration providerCacheDuration = ((CacheableSAMLObject) providerMetadata).getCacheDuration();
-          if (calculatedCacheDuration == null
-              || (providerCacheDuration != null && providerCacheDuration.compareTo(calculatedCacheDuration) < 1)) {
-            calculatedCacheDuration = providerCacheDuration;
-          }
+          providerMetadata = provider.getMetadata();
         }
         catch (final ResolverException e) {
           log.error("Error getting metadata from provider '{}'", provider.getID(), e);
           continue;
         }
+        source = providerMetadata;
+        providerValidUntil = providerMetadata instanceof final TimeBoundSAMLObject tb ? tb.getValidUntil() : null;
+        providerCacheDuration = providerMetadata instanceof final CacheableSAMLObject c ? c.getCacheDuration() : null;
+      }
+      if (this.validity == null || this.cacheDuration == null) {
+        if (calculatedValidUntil == null
+            || (providerValidUntil != null && providerValidUntil.isBefore(calculatedValidUntil)
+            && providerValidUntil.isAfter(Instant.now()))) {
+          calculatedValidUntil = providerValidUntil;
+        }
+        if (calculatedCacheDuration == null
+            || (providerCacheDuration != null && providerCacheDuration.compareTo(calculatedCacheDuration) < 1)) {
+          calculatedCacheDuration = providerCacheDuration;
+        }
       }
 
-      for (final EntityDescriptor ed : provider.iterator()) {
-        if (entityIds.contains(ed.getEntityID())) {
+      ProviderContribution contribution = this.contributions.get(provider);
+      if (contribution == null || contribution.getSource() != source) {
+        contribution = new ProviderContribution(provider, source);
+      }
+      else {
+        log.trace("Metadata from provider '{}' has not changed - re-using entries", provider.getID());
+      }
+      collected.put(provider, contribution);
+      viewContributions.add(contribution);
+
+      for (final EntityDescriptor ed : contribution.getEntityDescriptors()) {
+        if (routing.putIfAbsent(ed.getEntityID(), provider) != null) {
           log.warn(
               "EntityDescriptor for '{}' already exists in metadata. Entry read from provider '{}' will be ignored.",
               ed.getEntityID(), provider.getID());
           continue;
         }
-        try {
-          // Make a copy of the descriptor since we may want to modify it.
-          final EntityDescriptor edCopy = XMLObjectSupport.cloneXMLObject(ed);
+        entityDescriptors.add(ed);
+        log.trace("EntityDescriptor '{}' added to composite metadata", ed.getEntityID());
+      }
+    }
 
-          // Remove signature, cacheDuration and validity.
-          edCopy.setSignature(null);
-          edCopy.setCacheDuration(null);
-          edCopy.setValidUntil(null);
+    // Contributions for replaced metadata, or for providers that are no longer present (or failed), are dropped ...
+    this.contributions = collected;
 
-          metadata.getEntityDescriptors().add(edCopy);
-          entityIds.add(edCopy.getEntityID());
-          log.trace("EntityDescriptor '{}' added to composite metadata", edCopy.getEntityID());
-        }
-        catch (final MarshallingException | UnmarshallingException e) {
-          log.error("Error copying EntityDescriptor '{}', entry will not be included in metadata", ed.getEntityID(), e);
-        }
+    log.info("Composite metadata for {} collected ({} entities)", this.getID(), entityDescriptors.size());
+
+    return new CompositeView(MetadataSnapshot.of(entityDescriptors), routing, viewContributions,
+        this.validity != null ? Instant.now().plus(this.validity) : calculatedValidUntil,
+        this.cacheDuration != null ? this.cacheDuration : calculatedCacheDuration,
+        Instant.now());
+  }
+
+  /**
+   * Compiles the entity descriptors of the supplied view into a standalone {@code EntitiesDescriptor}. Each entity
+   * descriptor is copied, so the result does not share any objects with previously compiled metadata.
+   *
+   * @param view the composite view
+   * @return an {@code EntitiesDescriptor}
+   */
+  private EntitiesDescriptor compileMetadata(final CompositeView view) {
+    final EntitiesDescriptor metadata =
+        (EntitiesDescriptor) XMLObjectSupport.buildXMLObject(EntitiesDescriptor.DEFAULT_ELEMENT_NAME);
+    metadata.setName(this.getID());
+    metadata.setID("metadata_" + this.idGenerator.generateIdentifier(true));
+
+    for (final EntityDescriptor ed : view.snapshot().getEntityDescriptors()) {
+      final EntityDescriptor edCopy = copyEntityDescriptor(ed);
+      if (edCopy != null) {
+        metadata.getEntityDescriptors().add(edCopy);
       }
+      if (this.isReleaseDOM()) {
+        // Copying marshalls the original ...
+        releaseMetadataDOM(ed);
+      }
+    }
+    if (this.isReleaseDOM()) {
+      releaseMetadataDOM(metadata);
     }
 
     // Set the cacheDuration and validUntil
     //
-    if (this.validity != null) {
-      metadata.setValidUntil(Instant.now().plus(this.validity));
-    }
-    else {
-      metadata.setValidUntil(calculatedValidUntil);
-    }
-    if (this.cacheDuration != null) {
-      metadata.setCacheDuration(this.cacheDuration);
+    metadata.setValidUntil(view.validUntil());
+    metadata.setCacheDuration(view.cacheDuration());
+
+    log.info("Composite metadata for {} compiled into EntitiesDescriptor", this.getID());
+    return metadata;
+  }
+
+  /**
+   * Creates a copy of the supplied entity descriptor with signature, cacheDuration and validUntil removed.
+   *
+   * @param ed the entity descriptor
+   * @return the copy, or {@code null} if the entry can not be copied
+   */
+  private static EntityDescriptor copyEntityDescriptor(final EntityDescriptor ed) {
+    try {
+      final EntityDescriptor edCopy = XMLObjectSupport.cloneXMLObject(ed);
+
+      // Remove signature, cacheDuration and validity.
+      edCopy.setSignature(null);
+      edCopy.setCacheDuration(null);
+      edCopy.setValidUntil(null);
+
+      return edCopy;
     }
-    else {
-      metadata.setCacheDuration(calculatedCacheDuration);
+    catch (final MarshallingException | UnmarshallingException e) {
+      log.error("Error copying EntityDescriptor '{}', entry will not be included in metadata", ed.getEntityID(), e);
+      return null;
     }
-
-    this.compositeMetadataCreationTime = Instant.now();
-    this.compositeMetadata = metadata;
-    log.info("Composite metadata for {} collected and compiled into EntitiesDescriptor", this.getID());
   }
 
   /** {@inheritDoc} */
@@ -259,6 +719,10 @@ public class CompositeMetadataProvider extends AbstractMetadataProvider {
 
     this.metadataResolver = new CompositeMetadataResolverEx();
     this.metadataResolver.setId(this.id);
+    if (this.parallelResolution) {
+      this.metadataResolver.setParallelResolution(this.resolutionExecutor, this.resolutionTimeout,
+          this.childResolutionTimeout, this.circuitBreakerThreshold, this.circuitBreakerOpenDuration);
+    }
     // We don't install the resolvers until initializeMetadataResolver().
   }
 
@@ -276,22 +740,40 @@ public class CompositeMetadataProvider extends AbstractMetadataProvider {
    */
   private final List<String> destroyList = new ArrayList<>();
 
+  /** The time it took to initialize each underlying provider (that was initialized by this instance). */
+  private final Map<String, Duration> initializationTimes = new LinkedHashMap<>();
+
   /** {@inheritDoc} */
   @Override
   protected void initializeMetadataResolver() throws ComponentInitializationException {
     log.debug("Initializing CompositeMetadataProvider ...");
-    for (final MetadataProvider p : this.metadataProviders) {
-      final String id = p.getID();
-      if (p.isInitialized()) {
-        log.debug("Underlying provider ({}) has already been initialized", id);
-      }
-      else {
-        log.trace("Initializing underlying provider ({}) ...", id);
-        p.initialize();
-        this.destroyList.add(id);
-        log.debug("Underlying provider ({}) successfully initialized", id);
+    if (this.parallelInitialization) {
+      this.initializeProvidersInParallel();
+    }
+    else {
+      for (final MetadataProvider p : this.metadataProviders) {
+        final String id = p.getID();
+        if (p.isInitialized()) {
+          log.debug("Underlying provider ({}) has already been initialized", id);
+        }
+        else {
+          log.trace("Initializing underlying provider ({}) ...", id);
+          final long start = System.nanoTime();
+          p.initialize();
+          this.initializationTimes.put(id, Duration.ofNanos(System.nanoTime() - start));
+          this.destroyList.add(id);
+          log.debug("Underlying provider ({}) successfully initialized", id);
+        }
       }
     }
+    if (!this.initializationTimes.isEmpty()) {
+      log.info("Underlying providers of '{}' initialized - initialization times: {}",
+          this.getID(), this.initializationTimes);
+    }
+
+    this.dynamicProviders = this.metadataProviders.stream()
+        .filter(CompositeMetadataProvider::isDynamic)
+        .toList();
 
     // OK, now we save the init time since we may use that to answer the getLastUpdate queries.
     //
@@ -319,11 +801,146 @@ public class CompositeMetadataProvider extends AbstractMetadataProvider {
     log.debug("CompositeMetadataProvider successfully initialized");
   }
 
+  /**
+   * Initializes the underlying providers concurrently using the configured executor (or virtual threads if no executor
+   * has been assigned).
+   * <p>
+   * If the initialization fails, every provider whose initialization was started is destroyed, including providers that
+   * were interrupted half-way. Providers whose initialization is still running when we give up are destroyed when their
+   * initialization task ends.
+   * </p>
+   *
+   * @throws ComponentInitializationException if a provider fails to initialize, or if the initialization timeout is
+   *     exceeded
+   */
+  private void initializeProvidersInParallel() throws ComponentInitializationException {
+    final ExecutorService executor = this.initializationExecutor != null
+        ? this.initializationExecutor
+        : Executors.newVirtualThreadPerTaskExecutor();
+
+    final Map<String, Future<Duration>> tasks = new LinkedHashMap<>();
+    final Map<String, MetadataProvider> started = new ConcurrentHashMap<>();
+    final Set<String> finished = ConcurrentHashMap.newKeySet();
+    final AtomicBoolean abandoned = new AtomicBoolean(false);
+    try {
+      for (final MetadataProvider p : this.metadataProviders) {
+        final String id = p.getID();
+        if (p.isInitialized()) {
+          log.debug("Underlying provider ({}) has already been initialized", id);
+          continue;
+        }
+        log.trace("Initializing underlying provider ({}) ...", id);
+        tasks.put(id, executor.submit(() -> {
+          started.put(id, p);
+          final long start = System.nanoTime();
+          try {
+            p.initialize();
+          }
+          finally {
+            finished.add(id);
+            if (abandoned.get()) {
+              destroyAbandonedProvider(p);
+            }
+          }
+          return Duration.ofNanos(System.nanoTime() - start);
+        }));
+      }
+
+      final long deadline = this.initializationTimeout != null
+          ? System.nanoTime() + this.initializationTimeout.toNanos()
+          : Long.MAX_VALUE;
+
+      ComponentInitializationException error = null;
+      for (final Map.Entry<String, Future<Duration>> task : tasks.entrySet()) {
+        final String id = task.getKey();
+        try {
+          final Duration time = deadline == Long.MAX_VALUE
+              ? task.getValue().get()
+              : task.getValue().get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+          this.initializationTimes.put(id, time);
+          this.destroyList.add(id);
+          log.debug("Underlying provider ({}) successfully initialized", id);
+        }
+        catch (final TimeoutException e) {
+          task.getValue().cancel(true);
+          log.error("Underlying provider ({}) did not complete its initialization within {}",
+              id, this.initializationTimeout);
+          if (error == null) {
+            error = new ComponentInitializationException(String.format(
+                "Initialization of underlying provider (%s) did not complete within %s", id,
+                this.initializationTimeout));
+          }
+        }
+        catch (final ExecutionException e) {
+          log.error("Underlying provider ({}) failed to initialize", id, e.getCause());
+          if (error == null) {
+            error = e.getCause() instanceof final ComponentInitializationException cie
+                ? cie
+                : new ComponentInitializationException(e.getCause());
+          }
+        }
+        catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          error = new ComponentInitializationException("Interrupted during initialization of underlying providers", e);
+          break;
+        }
+      }
+      if (error != null) {
+        // Give up. Tasks that have not ended are cancelled and destroy their provider when they end, and the
+        // providers of the ended tasks are destroyed here.
+        //
+        abandoned.set(true);
+        tasks.values().forEach(f -> f.cancel(true));
+        started.forEach((id, p) -> {
+          if (finished.contains(id)) {
+            destroyAbandonedProvider(p);
+          }
+        });
+        this.destroyList.removeAll(started.keySet());
+        throw error;
+      }
+    }
+    finally {
+      if (this.initializationExecutor == null) {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Destroys an underlying provider whose initialization was started during a failed parallel initialization.
+   *
+   * @param provider the provider to destroy
+   */
+  private static void destroyAbandonedProvider(final MetadataProvider provider) {
+    try {
+      if (!provider.isDestroyed()) {
+        log.debug("Destroying underlying provider ({}) after failed initialization", provider.getID());
+        provider.destroy();
+      }
+    }
+    catch (final Exception e) {
+      log.error("Error while destroying underlying provider ({})", provider.getID(), e);
+    }
+  }
+
+  /**
+   * Gets the time it took to initialize each of the underlying providers that were initialized by this instance.
+   *
+   * @return a map of provider ID:s and initialization times
+   */
+  public Map<String, Duration> getInitializationTimes() {
+    return Collections.unmodifiableMap(this.initializationTimes);
+  }
+
   /** {@inheritDoc} */
   @Override
   protected void destroyMetadataResolver() {
     for (final MetadataProvider p : this.metadataProviders) {
       final String id = p.getID();
+      if (p instanceof final AbstractMetadataProvider amp) {
+        amp.removeChangeListener(this.childChangeListener);
+      }
       try {
         if (this.destroyList.contains(id) && p.isInitialized() && !p.isDestroyed()) {
           p.destroy();
@@ -419,12 +1036,267 @@ public class CompositeMetadataProvider extends AbstractMetadataProvider {
     this.cacheDuration = cacheDuration;
   }
 
+  /**
+   * A read-only view of the entity descriptors from all underlying providers.
+   *
+   * @param snapshot the entity descriptors
+   * @param routing a map of entity ID:s and the provider holding the entity
+   * @param contributions the contributions that the view was collected from (in provider order)
+   * @param validUntil the calculated validUntil
+   * @param cacheDuration the calculated cacheDuration
+   * @param creationTime when the view was created
+   */
+  private record CompositeView(MetadataSnapshot snapshot, Map<String, MetadataProvider> routing,
+      List<ProviderContribution> contributions, Instant validUntil, Duration cacheDuration, Instant creationTime) {
+  }
+
+  /**
+   * Assigns whether the underlying providers should be initialized concurrently. This will reduce the startup time for
+   * a composite provider that has several providers downloading and verifying metadata. Default is {@code false}.
+   *
+   * @param parallelInitialization whether to initialize the providers in parallel
+   */
+  public void setParallelInitialization(final boolean parallelInitialization) {
+    this.checkSetterPreconditions();
+    this.parallelInitialization = parallelInitialization;
+  }
+
+  /**
+   * Assigns the executor that should be used when the underlying providers are initialized in parallel (see
+   * {@link #setParallelInitialization(boolean)}). If not assigned, each provider is initialized using a virtual
+   * thread.
+   * <p>
+   * The caller is responsible for shutting down an assigned executor.
+   * </p>
+   *
+   * @param initializationExecutor the executor
+   */
+  public void setInitializationExecutor(final ExecutorService initializationExecutor) {
+    this.checkSetterPreconditions();
+    this.initializationExecutor = initializationExecutor;
+  }
+
+  /**
+   * Assigns the maximum time to wait for all underlying providers to be initialized when running in parallel mode (see
+   * {@link #setParallelInitialization(boolean)}). If the timeout is exceeded, the initialization of the composite
+   * provider fails. If not assigned, there is no timeout.
+   *
+   * @param initializationTimeout the timeout
+   */
+  public void setInitializationTimeout(final Duration initializationTimeout) {
+    this.checkSetterPreconditions();
+    this.initializationTimeout = initializationTimeout;
+  }
+
+  /**
+   * Assigns whether the underlying resolvers should be queried in parallel when an entity is resolved. By default, the
+   * resolvers are queried one after the other, meaning that a slow resolver (for example an MDQ resolver) adds its
+   * full latency to each lookup.
+   * <p>
+   * In parallel mode, all resolvers are queried at once and the first matching entry (in provider order) is returned.
+   * Resolvers that do not respond within the resolution timeout (see {@link #setResolutionTimeout(Duration)}) are
+   * skipped, and a resolver that repeatedly fails or exceeds its own timeout (see
+   * {@link #setChildResolutionTimeout(Duration)}) is temporarily skipped altogether (see
+   * {@link #setCircuitBreakerThreshold(int)}).
+   * </p>
+   * <p>
+   * This also applies to {@link #getEntityDescriptor(String, QName)}: entities that are not part of the composite view
+   * are looked up at the dynamic providers in parallel, using the same timeouts and circuit breakers.
+   * </p>
+   * <p>
+   * Note that in parallel mode, all resolvers are queried, also the ones that would not have been queried during
+   * sequential resolution since a preceding resolver had a match.
+   * </p>
+   *
+   * @param parallelResolution whether to query the underlying resolvers in parallel
+   */
+  public void setParallelResolution(final boolean parallelResolution) {
+    this.checkSetterPreconditions();
+    this.parallelResolution = parallelResolution;
+  }
+
+  /**
+   * Assigns the executor that should be used for parallel resolution (see {@link #setParallelResolution(boolean)}). If
+   * not assigned, each resolver is queried using a virtual thread.
+   * <p>
+   * The caller is responsible for shutting down an assigned executor.
+   * </p>
+   *
+   * @param resolutionExecutor the executor
+   */
+  public void setResolutionExecutor(final ExecutorService resolutionExecutor) {
+    this.checkSetterPreconditions();
+    this.resolutionExecutor = resolutionExecutor;
+  }
+
+  /**
+   * Assigns the maximum time to wait for the underlying resolvers during parallel resolution. The default is 5
+   * seconds.
+   *
+   * @param resolutionTimeout the timeout
+   */
+  public void setResolutionTimeout(final Duration resolutionTimeout) {
+    this.checkSetterPreconditions();
+    Validate.notNull(resolutionTimeout, "resolutionTimeout must not be null");
+    this.resolutionTimeout = resolutionTimeout;
+  }
+
+  /**
+   * Assigns the time after which a lookup at one underlying resolver is regarded as failed during parallel resolution.
+   * This is separate from the resolution timeout (see {@link #setResolutionTimeout(Duration)}), which tells for how long
+   * the caller waits. A resolver that responds after the resolution timeout, but within this timeout, is skipped for
+   * that lookup, but is not counted as failing by the circuit breaker (see {@link #setCircuitBreakerThreshold(int)}).
+   * If this timeout is shorter than the resolution timeout, the caller does not wait longer than this timeout. The
+   * default is 10 seconds.
+   *
+   * @param childResolutionTimeout the timeout for each underlying resolver
+   */
+  public void setChildResolutionTimeout(final Duration childResolutionTimeout) {
+    this.checkSetterPreconditions();
+    Validate.notNull(childResolutionTimeout, "childResolutionTimeout must not be null");
+    this.childResolutionTimeout = childResolutionTimeout;
+  }
+
+  /**
+   * Assigns the number of consecutive failures (errors, or lookups exceeding the timeout assigned using
+   * {@link #setChildResolutionTimeout(Duration)}) after which an underlying resolver is skipped during parallel
+   * resolution. The default is 3.
+   *
+   * @param circuitBreakerThreshold the number of consecutive failures
+   */
+  public void setCircuitBreakerThreshold(final int circuitBreakerThreshold) {
+    this.checkSetterPreconditions();
+    Validate.isTrue(circuitBreakerThreshold > 0, "circuitBreakerThreshold must be greater than 0");
+    this.circuitBreakerThreshold = circuitBreakerThreshold;
+  }
+
+  /**
+   * Assigns for how long an underlying resolver is skipped after it has reached the circuit breaker threshold (see
+   * {@link #setCircuitBreakerThreshold(int)}). After this time one request is let through to test if the resolver has
+   * recovered. The default is 30 seconds.
+   *
+   * @param circuitBreakerOpenDuration the duration
+   */
+  public void setCircuitBreakerOpenDuration(final Duration circuitBreakerOpenDuration) {
+    this.checkSetterPreconditions();
+    Validate.notNull(circuitBreakerOpenDuration, "circuitBreakerOpenDuration must not be null");
+    this.circuitBreakerOpenDuration = circuitBreakerOpenDuration;
+  }
+
+  /**
+   * Assigns whether the composite metadata should be re-collected in the background when an underlying provider has
+   * been refreshed. If {@code true}, readers will see the previous metadata until the new metadata has been collected.
+   * If {@code false}, the first reader after an update will collect the new metadata (and other readers will wait).
+   * The default is {@code true}.
+   *
+   * @param backgroundRebuild whether to collect metadata in the background
+   */
+  public void setBackgroundRebuild(final boolean backgroundRebuild) {
+    this.checkSetterPreconditions();
+    this.backgroundRebuild = backgroundRebuild;
+  }
+
+  /**
+   * An {@code EntitiesDescriptor} compiled from a composite view.
+   *
+   * @param view the view that the metadata was compiled from
+   * @param metadata the compiled metadata
+   */
+  private record CompiledMetadata(CompositeView view, EntitiesDescriptor metadata) {
+
+    /**
+     * Tells whether compiling the supplied view would give the same metadata as this compiled metadata, i.e., whether
+     * the view was collected from the same contributions and has the same validity.
+     *
+     * @param other the view
+     * @return {@code true} if the compiled metadata can be used for the view, and {@code false} otherwise
+     */
+    boolean isCompiledFrom(final CompositeView other) {
+      final List<ProviderContribution> a = this.view.contributions();
+      final List<ProviderContribution> b = other.contributions();
+      if (a.size() != b.size() || !Objects.equals(this.view.validUntil(), other.validUntil())
+          || !Objects.equals(this.view.cacheDuration(), other.cacheDuration())) {
+        return false;
+      }
+      for (int i = 0; i < a.size(); i++) {
+        if (a.get(i) != b.get(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * The entity descriptors read from one underlying provider.
+   */
+  private static class ProviderContribution {
+
+    /**
+     * The provider snapshot (or the provider metadata, for providers that are not {@link AbstractMetadataProvider}
+     * instances) that the entity descriptors were read from.
+     */
+    private final Object source;
+
+    /** The entity descriptors (not copied). */
+    private final List<EntityDescriptor> entityDescriptors;
+
+    /**
+     * Constructor.
+     *
+     * @param provider the provider
+     * @param source the provider snapshot or metadata
+     */
+    ProviderContribution(final MetadataProvider provider, final Object source) {
+      this.source = source;
+      if (provider.iterator() instanceof final List<EntityDescriptor> list) {
+        this.entityDescriptors = list;
+      }
+      else {
+        this.entityDescriptors = new ArrayList<>();
+        provider.iterator().forEach(this.entityDescriptors::add);
+      }
+    }
+
+    Object getSource() {
+      return this.source;
+    }
+
+    List<EntityDescriptor> getEntityDescriptors() {
+      return this.entityDescriptors;
+    }
+  }
+
   /**
    * OpenSAML:s CompositeMetadataResolver is buggy since the ID property can not be set (it's hidden), and when the
    * resolver is initialized an exception is thrown saying the ID must be set.
+   * <p>
+   * The class also adds support for parallel resolution (see {@link #setParallelResolution(boolean)}).
+   * </p>
    */
   private static class CompositeMetadataResolverEx extends CompositeMetadataResolver {
 
+    /** The executor used for parallel resolution. If {@code null}, resolution is sequential. */
+    private ExecutorService executor;
+
+    /** Whether the executor was created by this instance (and should be shut down by it). */
+    private boolean ownsExecutor;
+
+    /** The maximum time to wait for the child resolvers. */
+    private Duration timeout;
+
+    /** The time after which a lookup at a child resolver counts as a failure. */
+    private Duration childTimeout;
+
+    /** The number of consecutive failures after which a child resolver is skipped. */
+    private int failureThreshold;
+
+    /** For how long a failing child resolver is skipped. */
+    private Duration openDuration;
+
+    /** Circuit breakers for the children, keyed by the child resolver (see {@link Child#key()}). */
+    private final Map<Object, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
     /**
      * Fixing what the OpenSAML developers missed. How did it pass the unit tests?
      */
@@ -433,6 +1305,341 @@ public class CompositeMetadataProvider extends AbstractMetadataProvider {
       super.setId(componentId);
     }
 
+    /**
+     * Configures the resolver to query its child resolvers in parallel.
+     *
+     * @param executor the executor to use (if {@code null}, virtual threads are used)
+     * @param timeout the maximum time to wait for the child resolvers
+     * @param childTimeout the time after which a lookup at a child resolver counts as a failure
+     * @param failureThreshold the number of consecutive failures after which a child resolver is skipped
+     * @param openDuration for how long a failing child resolver is skipped
+     */
+    void setParallelResolution(final ExecutorService executor, final Duration timeout, final Duration childTimeout,
+        final int failureThreshold, final Duration openDuration) {
+      this.ownsExecutor = executor == null;
+      this.executor = executor != null ? executor : Executors.newVirtualThreadPerTaskExecutor();
+      this.timeout = timeout;
+      this.childTimeout = childTimeout;
+      this.failureThreshold = failureThreshold;
+      this.openDuration = openDuration;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public EntityDescriptor resolveSingle(final CriteriaSet criteria) throws ResolverException {
+      if (this.executor == null) {
+        return super.resolveSingle(criteria);
+      }
+      final List<EntityDescriptor> result = this.resolveInParallel(this.getChildren(criteria, true), true);
+      return result.isEmpty() ? null : result.get(0);
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull
+    @Override
+    public Iterable<EntityDescriptor> resolve(final CriteriaSet criteria) throws ResolverException {
+      if (this.executor == null) {
+        return super.resolve(criteria);
+      }
+      return this.resolveInParallel(this.getChildren(criteria, false), false);
+    }
+
+    /**
+     * Returns the first hit from the supplied children. If parallel resolution is enabled, the children are queried in
+     * parallel, with the same timeouts and circuit breakers as for {@link #resolveSingle(CriteriaSet)}. Otherwise they
+     * are queried in order.
+     * <p>
+     * This is used by {@link CompositeMetadataProvider#getEntityDescriptor(String, QName)} to query the dynamic
+     * providers for entities that are not part of the composite view.
+     * </p>
+     *
+     * @param children the children to query
+     * @return the first hit, or {@code null} if no child has a matching entry
+     * @throws ResolverException for resolver errors (only for sequential resolution)
+     */
+    EntityDescriptor resolveFirst(final List<Child> children) throws ResolverException {
+      if (this.executor == null) {
+        for (final Child child : children) {
+          final List<EntityDescriptor> result = child.lookup().lookup();
+          if (!result.isEmpty()) {
+            return result.get(0);
+          }
+        }
+        return null;
+      }
+      final List<EntityDescriptor> result = this.resolveInParallel(children, true);
+      return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * Creates the children for querying the child resolvers using the supplied criteria.
+     *
+     * @param criteria the criteria
+     * @param single whether only the first hit is needed
+     * @return a list of children
+     */
+    private List<Child> getChildren(final CriteriaSet criteria, final boolean single) {
+      return this.getResolvers().stream()
+          .map(r -> new Child(r.getId(), r, () -> {
+            if (single) {
+              final EntityDescriptor ed = r.resolveSingle(criteria);
+              return ed != null ? List.of(ed) : List.of();
+            }
+            final List<EntityDescriptor> list = new ArrayList<>();
+            r.resolve(criteria).forEach(list::add);
+            return list;
+          }))
+          .toList();
+    }
+
+    /**
+     * Queries all child resolvers in parallel. The results are processed in resolver order, so if {@code single} is
+     * set, the hit from the first resolver having a matching entry is returned (just as for sequential resolution).
+     * This hit is returned as soon as all resolvers before it have responded without a match, so we don't wait for
+     * resolvers further down the list. Resolvers that do not respond within the timeout, or that fail, are skipped.
+     * <p>
+     * Resolvers that are still running when we return are not interrupted, since a dynamic resolver may be fetching
+     * metadata that it will cache for later requests. The circuit breaker of a resolver is updated by the resolver's
+     * own task, based on its own response time compared to the child timeout, so a resolver is neither penalized for
+     * waiting on other resolvers, nor for responding after we stopped waiting for it.
+     * </p>
+     *
+     * @param children the children to query
+     * @param single whether only the first hit should be returned
+     * @return a list of entity descriptors
+     * @throws ResolverException if the calling thread is interrupted
+     */
+    private List<EntityDescriptor> resolveInParallel(final List<Child> children, final boolean single)
+        throws ResolverException {
+
+      final CompletionService<List<EntityDescriptor>> completionService =
+          new ExecutorCompletionService<>(this.executor);
+      final Map<Future<List<EntityDescriptor>>, Integer> positions = new HashMap<>();
+
+      // The results in resolver order. A null entry means that the resolver has not responded (yet).
+      final List<List<EntityDescriptor>> results = new ArrayList<>(Collections.nCopies(children.size(), null));
+
+      for (int i = 0; i < children.size(); i++) {
+        final Child child = children.get(i);
+        final CircuitBreaker circuitBreaker =
+            this.circuitBreakers.computeIfAbsent(child.key(), k -> new CircuitBreaker());
+        if (!circuitBreaker.allowRequest()) {
+          log.debug("Resolver '{}' is skipped due to previous failures", child.id());
+          results.set(i, List.of());
+          continue;
+        }
+        positions.put(completionService.submit(() -> this.resolveChild(child, circuitBreaker)), i);
+      }
+
+      final Duration wait = this.childTimeout.compareTo(this.timeout) < 0 ? this.childTimeout : this.timeout;
+      final long deadline = System.nanoTime() + wait.toNanos();
+      try {
+        int pending = positions.size();
+        while (pending > 0) {
+          if (single) {
+            final List<EntityDescriptor> first = getFirstResult(results);
+            if (first != null) {
+              return first;
+            }
+          }
+          final Future<List<EntityDescriptor>> future =
+              completionService.poll(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+          if (future == null) {
+            for (int i = 0; i < results.size(); i++) {
+              if (results.get(i) == null) {
+                log.warn("Resolver '{}' did not respond within {}, proceeding without it",
+                    children.get(i).id(), wait);
+              }
+            }
+            break;
+          }
+          pending--;
+          try {
+            results.set(positions.get(future), future.get());
+          }
+          catch (final ExecutionException e) {
+            // Already logged and recorded by the resolver task ...
+            results.set(positions.get(future), List.of());
+          }
+        }
+      }
+      catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ResolverException("Interrupted while waiting for metadata resolvers", e);
+      }
+      finally {
+        // Resolvers that have not started are not needed. Running resolvers are left to complete.
+        positions.keySet().forEach(f -> f.cancel(false));
+      }
+
+      final List<EntityDescriptor> result = new ArrayList<>();
+      for (final List<EntityDescriptor> r : results) {
+        if (r != null) {
+          result.addAll(r);
+          if (single && !result.isEmpty()) {
+            return result;
+          }
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Given the results in resolver order, returns the first non-empty result if all resolvers before it have
+     * responded.
+     *
+     * @param results the results (a {@code null} entry means that the resolver has not responded)
+     * @return the first result, or {@code null} if we need to wait for more resolvers
+     */
+    private static List<EntityDescriptor> getFirstResult(final List<List<EntityDescriptor>> results) {
+      for (final List<EntityDescriptor> r : results) {
+        if (r == null) {
+          return null;
+        }
+        if (!r.isEmpty()) {
+          return r;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Queries one child and updates its circuit breaker. A child that responds, but not within the child timeout, is
+     * counted as a failure.
+     *
+     * @param child the child
+     * @param circuitBreaker the circuit breaker for the child
+     * @return a list of entity descriptors
+     * @throws ResolverException for resolver errors
+     */
+    private List<EntityDescriptor> resolveChild(final Child child, final CircuitBreaker circuitBreaker)
+        throws ResolverException {
+      final long start = System.nanoTime();
+      try {
+        final List<EntityDescriptor> list = child.lookup().lookup();
+        final Duration time = Duration.ofNanos(System.nanoTime() - start);
+        if (time.compareTo(this.childTimeout) > 0) {
+          log.warn("Resolver '{}' responded after {}, which exceeds the timeout {}", child.id(), time,
+              this.childTimeout);
+          circuitBreaker.failure(child.id());
+        }
+        else {
+          circuitBreaker.success();
+        }
+        return list;
+      }
+      catch (final ResolverException | RuntimeException e) {
+        log.warn("Error retrieving metadata from resolver '{}', proceeding without it", child.id(), e);
+        circuitBreaker.failure(child.id());
+        throw e;
+      }
+    }
+
+    /**
+     * A lookup at a child.
+     */
+    @FunctionalInterface
+    interface ChildLookup {
+
+      /**
+       * Performs the lookup.
+       *
+       * @return a (possibly empty) list of entity descriptors
+       * @throws ResolverException for resolver errors
+       */
+      List<EntityDescriptor> lookup() throws ResolverException;
+    }
+
+    /**
+     * A child to query.
+     *
+     * @param id the ID of the child (for logging)
+     * @param key the key for the circuit breaker of the child, i.e., its resolver (or the provider if it has no resolver)
+     * @param lookup the lookup
+     */
+    record Child(String id, Object key, ChildLookup lookup) {
+
+      /**
+       * Creates a child that looks up an entity using {@link MetadataProvider#getEntityDescriptor(String)}, so that
+       * the provider's own lookup logic (such as the caching of {@link MDQMetadataProvider}) is used. The circuit
+       * breaker is shared with the lookups made directly at the provider's resolver.
+       *
+       * @param provider the provider
+       * @param entityID the entityID
+       * @return a child
+       */
+      static Child of(final MetadataProvider provider, final String entityID) {
+        final MetadataResolver resolver = provider.getMetadataResolver();
+        return new Child(provider.getID(), resolver != null ? resolver : provider, () -> {
+          final EntityDescriptor ed = provider.getEntityDescriptor(entityID);
+          return ed != null ? List.of(ed) : List.of();
+        });
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+      if (this.ownsExecutor && this.executor != null) {
+        this.executor.shutdownNow();
+      }
+      super.doDestroy();
+    }
+
+    /**
+     * A simple circuit breaker. After {@code failureThreshold} consecutive failures, the resolver is skipped for
+     * {@code openDuration}. After that, one request is let through, and depending on its outcome the circuit breaker
+     * is closed or opened again.
+     */
+    private class CircuitBreaker {
+
+      /** The number of consecutive failures. */
+      private int failures = 0;
+
+      /** The time (System.nanoTime) until which requests are blocked. Zero means closed. */
+      private long openUntil = 0L;
+
+      /**
+       * Tells whether a request should be made.
+       *
+       * @return {@code true} if the resolver should be queried
+       */
+      synchronized boolean allowRequest() {
+        if (this.openUntil == 0L) {
+          return true;
+        }
+        final long now = System.nanoTime();
+        if (now - this.openUntil >= 0) {
+          // Half-open - let one request through and block the rest until we know the outcome.
+          this.openUntil = now + CompositeMetadataResolverEx.this.openDuration.toNanos();
+          return true;
+        }
+        return false;
+      }
+
+      /**
+       * Records a successful request.
+       */
+      synchronized void success() {
+        this.failures = 0;
+        this.openUntil = 0L;
+      }
+
+      /**
+       * Records a failed request.
+       *
+       * @param id the ID of the child (for logging)
+       */
+      synchronized void failure(final String id) {
+        this.failures++;
+        if (this.failures >= CompositeMetadataResolverEx.this.failureThreshold) {
+          log.warn("Resolver '{}' has failed {} consecutive times - it will be skipped for {}",
+              id, this.failures, CompositeMetadataResolverEx.this.openDuration);
+          this.openUntil = System.nanoTime() + CompositeMetadataResolverEx.this.openDuration.toNanos();
+        }
+      }
+    }
+
   }
 
 }
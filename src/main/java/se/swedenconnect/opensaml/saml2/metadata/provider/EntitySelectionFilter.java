@@ -0,0 +1,249 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata.provider;
+
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.saml.metadata.resolver.filter.MetadataFilter;
+import org.opensaml.saml.metadata.resolver.filter.MetadataFilterContext;
+import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.RoleDescriptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.namespace.QName;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * A metadata filter that selects the entities to keep in one traversal of the metadata. For each entity, the role
+ * restriction is applied first, and then the inclusion and exclusion predicates.
+ * <p>
+ * The filter replaces a chain of an {@code EntityRoleFilter} followed by one {@code PredicateFilter} per predicate,
+ * where each filter walks the entire metadata, and gives the same result:
+ * </p>
+ * <ul>
+ * <li>If roles to retain are given, all other role descriptors are removed, and entities without any remaining role
+ * descriptors are removed.</li>
+ * <li>Entities that do not match all inclusion predicates are removed.</li>
+ * <li>Entities that match any of the exclusion predicates are removed.</li>
+ * <li>Nested {@code EntitiesDescriptor} elements that are empty after filtering are removed.</li>
+ * </ul>
+ * <p>
+ * If a filter time consumer is assigned, the time spent applying the role restriction and the time spent evaluating
+ * the predicates are reported separately, as {@link MetadataProviderMetrics#FILTER_ROLE} and
+ * {@link MetadataProviderMetrics#FILTER_PREDICATE}.
+ * </p>
+ * <p>
+ * See {@link MetadataProviderPredicates#includeOnlyEntityIds(Collection)} and
+ * {@link MetadataProviderPredicates#excludeEntityIds(Collection)} for predicates that are suitable for large allow- and
+ * deny-lists.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class EntitySelectionFilter implements MetadataFilter {
+
+  /** Logging instance. */
+  private static final Logger log = LoggerFactory.getLogger(EntitySelectionFilter.class);
+
+  /** The roles to retain. If {@code null}, all roles are retained. */
+  private final Set<QName> retainedRoles;
+
+  /** The inclusion predicates. */
+  private final List<Predicate<EntityDescriptor>> inclusionPredicates;
+
+  /** The exclusion predicates. */
+  private final List<Predicate<EntityDescriptor>> exclusionPredicates;
+
+  /** Receives the filter name and the time spent on each part of the selection. May be {@code null}. */
+  private BiConsumer<String, Duration> filterTimeConsumer;
+
+  /**
+   * Constructor.
+   *
+   * @param retainedRoles the roles to retain (if {@code null}, all roles are retained)
+   * @param inclusionPredicates the inclusion predicates (may be {@code null})
+   * @param exclusionPredicates the exclusion predicates (may be {@code null})
+   */
+  public EntitySelectionFilter(@Nullable final Collection<QName> retainedRoles,
+      @Nullable final List<Predicate<EntityDescriptor>> inclusionPredicates,
+      @Nullable final List<Predicate<EntityDescriptor>> exclusionPredicates) {
+    this.retainedRoles = retainedRoles != null ? Set.copyOf(retainedRoles) : null;
+    this.inclusionPredicates = inclusionPredicates != null ? List.copyOf(inclusionPredicates) : List.of();
+    this.exclusionPredicates = exclusionPredicates != null ? List.copyOf(exclusionPredicates) : List.of();
+  }
+
+  /**
+   * Assigns a consumer that receives the time spent applying the role restriction
+   * ({@link MetadataProviderMetrics#FILTER_ROLE}) and evaluating the predicates
+   * ({@link MetadataProviderMetrics#FILTER_PREDICATE}) each time the filter is applied. Only the parts of the
+   * selection that are configured are reported.
+   *
+   * @param filterTimeConsumer the consumer (may be {@code null})
+   */
+  public void setFilterTimeConsumer(@Nullable final BiConsumer<String, Duration> filterTimeConsumer) {
+    this.filterTimeConsumer = filterTimeConsumer;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getType() {
+    return "EntitySelectionFilter";
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  @Nullable
+  public XMLObject filter(@Nullable final XMLObject metadata, @Nonnull final MetadataFilterContext context) {
+    final SelectionTimes times = this.filterTimeConsumer != null ? new SelectionTimes() : null;
+    try {
+      if (metadata instanceof final EntitiesDescriptor entities) {
+        this.filterEntitiesDescriptor(entities, times);
+        return metadata;
+      }
+      else if (metadata instanceof final EntityDescriptor ed) {
+        if (!this.select(ed, times)) {
+          log.debug("Filtering out entity {}", ed.getEntityID());
+          return null;
+        }
+        return metadata;
+      }
+      else if (metadata != null) {
+        log.warn("Unsupported metadata type - {}", metadata.getElementQName());
+      }
+      return metadata;
+    }
+    finally {
+      if (times != null) {
+        if (this.retainedRoles != null) {
+          this.filterTimeConsumer.accept(MetadataProviderMetrics.FILTER_ROLE, Duration.ofNanos(times.role));
+        }
+        if (!this.inclusionPredicates.isEmpty() || !this.exclusionPredicates.isEmpty()) {
+          this.filterTimeConsumer.accept(MetadataProviderMetrics.FILTER_PREDICATE, Duration.ofNanos(times.predicate));
+        }
+      }
+    }
+  }
+
+  /**
+   * Filters the entities of an {@code EntitiesDescriptor}, and of its nested {@code EntitiesDescriptor} elements.
+   *
+   * @param entities the entities descriptor
+   * @param times the accumulated selection times (may be {@code null})
+   */
+  private void filterEntitiesDescriptor(final EntitiesDescriptor entities, @Nullable final SelectionTimes times) {
+    final Iterator<EntitiesDescriptor> groups = entities.getEntitiesDescriptors().iterator();
+    while (groups.hasNext()) {
+      final EntitiesDescriptor group = groups.next();
+      this.filterEntitiesDescriptor(group, times);
+      if (group.getEntitiesDescriptors().isEmpty() && group.getEntityDescriptors().isEmpty()) {
+        groups.remove();
+      }
+    }
+
+    // Removing elements one by one from a large list is expensive, so we build the list of entities to keep
+    // and only replace the contents if something was removed ...
+    //
+    final List<EntityDescriptor> list = entities.getEntityDescriptors();
+    final List<EntityDescriptor> selected = new ArrayList<>(list.size());
+    for (final EntityDescriptor ed : list) {
+      if (this.select(ed, times)) {
+        selected.add(ed);
+      }
+      else {
+        log.trace("Filtering out entity {}", ed.getEntityID());
+      }
+    }
+    if (selected.size() != list.size()) {
+      list.clear();
+      list.addAll(selected);
+    }
+  }
+
+  /**
+   * Applies the role restriction and the predicates to the supplied entity.
+   *
+   * @param ed the entity descriptor
+   * @param times the accumulated selection times (may be {@code null})
+   * @return {@code true} if the entity should be kept, and {@code false} otherwise
+   */
+  private boolean select(final EntityDescriptor ed, @Nullable final SelectionTimes times) {
+    if (this.retainedRoles != null) {
+      final long start = times != null ? System.nanoTime() : 0L;
+      ed.getRoleDescriptors().removeIf(r -> !this.isRetained(r));
+      if (times != null) {
+        times.role += System.nanoTime() - start;
+      }
+      if (ed.getRoleDescriptors().isEmpty()) {
+        return false;
+      }
+    }
+    final long start = times != null ? System.nanoTime() : 0L;
+    try {
+      for (final Predicate<EntityDescriptor> p : this.inclusionPredicates) {
+        if (!p.test(ed)) {
+          return false;
+        }
+      }
+      for (final Predicate<EntityDescriptor> p : this.exclusionPredicates) {
+        if (p.test(ed)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    finally {
+      if (times != null) {
+        times.predicate += System.nanoTime() - start;
+      }
+    }
+  }
+
+  /**
+   * Tells whether the supplied role descriptor should be retained. The element name is used, or, for a generic
+   * {@code RoleDescriptor} element, its schema type.
+   *
+   * @param role the role descriptor
+   * @return whether the role should be retained
+   */
+  private boolean isRetained(final RoleDescriptor role) {
+    return this.retainedRoles.contains(role.getElementQName())
+        || role.getSchemaType() != null && this.retainedRoles.contains(role.getSchemaType());
+  }
+
+  /**
+   * The time spent on each part of the selection during one application of the filter.
+   */
+  private static final class SelectionTimes {
+
+    /** Nanoseconds spent applying the role restriction. */
+    private long role;
+
+    /** Nanoseconds spent evaluating the predicates. */
+    private long predicate;
+
+  }
+
+}
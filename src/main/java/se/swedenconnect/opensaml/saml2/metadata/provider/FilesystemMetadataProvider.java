@@ -62,11 +62,20 @@ public class FilesystemMetadataProvider extends AbstractMetadataProvider {
     return this.metadataResolver;
   }
 
+  /**
+   * Custom unmarshalling is supported by the filesystem provider.
+   */
+  @Override
+  protected boolean isCustomUnmarshallingSupported() {
+    return true;
+  }
+
   /** {@inheritDoc} */
   @Override
   protected void createMetadataResolver(final boolean requireValidMetadata, final boolean failFastInitialization,
       final MetadataFilter filter) throws ResolverException {
-    this.metadataResolver = new FilesystemMetadataResolver(this.metadataSource);
+    this.metadataResolver =
+        ReloadingResolvers.createFilesystemResolver(this, this.getResolverTimer(), this.metadataSource);
     this.metadataResolver.setId(this.getID());
     this.metadataResolver.setRequireValidMetadata(requireValidMetadata);
     this.metadataResolver.setFailFastInitialization(failFastInitialization);
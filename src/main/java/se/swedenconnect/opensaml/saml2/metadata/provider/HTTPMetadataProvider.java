@@ -85,9 +85,7 @@ public class HTTPMetadataProvider extends AbstractMetadataProvider {
     Validate.notEmpty(metadataUrl, "metadataUrl must be set");
     Validate.notNull(httpClient, "httpClient must not be null");
 
-    this.metadataResolver = backupFile != null
-        ? new FileBackedHTTPMetadataResolver(httpClient, metadataUrl, backupFile)
-        : new HTTPMetadataResolver(httpClient, metadataUrl);
+    this.metadataResolver = ReloadingResolvers.createHttpResolver(this, httpClient, metadataUrl, backupFile);
   }
 
   /**
@@ -109,6 +107,10 @@ public class HTTPMetadataProvider extends AbstractMetadataProvider {
    * Creates a {@link HttpClient} instance that sets up a trust manager that accepts all certificates supplied in the
    * {@code trustKeyStore} parameter. The {@code hostnameVerifier} parameter tells which hostname verifier that should
    * be used. If not supplied, a {@link DefaultHostnameVerifier} will be used.
+   * <p>
+   * The client asks for gzip or deflate compressed responses, and decompresses them while they are read, see
+   * {@link MetadataTransferSupport}.
+   * </p>
    *
    * @param trustKeyStore a KeyStore holding the certificates that should be accepted (if null, all certificates are
    *     accepted)
@@ -136,6 +138,8 @@ public class HTTPMetadataProvider extends AbstractMetadataProvider {
 
       final HttpClientBuilder builder = new HttpClientBuilder();
       builder.setUseSystemProperties(true);
+      builder.setFirstRequestInterceptors(List.of(MetadataTransferSupport.getRequestInterceptor()));
+      builder.setFirstResponseInterceptors(List.of(MetadataTransferSupport.getResponseInterceptor()));
       builder.setTLSSocketFactory(new TLSSocketFactoryBuilder()
           .setHostnameVerifier(hnv)
           .setTrustManagers(managers)
@@ -160,6 +164,14 @@ public class HTTPMetadataProvider extends AbstractMetadataProvider {
     return this.metadataResolver;
   }
 
+  /**
+   * Custom unmarshalling is supported by the HTTP provider.
+   */
+  @Override
+  protected boolean isCustomUnmarshallingSupported() {
+    return true;
+  }
+
   /** {@inheritDoc} */
   @Override
   protected void createMetadataResolver(final boolean requireValidMetadata, final boolean failFastInitialization,
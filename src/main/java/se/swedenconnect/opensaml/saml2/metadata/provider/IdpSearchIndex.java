@@ -0,0 +1,374 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata.provider;
+
+import org.opensaml.saml.ext.saml2mdui.DiscoHints;
+import org.opensaml.saml.ext.saml2mdui.DisplayName;
+import org.opensaml.saml.ext.saml2mdui.DomainHint;
+import org.opensaml.saml.ext.saml2mdui.Keywords;
+import org.opensaml.saml.ext.saml2mdui.UIInfo;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.OrganizationDisplayName;
+import org.opensaml.saml.saml2.metadata.RoleDescriptor;
+import se.swedenconnect.opensaml.saml2.metadata.EntityDescriptorUtils;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A search index over the Identity Providers of a {@link MetadataSnapshot}, intended for IdP discovery services that
+ * match user input against the IdP names.
+ * <p>
+ * The index is built from the {@code mdui:DisplayName}, {@code mdui:Keywords} and {@code mdui:DomainHint} elements of
+ * each IdP. If an IdP has no {@code mdui:DisplayName}, its {@code md:OrganizationDisplayName} elements are used
+ * instead. All values are normalized (see {@link #normalize(String)}) and split into tokens, and every prefix of every
+ * token is mapped to the IdP:s (and languages) where it occurs. A search is therefore a few map lookups, regardless of
+ * the number of IdP:s.
+ * </p>
+ * <p>
+ * Each token of a search string must match the start of a token for an IdP to be found. Matches are ranked so that
+ * display names rank above keywords and domain hints, complete tokens rank above prefixes, and matches in the requested
+ * language rank above matches in other languages.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @see MetadataSnapshot#getIdpSearchIndex()
+ */
+public final class IdpSearchIndex {
+
+  /** The weight for a match on a display name. */
+  private static final int DISPLAY_NAME_WEIGHT = 4;
+
+  /** The weight for a match on a keyword. */
+  private static final int KEYWORD_WEIGHT = 2;
+
+  /** The weight for a match on a domain hint. */
+  private static final int DOMAIN_HINT_WEIGHT = 2;
+
+  /** The language key used for values that have no language. */
+  private static final String NO_LANGUAGE = "";
+
+  /** Pattern for splitting a normalized string into tokens. */
+  private static final Pattern TOKEN_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+  /** Pattern matching combining diacritical marks. */
+  private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+
+  /** The indexed IdP:s. */
+  private final List<EntityDescriptor> identityProviders;
+
+  /** The display names for each IdP, keyed by language. */
+  private final List<Map<String, Name>> displayNames;
+
+  /** The name used for each IdP if there is no display name in the requested language. */
+  private final List<Name> defaultNames;
+
+  /** Token prefixes and their postings. */
+  private final Map<String, Posting[]> prefixes;
+
+  /**
+   * Constructor building the index.
+   *
+   * @param identityProviders the IdP entity descriptors to index
+   */
+  IdpSearchIndex(final List<EntityDescriptor> identityProviders) {
+    this.identityProviders = identityProviders;
+    this.displayNames = new ArrayList<>(identityProviders.size());
+    this.defaultNames = new ArrayList<>(identityProviders.size());
+
+    final Map<String, List<Posting>> postings = new HashMap<>();
+    for (int pos = 0; pos < identityProviders.size(); pos++) {
+      final EntityDescriptor ed = identityProviders.get(pos);
+      final Map<String, String> names = new LinkedHashMap<>();
+      final Map<String, Map<String, Integer>> scores = new HashMap<>();
+
+      for (final RoleDescriptor role : ed.getRoleDescriptors(IDPSSODescriptor.DEFAULT_ELEMENT_NAME)) {
+        final UIInfo uiInfo = EntityDescriptorUtils.getMetadataExtension(role.getExtensions(), UIInfo.class);
+        if (uiInfo != null) {
+          for (final DisplayName dn : uiInfo.getDisplayNames()) {
+            if (dn.getValue() != null) {
+              names.putIfAbsent(language(dn.getXMLLang()), dn.getValue());
+              addTokens(scores, dn.getValue(), dn.getXMLLang(), DISPLAY_NAME_WEIGHT);
+            }
+          }
+          for (final Keywords keywords : uiInfo.getKeywords()) {
+            for (final String keyword : keywords.getKeywords()) {
+              addTokens(scores, keyword, keywords.getXMLLang(), KEYWORD_WEIGHT);
+            }
+          }
+        }
+        final DiscoHints hints = EntityDescriptorUtils.getMetadataExtension(role.getExtensions(), DiscoHints.class);
+        if (hints != null) {
+          for (final DomainHint hint : hints.getDomainHints()) {
+            addTokens(scores, hint.getURI(), null, DOMAIN_HINT_WEIGHT);
+          }
+        }
+      }
+      if (names.isEmpty() && ed.getOrganization() != null) {
+        for (final OrganizationDisplayName odn : ed.getOrganization().getDisplayNames()) {
+          if (odn.getValue() != null) {
+            names.putIfAbsent(language(odn.getXMLLang()), odn.getValue().trim());
+            addTokens(scores, odn.getValue(), odn.getXMLLang(), DISPLAY_NAME_WEIGHT);
+          }
+        }
+      }
+      final Map<String, Name> normalizedNames = new LinkedHashMap<>();
+      names.forEach((lang, name) -> normalizedNames.put(lang, new Name(name, normalize(name))));
+      this.displayNames.add(normalizedNames);
+      this.defaultNames.add(normalizedNames.containsKey("en")
+          ? normalizedNames.get("en")
+          : normalizedNames.isEmpty()
+              ? new Name(ed.getEntityID(), normalize(ed.getEntityID()))
+              : normalizedNames.values().iterator().next());
+
+      final int p = pos;
+      scores.forEach((prefix, languages) -> languages.forEach((lang, score) ->
+          postings.computeIfAbsent(prefix, k -> new ArrayList<>()).add(new Posting(p, lang, score))));
+    }
+
+    this.prefixes = new HashMap<>(Math.max(16, postings.size() * 4 / 3 + 1));
+    postings.forEach((prefix, list) -> this.prefixes.put(prefix, list.toArray(Posting[]::new)));
+  }
+
+  /**
+   * Searches for IdP:s matching the supplied search string. Each token of the search string must match the start of a
+   * token of a display name, keyword or domain hint of the IdP.
+   * <p>
+   * If the search string contains no tokens, all IdP:s are returned, sorted by their display names.
+   * </p>
+   *
+   * @param query the search string
+   * @param language the preferred language (may be {@code null})
+   * @param maxResults the maximum number of results, 0 or less means no limit
+   * @return a (possibly empty) list of matches, best match first
+   */
+  public List<Match> search(final String query, final String language, final int maxResults) {
+    final List<String> tokens = query != null ? tokenize(query) : Collections.emptyList();
+    final String lang = language != null ? language(language) : null;
+    final int size = this.identityProviders.size();
+
+    final int[] total = new int[size];
+    BitSet candidates = null;
+    for (final String token : tokens) {
+      final Posting[] postings = this.prefixes.get(token);
+      if (postings == null) {
+        return Collections.emptyList();
+      }
+      final int[] best = new int[size];
+      final BitSet matched = new BitSet(size);
+      for (final Posting posting : postings) {
+        if (candidates == null || candidates.get(posting.position())) {
+          final int score = lang == null || lang.equals(posting.language()) || NO_LANGUAGE.equals(posting.language())
+              ? 2 * posting.score()
+              : posting.score();
+          best[posting.position()] = Math.max(best[posting.position()], score);
+          matched.set(posting.position());
+        }
+      }
+      matched.stream().forEach(pos -> total[pos] += best[pos]);
+      if (matched.isEmpty()) {
+        return Collections.emptyList();
+      }
+      candidates = matched;
+    }
+
+    final List<RankedMatch> ranked = new ArrayList<>(candidates != null ? candidates.cardinality() : size);
+    if (candidates != null) {
+      candidates.stream().forEach(pos -> ranked.add(this.createMatch(pos, lang, total[pos])));
+    }
+    else {
+      for (int pos = 0; pos < size; pos++) {
+        ranked.add(this.createMatch(pos, lang, 0));
+      }
+    }
+    // The names were normalized when the index was built, so no normalization is made during the sort ...
+    ranked.sort(Comparator.comparingInt((RankedMatch r) -> r.match().score()).reversed()
+        .thenComparing(RankedMatch::sortKey)
+        .thenComparing(r -> r.match().entityID(), Comparator.nullsLast(Comparator.naturalOrder())));
+
+    final int results = maxResults > 0 ? Math.min(maxResults, ranked.size()) : ranked.size();
+    final List<Match> matches = new ArrayList<>(results);
+    for (int i = 0; i < results; i++) {
+      matches.add(ranked.get(i).match());
+    }
+    return Collections.unmodifiableList(matches);
+  }
+
+  /**
+   * Gets the number of indexed IdP:s.
+   *
+   * @return the number of IdP:s
+   */
+  public int size() {
+    return this.identityProviders.size();
+  }
+
+  /**
+   * Normalizes a string for indexing and searching. The string is lower cased and diacritics are removed, so that for
+   * example "Ålänning" and "alanning" are equal. Letters that are not decomposed by Unicode normalization, such as
+   * "ø", "æ" and "ß", are replaced with their common ASCII transliterations.
+   *
+   * @param value the string to normalize
+   * @return the normalized string
+   */
+  public static String normalize(final String value) {
+    if (value == null) {
+      return "";
+    }
+    final String s = DIACRITICS.matcher(Normalizer.normalize(value, Normalizer.Form.NFD)).replaceAll("")
+        .toLowerCase(Locale.ROOT);
+    final StringBuilder sb = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      switch (c) {
+      case 'ø' -> sb.append('o');
+      case 'æ' -> sb.append("ae");
+      case 'œ' -> sb.append("oe");
+      case 'ß' -> sb.append("ss");
+      case 'ł' -> sb.append('l');
+      case 'đ', 'ð' -> sb.append('d');
+      case 'þ' -> sb.append("th");
+      case 'ı' -> sb.append('i');
+      default -> sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Normalizes and splits the supplied string into tokens.
+   *
+   * @param value the string
+   * @return a list of tokens
+   */
+  private static List<String> tokenize(final String value) {
+    final List<String> tokens = new ArrayList<>();
+    for (final String token : TOKEN_SEPARATOR.split(normalize(value))) {
+      if (!token.isEmpty()) {
+        tokens.add(token);
+      }
+    }
+    return tokens;
+  }
+
+  /**
+   * Adds the token prefixes of the supplied value to the score map of an IdP. For each prefix and language, the best
+   * score is kept.
+   *
+   * @param scores the score map (prefix to language to score)
+   * @param value the value to add
+   * @param language the language of the value (may be {@code null})
+   * @param weight the weight for the value
+   */
+  private static void addTokens(final Map<String, Map<String, Integer>> scores, final String value,
+      final String language, final int weight) {
+    if (value == null) {
+      return;
+    }
+    final String lang = language(language);
+    for (final String token : tokenize(value)) {
+      for (int len = 1; len <= token.length(); len++) {
+        final int score = len == token.length() ? 3 * weight : 2 * weight;
+        scores.computeIfAbsent(token.substring(0, len), k -> new HashMap<>()).merge(lang, score, Math::max);
+      }
+    }
+  }
+
+  /**
+   * Creates a match for the IdP at the given position.
+   *
+   * @param position the position
+   * @param language the preferred language (may be {@code null})
+   * @param score the score
+   * @return a match, along with its sort key
+   */
+  private RankedMatch createMatch(final int position, final String language, final int score) {
+    Name name = language != null ? this.displayNames.get(position).get(language) : null;
+    if (name == null) {
+      name = this.defaultNames.get(position);
+    }
+    return new RankedMatch(new Match(this.identityProviders.get(position), name.value(), score), name.normalized());
+  }
+
+  /**
+   * Returns the key used for the supplied language.
+   *
+   * @param language the language (may be {@code null})
+   * @return the language key
+   */
+  private static String language(final String language) {
+    return language != null ? language.toLowerCase(Locale.ROOT) : NO_LANGUAGE;
+  }
+
+  /**
+   * A search match.
+   *
+   * @param entityDescriptor the IdP entity descriptor
+   * @param displayName the display name of the IdP in the requested language (or in English or any other language if
+   *     the requested language is not available), or the entityID if the IdP has no display name
+   * @param score the score of the match (a higher score is a better match)
+   */
+  public record Match(EntityDescriptor entityDescriptor, String displayName, int score) {
+
+    /**
+     * Gets the entityID of the IdP.
+     *
+     * @return the entityID
+     */
+    public String entityID() {
+      return this.entityDescriptor.getEntityID();
+    }
+  }
+
+  /**
+   * A posting for a token prefix.
+   *
+   * @param position the position of the IdP
+   * @param language the language key
+   * @param score the best score for the prefix in the given language
+   */
+  private record Posting(int position, String language, int score) {
+  }
+
+  /**
+   * A display name, along with its normalized form (see {@link IdpSearchIndex#normalize(String)}).
+   *
+   * @param value the display name
+   * @param normalized the normalized display name
+   */
+  private record Name(String value, String normalized) {
+  }
+
+  /**
+   * A match and the key used to sort matches with the same score.
+   *
+   * @param match the match
+   * @param sortKey the normalized display name of the match
+   */
+  private record RankedMatch(Match match, String sortKey) {
+  }
+
+}
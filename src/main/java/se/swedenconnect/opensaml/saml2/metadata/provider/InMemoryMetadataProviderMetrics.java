@@ -0,0 +1,249 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata.provider;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link MetadataProviderMetrics} implementation that records the metrics in memory, per provider ID. The recorded
+ * metrics are obtained using {@link #getStatistics(String)}.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class InMemoryMetadataProviderMetrics implements MetadataProviderMetrics {
+
+  /** The recorders, per provider ID. */
+  private final Map<String, Recorder> recorders = new ConcurrentHashMap<>();
+
+  /** {@inheritDoc} */
+  @Override
+  public void downloadCompleted(final String providerId, final Duration duration, final long transferredBytes,
+      final long uncompressedBytes) {
+    final Recorder recorder = this.getRecorder(providerId);
+    synchronized (recorder) {
+      recorder.download = recorder.download.add(duration);
+      recorder.transferredBytes += transferredBytes;
+      recorder.uncompressedBytes += uncompressedBytes;
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void parseCompleted(final String providerId, final Duration duration) {
+    final Recorder recorder = this.getRecorder(providerId);
+    synchronized (recorder) {
+      recorder.parse = recorder.parse.add(duration);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void filterCompleted(final String providerId, final String filter, final Duration duration) {
+    final Recorder recorder = this.getRecorder(providerId);
+    synchronized (recorder) {
+      recorder.filters.merge(filter, Timing.EMPTY.add(duration), Timing::merge);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void entitiesFiltered(final String providerId, final int before, final int after) {
+    final Recorder recorder = this.getRecorder(providerId);
+    synchronized (recorder) {
+      recorder.entitiesBeforeFiltering = before;
+      recorder.entitiesAfterFiltering = after;
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void snapshotUpdated(final String providerId, final int entities) {
+    final Recorder recorder = this.getRecorder(providerId);
+    synchronized (recorder) {
+      recorder.snapshotSize = entities;
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void refreshFailed(final String providerId, final Throwable cause) {
+    final Recorder recorder = this.getRecorder(providerId);
+    synchronized (recorder) {
+      recorder.refreshFailures++;
+      recorder.lastFailure = cause;
+    }
+  }
+
+  /**
+   * Gets the statistics recorded for the given provider.
+   *
+   * @param providerId the provider ID
+   * @return the statistics, or {@code null} if nothing has been recorded for the provider
+   */
+  public Statistics getStatistics(final String providerId) {
+    final Recorder recorder = this.recorders.get(providerId);
+    if (recorder == null) {
+      return null;
+    }
+    synchronized (recorder) {
+      return new Statistics(recorder.download, recorder.transferredBytes, recorder.uncompressedBytes,
+          recorder.parse, Collections.unmodifiableMap(new HashMap<>(recorder.filters)),
+          recorder.entitiesBeforeFiltering, recorder.entitiesAfterFiltering, recorder.snapshotSize,
+          recorder.refreshFailures, recorder.lastFailure);
+    }
+  }
+
+  /**
+   * Gets the ID:s of the providers for which metrics have been recorded.
+   *
+   * @return a set of provider ID:s
+   */
+  public Set<String> getProviderIds() {
+    return Set.copyOf(this.recorders.keySet());
+  }
+
+  /**
+   * Removes all recorded metrics.
+   */
+  public void reset() {
+    this.recorders.clear();
+  }
+
+  /**
+   * Gets the recorder for the given provider, and creates it if needed.
+   *
+   * @param providerId the provider ID
+   * @return the recorder
+   */
+  private Recorder getRecorder(final String providerId) {
+    return this.recorders.computeIfAbsent(providerId != null ? providerId : "", id -> new Recorder());
+  }
+
+  /**
+   * Statistics for a timed operation.
+   *
+   * @param count the number of times the operation has been performed
+   * @param total the total time spent
+   * @param max the maximum time spent for one operation
+   */
+  public record Timing(long count, Duration total, Duration max) {
+
+    /** An empty timing. */
+    public static final Timing EMPTY = new Timing(0, Duration.ZERO, Duration.ZERO);
+
+    /**
+     * Gets the average time spent for one operation.
+     *
+     * @return the average time
+     */
+    public Duration average() {
+      return this.count > 0 ? this.total.dividedBy(this.count) : Duration.ZERO;
+    }
+
+    /**
+     * Returns a new timing where the supplied duration has been added.
+     *
+     * @param duration the duration to add
+     * @return a new timing
+     */
+    Timing add(final Duration duration) {
+      return new Timing(this.count + 1, this.total.plus(duration),
+          duration.compareTo(this.max) > 0 ? duration : this.max);
+    }
+
+    /**
+     * Merges two timings.
+     *
+     * @param t1 the first timing
+     * @param t2 the second timing
+     * @return a new timing
+     */
+    static Timing merge(final Timing t1, final Timing t2) {
+      return new Timing(t1.count + t2.count, t1.total.plus(t2.total), t1.max.compareTo(t2.max) > 0 ? t1.max : t2.max);
+    }
+  }
+
+  /**
+   * The metrics recorded for a provider.
+   *
+   * @param download timing for downloads
+   * @param transferredBytes the total number of bytes transferred
+   * @param uncompressedBytes the total number of bytes of downloaded metadata, after decompression
+   * @param parse timing for parsing
+   * @param filters timings for the filters, per filter name
+   * @param entitiesBeforeFiltering the number of entities before filtering at the last verification (-1 if unknown)
+   * @param entitiesAfterFiltering the number of entities after filtering at the last verification (-1 if unknown)
+   * @param snapshotSize the number of entities in the current snapshot (-1 if unknown)
+   * @param refreshFailures the number of failed refreshes
+   * @param lastFailure the cause of the last failed refresh (may be {@code null})
+   */
+  public record Statistics(Timing download, long transferredBytes, long uncompressedBytes, Timing parse,
+      Map<String, Timing> filters, int entitiesBeforeFiltering, int entitiesAfterFiltering, int snapshotSize,
+      long refreshFailures, Throwable lastFailure) {
+
+    /**
+     * Gets the timing for the given filter.
+     *
+     * @param filter the filter name
+     * @return the timing (an empty timing is returned if the filter has not been applied)
+     */
+    public Timing getFilter(final String filter) {
+      return this.filters.getOrDefault(filter, Timing.EMPTY);
+    }
+  }
+
+  /**
+   * Mutable holder for the metrics of a provider. Guarded by its own monitor.
+   */
+  private static class Recorder {
+
+    /** Timing for downloads. */
+    private Timing download = Timing.EMPTY;
+
+    /** The total number of bytes transferred. */
+    private long transferredBytes = 0;
+
+    /** The total number of bytes of downloaded metadata. */
+    private long uncompressedBytes = 0;
+
+    /** Timing for parsing. */
+    private Timing parse = Timing.EMPTY;
+
+    /** Timings for the filters. */
+    private final Map<String, Timing> filters = new HashMap<>();
+
+    /** The number of entities before filtering. */
+    private int entitiesBeforeFiltering = -1;
+
+    /** The number of entities after filtering. */
+    private int entitiesAfterFiltering = -1;
+
+    /** The number of entities in the current snapshot. */
+    private int snapshotSize = -1;
+
+    /** The number of failed refreshes. */
+    private long refreshFailures = 0;
+
+    /** The cause of the last failed refresh. */
+    private Throwable lastFailure;
+  }
+
+}
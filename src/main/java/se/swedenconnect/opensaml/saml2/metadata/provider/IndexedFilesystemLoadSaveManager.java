@@ -0,0 +1,665 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata.provider;
+
+import net.shibboleth.shared.collection.Pair;
+import net.shibboleth.shared.xml.SerializeSupport;
+import net.shibboleth.shared.xml.XMLParserException;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.core.xml.io.UnmarshallingException;
+import org.opensaml.core.xml.persist.XMLObjectLoadSaveManager;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.namespace.QName;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * A persistent cache for entity descriptors that keeps an index of the cached entities.
+ * <p>
+ * The serialized entities are appended to a data file, and an index file holds the entity ID, roles, expiry time,
+ * offset and length of each entry. This means that:
+ * </p>
+ * <ul>
+ * <li>opening the cache only reads the index, and no entity is parsed until it is {@link #load(String) loaded},</li>
+ * <li>keys and entity information (see {@link #getIndexEntries()}) can be listed without reading the data file, and
+ * {@link #listAll(Predicate)} only loads the entities whose index entry matches,</li>
+ * <li>an entry is loaded by reading its bytes at the indexed offset, and</li>
+ * <li>entries that have expired are dropped without being parsed.</li>
+ * </ul>
+ * <p>
+ * Entries that are removed or overwritten leave their bytes in the data file. When these make up more than half of the
+ * data file, the live entries are copied to a new data file. The index file is rewritten after each change. If the
+ * index file is missing or can not be read, the cache starts empty.
+ * </p>
+ * <p>
+ * Since the bytes of each entry are looked up using the index, any string may be used as the key (such as the entity
+ * ID). The entities are not kept in memory by this class.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class IndexedFilesystemLoadSaveManager implements XMLObjectLoadSaveManager<EntityDescriptor> {
+
+  /** Logging instance. */
+  private static final Logger log = LoggerFactory.getLogger(IndexedFilesystemLoadSaveManager.class);
+
+  /** The name of the index file. */
+  public static final String INDEX_FILE_NAME = "entities.idx";
+
+  /** The prefix of the data file names. The data file name is the prefix, the generation and {@code .dat}. */
+  private static final String DATA_FILE_PREFIX = "entities.";
+
+  /** The suffix of the data file names. */
+  private static final String DATA_FILE_SUFFIX = ".dat";
+
+  /** Magic number for the index file ("MDQI"). */
+  private static final int MAGIC = 0x4D445149;
+
+  /** The current index format version. */
+  private static final int FORMAT_VERSION = 2;
+
+  /** Role flag for IdP entities. */
+  private static final int ROLE_IDP = 1;
+
+  /** Role flag for SP entities. */
+  private static final int ROLE_SP = 2;
+
+  /** The maximum length of keys and entity ID:s (the index stores them in modified UTF-8, using at most 64 KB). */
+  private static final int MAX_KEY_LENGTH = 16384;
+
+  /** The data file is not compacted until it holds at least this many bytes of removed entries. */
+  private static final long MIN_COMPACTION_GARBAGE = 1024 * 1024;
+
+  /** The base directory. */
+  private final File baseDirectory;
+
+  /** The index file. */
+  private final File indexFile;
+
+  /** The index. */
+  private final Map<String, IndexEntry> index = new HashMap<>();
+
+  /** The generation of the data file. Incremented each time the data file is compacted. */
+  private long generation = 0;
+
+  /** The length of the data file (bytes beyond this length are not referenced by the index). */
+  private long dataLength = 0;
+
+  /** The number of bytes in the data file that belong to removed entries. */
+  private long garbage = 0;
+
+  /** Whether the index has been read. */
+  private boolean indexRead = false;
+
+  /**
+   * Constructor.
+   *
+   * @param baseDirectory the base directory (created if it does not exist)
+   */
+  public IndexedFilesystemLoadSaveManager(@Nonnull final String baseDirectory) {
+    this.baseDirectory = new File(Objects.requireNonNull(baseDirectory, "baseDirectory must not be null"))
+        .getAbsoluteFile();
+    this.indexFile = new File(this.baseDirectory, INDEX_FILE_NAME);
+  }
+
+  /**
+   * Lists the keys of the entries that have not expired.
+   */
+  @Override
+  @Nonnull
+  public synchronized Set<String> listKeys() throws IOException {
+    this.readIndex();
+    final Instant now = Instant.now();
+    return this.index.values().stream()
+        .filter(e -> !e.isExpired(now))
+        .map(IndexEntry::key)
+        .collect(Collectors.toUnmodifiableSet());
+  }
+
+  /**
+   * Lists all entries that have not expired. Note that this loads every entry, see {@link #listAll(Predicate)}.
+   */
+  @Override
+  @Nonnull
+  public Iterable<Pair<String, EntityDescriptor>> listAll() throws IOException {
+    return this.listAll(e -> true);
+  }
+
+  /**
+   * Lists the entries whose index entry matches the supplied predicate and that have not expired. Only the matching
+   * entries are loaded.
+   *
+   * @param predicate the predicate
+   * @return the matching entries
+   * @throws IOException for read errors
+   */
+  @Nonnull
+  public Iterable<Pair<String, EntityDescriptor>> listAll(@Nonnull final Predicate<IndexEntry> predicate)
+      throws IOException {
+    final List<Pair<String, EntityDescriptor>> entries = new ArrayList<>();
+    for (final IndexEntry entry : this.getIndexEntries()) {
+      if (predicate.test(entry)) {
+        final EntityDescriptor ed = this.load(entry.key());
+        if (ed != null) {
+          entries.add(new Pair<>(entry.key(), ed));
+        }
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Gets the index entries of all entries that have not expired.
+   *
+   * @return a list of index entries
+   * @throws IOException for errors reading the index
+   */
+  @Nonnull
+  public synchronized List<IndexEntry> getIndexEntries() throws IOException {
+    this.readIndex();
+    final Instant now = Instant.now();
+    return this.index.values().stream()
+        .filter(e -> !e.isExpired(now))
+        .toList();
+  }
+
+  /**
+   * Gets the index entry for the given key.
+   *
+   * @param key the entry key
+   * @return the index entry, or {@code null} if there is no such entry, or if it has expired
+   * @throws IOException for errors reading the index
+   */
+  @Nullable
+  public synchronized IndexEntry getIndexEntry(@Nonnull final String key) throws IOException {
+    this.readIndex();
+    final IndexEntry entry = this.index.get(key);
+    return entry != null && !entry.isExpired(Instant.now()) ? entry : null;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean exists(@Nonnull final String key) throws IOException {
+    return this.getIndexEntry(key) != null;
+  }
+
+  /**
+   * Loads the entry with the given key. The bytes of the entry are read from the data file, and are parsed. If the
+   * entry has expired, or can not be parsed, it is removed and {@code null} is returned.
+   */
+  @Override
+  @Nullable
+  public EntityDescriptor load(@Nonnull final String key) throws IOException {
+    final IndexEntry entry;
+    final byte[] bytes;
+    synchronized (this) {
+      this.readIndex();
+      entry = this.index.get(key);
+      if (entry == null) {
+        return null;
+      }
+      if (entry.isExpired(Instant.now())) {
+        this.removeEntry(key);
+        this.writeIndex();
+        return null;
+      }
+      try (final FileChannel channel = FileChannel.open(this.getDataFile(this.generation).toPath(),
+          StandardOpenOption.READ)) {
+        bytes = readEntry(channel, entry);
+      }
+    }
+    final EntityDescriptor ed = this.unmarshall(key, bytes);
+    if (ed == null) {
+      synchronized (this) {
+        if (this.index.get(key) == entry) {
+          this.removeEntry(key);
+          this.writeIndex();
+        }
+      }
+    }
+    return ed;
+  }
+
+  /**
+   * Saves the entry. The expiry time of the entry is the {@code validUntil} time of the entity descriptor.
+   */
+  @Override
+  public void save(@Nonnull final String key, @Nonnull final EntityDescriptor xmlObject) throws IOException {
+    this.save(key, xmlObject, xmlObject.getValidUntil(), true);
+  }
+
+  /**
+   * Saves the entry. The expiry time of the entry is the {@code validUntil} time of the entity descriptor.
+   */
+  @Override
+  public void save(@Nonnull final String key, @Nonnull final EntityDescriptor xmlObject, final boolean overwrite)
+      throws IOException {
+    this.save(key, xmlObject, xmlObject.getValidUntil(), overwrite);
+  }
+
+  /**
+   * Saves the entry with the given expiry time. After this time, the entry is dropped.
+   *
+   * @param key the entry key
+   * @param xmlObject the entity descriptor
+   * @param expiry the expiry time (if {@code null}, the entry does not expire)
+   * @throws IOException for errors writing the entry
+   */
+  public void save(@Nonnull final String key, @Nonnull final EntityDescriptor xmlObject,
+      @Nullable final Instant expiry) throws IOException {
+    this.save(key, xmlObject, expiry, true);
+  }
+
+  /**
+   * Saves the entry with the given expiry time.
+   *
+   * @param key the entry key
+   * @param xmlObject the entity descriptor
+   * @param expiry the expiry time (may be {@code null})
+   * @param overwrite whether an existing entry may be overwritten
+   * @throws IOException for errors writing the entry
+   */
+  private void save(final String key, final EntityDescriptor xmlObject, final Instant expiry, final boolean overwrite)
+      throws IOException {
+    if (key.length() > MAX_KEY_LENGTH
+        || xmlObject.getEntityID() != null && xmlObject.getEntityID().length() > MAX_KEY_LENGTH) {
+      throw new IOException("Key or entity ID is too long to be indexed");
+    }
+    final byte[] bytes = serialize(xmlObject);
+    synchronized (this) {
+      this.readIndex();
+      if (!overwrite && this.index.containsKey(key)) {
+        throw new IOException(String.format("Entry with key '%s' already exists", key));
+      }
+      try (final FileChannel channel = FileChannel.open(this.getDataFile(this.generation).toPath(),
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+        writeFully(channel, ByteBuffer.wrap(bytes), this.dataLength);
+      }
+      final IndexEntry previous =
+          this.index.put(key, IndexEntry.create(key, xmlObject, expiry, this.dataLength, bytes.length));
+      this.dataLength += bytes.length;
+      if (previous != null) {
+        this.garbage += previous.length();
+      }
+      this.writeIndex();
+      this.compactIfNeeded();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized boolean remove(@Nonnull final String key) throws IOException {
+    this.readIndex();
+    if (!this.removeEntry(key)) {
+      return false;
+    }
+    this.writeIndex();
+    this.compactIfNeeded();
+    return true;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized boolean updateKey(@Nonnull final String currentKey, @Nonnull final String newKey)
+      throws IOException {
+    this.readIndex();
+    final IndexEntry entry = this.index.get(currentKey);
+    if (entry == null) {
+      return false;
+    }
+    if (this.index.containsKey(newKey)) {
+      throw new IOException(String.format("Entry with key '%s' already exists", newKey));
+    }
+    this.index.remove(currentKey);
+    this.index.put(newKey, new IndexEntry(newKey, entry.entityID(), entry.roles(), entry.expiry(), entry.offset(),
+        entry.length()));
+    this.writeIndex();
+    return true;
+  }
+
+  /**
+   * Removes an entry from the index. Must be called while holding the lock.
+   *
+   * @param key the entry key
+   * @return whether the entry existed
+   */
+  private boolean removeEntry(final String key) {
+    final IndexEntry entry = this.index.remove(key);
+    if (entry == null) {
+      return false;
+    }
+    this.garbage += entry.length();
+    return true;
+  }
+
+  /**
+   * Compacts the data file if more than half of it belongs to removed entries. Must be called while holding the lock.
+   */
+  private void compactIfNeeded() {
+    if (this.garbage < MIN_COMPACTION_GARBAGE || this.garbage * 2 < this.dataLength) {
+      return;
+    }
+    final File currentFile = this.getDataFile(this.generation);
+    final File newFile = this.getDataFile(this.generation + 1);
+    final Map<String, IndexEntry> newIndex = new HashMap<>();
+    long length = 0;
+    try (final FileChannel in = FileChannel.open(currentFile.toPath(), StandardOpenOption.READ);
+        final FileChannel out = FileChannel.open(newFile.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      final Instant now = Instant.now();
+      for (final IndexEntry entry : this.index.values()) {
+        if (entry.isExpired(now)) {
+          continue;
+        }
+        writeFully(out, ByteBuffer.wrap(readEntry(in, entry)), length);
+        newIndex.put(entry.key(), new IndexEntry(entry.key(), entry.entityID(), entry.roles(), entry.expiry(), length,
+            entry.length()));
+        length += entry.length();
+      }
+    }
+    catch (final IOException e) {
+      log.warn("Failed to compact {} - {}", currentFile, e.getMessage());
+      newFile.delete();
+      return;
+    }
+    final Map<String, IndexEntry> previousIndex = new HashMap<>(this.index);
+    final long previousLength = this.dataLength;
+    this.index.clear();
+    this.index.putAll(newIndex);
+    this.generation++;
+    this.dataLength = length;
+    try {
+      this.writeIndex();
+    }
+    catch (final IOException e) {
+      log.warn("Failed to write index for compacted data file {} - {}", newFile, e.getMessage());
+      this.index.clear();
+      this.index.putAll(previousIndex);
+      this.generation--;
+      this.dataLength = previousLength;
+      newFile.delete();
+      return;
+    }
+    this.garbage = 0;
+    currentFile.delete();
+    log.debug("Compacted {} ({} entries, {} bytes)", this.baseDirectory, this.index.size(), length);
+  }
+
+  /**
+   * Reads the index file. If the index file is missing, or can not be read, the cache starts empty. Expired entries
+   * are dropped. Must be called while holding the lock.
+   *
+   * @throws IOException for errors creating the base directory
+   */
+  private void readIndex() throws IOException {
+    if (this.indexRead) {
+      return;
+    }
+    if (!this.baseDirectory.exists() && !this.baseDirectory.mkdirs()) {
+      throw new IOException("Failed to create " + this.baseDirectory);
+    }
+    this.indexRead = true;
+    if (this.indexFile.isFile()) {
+      try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(
+          this.indexFile.toPath())))) {
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+          throw new IOException("Unknown index format");
+        }
+        this.generation = in.readLong();
+        this.dataLength = in.readLong();
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          final IndexEntry entry = IndexEntry.read(in);
+          this.index.put(entry.key(), entry);
+        }
+        if (this.getDataFile(this.generation).length() < this.dataLength) {
+          throw new IOException("Data file is shorter than indexed");
+        }
+      }
+      catch (final IOException e) {
+        log.info("Failed to read index file {} - starting with an empty cache - {}", this.indexFile, e.getMessage());
+        this.index.clear();
+        this.generation = 0;
+        this.dataLength = 0;
+      }
+    }
+    final Instant now = Instant.now();
+    this.index.values().removeIf(e -> e.isExpired(now));
+    this.garbage = this.dataLength - this.index.values().stream().mapToLong(IndexEntry::length).sum();
+
+    // Remove data files that are not referenced by the index ...
+    final File[] files = this.baseDirectory.listFiles((dir, name) -> name.startsWith(DATA_FILE_PREFIX)
+        && name.endsWith(DATA_FILE_SUFFIX) && !name.equals(this.getDataFile(this.generation).getName()));
+    if (files != null) {
+      for (final File file : files) {
+        file.delete();
+      }
+    }
+    log.debug("Read index with {} entries for {}", this.index.size(), this.baseDirectory);
+    this.compactIfNeeded();
+  }
+
+  /**
+   * Writes the index file. Must be called while holding the lock.
+   *
+   * @throws IOException for write errors
+   */
+  private void writeIndex() throws IOException {
+    final File tmp = File.createTempFile(INDEX_FILE_NAME, ".tmp", this.baseDirectory);
+    try {
+      try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(
+          tmp.toPath())))) {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(this.generation);
+        out.writeLong(this.dataLength);
+        out.writeInt(this.index.size());
+        for (final IndexEntry entry : this.index.values()) {
+          entry.write(out);
+        }
+      }
+      Files.move(tmp.toPath(), this.indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally {
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Gets the data file of the given generation.
+   *
+   * @param generation the generation
+   * @return the data file
+   */
+  private File getDataFile(final long generation) {
+    return new File(this.baseDirectory, DATA_FILE_PREFIX + generation + DATA_FILE_SUFFIX);
+  }
+
+  /**
+   * Reads the bytes of an entry.
+   *
+   * @param channel the data file channel
+   * @param entry the index entry
+   * @return the bytes
+   * @throws IOException for read errors
+   */
+  private static byte[] readEntry(final FileChannel channel, final IndexEntry entry) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(entry.length());
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, entry.offset() + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of data file reading " + entry.key());
+      }
+    }
+    return buffer.array();
+  }
+
+  /**
+   * Writes the buffer at the given position.
+   *
+   * @param channel the data file channel
+   * @param buffer the buffer
+   * @param position the position
+   * @throws IOException for write errors
+   */
+  private static void writeFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, position + buffer.position());
+    }
+  }
+
+  /**
+   * Serializes an entity descriptor.
+   *
+   * @param ed the entity descriptor
+   * @return the bytes
+   * @throws IOException for marshalling errors
+   */
+  private static byte[] serialize(final EntityDescriptor ed) throws IOException {
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      SerializeSupport.writeNode(XMLObjectSupport.marshall(ed), out);
+      return out.toByteArray();
+    }
+    catch (final MarshallingException e) {
+      throw new IOException("Failed to marshall entity " + ed.getEntityID(), e);
+    }
+  }
+
+  /**
+   * Parses the bytes of an entry.
+   *
+   * @param key the entry key (for logging)
+   * @param bytes the bytes
+   * @return the entity descriptor, or {@code null} if the bytes could not be parsed
+   */
+  private EntityDescriptor unmarshall(final String key, final byte[] bytes) {
+    try {
+      final XMLObject xmlObject = XMLObjectSupport.unmarshallFromInputStream(
+          XMLObjectProviderRegistrySupport.getParserPool(), new ByteArrayInputStream(bytes));
+      if (xmlObject instanceof final EntityDescriptor ed) {
+        return ed;
+      }
+      log.warn("Entry {} in {} does not contain an EntityDescriptor - ignoring", key, this.baseDirectory);
+    }
+    catch (final XMLParserException | UnmarshallingException e) {
+      log.warn("Failed to read entry {} in {} - {}", key, this.baseDirectory, e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * An index entry.
+   *
+   * @param key the entry key
+   * @param entityID the entity ID
+   * @param roles the roles of the entity (bit mask)
+   * @param expiry the time when the entry expires (may be {@code null})
+   * @param offset the offset of the entry in the data file
+   * @param length the length (in bytes) of the entry
+   */
+  public record IndexEntry(String key, String entityID, int roles, Instant expiry, long offset, int length) {
+
+    /**
+     * Tells whether the entity has the supplied role. Only the IdP and SP roles are indexed.
+     *
+     * @param role the role, {@link IDPSSODescriptor#DEFAULT_ELEMENT_NAME} or
+     *     {@link SPSSODescriptor#DEFAULT_ELEMENT_NAME}
+     * @return whether the entity has the role
+     */
+    public boolean hasRole(final QName role) {
+      if (IDPSSODescriptor.DEFAULT_ELEMENT_NAME.equals(role)) {
+        return (this.roles & ROLE_IDP) != 0;
+      }
+      if (SPSSODescriptor.DEFAULT_ELEMENT_NAME.equals(role)) {
+        return (this.roles & ROLE_SP) != 0;
+      }
+      return false;
+    }
+
+    /**
+     * Tells whether the entry has expired.
+     *
+     * @param now the current time
+     * @return whether the entry has expired
+     */
+    public boolean isExpired(final Instant now) {
+      return this.expiry != null && now.isAfter(this.expiry);
+    }
+
+    private static IndexEntry create(final String key, final EntityDescriptor ed, final Instant expiry,
+        final long offset, final int length) {
+      int roles = 0;
+      if (!ed.getRoleDescriptors(IDPSSODescriptor.DEFAULT_ELEMENT_NAME).isEmpty()) {
+        roles |= ROLE_IDP;
+      }
+      if (!ed.getRoleDescriptors(SPSSODescriptor.DEFAULT_ELEMENT_NAME).isEmpty()) {
+        roles |= ROLE_SP;
+      }
+      return new IndexEntry(key, Objects.requireNonNullElse(ed.getEntityID(), ""), roles, expiry, offset, length);
+    }
+
+    private static IndexEntry read(final DataInputStream in) throws IOException {
+      final String key = in.readUTF();
+      final String entityID = in.readUTF();
+      final int roles = in.readUnsignedByte();
+      final long expiry = in.readLong();
+      return new IndexEntry(key, entityID, roles, expiry != Long.MIN_VALUE ? Instant.ofEpochMilli(expiry) : null,
+          in.readLong(), in.readInt());
+    }
+
+    private void write(final DataOutputStream out) throws IOException {
+      out.writeUTF(this.key);
+      out.writeUTF(this.entityID);
+      out.writeByte(this.roles);
+      out.writeLong(this.expiry != null ? this.expiry.toEpochMilli() : Long.MIN_VALUE);
+      out.writeLong(this.offset);
+      out.writeInt(this.length);
+    }
+  }
+
+}
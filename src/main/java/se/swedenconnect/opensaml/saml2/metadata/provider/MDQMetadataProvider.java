@@ -15,24 +15,55 @@
  */
 package se.swedenconnect.opensaml.saml2.metadata.provider;
 
-import net.shibboleth.shared.collection.Pair;
 import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.resolver.CriteriaSet;
 import net.shibboleth.shared.resolver.ResolverException;
 import org.apache.hc.client5.http.classic.HttpClient;
+import org.apache.hc.core5.http.HttpStatus;
+import org.opensaml.core.criterion.EntityIdCriterion;
 import org.opensaml.core.xml.XMLObject;
 import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
-import org.opensaml.core.xml.persist.FilesystemLoadSaveManager;
-import org.opensaml.core.xml.persist.MapLoadSaveManager;
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.core.xml.io.UnmarshallingException;
 import org.opensaml.core.xml.util.XMLObjectSupport;
 import org.opensaml.saml.metadata.resolver.MetadataResolver;
+import org.opensaml.saml.metadata.resolver.filter.FilterException;
 import org.opensaml.saml.metadata.resolver.filter.MetadataFilter;
 import org.opensaml.saml.metadata.resolver.impl.FunctionDrivenDynamicHTTPMetadataResolver;
 import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.xml.namespace.QName;
 import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
 
 /**
  * A {@link MetadataProvider} that supports the <a href="https://www.ietf.org/id/draft-young-md-query-17.html">MDQ
@@ -42,16 +73,147 @@ import java.io.IOException;
  * Note that {@link #getMetadata()}, {@link #getServiceProviders()} and {@link #getIdentityProviders()} will only return
  * those entities that have been fetched from the server using {@link #getEntityDescriptor(String)}.
  * </p>
+ * <p>
+ * The listing methods, the iterators and the index queries use the entities held in memory by the underlying resolver,
+ * and never read the cache directory (if one is given). The cache directory is an
+ * {@link IndexedFilesystemLoadSaveManager}, and it is not read when the provider is initialized. Instead, an entity
+ * that is not held in memory (for example after a restart) is read from the directory the first time it is requested,
+ * provided that it has not expired. Only if it is not found there, the MDQ server is queried.
+ * </p>
+ * <p>
+ * To avoid that the first lookup of frequently used entities pays a round trip to the MDQ server, a list of entity
+ * ID:s to prefetch may be configured using {@link #setPrefetchEntityIds(Collection)} or
+ * {@link #setPrefetchEntityIdsSupplier(Supplier)}. These entities are fetched concurrently when the provider is
+ * initialized, and, if a {@link #setPrefetchInterval(Duration) prefetch interval} is set, periodically after that.
+ * </p>
+ * <p>
+ * By default, lookups for entities that are not found are sent to the MDQ server every time. A negative cache, that
+ * remembers entities that were not found for a limited time, may be enabled using
+ * {@link #setNegativeCacheTtl(Duration)}.
+ * </p>
+ * <p>
+ * Lookups of entities that are cached (and do not need to be refreshed) are answered directly from the resolver's
+ * backing store. The OpenSAML resolver serializes fetches of the same entity using a per-entity lock, and callers
+ * blocked on that lock use the result of the fetch instead of sending a new request. On top of this, concurrent fetches
+ * of the same entity are coalesced, so that the other callers may be given the previously resolved copy of the entity
+ * while the fetch is in progress. This is the case if a {@link #setCoalescingWaitTimeout(Duration) wait timeout} is set
+ * and the callers have waited for this time, or during refresh-ahead (see below).
+ * </p>
+ * <p>
+ * If {@link #setRefreshAheadTime(Duration) refresh-ahead} is enabled, recently used entities are refreshed in the
+ * background shortly before they expire, and lookups made during the refresh are given the current copy. If a
+ * {@link #setStaleGracePeriod(Duration) stale grace period} is set, an expired (but still valid) copy is also served
+ * during this period while a refresh is running, or if the MDQ server can not be reached.
+ * </p>
  *
  * @author Martin Lindström (martin@idsec.se)
  */
 public class MDQMetadataProvider extends AbstractMetadataProvider {
 
+  /** Logging instance. */
+  private static final Logger log = LoggerFactory.getLogger(MDQMetadataProvider.class);
+
   /** The underlying {@link MetadataResolver}. */
-  private final FunctionDrivenDynamicHTTPMetadataResolver resolver;
+  private final MDQResolver resolver;
+
+  /** Builds the MDQ request URL:s. */
+  private final MDQRequestURLBuilder requestURLBuilder;
+
+  /** The maximum number of cached entities held in memory. If 0, no limit is applied. */
+  private int maxCacheEntries = 0;
+
+  /** The maximum total weight (approximate bytes) of cached entities held in memory. If 0, no limit is applied. */
+  private long maxCacheWeight = 0;
+
+  /** The number of lookups that were answered from the cache. */
+  private final AtomicLong cacheHits = new AtomicLong();
+
+  /** The number of lookups that were not answered from the cache. */
+  private final AtomicLong cacheMisses = new AtomicLong();
+
+  /** The number of entities that have been evicted from the cache. */
+  private final AtomicLong cacheEvictions = new AtomicLong();
+
+  /** A view of the entities held by the resolver. */
+  private volatile ResolverView resolverView;
+
+  /** The metadata returned by {@link #getMetadata()}, compiled from the resolver view. */
+  private volatile CompiledMetadata compiledMetadata;
+
+  /** Lock for compiling the metadata. */
+  private final Object compileLock = new Object();
+
+  /** Supplies the entity ID:s to prefetch. */
+  private Supplier<? extends Collection<String>> prefetchEntityIds;
+
+  /** The maximum number of parallel prefetch requests. Default: 4. */
+  private int prefetchParallelism = 4;
+
+  /** The maximum time to wait for the prefetch during initialization. Default: 30 seconds. */
+  private Duration prefetchTimeout = Duration.ofSeconds(30);
+
+  /** The interval between periodic prefetches. If {@code null}, entities are only prefetched at initialization. */
+  private Duration prefetchInterval;
+
+  /** Runs the periodic prefetches. */
+  private ScheduledExecutorService prefetchTimer;
+
+  /** The time-to-live for negative cache entries. If {@code null}, no negative cache is used. */
+  private Duration negativeCacheTtl;
 
-  /** Metadata as last seen at a call to {@link #getMetadata()}. */
-  private EntitiesDescriptor cachedMetadata;
+  /** The maximum number of entries in the negative cache. Default: 1000. */
+  private int negativeCacheMaxEntries = 1000;
+
+  /** Cache for entities that were not found. */
+  private volatile NegativeResultCache negativeCache;
+
+  /** Whether concurrent lookups of the same entity should be coalesced. Default: {@code true}. */
+  private boolean coalesceLookups = true;
+
+  /**
+   * The maximum time a coalesced lookup waits before falling back to a stale copy. If {@code null}, lookups wait until
+   * the result is available.
+   */
+  private Duration coalescingWaitTimeout;
+
+  /** The lookups that are currently in progress. */
+  private final Map<String, CompletableFuture<EntityDescriptor>> inFlightLookups = new ConcurrentHashMap<>();
+
+  /**
+   * The last resolved copy of each entity. Only maintained if a coalescing wait timeout, refresh-ahead or a stale grace
+   * period is configured. Copies are pruned periodically, see {@link #pruneResolvedEntities()}.
+   */
+  private final Map<String, ResolvedEntity> resolvedEntities = new ConcurrentHashMap<>();
+
+  /** Tells whether the last fetch made by the current thread failed. */
+  private final ThreadLocal<Boolean> fetchFailed = new ThreadLocal<>();
+
+  /** How long before expiry recently used entities are refreshed in the background. If {@code null}, disabled. */
+  private Duration refreshAheadTime;
+
+  /** Entities that have been used within this time are refreshed ahead of expiry. Default: 1 hour. */
+  private Duration refreshAheadIdleLimit = Duration.ofHours(1);
+
+  /** How often the entities are checked for refresh-ahead. Default: 1 minute. */
+  private Duration refreshAheadCheckInterval = Duration.ofMinutes(1);
+
+  /** The time after expiry that a stale (but valid) copy may be served. If {@code null}, not served. */
+  private Duration staleGracePeriod;
+
+  /** Runs the refresh-ahead checks and the pruning of resolved entities. */
+  private ScheduledExecutorService resolvedEntitiesTimer;
+
+  /** Runs the background refreshes. */
+  private ExecutorService refreshAheadExecutor;
+
+  /** The number of background refreshes made. */
+  private final AtomicLong backgroundRefreshes = new AtomicLong();
+
+  /** The number of lookups that waited for another lookup of the same entity. */
+  private final AtomicLong coalescedLookups = new AtomicLong();
+
+  /** The number of lookups that fell back to a stale copy. */
+  private final AtomicLong staleLookups = new AtomicLong();
 
   /**
    * Constructor setting up a {@link MetadataProvider} that uses the MDQ protocol to download metadata for requested
@@ -60,23 +222,19 @@ public class MDQMetadataProvider extends AbstractMetadataProvider {
    * @param metadataBaseUrl the base metadata URL (must not end with a /)
    * @param httpClient the HTTP client instance to use, if null,
    *     {@link HTTPMetadataProvider#createDefaultHttpClient()} is used to create a default client
-   * @param cacheBaseDir the base directory where caches will be stored, if null, the caches are kept in memory
+   * @param cacheBaseDir the base directory where fetched entities are saved, if null, entities are only kept in memory
    * @throws ResolverException for failures setting up the underlying {@link MetadataResolver}
    */
   public MDQMetadataProvider(
       @Nonnull final String metadataBaseUrl, @Nullable final HttpClient httpClient,
       @Nullable final String cacheBaseDir) throws ResolverException {
 
-    this.resolver = new FunctionDrivenDynamicHTTPMetadataResolver(
-        httpClient != null ? httpClient : HTTPMetadataProvider.createDefaultHttpClient());
-    this.resolver.setRequestURLBuilder(new MDQRequestURLBuilder(metadataBaseUrl));
-
-    if (cacheBaseDir != null) {
-      this.resolver.setPersistentCacheManager(new FilesystemLoadSaveManager<>(cacheBaseDir));
-    }
-    else {
-      this.resolver.setPersistentCacheManager(new MapLoadSaveManager<>());
-    }
+    // The OpenSAML persistent cache is not used, since the resolver reads all of it at startup. Instead, our resolver
+    // reads entities from the cache directory when they are requested ...
+    this.resolver = new MDQResolver(httpClient != null ? httpClient : HTTPMetadataProvider.createDefaultHttpClient(),
+        cacheBaseDir != null ? new IndexedFilesystemLoadSaveManager(cacheBaseDir) : null);
+    this.requestURLBuilder = new MDQRequestURLBuilder(metadataBaseUrl);
+    this.resolver.setRequestURLBuilder(this.requestURLBuilder);
     this.resolver.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());
     this.resolver.setId(metadataBaseUrl);
   }
@@ -88,37 +246,429 @@ public class MDQMetadataProvider extends AbstractMetadataProvider {
   }
 
   /**
-   * Gets all {@link EntityDescriptor} objects available in the cache and adds them to a {@link EntitiesDescriptor}
-   * object.
+   * Lookups of cached entities are answered directly from the resolver's cache. If lookup coalescing is active
+   * (default), other lookups are coalesced, so that only one of them queries the underlying resolver. If cache limits
+   * have been configured, entities are evicted after an entity has been fetched.
+   */
+  @Override
+  public EntityDescriptor getEntityDescriptor(final String entityID, final QName role) throws ResolverException {
+    if (entityID == null) {
+      return super.getEntityDescriptor(entityID, role);
+    }
+    EntityDescriptor ed = this.resolver.getCachedEntity(entityID);
+    if (ed != null) {
+      this.cacheHits.incrementAndGet();
+      this.trackResolvedEntity(entityID, ed);
+    }
+    else {
+      this.cacheMisses.incrementAndGet();
+      try {
+        ed = this.coalesceLookups ? this.coalescedLookup(entityID) : super.getEntityDescriptor(entityID, null);
+      }
+      finally {
+        this.enforceCacheLimits();
+      }
+    }
+    if (role != null && ed != null && ed.getRoleDescriptors(role).isEmpty()) {
+      return null;
+    }
+    return ed;
+  }
+
+  /**
+   * Resolves the given entity. If a lookup for the same entity is already in progress, the result of that lookup is
+   * awaited instead of starting a new one.
+   *
+   * @param entityID the entity ID
+   * @return the entity descriptor, or {@code null} if not found
+   * @throws ResolverException for resolver errors
+   */
+  private EntityDescriptor coalescedLookup(final String entityID) throws ResolverException {
+    final CompletableFuture<EntityDescriptor> lookup = new CompletableFuture<>();
+    final CompletableFuture<EntityDescriptor> inFlight = this.inFlightLookups.putIfAbsent(entityID, lookup);
+    if (inFlight != null) {
+      this.coalescedLookups.incrementAndGet();
+      if (this.refreshAheadTime != null || this.staleGracePeriod != null) {
+        final EntityDescriptor current = this.getUsableCopy(entityID, false);
+        if (current != null) {
+          log.trace("{}: Refresh of {} in progress - using current copy", this.getID(), entityID);
+          return current;
+        }
+      }
+      log.trace("{}: Lookup of {} already in progress - awaiting result", this.getID(), entityID);
+      return this.awaitLookup(entityID, inFlight);
+    }
+    try {
+      this.fetchFailed.remove();
+      EntityDescriptor ed = super.getEntityDescriptor(entityID, null);
+      if (ed == null && Boolean.TRUE.equals(this.fetchFailed.get())) {
+        ed = this.getStaleCopy(entityID, "Fetch from MDQ server failed");
+      }
+      else {
+        this.trackResolvedEntity(entityID, ed);
+      }
+      lookup.complete(ed);
+      return ed;
+    }
+    catch (final ResolverException | RuntimeException e) {
+      final EntityDescriptor stale = this.getStaleCopy(entityID, e.getMessage());
+      if (stale != null) {
+        lookup.complete(stale);
+        return stale;
+      }
+      lookup.completeExceptionally(e);
+      throw e;
+    }
+    finally {
+      this.fetchFailed.remove();
+      this.inFlightLookups.remove(entityID, lookup);
+    }
+  }
+
+  /**
+   * Waits for a lookup that is in progress.
+   *
+   * @param entityID the entity ID
+   * @param lookup the lookup in progress
+   * @return the entity descriptor, or {@code null} if not found
+   * @throws ResolverException if the lookup failed
+   */
+  private EntityDescriptor awaitLookup(final String entityID, final CompletableFuture<EntityDescriptor> lookup)
+      throws ResolverException {
+    try {
+      if (this.coalescingWaitTimeout != null) {
+        try {
+          return lookup.get(this.coalescingWaitTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        catch (final TimeoutException e) {
+          // Only fall back to a copy that has not expired (taking the stale grace period into account). If there is
+          // no such copy, we continue to wait ...
+          final EntityDescriptor current = this.getUsableCopy(entityID, true);
+          if (current != null) {
+            log.debug("{}: Lookup of {} did not complete within {} - using previously resolved copy",
+                this.getID(), entityID, this.coalescingWaitTimeout);
+            return current;
+          }
+        }
+      }
+      return lookup.get();
+    }
+    catch (final ExecutionException e) {
+      final EntityDescriptor stale = this.getStaleCopy(entityID, e.getCause().getMessage());
+      if (stale != null) {
+        return stale;
+      }
+      if (e.getCause() instanceof final ResolverException re) {
+        throw re;
+      }
+      throw new ResolverException(e.getCause());
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ResolverException("Interrupted while waiting for lookup of " + entityID, e);
+    }
+  }
+
+  /**
+   * Records the resolved copy of an entity (if resolved entities are tracked).
+   *
+   * @param entityID the entity ID
+   * @param ed the resolved entity, or {@code null} if the entity was not found
+   */
+  private void trackResolvedEntity(final String entityID, final EntityDescriptor ed) {
+    if (!this.isTrackingResolvedEntities()) {
+      return;
+    }
+    if (ed == null) {
+      this.resolvedEntities.remove(entityID);
+      return;
+    }
+    final ResolvedEntity current = this.resolvedEntities.get(entityID);
+    if (current != null && current.getEntity() == ed) {
+      current.touch();
+    }
+    else {
+      // Use the expiration time that the resolver calculated when the entity was fetched (it is kept if the entity is
+      // read from the cache directory). If the entity has been removed from the resolver in the meantime, the copy is
+      // regarded as expired ...
+      final Instant expires = this.resolver.getExpirationTime(entityID);
+      this.resolvedEntities.put(entityID, new ResolvedEntity(ed, expires != null ? expires : Instant.now()));
+    }
+  }
+
+  /**
+   * Tells whether the resolved copies of the entities are tracked. This is the case if a coalescing wait timeout,
+   * refresh-ahead or a stale grace period is configured.
+   *
+   * @return whether resolved entities are tracked
+   */
+  private boolean isTrackingResolvedEntities() {
+    return this.coalescingWaitTimeout != null || this.refreshAheadTime != null || this.staleGracePeriod != null;
+  }
+
+  /**
+   * Gets the current copy of the entity, if it has not expired (taking the stale grace period into account).
+   *
+   * @param entityID the entity ID
+   * @param fallback whether the copy is used instead of awaiting a lookup (always counted as a stale lookup)
+   * @return the entity descriptor, or {@code null} if no usable copy exists
+   */
+  private EntityDescriptor getUsableCopy(final String entityID, final boolean fallback) {
+    final ResolvedEntity entity = this.resolvedEntities.get(entityID);
+    if (entity == null) {
+      return null;
+    }
+    final Instant now = Instant.now();
+    if (entity.getValidUntil() != null && now.isAfter(entity.getValidUntil())) {
+      return null;
+    }
+    final Instant usableUntil = this.staleGracePeriod != null
+        ? entity.getExpires().plus(this.staleGracePeriod)
+        : entity.getExpires();
+    if (now.isAfter(usableUntil)) {
+      return null;
+    }
+    entity.touch();
+    if (fallback || now.isAfter(entity.getExpires())) {
+      this.staleLookups.incrementAndGet();
+    }
+    return entity.getEntity();
+  }
+
+  /**
+   * Gets a stale copy of the entity to use when the lookup failed. Only available if a stale grace period is set.
+   *
+   * @param entityID the entity ID
+   * @param reason the reason the lookup failed (for logging)
+   * @return the entity descriptor, or {@code null} if no usable copy exists
+   */
+  private EntityDescriptor getStaleCopy(final String entityID, final String reason) {
+    if (this.staleGracePeriod == null) {
+      return null;
+    }
+    final EntityDescriptor ed = this.getUsableCopy(entityID, false);
+    if (ed != null) {
+      log.info("{}: Lookup of {} failed ({}) - using previously resolved copy", this.getID(), entityID, reason);
+    }
+    return ed;
+  }
+
+  /**
+   * Checks for recently used entities that are about to expire and refreshes them in the background.
+   */
+  private void checkRefreshAhead() {
+    final Instant now = Instant.now();
+    final long idleLimit = this.refreshAheadIdleLimit.toMillis();
+    for (final Map.Entry<String, ResolvedEntity> e : this.resolvedEntities.entrySet()) {
+      final String entityID = e.getKey();
+      final ResolvedEntity entity = e.getValue();
+      if (System.currentTimeMillis() - entity.getLastAccess() > idleLimit) {
+        continue;
+      }
+      if (now.isBefore(entity.getExpires().minus(this.refreshAheadTime))
+          || this.inFlightLookups.containsKey(entityID)) {
+        continue;
+      }
+      try {
+        this.refreshAheadExecutor.execute(() -> this.refreshInBackground(entityID));
+      }
+      catch (final RuntimeException ex) {
+        log.debug("{}: Failed to schedule background refresh of {} - {}", this.getID(), entityID, ex.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Removes the resolved copies that can no longer be used, and the copies of entities that are no longer held by the
+   * underlying resolver (for example, since they have been idle). This way the resolved copies do not keep entity
+   * descriptors alive after the resolver has removed them. If refresh-ahead is enabled, expired copies of recently used
+   * entities are kept, so that they are refreshed.
+   */
+  private void pruneResolvedEntities() {
+    final Instant now = Instant.now();
+    final long idleLimit = this.refreshAheadIdleLimit.toMillis();
+    for (final Map.Entry<String, ResolvedEntity> e : this.resolvedEntities.entrySet()) {
+      final String entityID = e.getKey();
+      final ResolvedEntity entity = e.getValue();
+      if (this.inFlightLookups.containsKey(entityID)) {
+        continue;
+      }
+      final Instant staleUntil =
+          entity.getExpires().plus(this.staleGracePeriod != null ? this.staleGracePeriod : Duration.ZERO);
+      final boolean unusable = now.isAfter(staleUntil)
+          || entity.getValidUntil() != null && now.isAfter(entity.getValidUntil());
+      final boolean idle = this.refreshAheadTime == null
+          || System.currentTimeMillis() - entity.getLastAccess() > idleLimit;
+      if (unusable && idle || !this.resolver.isCached(entityID)) {
+        this.resolvedEntities.remove(entityID, entity);
+        log.trace("{}: Removed resolved copy of {}", this.getID(), entityID);
+      }
+    }
+  }
+
+  /**
+   * Refreshes an entity in the background. Lookups for the entity made during the refresh are coalesced with it.
+   *
+   * @param entityID the entity ID
+   */
+  private void refreshInBackground(final String entityID) {
+    final CompletableFuture<EntityDescriptor> lookup = new CompletableFuture<>();
+    if (this.inFlightLookups.putIfAbsent(entityID, lookup) != null) {
+      return;
+    }
+    try {
+      log.debug("{}: Refreshing {} ahead of expiry", this.getID(), entityID);
+      final EntityDescriptor ed = this.resolver.refreshEntity(entityID);
+      if (ed != null) {
+        this.trackResolvedEntity(entityID, ed);
+      }
+      this.backgroundRefreshes.incrementAndGet();
+      lookup.complete(ed);
+    }
+    catch (final ResolverException | RuntimeException e) {
+      log.info("{}: Background refresh of {} failed - {}", this.getID(), entityID, e.getMessage());
+      lookup.completeExceptionally(e);
+    }
+    finally {
+      this.inFlightLookups.remove(entityID, lookup);
+      this.enforceCacheLimits();
+    }
+  }
+
+  /**
+   * Evicts the least recently used entities from the resolver's cache if the configured limits are exceeded.
+   */
+  private void enforceCacheLimits() {
+    if (this.maxCacheEntries <= 0 && this.maxCacheWeight <= 0) {
+      return;
+    }
+    final List<String> evicted =
+        this.resolver.evict(this.maxCacheEntries > 0 ? this.maxCacheEntries : Integer.MAX_VALUE, this.maxCacheWeight);
+    for (final String entityID : evicted) {
+      this.resolvedEntities.remove(entityID);
+      log.trace("{}: Evicted {} from cache", this.getID(), entityID);
+    }
+    this.cacheEvictions.addAndGet(evicted.size());
+  }
+
+  /**
+   * Gets the number of background (refresh-ahead) refreshes that have been made.
+   *
+   * @return the number of background refreshes
+   */
+  public long getBackgroundRefreshes() {
+    return this.backgroundRefreshes.get();
+  }
+
+  /**
+   * Gets the number of lookups that awaited the result of another lookup of the same entity instead of querying the
+   * resolver. Lookups answered from the cache are not counted.
+   *
+   * @return the number of coalesced lookups
+   */
+  public long getCoalescedLookups() {
+    return this.coalescedLookups.get();
+  }
+
+  /**
+   * Gets the number of lookups that were given a stale copy, either since the lookup they waited for did not complete
+   * within the {@link #setCoalescingWaitTimeout(Duration) wait timeout}, or since the entity was served within its
+   * {@link #setStaleGracePeriod(Duration) stale grace period}.
+   *
+   * @return the number of lookups that returned a stale copy
+   */
+  public long getStaleLookups() {
+    return this.staleLookups.get();
+  }
+
+  /**
+   * Returns a copy of the {@link EntityDescriptor} objects held by the underlying resolver, added to an
+   * {@link EntitiesDescriptor} object.
    * <p>
    * Note: The {@link MDQMetadataProvider} version of this method does not return all metadata entries available at the
    * source. It only returns those that have been downloaded by the provider and are present in the cache.
    * </p>
+   * <p>
+   * The copy is created when this method is called after the set of cached entities has changed. Copies returned
+   * earlier are left untouched. The other listing methods, such as {@link #getIdentityProviders()}, do not use this
+   * copy.
+   * </p>
    */
   @Override
-  public synchronized XMLObject getMetadata() {
-    if (this.cachedMetadata != null) {
-      return this.cachedMetadata;
+  public XMLObject getMetadata() {
+    final ResolverView view = this.getResolverView();
+    CompiledMetadata compiled = this.compiledMetadata;
+    if (compiled != null && compiled.view() == view) {
+      return compiled.metadata();
     }
-    try {
-      final EntitiesDescriptor entities =
-          (EntitiesDescriptor) XMLObjectSupport.buildXMLObject(EntitiesDescriptor.DEFAULT_ELEMENT_NAME);
+    synchronized (this.compileLock) {
+      compiled = this.compiledMetadata;
+      if (compiled == null || compiled.view() != view) {
+        compiled = new CompiledMetadata(view, compileMetadata(view.snapshot().getEntityDescriptors()));
+        this.compiledMetadata = compiled;
+      }
+      return compiled.metadata();
+    }
+  }
 
-      final Iterable<Pair<String, EntityDescriptor>> it = this.resolver.getPersistentCacheManager().listAll();
-      it.forEach((e) -> entities.getEntityDescriptors().add(e.getSecond()));
+  /**
+   * Returns a view of the entity descriptors held by the underlying resolver. The entity descriptors are not copied
+   * (and no cached entities are read from disk). The view is re-created when the set of cached entities changes.
+   */
+  @Override
+  protected MetadataSnapshot getSnapshot() {
+    return this.getResolverView().snapshot();
+  }
 
-      this.cachedMetadata = entities;
-      return entities;
+  /**
+   * Gets the current view of the entities held by the resolver, and creates a new view if the entities have changed.
+   *
+   * @return the resolver view
+   */
+  private ResolverView getResolverView() {
+    final ResolverView view = this.resolverView;
+    final long version = this.resolver.getVersion();
+    final int size = this.resolver.getCachedEntityCount();
+    if (view != null && view.version() == version && view.size() == size) {
+      return view;
     }
-    catch (final IOException e) {
-      return null;
+    final MetadataSnapshot snapshot = MetadataSnapshot.of(this.resolver.getCachedEntities());
+    if (view != null && view.snapshot().isIndexed()) {
+      snapshot.getIndex();
     }
+    if (view != null && view.snapshot().isIdpSearchIndexed()) {
+      snapshot.getIdpSearchIndex();
+    }
+    final ResolverView newView = new ResolverView(snapshot, version, size);
+    this.resolverView = newView;
+    return newView;
+  }
+
+  /**
+   * Creates an {@link EntitiesDescriptor} holding copies of the supplied entity descriptors.
+   *
+   * @param entityDescriptors the entity descriptors
+   * @return an entities descriptor
+   */
+  private static EntitiesDescriptor compileMetadata(final List<EntityDescriptor> entityDescriptors) {
+    final EntitiesDescriptor entities =
+        (EntitiesDescriptor) XMLObjectSupport.buildXMLObject(EntitiesDescriptor.DEFAULT_ELEMENT_NAME);
+    for (final EntityDescriptor ed : entityDescriptors) {
+      try {
+        entities.getEntityDescriptors().add(XMLObjectSupport.cloneXMLObject(ed));
+      }
+      catch (final MarshallingException | UnmarshallingException e) {
+        log.error("Error copying EntityDescriptor '{}', entry will not be included in metadata", ed.getEntityID(), e);
+      }
+    }
+    return entities;
   }
 
   /** {@inheritDoc} */
   @Override
   protected synchronized void setMetadata(final XMLObject metadata) {
-    this.cachedMetadata = null;
+    // The metadata only holds the entity that was fetched, so removals are not reported ...
+    this.trackChanges(metadata, false);
     super.setMetadata(null);
   }
 
@@ -140,15 +690,953 @@ public class MDQMetadataProvider extends AbstractMetadataProvider {
   /** {@inheritDoc} */
   @Override
   protected void initializeMetadataResolver() throws ComponentInitializationException {
+    if (this.negativeCacheTtl != null) {
+      this.negativeCache = new NegativeResultCache(this.negativeCacheTtl, this.negativeCacheMaxEntries);
+    }
     this.resolver.initialize();
+
+    if (this.prefetchEntityIds != null) {
+      this.prefetch(this.prefetchTimeout);
+
+      if (this.prefetchInterval != null) {
+        final long interval = this.prefetchInterval.toMillis();
+        this.prefetchTimer = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+            .name("mdq-prefetch-" + this.getID())
+            .daemon(true)
+            .factory());
+        this.prefetchTimer.scheduleWithFixedDelay(() -> this.prefetch(null), interval, interval, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    if (this.isTrackingResolvedEntities()) {
+      final long interval = this.refreshAheadCheckInterval.toMillis();
+      this.resolvedEntitiesTimer = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+          .name("mdq-resolved-entities-" + this.getID())
+          .daemon(true)
+          .factory());
+      this.resolvedEntitiesTimer.scheduleWithFixedDelay(
+          this::pruneResolvedEntities, interval, interval, TimeUnit.MILLISECONDS);
+
+      if (this.refreshAheadTime != null) {
+        this.refreshAheadExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        this.resolvedEntitiesTimer.scheduleWithFixedDelay(
+            this::checkRefreshAhead, interval, interval, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Fetches the configured entities (see {@link #setPrefetchEntityIds(Collection)}), so that they are present in the
+   * cache when they are requested. Failures are logged, but do not lead to an error.
+   *
+   * @return the number of entities that were successfully fetched
+   */
+  public int prefetch() {
+    return this.prefetch(null);
+  }
+
+  /**
+   * Fetches the configured entities concurrently.
+   *
+   * @param timeout the maximum time to wait for the fetches to complete ({@code null} for no limit)
+   * @return the number of entities that were successfully fetched
+   */
+  private int prefetch(final Duration timeout) {
+    final Collection<String> supplied;
+    try {
+      supplied = this.prefetchEntityIds != null ? this.prefetchEntityIds.get() : null;
+    }
+    catch (final RuntimeException e) {
+      log.warn("{}: Failed to get entity ID:s to prefetch - {}", this.getID(), e.getMessage(), e);
+      return 0;
+    }
+    if (supplied == null || supplied.isEmpty()) {
+      return 0;
+    }
+    final List<String> entityIds = new ArrayList<>(new LinkedHashSet<>(supplied));
+    entityIds.removeIf(Objects::isNull);
+
+    final long start = System.nanoTime();
+    final long deadline = timeout != null ? start + timeout.toNanos() : Long.MAX_VALUE;
+    final Semaphore permits = new Semaphore(this.prefetchParallelism);
+    final List<Future<EntityDescriptor>> tasks = new ArrayList<>(entityIds.size());
+
+    int fetched = 0;
+    final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    try {
+      for (final String entityId : entityIds) {
+        tasks.add(executor.submit(() -> {
+          permits.acquire();
+          try {
+            return this.getEntityDescriptor(entityId);
+          }
+          finally {
+            permits.release();
+          }
+        }));
+      }
+      for (int i = 0; i < tasks.size(); i++) {
+        final String entityId = entityIds.get(i);
+        try {
+          final EntityDescriptor ed = deadline == Long.MAX_VALUE
+              ? tasks.get(i).get()
+              : tasks.get(i).get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+          if (ed != null) {
+            fetched++;
+          }
+          else {
+            log.info("{}: Prefetch of {} - entity not found", this.getID(), entityId);
+          }
+        }
+        catch (final TimeoutException e) {
+          log.warn("{}: Prefetch of {} did not complete within {}", this.getID(), entityId, timeout);
+          tasks.get(i).cancel(true);
+        }
+        catch (final ExecutionException e) {
+          log.warn("{}: Prefetch of {} failed - {}", this.getID(), entityId, e.getCause().getMessage(), e.getCause());
+        }
+        catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          tasks.forEach(t -> t.cancel(true));
+          break;
+        }
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+    log.debug("{}: Prefetched {} of {} entities in {} ms", this.getID(), fetched, entityIds.size(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    return fetched;
   }
 
   /** {@inheritDoc} */
   @Override
   protected void destroyMetadataResolver() {
+    if (this.prefetchTimer != null) {
+      this.prefetchTimer.shutdownNow();
+      this.prefetchTimer = null;
+    }
+    if (this.resolvedEntitiesTimer != null) {
+      this.resolvedEntitiesTimer.shutdownNow();
+      this.resolvedEntitiesTimer = null;
+    }
+    if (this.refreshAheadExecutor != null) {
+      this.refreshAheadExecutor.shutdownNow();
+      this.refreshAheadExecutor = null;
+    }
+    this.resolvedEntities.clear();
     if (this.resolver != null) {
       this.resolver.destroy();
     }
   }
 
+  /**
+   * Gets the statistics for the cache of resolved entities.
+   *
+   * @return the cache statistics
+   * @see #setMaxCacheEntries(int)
+   * @see #setMaxCacheWeight(long)
+   */
+  public CacheStatistics getCacheStatistics() {
+    return new CacheStatistics(this.cacheHits.get(), this.cacheMisses.get(), this.cacheEvictions.get(),
+        this.resolver.getCachedEntityCount(), this.resolver.getCachedEntityWeight(), this.resolver.getDirectoryHits());
+  }
+
+  /**
+   * Gets the number of lookups that were answered by the negative cache, i.e., lookups of entities that were recently
+   * not found.
+   *
+   * @return the number of negative cache hits
+   */
+  public long getNegativeCacheHits() {
+    return this.negativeCache != null ? this.negativeCache.getHits() : 0L;
+  }
+
+  /**
+   * Gets the number of lookups sent to the MDQ server that were not answered by the negative cache.
+   *
+   * @return the number of negative cache misses
+   */
+  public long getNegativeCacheMisses() {
+    return this.negativeCache != null ? this.negativeCache.getMisses() : 0L;
+  }
+
+  /**
+   * Assigns the entity ID:s that should be fetched when the provider is initialized (and periodically, if
+   * {@link #setPrefetchInterval(Duration)} is set).
+   *
+   * @param prefetchEntityIds the entity ID:s to prefetch
+   */
+  public void setPrefetchEntityIds(final Collection<String> prefetchEntityIds) {
+    this.checkSetterPreconditions();
+    final List<String> ids = prefetchEntityIds != null ? List.copyOf(prefetchEntityIds) : null;
+    this.prefetchEntityIds = ids != null ? () -> ids : null;
+  }
+
+  /**
+   * Assigns a supplier of the entity ID:s that should be fetched when the provider is initialized (and periodically,
+   * if {@link #setPrefetchInterval(Duration)} is set). The supplier is invoked at each prefetch, so the list of
+   * entities may change over time.
+   *
+   * @param prefetchEntityIdsSupplier supplies the entity ID:s to prefetch
+   */
+  public void setPrefetchEntityIdsSupplier(final Supplier<? extends Collection<String>> prefetchEntityIdsSupplier) {
+    this.checkSetterPreconditions();
+    this.prefetchEntityIds = prefetchEntityIdsSupplier;
+  }
+
+  /**
+   * Assigns the maximum number of parallel requests that are made during a prefetch. Default: 4.
+   *
+   * @param prefetchParallelism the maximum number of parallel prefetch requests
+   */
+  public void setPrefetchParallelism(final int prefetchParallelism) {
+    this.checkSetterPreconditions();
+    if (prefetchParallelism < 1) {
+      throw new IllegalArgumentException("prefetchParallelism must be at least 1");
+    }
+    this.prefetchParallelism = prefetchParallelism;
+  }
+
+  /**
+   * Assigns the maximum time that initialization waits for the prefetch to complete. Entities that have not been
+   * fetched within this time are logged and skipped. Default: 30 seconds.
+   *
+   * @param prefetchTimeout the prefetch timeout
+   */
+  public void setPrefetchTimeout(final Duration prefetchTimeout) {
+    this.checkSetterPreconditions();
+    this.prefetchTimeout = Objects.requireNonNull(prefetchTimeout, "prefetchTimeout must not be null");
+  }
+
+  /**
+   * Assigns the interval between periodic prefetches. Since expired entries are re-fetched when they are resolved,
+   * periodic prefetches keep the configured entities fresh in the cache. If not set, entities are only prefetched at
+   * initialization.
+   *
+   * @param prefetchInterval the prefetch interval
+   */
+  public void setPrefetchInterval(final Duration prefetchInterval) {
+    this.checkSetterPreconditions();
+    if (prefetchInterval != null && (prefetchInterval.isNegative() || prefetchInterval.isZero())) {
+      throw new IllegalArgumentException("prefetchInterval must be positive");
+    }
+    this.prefetchInterval = prefetchInterval;
+  }
+
+  /**
+   * Assigns the time that an entity that was not found by the MDQ server is remembered. During this time, lookups for
+   * the entity are answered locally. If not set, no negative cache is used.
+   * <p>
+   * Only a 404 response is cached. Other non-successful responses are treated as fetch failures (and are not cached).
+   * The status code is obtained by the interceptors of {@link MetadataTransferSupport}, so if a custom
+   * {@code HttpClient} is used, these need to be installed for the negative cache to be effective. If no status code is
+   * available for a failed lookup, a warning is logged (once) and the result is not cached.
+   * </p>
+   *
+   * @param negativeCacheTtl the time-to-live for negative cache entries
+   */
+  public void setNegativeCacheTtl(final Duration negativeCacheTtl) {
+    this.checkSetterPreconditions();
+    if (negativeCacheTtl != null && (negativeCacheTtl.isNegative() || negativeCacheTtl.isZero())) {
+      throw new IllegalArgumentException("negativeCacheTtl must be positive");
+    }
+    this.negativeCacheTtl = negativeCacheTtl;
+  }
+
+  /**
+   * Assigns the maximum number of entries in the negative cache. When the cache is full, the least recently used entry
+   * is evicted. Default: 1000.
+   *
+   * @param negativeCacheMaxEntries the maximum number of entries
+   */
+  public void setNegativeCacheMaxEntries(final int negativeCacheMaxEntries) {
+    this.checkSetterPreconditions();
+    if (negativeCacheMaxEntries < 1) {
+      throw new IllegalArgumentException("negativeCacheMaxEntries must be at least 1");
+    }
+    this.negativeCacheMaxEntries = negativeCacheMaxEntries;
+  }
+
+  /**
+   * Assigns whether concurrent lookups of the same entity, that can not be answered from the cache, should be
+   * coalesced. Default: {@code true}.
+   * <p>
+   * Note that the underlying OpenSAML resolver never sends more than one request per entity ID at a time. Coalescing
+   * is needed for the {@link #setCoalescingWaitTimeout(Duration) wait timeout} and for refresh-ahead.
+   * </p>
+   *
+   * @param coalesceLookups whether lookups should be coalesced
+   */
+  public void setCoalesceLookups(final boolean coalesceLookups) {
+    this.checkSetterPreconditions();
+    this.coalesceLookups = coalesceLookups;
+  }
+
+  /**
+   * Assigns the maximum time a coalesced lookup waits for the lookup in progress before it falls back to the previously
+   * resolved copy of the entity. If no such copy exists, the lookup continues to wait. If not set, lookups always wait
+   * for the result.
+   *
+   * @param coalescingWaitTimeout the wait timeout
+   */
+  public void setCoalescingWaitTimeout(final Duration coalescingWaitTimeout) {
+    this.checkSetterPreconditions();
+    if (coalescingWaitTimeout != null && coalescingWaitTimeout.isNegative()) {
+      throw new IllegalArgumentException("coalescingWaitTimeout must not be negative");
+    }
+    this.coalescingWaitTimeout = coalescingWaitTimeout;
+  }
+
+  /**
+   * Assigns whether SHA-1 transformed identifiers ({@code {sha1}<hex>}) should be used when requesting entities from
+   * the MDQ server. Default: {@code false}.
+   *
+   * @param useTransformedIdentifiers whether transformed identifiers should be used
+   * @see MDQRequestURLBuilder#setUseTransformedIdentifiers(boolean)
+   */
+  public void setUseTransformedIdentifiers(final boolean useTransformedIdentifiers) {
+    this.checkSetterPreconditions();
+    this.requestURLBuilder.setUseTransformedIdentifiers(useTransformedIdentifiers);
+  }
+
+  /**
+   * Assigns the maximum number of entities that the underlying resolver holds in memory. When an entity has been
+   * fetched, and the limit is exceeded, the least recently used entities are evicted. If a cache directory was given,
+   * an evicted entity is kept there, and is read from the directory the next time it is requested (if it has not
+   * expired). Otherwise, it is fetched from the MDQ server. If not set, no limit is applied.
+   * <p>
+   * See also {@link #setMaxIdleEntityTime(Duration)}.
+   * </p>
+   *
+   * @param maxCacheEntries the maximum number of entities held in memory
+   */
+  public void setMaxCacheEntries(final int maxCacheEntries) {
+    this.checkSetterPreconditions();
+    if (maxCacheEntries < 0) {
+      throw new IllegalArgumentException("maxCacheEntries must not be negative");
+    }
+    this.maxCacheEntries = maxCacheEntries;
+  }
+
+  /**
+   * Assigns the maximum total weight of the entities that the underlying resolver holds in memory. The weight of an
+   * entity is the size in bytes of the (uncompressed) MDQ response it was read from, or, for an entity read from the
+   * cache directory, the size of the saved entity. If not set, no limit is applied.
+   * <p>
+   * As for {@link #setMaxCacheEntries(int)}, an evicted entity is kept in the cache directory (if given).
+   * </p>
+   *
+   * @param maxCacheWeight the maximum total weight of entities held in memory
+   * @see #setMaxCacheEntries(int)
+   */
+  public void setMaxCacheWeight(final long maxCacheWeight) {
+    this.checkSetterPreconditions();
+    if (maxCacheWeight < 0) {
+      throw new IllegalArgumentException("maxCacheWeight must not be negative");
+    }
+    this.maxCacheWeight = maxCacheWeight;
+  }
+
+  /**
+   * Assigns the maximum time that an entity that has not been requested is kept by the underlying resolver before it
+   * is removed. This bounds the resolver's own in-memory store of resolved entities. If not set, the OpenSAML default
+   * is used.
+   *
+   * @param maxIdleEntityTime the maximum idle time
+   */
+  public void setMaxIdleEntityTime(final Duration maxIdleEntityTime) {
+    this.checkSetterPreconditions();
+    this.resolver.setRemoveIdleEntityData(true);
+    this.resolver.setMaxIdleEntityData(
+        Objects.requireNonNull(maxIdleEntityTime, "maxIdleEntityTime must not be null"));
+  }
+
+  /**
+   * Enables refresh-ahead. Recently used entities (see {@link #setRefreshAheadIdleLimit(Duration)}) are refreshed in
+   * the background when they are within the given time of their expiry. The expiry time is the one that the resolver
+   * calculated when the entity was fetched, from the entity's {@code cacheDuration} (bounded to between 10 minutes and
+   * 8 hours) and {@code validUntil}. If not set, entities are refreshed on the first lookup after they have expired.
+   * <p>
+   * Refresh-ahead requires that lookups are coalesced (see {@link #setCoalesceLookups(boolean)}).
+   * </p>
+   *
+   * @param refreshAheadTime how long before expiry entities are refreshed
+   */
+  public void setRefreshAheadTime(final Duration refreshAheadTime) {
+    this.checkSetterPreconditions();
+    if (refreshAheadTime != null && refreshAheadTime.isNegative()) {
+      throw new IllegalArgumentException("refreshAheadTime must not be negative");
+    }
+    this.refreshAheadTime = refreshAheadTime;
+  }
+
+  /**
+   * Assigns how recently an entity must have been used to be refreshed ahead of expiry. Default: 1 hour.
+   *
+   * @param refreshAheadIdleLimit the idle limit
+   */
+  public void setRefreshAheadIdleLimit(final Duration refreshAheadIdleLimit) {
+    this.checkSetterPreconditions();
+    this.refreshAheadIdleLimit =
+        Objects.requireNonNull(refreshAheadIdleLimit, "refreshAheadIdleLimit must not be null");
+  }
+
+  /**
+   * Assigns how often entities are checked for refresh-ahead. This is also how often the previously resolved copies of
+   * entities (used for refresh-ahead, the coalescing wait timeout and the stale grace period) are pruned. Default: 1
+   * minute.
+   *
+   * @param refreshAheadCheckInterval the check interval
+   */
+  public void setRefreshAheadCheckInterval(final Duration refreshAheadCheckInterval) {
+    this.checkSetterPreconditions();
+    Objects.requireNonNull(refreshAheadCheckInterval, "refreshAheadCheckInterval must not be null");
+    if (refreshAheadCheckInterval.isNegative() || refreshAheadCheckInterval.isZero()) {
+      throw new IllegalArgumentException("refreshAheadCheckInterval must be positive");
+    }
+    this.refreshAheadCheckInterval = refreshAheadCheckInterval;
+  }
+
+  /**
+   * Assigns the time after expiry during which a stale copy of an entity may be served, while a refresh is running or
+   * if the MDQ server can not be reached. A copy is never served after its {@code validUntil} time. If not set, stale
+   * copies are not served.
+   *
+   * @param staleGracePeriod the stale grace period
+   */
+  public void setStaleGracePeriod(final Duration staleGracePeriod) {
+    this.checkSetterPreconditions();
+    if (staleGracePeriod != null && staleGracePeriod.isNegative()) {
+      throw new IllegalArgumentException("staleGracePeriod must not be negative");
+    }
+    this.staleGracePeriod = staleGracePeriod;
+  }
+
+  /**
+   * The underlying resolver. Extends the OpenSAML resolver with transfer statistics, the negative cache and forced
+   * (background) refreshes.
+   */
+  private class MDQResolver extends FunctionDrivenDynamicHTTPMetadataResolver {
+
+    /** The time (nanos) when the current fetch was started. */
+    private final ThreadLocal<Long> fetchStarted = new ThreadLocal<>();
+
+    /** Incremented each time new metadata has been added to the backing store. */
+    private final AtomicLong version = new AtomicLong();
+
+    /** The size of the response read by the current thread. */
+    private final ThreadLocal<Long> responseSize = new ThreadLocal<>();
+
+    /** The weights, i.e., the response sizes, of the entities in the backing store. */
+    private final Map<String, Long> weights = new ConcurrentHashMap<>();
+
+    /** The sum of {@code weights}, updated when weights are added and removed. */
+    private final AtomicLong totalWeight = new AtomicLong();
+
+    /** The number of entities that were read from the cache directory. */
+    private final AtomicLong directoryHits = new AtomicLong();
+
+    /** Whether we have warned about a fetch for which no HTTP status code was available. */
+    private final AtomicBoolean missingStatusCodeLogged = new AtomicBoolean();
+
+    /** The cache directory (may be {@code null}). */
+    private final IndexedFilesystemLoadSaveManager cacheManager;
+
+    /** The cache directory entry of the entity read from the cache directory by the current thread. */
+    private final ThreadLocal<IndexedFilesystemLoadSaveManager.IndexEntry> cacheEntry = new ThreadLocal<>();
+
+    /**
+     * Constructor.
+     *
+     * @param httpClient the HTTP client
+     * @param cacheManager the cache directory (may be {@code null})
+     */
+    MDQResolver(final HttpClient httpClient, final IndexedFilesystemLoadSaveManager cacheManager) {
+      super(httpClient);
+      this.cacheManager = cacheManager;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected XMLObject unmarshallMetadata(final InputStream metadataInput) throws UnmarshallingException {
+      final MDQMetadataProvider provider = MDQMetadataProvider.this;
+      final TransferStatistics statistics = MetadataTransferSupport.takeTransferStatistics();
+      provider.reportTransferStatistics(statistics);
+
+      final long size;
+      try {
+        // The response has been read into a byte array stream, so available() gives its size ...
+        size = statistics != null ? statistics.uncompressedBytes() : metadataInput.available();
+      }
+      catch (final IOException e) {
+        throw new UnmarshallingException("Failed to read metadata", e);
+      }
+      this.responseSize.set(size);
+
+      final Long started = this.fetchStarted.get();
+      if (started != null) {
+        provider.getMetrics().downloadCompleted(provider.getID(), Duration.ofNanos(System.nanoTime() - started),
+            statistics != null ? statistics.transferredBytes() : size, size);
+      }
+      final long start = System.nanoTime();
+      final XMLObject metadata = super.unmarshallMetadata(metadataInput);
+      provider.getMetrics().parseCompleted(provider.getID(), Duration.ofNanos(System.nanoTime() - start));
+      return metadata;
+    }
+
+    /**
+     * If the entity is not held in memory, it is read from the cache directory (if it is there and has not expired).
+     * Otherwise, it is fetched from the MDQ server.
+     */
+    @Override
+    protected XMLObject fetchFromOriginSource(final CriteriaSet criteria) throws IOException {
+      final EntityIdCriterion entityIdCriterion = criteria != null ? criteria.get(EntityIdCriterion.class) : null;
+      final String entityId = entityIdCriterion != null ? entityIdCriterion.getEntityId() : null;
+      this.cacheEntry.remove();
+      if (entityId != null && this.cacheManager != null && !this.isCached(entityId)) {
+        final XMLObject cached = this.loadFromCacheDirectory(entityId);
+        if (cached != null) {
+          return cached;
+        }
+      }
+      return this.fetchFromServer(criteria, entityId);
+    }
+
+    /**
+     * Reads an entity from the cache directory.
+     *
+     * @param entityId the entity ID
+     * @return the entity descriptor, or {@code null} if it is not found in the cache directory
+     */
+    private XMLObject loadFromCacheDirectory(final String entityId) {
+      try {
+        final IndexedFilesystemLoadSaveManager.IndexEntry entry = this.cacheManager.getIndexEntry(entityId);
+        if (entry == null) {
+          return null;
+        }
+        final EntityDescriptor ed = this.cacheManager.load(entityId);
+        if (ed == null) {
+          return null;
+        }
+        log.debug("{}: Read {} from cache directory", this.getId(), entityId);
+        this.directoryHits.incrementAndGet();
+        this.cacheEntry.set(entry);
+        this.responseSize.set((long) entry.length());
+        return ed;
+      }
+      catch (final IOException e) {
+        log.warn("{}: Failed to read {} from cache directory - {}", this.getId(), entityId, e.getMessage());
+        return null;
+      }
+    }
+
+    /**
+     * Fetches an entity from the MDQ server.
+     *
+     * @param criteria the criteria
+     * @param entityId the entity ID (may be {@code null})
+     * @return the metadata, or {@code null} if not found
+     * @throws IOException for fetch errors
+     */
+    private XMLObject fetchFromServer(final CriteriaSet criteria, final String entityId) throws IOException {
+      final NegativeResultCache negative = MDQMetadataProvider.this.negativeCache;
+      if (negative != null && negative.contains(entityId)) {
+        log.debug("{}: {} was recently not found - not querying MDQ server", this.getId(), entityId);
+        return null;
+      }
+      final XMLObject metadata;
+      final Integer statusCode;
+      this.responseSize.remove();
+      this.fetchStarted.set(System.nanoTime());
+      try {
+        metadata = super.fetchFromOriginSource(criteria);
+      }
+      catch (final IOException e) {
+        this.recordFetchFailure(e);
+        throw e;
+      }
+      finally {
+        this.fetchStarted.remove();
+        statusCode = MetadataTransferSupport.takeStatusCode();
+      }
+      if (metadata != null) {
+        if (negative != null) {
+          negative.remove(entityId);
+        }
+      }
+      else if (statusCode != null && statusCode == HttpStatus.SC_NOT_FOUND) {
+        if (negative != null) {
+          negative.put(entityId);
+        }
+        this.removeFromCacheDirectory(entityId);
+      }
+      else if (statusCode != null) {
+        // Any other status, or an OK response that could not be processed, means that we don't know whether the
+        // entity exists ...
+        this.recordFetchFailure(new IOException(
+            String.format("MDQ server responded with status %d for %s", statusCode, entityId)));
+      }
+      else if (this.missingStatusCodeLogged.compareAndSet(false, true)) {
+        // The HttpClient does not have the MetadataTransferSupport interceptors installed, so we can not tell a
+        // 404 from a failure ...
+        log.warn("{}: No HTTP status code available for MDQ response - negative caching and detection of fetch "
+            + "failures are not possible. Install the MetadataTransferSupport interceptors on the HttpClient",
+            this.getId());
+      }
+      return metadata;
+    }
+
+    /**
+     * Records that a fetch failed, so that a stale copy may be served.
+     *
+     * @param e the error
+     */
+    private void recordFetchFailure(final IOException e) {
+      MDQMetadataProvider.this.fetchFailed.set(Boolean.TRUE);
+      MDQMetadataProvider.this.getMetrics().refreshFailed(MDQMetadataProvider.this.getID(), e);
+    }
+
+    /**
+     * Records the weight of the entity, and saves an entity fetched from the MDQ server in the cache directory. For an
+     * entity read from the cache directory, the expiration time calculated when the entity was fetched is kept.
+     */
+    @Override
+    protected void processNewMetadata(final XMLObject root, final String expectedEntityID) throws FilterException {
+      final IndexedFilesystemLoadSaveManager.IndexEntry entry = this.cacheEntry.get();
+      try {
+        super.processNewMetadata(root, expectedEntityID);
+        final List<EntityDescriptor> descriptors = this.lookupIndexedEntityID(expectedEntityID);
+        if (descriptors.isEmpty()) {
+          this.removeWeight(expectedEntityID);
+          return;
+        }
+        final Long size = this.responseSize.get();
+        if (size != null) {
+          final Long previous = this.weights.put(expectedEntityID, size);
+          this.totalWeight.addAndGet(size - (previous != null ? previous : 0L));
+        }
+        final EntityManagementData managementData = this.getBackingStore().getManagementData(expectedEntityID);
+        if (entry != null) {
+          if (entry.expiry() != null && entry.expiry().isBefore(managementData.getExpirationTime())) {
+            managementData.setExpirationTime(entry.expiry());
+          }
+          if (managementData.getRefreshTriggerTime().isAfter(managementData.getExpirationTime())) {
+            managementData.setRefreshTriggerTime(managementData.getExpirationTime());
+          }
+        }
+        else if (this.cacheManager != null) {
+          try {
+            this.cacheManager.save(expectedEntityID, descriptors.get(0), managementData.getExpirationTime());
+          }
+          catch (final IOException e) {
+            log.warn("{}: Failed to save {} in cache directory - {}", this.getId(), expectedEntityID, e.getMessage());
+          }
+        }
+      }
+      finally {
+        this.responseSize.remove();
+        this.cacheEntry.remove();
+        this.version.incrementAndGet();
+      }
+    }
+
+    /**
+     * Removes an entity from the cache directory (if any).
+     *
+     * @param entityID the entity ID
+     */
+    private void removeFromCacheDirectory(final String entityID) {
+      if (this.cacheManager == null || entityID == null) {
+        return;
+      }
+      try {
+        this.cacheManager.remove(entityID);
+      }
+      catch (final IOException e) {
+        log.warn("{}: Failed to remove {} from cache directory - {}", this.getId(), entityID, e.getMessage());
+      }
+    }
+
+    /**
+     * Gets the expiration time that was calculated for the given entity when it was added to the backing store.
+     *
+     * @param entityID the entity ID
+     * @return the expiration time, or {@code null} if the entity is not held in the backing store
+     */
+    Instant getExpirationTime(final String entityID) {
+      if (!this.isCached(entityID)) {
+        return null;
+      }
+      return this.getBackingStore().getManagementData(entityID).getExpirationTime();
+    }
+
+    /**
+     * Gets the total weight of the entities held in the backing store.
+     *
+     * @return the total weight
+     */
+    long getCachedEntityWeight() {
+      return this.totalWeight.get();
+    }
+
+    /**
+     * Gets the number of entities that were read from the cache directory.
+     *
+     * @return the number of entities read from the cache directory
+     */
+    long getDirectoryHits() {
+      return this.directoryHits.get();
+    }
+
+    /**
+     * Removes the weight of the entity, so that the total weight is kept up to date, regardless of whether the entity
+     * is evicted by us or removed by the resolver itself (for example, since it has been idle).
+     */
+    @Override
+    protected void removeByEntityID(@Nonnull final String entityID, @Nonnull final EntityBackingStore backingStore) {
+      super.removeByEntityID(entityID, backingStore);
+      this.removeWeight(entityID);
+    }
+
+    /**
+     * Evicts the least recently used entities from the backing store until the number of entities, and their total
+     * weight, are within the supplied limits. At least one entity is always kept, and entities that are being updated
+     * are skipped.
+     *
+     * @param maxEntries the maximum number of entities
+     * @param maxWeight the maximum total weight (0 for no limit)
+     * @return the entity ID:s of the evicted entities
+     */
+    synchronized List<String> evict(final int maxEntries, final long maxWeight) {
+      final Map<String, List<EntityDescriptor>> indexed = this.getBackingStore().getIndexedDescriptors();
+      int size = indexed.size();
+      if (size <= maxEntries && (maxWeight <= 0 || this.totalWeight.get() <= maxWeight)) {
+        return List.of();
+      }
+      final Map<String, Instant> lastAccess = new HashMap<>();
+      for (final String entityID : indexed.keySet()) {
+        lastAccess.put(entityID, this.getBackingStore().getManagementData(entityID).getLastAccessedTime());
+      }
+      final List<String> candidates = new ArrayList<>(lastAccess.keySet());
+      candidates.sort(Comparator.comparing(lastAccess::get));
+
+      final List<String> evicted = new ArrayList<>();
+      for (final String entityID : candidates) {
+        if (size <= 1 || size <= maxEntries && (maxWeight <= 0 || this.totalWeight.get() <= maxWeight)) {
+          break;
+        }
+        final Lock writeLock = this.getBackingStore().getManagementData(entityID).getReadWriteLock().writeLock();
+        if (!writeLock.tryLock()) {
+          continue;
+        }
+        try {
+          if (!indexed.containsKey(entityID)) {
+            continue;
+          }
+          this.removeByEntityID(entityID, this.getBackingStore());
+          this.getBackingStore().removeManagementData(entityID);
+        }
+        finally {
+          writeLock.unlock();
+        }
+        size--;
+        evicted.add(entityID);
+      }
+      return evicted;
+    }
+
+    /**
+     * Removes the weight of the given entity, and subtracts it from the running total.
+     *
+     * @param entityID the entity ID
+     */
+    private void removeWeight(final String entityID) {
+      final Long weight = this.weights.remove(entityID);
+      if (weight != null) {
+        this.totalWeight.addAndGet(-weight);
+      }
+    }
+
+    /**
+     * Gets the version of the backing store. The version is incremented each time new metadata has been added. Entities
+     * that are removed (for example because they have been idle) do not change the version, but the number of
+     * entities, see {@link #getCachedEntityCount()}.
+     *
+     * @return the version
+     */
+    long getVersion() {
+      return this.version.get();
+    }
+
+    /**
+     * Gets the number of entities held in the backing store.
+     *
+     * @return the number of entities
+     */
+    int getCachedEntityCount() {
+      return this.getBackingStore().getIndexedDescriptors().size();
+    }
+
+    /**
+     * Lists the entities held in the backing store. The entity descriptors are not copied.
+     *
+     * @return a list of entity descriptors
+     */
+    List<EntityDescriptor> getCachedEntities() {
+      final List<EntityDescriptor> entities = new ArrayList<>();
+      for (final List<EntityDescriptor> descriptors : this.getBackingStore().getIndexedDescriptors().values()) {
+        for (final EntityDescriptor ed : descriptors.toArray(new EntityDescriptor[0])) {
+          if (ed != null) {
+            entities.add(ed);
+          }
+        }
+      }
+      return entities;
+    }
+
+    /**
+     * Tells whether the given entity is held in the backing store.
+     *
+     * @param entityID the entity ID
+     * @return whether the entity is held in the backing store
+     */
+    boolean isCached(final String entityID) {
+      return !this.lookupIndexedEntityID(entityID).isEmpty();
+    }
+
+    /**
+     * Gets the given entity from the backing store, without fetching it from the MDQ server. If the entity is not
+     * cached, needs to be refreshed, or is being updated, {@code null} is returned and a lookup is needed.
+     *
+     * @param entityID the entity ID
+     * @return the cached entity descriptor, or {@code null}
+     */
+    EntityDescriptor getCachedEntity(final String entityID) {
+      if (this.lookupIndexedEntityID(entityID).isEmpty()) {
+        return null;
+      }
+      final EntityManagementData managementData = this.getBackingStore().getManagementData(entityID);
+      final Lock readLock = managementData.getReadWriteLock().readLock();
+      if (!readLock.tryLock()) {
+        return null;
+      }
+      try {
+        if (this.shouldAttemptRefresh(managementData)) {
+          return null;
+        }
+        final List<EntityDescriptor> descriptors = this.lookupIndexedEntityID(entityID);
+        if (descriptors.isEmpty() || !this.isValid(descriptors.get(0))) {
+          return null;
+        }
+        managementData.recordEntityAccess();
+        return descriptors.get(0);
+      }
+      finally {
+        readLock.unlock();
+      }
+    }
+
+    /**
+     * Fetches the given entity from the MDQ server, even if the cached copy has not expired.
+     *
+     * @param entityID the entity ID
+     * @return the entity descriptor, or {@code null} if not found
+     * @throws ResolverException for fetch and processing errors
+     */
+    EntityDescriptor refreshEntity(final String entityID) throws ResolverException {
+      final CriteriaSet criteria = new CriteriaSet(new EntityIdCriterion(entityID));
+      final Lock writeLock = this.getBackingStore().getManagementData(entityID).getReadWriteLock().writeLock();
+      writeLock.lock();
+      try {
+        this.cacheEntry.remove();
+        final XMLObject root = this.fetchFromServer(criteria, entityID);
+        if (root != null) {
+          this.processNewMetadata(root, entityID);
+        }
+      }
+      catch (final IOException | FilterException e) {
+        throw new ResolverException("Failed to refresh " + entityID, e);
+      }
+      finally {
+        writeLock.unlock();
+      }
+      return this.resolveSingle(criteria);
+    }
+  }
+
+  /**
+   * Statistics for the cache of resolved entities.
+   *
+   * @param hits the number of lookups that were answered from the cache
+   * @param misses the number of lookups that were not answered from the cache
+   * @param evictions the number of entities that have been evicted from the cache
+   * @param size the number of entities currently held in the cache
+   * @param weight the total weight of the entities currently held in the cache
+   * @param directoryHits the number of misses that were answered by reading the entity from the cache directory
+   */
+  public record CacheStatistics(long hits, long misses, long evictions, int size, long weight, long directoryHits) {
+  }
+
+  /**
+   * A view of the entities held by the resolver.
+   *
+   * @param snapshot the entity descriptors (not copied)
+   * @param version the version of the backing store when the view was created
+   * @param size the number of entities in the backing store when the view was created
+   */
+  private record ResolverView(MetadataSnapshot snapshot, long version, int size) {
+  }
+
+  /**
+   * The metadata returned by {@link #getMetadata()}.
+   *
+   * @param view the view that the metadata was compiled from
+   * @param metadata the metadata (holding copies of the entity descriptors)
+   */
+  private record CompiledMetadata(ResolverView view, EntitiesDescriptor metadata) {
+  }
+
+  /**
+   * A resolved entity.
+   */
+  private static class ResolvedEntity {
+
+    /** The entity. */
+    private final EntityDescriptor entity;
+
+    /** When the entity expires. */
+    private final Instant expires;
+
+    /** The last time the entity was used (millis). */
+    private volatile long lastAccess;
+
+    ResolvedEntity(final EntityDescriptor entity, final Instant expires) {
+      this.entity = entity;
+      this.expires = expires;
+      this.lastAccess = System.currentTimeMillis();
+    }
+
+    EntityDescriptor getEntity() {
+      return this.entity;
+    }
+
+    Instant getExpires() {
+      return this.expires;
+    }
+
+    Instant getValidUntil() {
+      return this.entity.getValidUntil();
+    }
+
+    long getLastAccess() {
+      return this.lastAccess;
+    }
+
+    void touch() {
+      this.lastAccess = System.currentTimeMillis();
+    }
+  }
+
 }
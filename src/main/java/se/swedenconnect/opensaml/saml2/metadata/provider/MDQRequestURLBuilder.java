@@ -24,11 +24,19 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.util.Objects;
 import java.util.function.Function;
 
 /**
  * Function which examines an entity ID from supplied criteria and returns a metadata request URL for MDQ.
+ * <p>
+ * By default, the URL-encoded entity ID is used in the request URL. If {@link #setUseTransformedIdentifiers(boolean)}
+ * is set, the SHA-1 transformed identifier, {@code {sha1}<hex>}, is used instead. This gives shorter URL:s that are
+ * better suited for caching in proxies.
+ * </p>
  *
  * @author Martin Lindström (martin@idsec.se)
  */
@@ -37,9 +45,15 @@ public class MDQRequestURLBuilder implements Function<CriteriaSet, String> {
   /** Logger. */
   private static final Logger log = LoggerFactory.getLogger(MDQRequestURLBuilder.class);
 
+  /** The prefix for SHA-1 transformed identifiers. */
+  public static final String SHA1_PREFIX = "{sha1}";
+
   /** The metadata base URL. */
   private String baseUrl;
 
+  /** Whether SHA-1 transformed identifiers should be used. */
+  private boolean useTransformedIdentifiers = false;
+
   /**
    * Constructor.
    *
@@ -64,10 +78,56 @@ public class MDQRequestURLBuilder implements Function<CriteriaSet, String> {
     final String entityID = criteria.get(EntityIdCriterion.class).getEntityId();
     Constraint.isNotNull(entityID, "Entity ID was null");
 
+    final String identifier = this.useTransformedIdentifiers ? toTransformedIdentifier(entityID) : entityID;
     final String url =
-        String.format("%s/entities/%s", this.baseUrl, URLEncoder.encode(entityID, StandardCharsets.UTF_8));
+        String.format("%s/entities/%s", this.baseUrl, URLEncoder.encode(identifier, StandardCharsets.UTF_8));
     log.debug("Returning request URL: {}", url);
     return url;
   }
 
+  /**
+   * Assigns whether SHA-1 transformed identifiers ({@code {sha1}<hex>}) should be used in request URL:s instead of the
+   * entity ID. Default: {@code false}.
+   *
+   * @param useTransformedIdentifiers whether transformed identifiers should be used
+   */
+  public void setUseTransformedIdentifiers(final boolean useTransformedIdentifiers) {
+    this.useTransformedIdentifiers = useTransformedIdentifiers;
+  }
+
+  /**
+   * Tells whether SHA-1 transformed identifiers are used in request URL:s.
+   *
+   * @return whether transformed identifiers are used
+   */
+  public boolean isUseTransformedIdentifiers() {
+    return this.useTransformedIdentifiers;
+  }
+
+  /**
+   * Gets the SHA-1 transformed identifier for the supplied entity ID.
+   *
+   * @param entityID the entity ID
+   * @return the transformed identifier, i.e., {@code {sha1}} followed by the hex encoded SHA-1 digest of the entity ID
+   */
+  public static String toTransformedIdentifier(final String entityID) {
+    return SHA1_PREFIX + sha1Hex(entityID);
+  }
+
+  /**
+   * Calculates the hex encoded SHA-1 digest of the supplied entity ID.
+   *
+   * @param entityID the entity ID
+   * @return the hex encoded digest
+   */
+  private static String sha1Hex(final String entityID) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      return HexFormat.of().formatHex(digest.digest(entityID.getBytes(StandardCharsets.UTF_8)));
+    }
+    catch (final NoSuchAlgorithmException e) {
+      throw new SecurityException(e);
+    }
+  }
+
 }
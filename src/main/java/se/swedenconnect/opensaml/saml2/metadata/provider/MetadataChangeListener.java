@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata.provider;
+
+/**
+ * Listener that is notified about the changes in a provider's metadata after each refresh.
+ * <p>
+ * Listeners are invoked on the thread that refreshed the metadata, and should therefore not block.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @see AbstractMetadataProvider#addChangeListener(MetadataChangeListener)
+ */
+@FunctionalInterface
+public interface MetadataChangeListener {
+
+  /**
+   * Invoked when the metadata of a provider has changed.
+   *
+   * @param changes the changes (never empty)
+   */
+  void metadataChanged(final MetadataChangeSet changes);
+
+}
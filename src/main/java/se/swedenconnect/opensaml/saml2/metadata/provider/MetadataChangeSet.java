@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata.provider;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The changes in a provider's metadata after a refresh.
+ *
+ * @param providerId the ID of the provider whose metadata changed
+ * @param added the entity ID:s of the entities that were added
+ * @param removed the entity ID:s of the entities that were removed
+ * @param modified the entity ID:s of the entities whose contents changed
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public record MetadataChangeSet(String providerId, Set<String> added, Set<String> removed, Set<String> modified) {
+
+  /**
+   * Constructor.
+   *
+   * @param providerId the ID of the provider whose metadata changed
+   * @param added the entity ID:s of the entities that were added
+   * @param removed the entity ID:s of the entities that were removed
+   * @param modified the entity ID:s of the entities whose contents changed
+   */
+  public MetadataChangeSet {
+    added = added != null ? Collections.unmodifiableSet(new LinkedHashSet<>(added)) : Collections.emptySet();
+    removed = removed != null ? Collections.unmodifiableSet(new LinkedHashSet<>(removed)) : Collections.emptySet();
+    modified = modified != null ? Collections.unmodifiableSet(new LinkedHashSet<>(modified)) : Collections.emptySet();
+  }
+
+  /**
+   * Tells whether the change set is empty.
+   *
+   * @return whether there are no changes
+   */
+  public boolean isEmpty() {
+    return this.added.isEmpty() && this.removed.isEmpty() && this.modified.isEmpty();
+  }
+
+  /**
+   * Merges a sequence of change sets into one. The change sets are applied in order, so that, for example, an entity
+   * that was added and then removed is not part of the result, and an entity that was removed and then added again is
+   * reported as modified.
+   *
+   * @param providerId the provider ID for the merged change set
+   * @param changeSets the change sets to merge (in order)
+   * @return the merged change set
+   */
+  public static MetadataChangeSet merge(final String providerId, final List<MetadataChangeSet> changeSets) {
+    Objects.requireNonNull(changeSets, "changeSets must not be null");
+
+    // For each entity: whether it existed before the first change, and whether it exists after the last change.
+    final Map<String, boolean[]> states = new LinkedHashMap<>();
+    for (final MetadataChangeSet changes : changeSets) {
+      changes.added().forEach(id -> states.computeIfAbsent(id, k -> new boolean[] { false, true })[1] = true);
+      changes.modified().forEach(id -> states.computeIfAbsent(id, k -> new boolean[] { true, true })[1] = true);
+      changes.removed().forEach(id -> states.computeIfAbsent(id, k -> new boolean[] { true, false })[1] = false);
+    }
+    final Set<String> added = new LinkedHashSet<>();
+    final Set<String> removed = new LinkedHashSet<>();
+    final Set<String> modified = new LinkedHashSet<>();
+    states.forEach((id, state) -> {
+      if (state[0] && state[1]) {
+        modified.add(id);
+      }
+      else if (state[0]) {
+        removed.add(id);
+      }
+      else if (state[1]) {
+        added.add(id);
+      }
+    });
+    return new MetadataChangeSet(providerId, added, removed, modified);
+  }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata.provider;
+
+import net.shibboleth.shared.xml.SerializeSupport;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps a content fingerprint for each entity of a provider's metadata, and calculates the changes when the metadata
+ * is updated.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+class MetadataChangeTracker {
+
+  /** Logging instance. */
+  private static final Logger log = LoggerFactory.getLogger(MetadataChangeTracker.class);
+
+  /** The fingerprints for the current entities. */
+  private final Map<String, Long> fingerprints = new HashMap<>();
+
+  /**
+   * Updates the fingerprints given the new metadata and returns the changes.
+   *
+   * @param providerId the provider ID
+   * @param metadata the new metadata
+   * @param complete whether the metadata is the complete metadata of the provider, if {@code false}, the metadata
+   *     only holds updated entities and no entities are reported as removed
+   * @param releaseDOM whether the DOM should be released after the fingerprints have been calculated
+   * @return the changes
+   */
+  synchronized MetadataChangeSet update(final String providerId, final XMLObject metadata, final boolean complete,
+      final boolean releaseDOM) {
+
+    final Set<String> added = new LinkedHashSet<>();
+    final Set<String> modified = new LinkedHashSet<>();
+    final Set<String> removed = new LinkedHashSet<>();
+
+    final Map<String, Long> previous = complete ? new HashMap<>(this.fingerprints) : null;
+    if (complete) {
+      this.fingerprints.clear();
+    }
+    for (final EntityDescriptor ed : getEntityDescriptors(metadata)) {
+      final Long fingerprint = fingerprint(ed, releaseDOM);
+      final Long old = complete ? previous.remove(ed.getEntityID()) : this.fingerprints.get(ed.getEntityID());
+      this.fingerprints.put(ed.getEntityID(), fingerprint);
+      if (old == null) {
+        added.add(ed.getEntityID());
+      }
+      else if (!old.equals(fingerprint)) {
+        modified.add(ed.getEntityID());
+      }
+    }
+    if (complete) {
+      removed.addAll(previous.keySet());
+    }
+    return new MetadataChangeSet(providerId, added, removed, modified);
+  }
+
+  /**
+   * Gets the entity descriptors of the supplied metadata.
+   *
+   * @param metadata the metadata
+   * @return a list of entity descriptors
+   */
+  private static List<EntityDescriptor> getEntityDescriptors(final XMLObject metadata) {
+    if (metadata instanceof final EntityDescriptor ed) {
+      return List.of(ed);
+    }
+    final List<EntityDescriptor> list = new ArrayList<>();
+    if (metadata instanceof final EntitiesDescriptor entities) {
+      list.addAll(entities.getEntityDescriptors());
+      for (final EntitiesDescriptor nested : entities.getEntitiesDescriptors()) {
+        list.addAll(getEntityDescriptors(nested));
+      }
+    }
+    return list;
+  }
+
+  /**
+   * Calculates the fingerprint for an entity, i.e., the first 64 bits of the SHA-256 digest of its serialization.
+   *
+   * @param ed the entity descriptor
+   * @param releaseDOM whether the DOM should be released if it had to be created
+   * @return the fingerprint
+   */
+  private static Long fingerprint(final EntityDescriptor ed, final boolean releaseDOM) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      final boolean hasDOM = ed.getDOM() != null;
+      final Element element = hasDOM ? ed.getDOM() : XMLObjectSupport.marshall(ed);
+      SerializeSupport.writeNode(element, new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+      if (!hasDOM && releaseDOM) {
+        AbstractMetadataProvider.releaseMetadataDOM(ed);
+      }
+      return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+    catch (final NoSuchAlgorithmException e) {
+      throw new SecurityException(e);
+    }
+    catch (final MarshallingException e) {
+      log.debug("Failed to calculate fingerprint for {} - {}", ed.getEntityID(), e.getMessage());
+      return 0L;
+    }
+  }
+
+}
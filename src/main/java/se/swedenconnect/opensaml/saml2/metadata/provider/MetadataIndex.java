@@ -0,0 +1,240 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata.provider;
+
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
+import se.swedenconnect.opensaml.saml2.metadata.EntityDescriptorUtils;
+import se.swedenconnect.opensaml.saml2.metadata.scope.Scope;
+import se.swedenconnect.opensaml.saml2.metadata.scope.ScopeUtils;
+
+import javax.xml.namespace.QName;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Secondary indexes over the entity descriptors of a {@link MetadataSnapshot}. The entities are indexed by entity
+ * category, assurance certification, scope domain and supported NameID format, so that a {@link MetadataQuery} can be
+ * answered without scanning the metadata.
+ * <p>
+ * Each index key maps to a bit set holding the positions of the matching entities in the snapshot, and the criteria of
+ * a query are combined by intersecting these bit sets. Results are therefore returned in document order.
+ * </p>
+ * <p>
+ * Scopes having {@code regexp="true"} can not be indexed by domain. They are kept in a separate list and are evaluated
+ * for each query that includes a scope.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @see MetadataSnapshot#getIndex()
+ */
+public final class MetadataIndex {
+
+  /** The indexed entity descriptors. */
+  private final List<EntityDescriptor> entities;
+
+  /** Entity category index. */
+  private final Map<String, BitSet> entityCategories = new HashMap<>();
+
+  /** Assurance certification index. */
+  private final Map<String, BitSet> assuranceCertifications = new HashMap<>();
+
+  /** Scope index (for scopes that are not regular expressions). */
+  private final Map<String, BitSet> scopes = new HashMap<>();
+
+  /** Scopes that are regular expressions, and the positions of their entities. */
+  private final List<ScopeEntry> regexpScopes = new ArrayList<>();
+
+  /** NameID format index. */
+  private final Map<String, BitSet> nameIdFormats = new HashMap<>();
+
+  /** Role index. IdP and SP roles are indexed when the index is built, other roles on demand. */
+  private final Map<QName, BitSet> roles = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor building the indexes.
+   *
+   * @param entities the entity descriptors to index
+   */
+  MetadataIndex(final List<EntityDescriptor> entities) {
+    this.entities = entities;
+
+    final BitSet idps = new BitSet(entities.size());
+    final BitSet sps = new BitSet(entities.size());
+    for (int pos = 0; pos < entities.size(); pos++) {
+      final EntityDescriptor ed = entities.get(pos);
+      if (MetadataProviderPredicates.isIDP(ed)) {
+        idps.set(pos);
+      }
+      if (MetadataProviderPredicates.isSP(ed)) {
+        sps.set(pos);
+      }
+      for (final String category : EntityDescriptorUtils.getEntityCategories(ed)) {
+        this.entityCategories.computeIfAbsent(category, k -> new BitSet()).set(pos);
+      }
+      for (final String uri : EntityDescriptorUtils.getAssuranceCertificationUris(ed)) {
+        this.assuranceCertifications.computeIfAbsent(uri, k -> new BitSet()).set(pos);
+      }
+      for (final String format : EntityDescriptorUtils.getNameIDFormats(ed)) {
+        this.nameIdFormats.computeIfAbsent(format, k -> new BitSet()).set(pos);
+      }
+      for (final XMLObject scope : ScopeUtils.getScopeExtensions(ed)) {
+        if (scope instanceof final Scope s && !Boolean.TRUE.equals(s.getRegexp())) {
+          if (s.getValue() != null) {
+            this.scopes.computeIfAbsent(s.getValue(), k -> new BitSet()).set(pos);
+          }
+        }
+        else {
+          this.regexpScopes.add(new ScopeEntry(scope, pos));
+        }
+      }
+    }
+    this.roles.put(IDPSSODescriptor.DEFAULT_ELEMENT_NAME, idps);
+    this.roles.put(SPSSODescriptor.DEFAULT_ELEMENT_NAME, sps);
+  }
+
+  /**
+   * Finds the entity descriptors matching the supplied query.
+   *
+   * @param query the query
+   * @return an unmodifiable list of entity descriptors (in document order)
+   */
+  public List<EntityDescriptor> find(final MetadataQuery query) {
+    BitSet result = null;
+    if (query.getRole() != null) {
+      result = intersect(result, this.getRole(query.getRole()));
+    }
+    for (final String category : query.getEntityCategories()) {
+      result = intersect(result, this.entityCategories.get(category));
+    }
+    for (final String uri : query.getAssuranceCertifications()) {
+      result = intersect(result, this.assuranceCertifications.get(uri));
+    }
+    for (final String format : query.getNameIdFormats()) {
+      result = intersect(result, this.nameIdFormats.get(format));
+    }
+    if (query.getScope() != null && (result == null || !result.isEmpty())) {
+      final BitSet scopeMatches = new BitSet(this.entities.size());
+      final BitSet exact = this.scopes.get(query.getScope());
+      if (exact != null) {
+        scopeMatches.or(exact);
+      }
+      for (final ScopeEntry entry : this.regexpScopes) {
+        if ((result == null || result.get(entry.position())) && !scopeMatches.get(entry.position())
+            && ScopeUtils.isDomainMatch(entry.scope(), query.getScope())) {
+          scopeMatches.set(entry.position());
+        }
+      }
+      result = intersect(result, scopeMatches);
+    }
+    if (result == null) {
+      return Collections.unmodifiableList(this.entities);
+    }
+    final List<EntityDescriptor> list = new ArrayList<>(result.cardinality());
+    result.stream().forEach(pos -> list.add(this.entities.get(pos)));
+    return Collections.unmodifiableList(list);
+  }
+
+  /**
+   * Gets the entity categories found in the metadata.
+   *
+   * @return an unmodifiable set of entity categories
+   */
+  public Set<String> getEntityCategories() {
+    return Collections.unmodifiableSet(this.entityCategories.keySet());
+  }
+
+  /**
+   * Gets the assurance certifications found in the metadata.
+   *
+   * @return an unmodifiable set of assurance certification URI:s
+   */
+  public Set<String> getAssuranceCertifications() {
+    return Collections.unmodifiableSet(this.assuranceCertifications.keySet());
+  }
+
+  /**
+   * Gets the scope domains found in the metadata. Scopes that are regular expressions are not included.
+   *
+   * @return an unmodifiable set of scope domains
+   */
+  public Set<String> getScopes() {
+    return Collections.unmodifiableSet(this.scopes.keySet());
+  }
+
+  /**
+   * Gets the NameID formats found in the metadata.
+   *
+   * @return an unmodifiable set of NameID format URI:s
+   */
+  public Set<String> getNameIdFormats() {
+    return Collections.unmodifiableSet(this.nameIdFormats.keySet());
+  }
+
+  /**
+   * Gets the bit set for the given role, and creates it if needed.
+   *
+   * @param role the role
+   * @return the bit set
+   */
+  private BitSet getRole(final QName role) {
+    return this.roles.computeIfAbsent(role, r -> {
+      final BitSet bits = new BitSet(this.entities.size());
+      for (int pos = 0; pos < this.entities.size(); pos++) {
+        if (!this.entities.get(pos).getRoleDescriptors(r).isEmpty()) {
+          bits.set(pos);
+        }
+      }
+      return bits;
+    });
+  }
+
+  /**
+   * Intersects the current result with the supplied bit set. The supplied bit set is never modified.
+   *
+   * @param result the current result ({@code null} if no criteria have been applied)
+   * @param bits the bit set to intersect with ({@code null} means no matches)
+   * @return the new result
+   */
+  private static BitSet intersect(final BitSet result, final BitSet bits) {
+    if (bits == null) {
+      return new BitSet();
+    }
+    if (result == null) {
+      return (BitSet) bits.clone();
+    }
+    result.and(bits);
+    return result;
+  }
+
+  /**
+   * A scope that is evaluated for each query.
+   *
+   * @param scope the scope element
+   * @param position the position of the entity
+   */
+  private record ScopeEntry(XMLObject scope, int position) {
+  }
+
+}
@@ -16,6 +16,7 @@
 package se.swedenconnect.opensaml.saml2.metadata.provider;
 
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.xml.namespace.QName;
@@ -133,6 +134,9 @@ public interface MetadataProvider extends InitializableComponent, DestructableCo
 
   /**
    * Utility method that returns a list of entity descriptors for Identity Providers found in the metadata.
+   * <p>
+   * The returned list belongs to the caller, i.e., it may be sorted or otherwise modified.
+   * </p>
    *
    * @return a list of entity descriptors
    * @throws ResolverException for metadata errors
@@ -141,12 +145,57 @@ public interface MetadataProvider extends InitializableComponent, DestructableCo
 
   /**
    * Utility method that returns a list of entity descriptors for Service Providers found in the metadata.
+   * <p>
+   * The returned list belongs to the caller, i.e., it may be sorted or otherwise modified.
+   * </p>
    *
    * @return a list of entity descriptors
    * @throws ResolverException for metadata errors
    */
   List<EntityDescriptor> getServiceProviders() throws ResolverException;
 
+  /**
+   * Finds the entity descriptors that match the supplied query.
+   * <p>
+   * The default implementation evaluates the query for each entity descriptor. Providers extending
+   * {@link AbstractMetadataProvider} answer the query using the secondary indexes of the current metadata, see
+   * {@link MetadataIndex}.
+   * </p>
+   *
+   * @param query the query
+   * @return a (possibly empty) list of matching entity descriptors
+   * @throws ResolverException for metadata errors
+   */
+  default List<EntityDescriptor> findEntityDescriptors(final MetadataQuery query) throws ResolverException {
+    final List<EntityDescriptor> list = new ArrayList<>();
+    for (final EntityDescriptor ed : this.iterator(query.getRole())) {
+      if (query.test(ed)) {
+        list.add(ed);
+      }
+    }
+    return list;
+  }
+
+  /**
+   * Searches the IdP:s for the supplied search string, for example the input of an IdP discovery user interface. See
+   * {@link IdpSearchIndex#search(String, String, int)} for how the search string is matched and how the matches are
+   * ranked.
+   * <p>
+   * The default implementation builds an {@link IdpSearchIndex} for each call. Providers extending
+   * {@link AbstractMetadataProvider} keep the index for the current metadata.
+   * </p>
+   *
+   * @param query the search string
+   * @param language the preferred language (may be {@code null})
+   * @param maxResults the maximum number of results, 0 or less means no limit
+   * @return a (possibly empty) list of matches, best match first
+   * @throws ResolverException for metadata errors
+   */
+  default List<IdpSearchIndex.Match> searchIdentityProviders(final String query, final String language,
+      final int maxResults) throws ResolverException {
+    return new IdpSearchIndex(this.getIdentityProviders()).search(query, language, maxResults);
+  }
+
   /**
    * Returns the underlying OpenSAML metadata resolver.
    *
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata.provider;
+
+import java.time.Duration;
+
+/**
+ * Instrumentation interface for metadata providers. The providers call into the metrics instance assigned using
+ * {@link AbstractMetadataProvider#setMetrics(MetadataProviderMetrics)} when metadata is downloaded, parsed, filtered
+ * and published, and when a refresh fails.
+ * <p>
+ * The methods are invoked on the thread that refreshes the metadata, and implementations should therefore be fast
+ * and must not block. All methods receive the ID of the reporting provider, so one instance may be shared between
+ * several providers.
+ * </p>
+ * <p>
+ * Note: When streaming ingestion is used, signature verification, schema validation and filtering are performed by
+ * the parser, and their cost is therefore included in the reported parse time.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @see NoOpMetadataProviderMetrics
+ * @see InMemoryMetadataProviderMetrics
+ */
+public interface MetadataProviderMetrics {
+
+  /** Filter name for signature verification. */
+  String FILTER_SIGNATURE = "signature";
+
+  /** Filter name for schema validation. */
+  String FILTER_SCHEMA = "schema";
+
+  /** Filter name for the filter that only keeps SP:s and IdP:s. */
+  String FILTER_ROLE = "role";
+
+  /** Filter name for inclusion and exclusion predicates. */
+  String FILTER_PREDICATE = "predicate";
+
+  /**
+   * Invoked when metadata has been downloaded (or read from file). The {@link MDQMetadataProvider} invokes this method
+   * for each entity fetched from the MDQ server.
+   *
+   * @param providerId the provider ID
+   * @param duration the time it took to download the metadata
+   * @param transferredBytes the number of bytes transferred (may be less than {@code uncompressedBytes} if the
+   *     metadata was compressed)
+   * @param uncompressedBytes the number of bytes of the metadata (0 if the metadata was not modified since the last
+   *     download)
+   */
+  void downloadCompleted(final String providerId, final Duration duration, final long transferredBytes,
+      final long uncompressedBytes);
+
+  /**
+   * Invoked when metadata has been parsed.
+   *
+   * @param providerId the provider ID
+   * @param duration the time it took to parse the metadata
+   */
+  void parseCompleted(final String providerId, final Duration duration);
+
+  /**
+   * Invoked when a metadata filter has been applied.
+   *
+   * @param providerId the provider ID
+   * @param filter the filter name, see {@link #FILTER_SIGNATURE}, {@link #FILTER_SCHEMA}, {@link #FILTER_ROLE} and
+   *     {@link #FILTER_PREDICATE}
+   * @param duration the time it took to apply the filter
+   */
+  void filterCompleted(final String providerId, final String filter, final Duration duration);
+
+  /**
+   * Invoked when metadata has been verified and filtered.
+   *
+   * @param providerId the provider ID
+   * @param before the number of entities before filtering
+   * @param after the number of entities after filtering
+   */
+  void entitiesFiltered(final String providerId, final int before, final int after);
+
+  /**
+   * Invoked when the metadata snapshot of a provider has been replaced. Not invoked by the
+   * {@link MDQMetadataProvider}, since it only holds the entities that have been fetched.
+   *
+   * @param providerId the provider ID
+   * @param entities the number of entities in the new snapshot
+   */
+  void snapshotUpdated(final String providerId, final int entities);
+
+  /**
+   * Invoked when a refresh of metadata failed.
+   *
+   * @param providerId the provider ID
+   * @param cause the cause of the failure
+   */
+  void refreshFailed(final String providerId, final Throwable cause);
+
+}
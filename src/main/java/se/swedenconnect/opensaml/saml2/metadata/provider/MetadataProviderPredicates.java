@@ -15,6 +15,10 @@
  */
 package se.swedenconnect.opensaml.saml2.metadata.provider;
 
+import java.util.Collection;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.function.Predicate;
 
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
@@ -34,7 +38,7 @@ public class MetadataProviderPredicates {
    * @return predicate for filtering IdPs
    */
   public static Predicate<EntityDescriptor> includeOnlyIDPs() {
-    return MetadataProviderPredicates::isIDP;
+    return describedAs("includeOnlyIDPs", MetadataProviderPredicates::isIDP);
   }
 
   /**
@@ -45,7 +49,7 @@ public class MetadataProviderPredicates {
    * @return predicate for filtering IdPs and "my" entity
    */
   public static Predicate<EntityDescriptor> includeOnlyIDPsAndMe(final String entityID) {
-    return e -> entityID.equals(e.getEntityID()) || isIDP(e);
+    return describedAs("includeOnlyIDPsAndMe[" + entityID + "]", e -> entityID.equals(e.getEntityID()) || isIDP(e));
   }
 
   /**
@@ -54,7 +58,62 @@ public class MetadataProviderPredicates {
    * @return predicate for filtering SPs
    */
   public static Predicate<EntityDescriptor> includeOnlySPs() {
-    return e -> !e.getRoleDescriptors(SPSSODescriptor.DEFAULT_ELEMENT_NAME).isEmpty();
+    return describedAs("includeOnlySPs", MetadataProviderPredicates::isSP);
+  }
+
+  /**
+   * Returns a predicate that evaluates to {@code true} if the entityID of the supplied entity descriptor is one of the
+   * given entityID:s. The entityID:s are held in a hash set, so the predicate is suitable also for large allow-lists.
+   * <p>
+   * If streaming ingestion is used, entities that are filtered out by the predicate are skipped without being parsed.
+   * </p>
+   *
+   * @param entityIds the entityID:s
+   * @return predicate for filtering on entityID
+   * @see #excludeEntityIds(Collection)
+   */
+  public static EntityIdSetPredicate includeOnlyEntityIds(final Collection<String> entityIds) {
+    return new EntityIdSetPredicate(entityIds);
+  }
+
+  /**
+   * Returns a predicate, to be installed as an exclusion predicate, that evaluates to {@code true} if the entityID of
+   * the supplied entity descriptor is one of the given entityID:s, i.e., the given entities are excluded. The entityID:s
+   * are held in a hash set, so the predicate is suitable also for large deny-lists.
+   * <p>
+   * If streaming ingestion is used, entities that are excluded by the predicate are skipped without being parsed.
+   * </p>
+   *
+   * @param entityIds the entityID:s to exclude
+   * @return predicate for excluding entities on entityID
+   * @see #includeOnlyEntityIds(Collection)
+   */
+  public static EntityIdSetPredicate excludeEntityIds(final Collection<String> entityIds) {
+    return new EntityIdSetPredicate(entityIds);
+  }
+
+  /**
+   * Gives the supplied predicate a description. See {@link DescribedPredicate}.
+   *
+   * @param description the description of the predicate
+   * @param predicate the predicate
+   * @return a described predicate
+   */
+  public static DescribedPredicate describedAs(final String description, final Predicate<EntityDescriptor> predicate) {
+    Objects.requireNonNull(description, "description must not be null");
+    Objects.requireNonNull(predicate, "predicate must not be null");
+    return new DescribedPredicate() {
+
+      @Override
+      public boolean test(final EntityDescriptor ed) {
+        return predicate.test(ed);
+      }
+
+      @Override
+      public String getDescription() {
+        return description;
+      }
+    };
   }
 
   /**
@@ -77,6 +136,73 @@ public class MetadataProviderPredicates {
     return !ed.getRoleDescriptors(SPSSODescriptor.DEFAULT_ELEMENT_NAME).isEmpty();
   }
 
+  /**
+   * A predicate that describes what it tests. The description is used to bind the verified metadata cache (see
+   * {@link AbstractMetadataProvider#setVerifiedMetadataCacheFile(java.io.File)}) to the predicates of a provider, so it
+   * must be stable, and two predicates having the same description must give the same result for every entity.
+   */
+  public interface DescribedPredicate extends Predicate<EntityDescriptor> {
+
+    /**
+     * Gets the description of the predicate.
+     *
+     * @return the description
+     */
+    String getDescription();
+  }
+
+  /**
+   * A predicate that tests whether the entityID of an entity descriptor is among a set of entityID:s.
+   *
+   * @see MetadataProviderPredicates#includeOnlyEntityIds(Collection)
+   * @see MetadataProviderPredicates#excludeEntityIds(Collection)
+   */
+  public static final class EntityIdSetPredicate implements DescribedPredicate {
+
+    /** The entityID:s. */
+    private final Set<String> entityIds;
+
+    /**
+     * Constructor.
+     *
+     * @param entityIds the entityID:s
+     */
+    public EntityIdSetPredicate(final Collection<String> entityIds) {
+      this.entityIds = Set.copyOf(Objects.requireNonNull(entityIds, "entityIds must not be null"));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean test(final EntityDescriptor ed) {
+      return this.contains(ed.getEntityID());
+    }
+
+    /**
+     * Tells whether the supplied entityID is among the entityID:s of this predicate.
+     *
+     * @param entityID the entityID
+     * @return {@code true} if the entityID is among the entityID:s and {@code false} otherwise
+     */
+    public boolean contains(final String entityID) {
+      return entityID != null && this.entityIds.contains(entityID);
+    }
+
+    /**
+     * Gets the entityID:s of this predicate.
+     *
+     * @return an unmodifiable set of entityID:s
+     */
+    public Set<String> getEntityIds() {
+      return this.entityIds;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getDescription() {
+      return "entityIds" + new TreeSet<>(this.entityIds);
+    }
+  }
+
   // Hidden constructor.
   private MetadataProviderPredicates() {
   }
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata.provider;
+
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import se.swedenconnect.opensaml.saml2.metadata.EntityDescriptorUtils;
+import se.swedenconnect.opensaml.saml2.metadata.scope.ScopeUtils;
+
+import javax.xml.namespace.QName;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * A query for entity descriptors, see {@link MetadataProvider#findEntityDescriptors(MetadataQuery)}. An entity matches
+ * the query if it matches all of the given criteria:
+ * <ul>
+ * <li>It has the given role.</li>
+ * <li>It has all given entity categories (see {@link EntityDescriptorUtils#getEntityCategories(EntityDescriptor)}).
+ * </li>
+ * <li>It has all given assurance certifications (see
+ * {@link EntityDescriptorUtils#getAssuranceCertificationUris(EntityDescriptor)}).</li>
+ * <li>One of its {@code shibmd:Scope} elements matches the given scope domain (see
+ * {@link ScopeUtils#getScopeExtensions(EntityDescriptor)}).</li>
+ * <li>It supports all given NameID formats (see {@link EntityDescriptorUtils#getNameIDFormats(EntityDescriptor)}).
+ * </li>
+ * </ul>
+ * <p>
+ * The query is also a predicate, so it may be used to test single entities, or as an inclusion predicate for a
+ * metadata provider.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public final class MetadataQuery implements Predicate<EntityDescriptor> {
+
+  /** The role. */
+  private final QName role;
+
+  /** The required entity categories. */
+  private final Set<String> entityCategories;
+
+  /** The required assurance certifications. */
+  private final Set<String> assuranceCertifications;
+
+  /** The scope domain. */
+  private final String scope;
+
+  /** The required NameID formats. */
+  private final Set<String> nameIdFormats;
+
+  /**
+   * Constructor.
+   *
+   * @param builder the builder
+   */
+  private MetadataQuery(final Builder builder) {
+    this.role = builder.role;
+    this.entityCategories = Collections.unmodifiableSet(new LinkedHashSet<>(builder.entityCategories));
+    this.assuranceCertifications = Collections.unmodifiableSet(new LinkedHashSet<>(builder.assuranceCertifications));
+    this.scope = builder.scope;
+    this.nameIdFormats = Collections.unmodifiableSet(new LinkedHashSet<>(builder.nameIdFormats));
+  }
+
+  /**
+   * Creates a builder for a query.
+   *
+   * @return a builder
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Tells whether the supplied entity descriptor matches the query. This evaluates the criteria against the entity,
+   * and is what {@link MetadataIndex} does using its indexes.
+   */
+  @Override
+  public boolean test(final EntityDescriptor ed) {
+    if (this.role != null && ed.getRoleDescriptors(this.role).isEmpty()) {
+      return false;
+    }
+    if (!this.entityCategories.isEmpty()
+        && !EntityDescriptorUtils.getEntityCategories(ed).containsAll(this.entityCategories)) {
+      return false;
+    }
+    if (!this.assuranceCertifications.isEmpty()
+        && !EntityDescriptorUtils.getAssuranceCertificationUris(ed).containsAll(this.assuranceCertifications)) {
+      return false;
+    }
+    if (this.scope != null
+        && ScopeUtils.getScopeExtensions(ed).stream().noneMatch(s -> ScopeUtils.isDomainMatch(s, this.scope))) {
+      return false;
+    }
+    return this.nameIdFormats.isEmpty() || EntityDescriptorUtils.getNameIDFormats(ed).containsAll(this.nameIdFormats);
+  }
+
+  /**
+   * Gets the role that matching entities must have.
+   *
+   * @return the role, or {@code null} if any role matches
+   */
+  public QName getRole() {
+    return this.role;
+  }
+
+  /**
+   * Gets the entity categories that matching entities must have.
+   *
+   * @return an unmodifiable (possibly empty) set of entity categories
+   */
+  public Set<String> getEntityCategories() {
+    return this.entityCategories;
+  }
+
+  /**
+   * Gets the assurance certifications that matching entities must have.
+   *
+   * @return an unmodifiable (possibly empty) set of assurance certification URI:s
+   */
+  public Set<String> getAssuranceCertifications() {
+    return this.assuranceCertifications;
+  }
+
+  /**
+   * Gets the domain that must match one of the {@code shibmd:Scope} elements of matching entities.
+   *
+   * @return the scope domain, or {@code null} if scopes are not tested
+   */
+  public String getScope() {
+    return this.scope;
+  }
+
+  /**
+   * Gets the NameID formats that matching entities must support.
+   *
+   * @return an unmodifiable (possibly empty) set of NameID format URI:s
+   */
+  public Set<String> getNameIdFormats() {
+    return this.nameIdFormats;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return String.format("role=%s, entity-categories=%s, assurance-certifications=%s, scope=%s, nameid-formats=%s",
+        this.role, this.entityCategories, this.assuranceCertifications, this.scope, this.nameIdFormats);
+  }
+
+  /**
+   * Builder for {@link MetadataQuery} objects.
+   */
+  public static final class Builder {
+
+    /** The role. */
+    private QName role;
+
+    /** The required entity categories. */
+    private final Set<String> entityCategories = new LinkedHashSet<>();
+
+    /** The required assurance certifications. */
+    private final Set<String> assuranceCertifications = new LinkedHashSet<>();
+
+    /** The scope domain. */
+    private String scope;
+
+    /** The required NameID formats. */
+    private final Set<String> nameIdFormats = new LinkedHashSet<>();
+
+    // Hidden
+    private Builder() {
+    }
+
+    /**
+     * Assigns the role that matching entities must have, e.g., {@code IDPSSODescriptor.DEFAULT_ELEMENT_NAME}.
+     *
+     * @param role the role
+     * @return the builder
+     */
+    public Builder role(final QName role) {
+      this.role = role;
+      return this;
+    }
+
+    /**
+     * Adds entity categories that matching entities must have.
+     *
+     * @param entityCategories the entity categories
+     * @return the builder
+     */
+    public Builder entityCategories(final String... entityCategories) {
+      this.entityCategories.addAll(Arrays.asList(entityCategories));
+      return this;
+    }
+
+    /**
+     * Adds assurance certifications that matching entities must have.
+     *
+     * @param assuranceCertifications the assurance certification URI:s
+     * @return the builder
+     */
+    public Builder assuranceCertifications(final String... assuranceCertifications) {
+      this.assuranceCertifications.addAll(Arrays.asList(assuranceCertifications));
+      return this;
+    }
+
+    /**
+     * Assigns a domain that must match one of the {@code shibmd:Scope} elements of matching entities.
+     *
+     * @param scope the scope domain
+     * @return the builder
+     */
+    public Builder scope(final String scope) {
+      this.scope = scope;
+      return this;
+    }
+
+    /**
+     * Adds NameID formats that matching entities must support.
+     *
+     * @param nameIdFormats the NameID format URI:s
+     * @return the builder
+     */
+    public Builder nameIdFormats(final String... nameIdFormats) {
+      this.nameIdFormats.addAll(Arrays.asList(nameIdFormats));
+      return this;
+    }
+
+    /**
+     * Builds the query.
+     *
+     * @return a {@link MetadataQuery}
+     */
+    public MetadataQuery build() {
+      return new MetadataQuery(this);
+    }
+  }
+
+}
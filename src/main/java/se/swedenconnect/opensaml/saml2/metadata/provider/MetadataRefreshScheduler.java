@@ -0,0 +1,510 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata.provider;
+
+import net.shibboleth.shared.component.AbstractInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.resolver.ResolverException;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.saml.metadata.resolver.filter.FilterException;
+import org.opensaml.saml.metadata.resolver.filter.MetadataFilter;
+import org.opensaml.saml.metadata.resolver.filter.MetadataFilterContext;
+import org.opensaml.saml.saml2.common.CacheableSAMLObject;
+import org.opensaml.saml.saml2.common.TimeBoundSAMLObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A refresh scheduler that may be shared by several metadata providers.
+ * <p>
+ * Normally, each provider's resolver refreshes its metadata using its own timer. When many providers are used, they
+ * tend to refresh at the same time. Providers that are registered with a scheduler (see
+ * {@link AbstractMetadataProvider#setRefreshScheduler(MetadataRefreshScheduler)}) are instead refreshed by the
+ * scheduler, which:
+ * </p>
+ * <ul>
+ * <li>runs the refreshes using a bounded pool of worker threads,</li>
+ * <li>adds a random jitter to each refresh delay, so that refreshes are spread out,</li>
+ * <li>gives priority to metadata that is closest to its expiry when more refreshes are due than there are workers,
+ * and</li>
+ * <li>limits the number of parallel downloads and the number of parallel verifications (i.e., filter chain
+ * executions) across all providers.</li>
+ * </ul>
+ * <p>
+ * The refresh delay is calculated in the same way as for OpenSAML's reloading resolvers, i.e., as a factor of the time
+ * until the metadata expires, bounded by a minimum and maximum delay.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class MetadataRefreshScheduler extends AbstractInitializableComponent {
+
+  /** Logging instance. */
+  private static final Logger log = LoggerFactory.getLogger(MetadataRefreshScheduler.class);
+
+  /**
+   * The refresh delay assigned to resolvers whose refreshes are handled by a scheduler. This effectively disables the
+   * resolver's own refresh timer.
+   */
+  public static final Duration EXTERNAL_REFRESH_DELAY = Duration.ofDays(365);
+
+  /** The number of worker threads. Default: 2. */
+  private int workers = 2;
+
+  /** The maximum number of parallel downloads. Default: 2. */
+  private int maxParallelDownloads = 2;
+
+  /** The maximum number of parallel verifications. Default: 1. */
+  private int maxParallelVerifications = 1;
+
+  /** The minimum refresh delay. Default: 5 minutes. */
+  private Duration minRefreshDelay = Duration.ofMinutes(5);
+
+  /** The maximum refresh delay. Default: 4 hours. */
+  private Duration maxRefreshDelay = Duration.ofHours(4);
+
+  /** The factor applied to the time until expiry when calculating the refresh delay. Default: 0.75. */
+  private float refreshDelayFactor = 0.75f;
+
+  /** The maximum part of a refresh delay that is randomly removed from the delay. Default: 0.2. */
+  private float jitterFactor = 0.2f;
+
+  /** Schedules the refreshes. */
+  private ScheduledExecutorService timer;
+
+  /**
+   * A timer that is shared by the resolvers of the registered providers, so that each resolver does not start a timer
+   * thread of its own. Since the resolvers' own refreshes are disabled, it is idle.
+   */
+  private Timer resolverTimer;
+
+  /** Executes the refreshes. */
+  private ThreadPoolExecutor workerPool;
+
+  /** Limits the number of parallel downloads. */
+  private Semaphore downloadPermits;
+
+  /** Limits the number of parallel verifications. */
+  private Semaphore verificationPermits;
+
+  /** Tells whether the current thread holds a download permit. */
+  private final ThreadLocal<Boolean> holdsDownloadPermit = new ThreadLocal<>();
+
+  /** The registered providers and their scheduled refreshes. */
+  private final Map<MetadataProvider, ScheduledFuture<?>> registrations = new ConcurrentHashMap<>();
+
+  /** Used to keep refresh tasks with equal priority in FIFO order. */
+  private final AtomicLong sequence = new AtomicLong();
+
+  /** {@inheritDoc} */
+  @Override
+  protected void doInitialize() throws ComponentInitializationException {
+    super.doInitialize();
+    if (this.minRefreshDelay.compareTo(this.maxRefreshDelay) > 0) {
+      throw new ComponentInitializationException("minRefreshDelay must not be greater than maxRefreshDelay");
+    }
+    this.timer = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+        .name("metadata-refresh-scheduler")
+        .daemon(true)
+        .factory());
+    this.workerPool = new ThreadPoolExecutor(this.workers, this.workers, 0L, TimeUnit.MILLISECONDS,
+        new PriorityBlockingQueue<>(), Thread.ofPlatform()
+            .name("metadata-refresh-", 0)
+            .daemon(true)
+            .factory());
+    this.downloadPermits = new Semaphore(this.maxParallelDownloads, true);
+    this.verificationPermits = new Semaphore(this.maxParallelVerifications, true);
+    this.resolverTimer = new Timer("metadata-resolver-timer", true);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void doDestroy() {
+    this.registrations.values().forEach(f -> f.cancel(false));
+    this.registrations.clear();
+    if (this.timer != null) {
+      this.timer.shutdownNow();
+    }
+    if (this.workerPool != null) {
+      this.workerPool.shutdownNow();
+    }
+    if (this.resolverTimer != null) {
+      this.resolverTimer.cancel();
+    }
+    super.doDestroy();
+  }
+
+  /**
+   * Gets the timer that should be passed to the resolvers of providers that are refreshed by this scheduler, instead
+   * of letting each resolver create its own timer (and thread).
+   *
+   * @return the shared resolver timer, or {@code null} if the scheduler is not active
+   */
+  Timer getResolverTimer() {
+    return this.isInitialized() && !this.isDestroyed() ? this.resolverTimer : null;
+  }
+
+  /**
+   * Registers a provider with the scheduler. The provider must be initialized.
+   *
+   * @param provider the provider
+   */
+  public void register(final MetadataProvider provider) {
+    this.checkComponentActive();
+    Objects.requireNonNull(provider, "provider must not be null");
+    final Duration delay = this.computeRefreshDelay(provider);
+    this.registrations.compute(provider, (p, previous) -> {
+      if (previous != null) {
+        previous.cancel(false);
+      }
+      return this.schedule(p, delay);
+    });
+    log.debug("Provider {} registered with refresh scheduler", provider.getID());
+  }
+
+  /**
+   * Unregisters a provider from the scheduler.
+   *
+   * @param provider the provider
+   */
+  public void unregister(final MetadataProvider provider) {
+    final ScheduledFuture<?> future = this.registrations.remove(provider);
+    if (future != null) {
+      future.cancel(false);
+      log.debug("Provider {} unregistered from refresh scheduler", provider.getID());
+    }
+  }
+
+  /**
+   * Tells whether the supplied provider is registered.
+   *
+   * @param provider the provider
+   * @return whether the provider is registered
+   */
+  public boolean isRegistered(final MetadataProvider provider) {
+    return this.registrations.containsKey(provider);
+  }
+
+  /**
+   * Invoked by providers when the metadata has been downloaded and is about to be processed. The download permit held
+   * by the current thread (if any) is released.
+   */
+  public void downloadCompleted() {
+    if (Boolean.TRUE.equals(this.holdsDownloadPermit.get())) {
+      this.holdsDownloadPermit.remove();
+      this.downloadPermits.release();
+    }
+  }
+
+  /**
+   * Runs the supplied filter, making sure that no more than the configured number of verifications are run in
+   * parallel.
+   *
+   * @param filter the filter
+   * @param metadata the metadata to filter
+   * @param context the filter context
+   * @return the filtered metadata
+   * @throws FilterException for filter errors, or if the thread is interrupted while waiting
+   */
+  public XMLObject verify(final MetadataFilter filter, final XMLObject metadata, final MetadataFilterContext context)
+      throws FilterException {
+    try {
+      this.verificationPermits.acquire();
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FilterException("Interrupted while waiting for verification permit", e);
+    }
+    try {
+      return filter.filter(metadata, context);
+    }
+    finally {
+      this.verificationPermits.release();
+    }
+  }
+
+  /**
+   * Schedules a refresh for the supplied provider. The method is invoked from within a {@code compute} operation on
+   * {@code registrations}, so that scheduling and registering is atomic with respect to {@link #unregister}.
+   *
+   * @param provider the provider
+   * @param delay the delay (before jitter is applied)
+   * @return the scheduled refresh, or {@code null} if the refresh could not be scheduled
+   */
+  private ScheduledFuture<?> schedule(final MetadataProvider provider, final Duration delay) {
+    final long millis = this.applyJitter(delay).toMillis();
+    try {
+      final ScheduledFuture<?> future = this.timer.schedule(() -> this.workerPool.execute(
+          new RefreshTask(provider, getExpiry(provider), this.sequence.incrementAndGet())),
+          millis, TimeUnit.MILLISECONDS);
+      log.trace("Next refresh of {} scheduled in {} ms", provider.getID(), millis);
+      return future;
+    }
+    catch (final RuntimeException e) {
+      log.debug("Failed to schedule refresh for {} - {}", provider.getID(), e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Refreshes the supplied provider and schedules the next refresh.
+   *
+   * @param provider the provider
+   */
+  private void refresh(final MetadataProvider provider) {
+    if (!this.registrations.containsKey(provider)) {
+      return;
+    }
+    boolean success = false;
+    try {
+      this.downloadPermits.acquire();
+      this.holdsDownloadPermit.set(Boolean.TRUE);
+      provider.refresh();
+      success = true;
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    catch (final ResolverException | RuntimeException e) {
+      log.warn("Refresh of metadata for {} failed - {}", provider.getID(), e.getMessage(), e);
+    }
+    finally {
+      this.downloadCompleted();
+    }
+    // Only reschedule if the provider is still registered. An unregister that is made while the refresh is running
+    // removes the mapping, and computeIfPresent will then do nothing ...
+    final Duration delay = success ? this.computeRefreshDelay(provider) : this.minRefreshDelay;
+    this.registrations.computeIfPresent(provider, (p, previous) -> this.schedule(p, delay));
+  }
+
+  /**
+   * Computes the delay until the next refresh of the supplied provider.
+   *
+   * @param provider the provider
+   * @return the refresh delay
+   */
+  private Duration computeRefreshDelay(final MetadataProvider provider) {
+    final Instant expiry = getExpiry(provider);
+    if (expiry == null) {
+      return this.maxRefreshDelay;
+    }
+    final long untilExpiry = Math.max(0L, expiry.toEpochMilli() - System.currentTimeMillis());
+    final Duration delay = Duration.ofMillis((long) (untilExpiry * this.refreshDelayFactor));
+    if (delay.compareTo(this.minRefreshDelay) < 0) {
+      return this.minRefreshDelay;
+    }
+    return delay.compareTo(this.maxRefreshDelay) > 0 ? this.maxRefreshDelay : delay;
+  }
+
+  /**
+   * Removes a random part of the delay. The delay is never increased, so refreshes never happen later than calculated.
+   *
+   * @param delay the delay
+   * @return the delay after jitter has been applied
+   */
+  private Duration applyJitter(final Duration delay) {
+    if (this.jitterFactor <= 0f) {
+      return delay;
+    }
+    final long millis = delay.toMillis();
+    final long jitter = (long) (millis * this.jitterFactor * ThreadLocalRandom.current().nextDouble());
+    return Duration.ofMillis(millis - jitter);
+  }
+
+  /**
+   * Gets the time when the metadata of the supplied provider expires. This is the earliest of the {@code validUntil}
+   * time and the time given by the {@code cacheDuration}.
+   * <p>
+   * For an {@link AbstractMetadataProvider} the values are read using its accessors, so that a provider that creates
+   * its metadata on demand (such as {@link CompositeMetadataProvider}) does not have to do so.
+   * </p>
+   *
+   * @param provider the provider
+   * @return the expiry time, or {@code null} if the metadata does not expire
+   */
+  private static Instant getExpiry(final MetadataProvider provider) {
+    Instant expiry = null;
+    Duration cacheDuration = null;
+    if (provider instanceof final AbstractMetadataProvider p) {
+      expiry = p.getMetadataValidUntil();
+      cacheDuration = p.getMetadataCacheDuration();
+    }
+    else {
+      try {
+        final XMLObject metadata = provider.getMetadata();
+        if (metadata instanceof final TimeBoundSAMLObject timeBound) {
+          expiry = timeBound.getValidUntil();
+        }
+        if (metadata instanceof final CacheableSAMLObject cacheable) {
+          cacheDuration = cacheable.getCacheDuration();
+        }
+      }
+      catch (final ResolverException e) {
+        log.debug("Failed to get metadata for {} - {}", provider.getID(), e.getMessage());
+      }
+    }
+    if (cacheDuration != null) {
+      final Instant lastUpdate = Objects.requireNonNullElseGet(provider.getLastUpdate(), Instant::now);
+      final Instant cacheExpiry = lastUpdate.plus(cacheDuration);
+      if (expiry == null || cacheExpiry.isBefore(expiry)) {
+        expiry = cacheExpiry;
+      }
+    }
+    return expiry;
+  }
+
+  /**
+   * Assigns the number of worker threads that perform refreshes. Default: 2.
+   *
+   * @param workers the number of workers
+   */
+  public void setWorkers(final int workers) {
+    this.checkSetterPreconditions();
+    if (workers < 1) {
+      throw new IllegalArgumentException("workers must be at least 1");
+    }
+    this.workers = workers;
+  }
+
+  /**
+   * Assigns the maximum number of parallel metadata downloads. Default: 2.
+   *
+   * @param maxParallelDownloads the maximum number of parallel downloads
+   */
+  public void setMaxParallelDownloads(final int maxParallelDownloads) {
+    this.checkSetterPreconditions();
+    if (maxParallelDownloads < 1) {
+      throw new IllegalArgumentException("maxParallelDownloads must be at least 1");
+    }
+    this.maxParallelDownloads = maxParallelDownloads;
+  }
+
+  /**
+   * Assigns the maximum number of parallel verifications, i.e., executions of provider filter chains (signature
+   * verification, schema validation and filtering). This limit applies to all verifications of registered providers,
+   * also those that are not started by the scheduler. Default: 1.
+   *
+   * @param maxParallelVerifications the maximum number of parallel verifications
+   */
+  public void setMaxParallelVerifications(final int maxParallelVerifications) {
+    this.checkSetterPreconditions();
+    if (maxParallelVerifications < 1) {
+      throw new IllegalArgumentException("maxParallelVerifications must be at least 1");
+    }
+    this.maxParallelVerifications = maxParallelVerifications;
+  }
+
+  /**
+   * Assigns the minimum refresh delay. This delay is also used after a failed refresh. Default: 5 minutes.
+   *
+   * @param minRefreshDelay the minimum refresh delay
+   */
+  public void setMinRefreshDelay(final Duration minRefreshDelay) {
+    this.checkSetterPreconditions();
+    this.minRefreshDelay = Objects.requireNonNull(minRefreshDelay, "minRefreshDelay must not be null");
+  }
+
+  /**
+   * Assigns the maximum refresh delay. This delay is used for metadata that does not expire. Default: 4 hours.
+   *
+   * @param maxRefreshDelay the maximum refresh delay
+   */
+  public void setMaxRefreshDelay(final Duration maxRefreshDelay) {
+    this.checkSetterPreconditions();
+    this.maxRefreshDelay = Objects.requireNonNull(maxRefreshDelay, "maxRefreshDelay must not be null");
+  }
+
+  /**
+   * Assigns the factor that is applied to the time until metadata expires when calculating the refresh delay. Default:
+   * 0.75.
+   *
+   * @param refreshDelayFactor the factor (greater than 0 and less than 1)
+   */
+  public void setRefreshDelayFactor(final float refreshDelayFactor) {
+    this.checkSetterPreconditions();
+    if (refreshDelayFactor <= 0f || refreshDelayFactor >= 1f) {
+      throw new IllegalArgumentException("refreshDelayFactor must be between 0 and 1");
+    }
+    this.refreshDelayFactor = refreshDelayFactor;
+  }
+
+  /**
+   * Assigns the maximum part of each refresh delay that is randomly removed from the delay. A value of 0 disables
+   * jitter. Default: 0.2.
+   *
+   * @param jitterFactor the jitter factor (between 0 and 1)
+   */
+  public void setJitterFactor(final float jitterFactor) {
+    this.checkSetterPreconditions();
+    if (jitterFactor < 0f || jitterFactor >= 1f) {
+      throw new IllegalArgumentException("jitterFactor must be between 0 and 1");
+    }
+    this.jitterFactor = jitterFactor;
+  }
+
+  /**
+   * A refresh task. Tasks are ordered by the expiry time of the provider's metadata, so that metadata that expires
+   * first is refreshed first.
+   */
+  private class RefreshTask implements Runnable, Comparable<RefreshTask> {
+
+    /** The provider. */
+    private final MetadataProvider provider;
+
+    /** The expiry time of the provider's metadata. */
+    private final Instant expiry;
+
+    /** Sequence number for tasks with the same expiry. */
+    private final long sequence;
+
+    RefreshTask(final MetadataProvider provider, final Instant expiry, final long sequence) {
+      this.provider = provider;
+      this.expiry = expiry != null ? expiry : Instant.MAX;
+      this.sequence = sequence;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void run() {
+      MetadataRefreshScheduler.this.refresh(this.provider);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int compareTo(final RefreshTask o) {
+      final int c = this.expiry.compareTo(o.expiry);
+      return c != 0 ? c : Long.compare(this.sequence, o.sequence);
+    }
+  }
+
+}
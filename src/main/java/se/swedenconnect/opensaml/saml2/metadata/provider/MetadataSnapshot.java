@@ -0,0 +1,299 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata.provider;
+
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
+
+import javax.xml.namespace.QName;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable snapshot of the entity descriptors held by a {@link MetadataProvider}.
+ * <p>
+ * The snapshot is built once for a given metadata object (i.e., once per refresh) and holds the entity descriptors in
+ * document order, lists of IdP and SP descriptors, and an entityID index. This means that queries such as
+ * {@link MetadataProvider#getIdentityProviders()} do not have to traverse the metadata on each call.
+ * </p>
+ * <p>
+ * The lists returned by a snapshot are unmodifiable.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public final class MetadataSnapshot {
+
+  /** An empty snapshot. */
+  public static final MetadataSnapshot EMPTY = new MetadataSnapshot((XMLObject) null);
+
+  /** The metadata that this snapshot was built from. */
+  private final XMLObject metadata;
+
+  /** All entity descriptors in document order. */
+  private final List<EntityDescriptor> entityDescriptors;
+
+  /** Entity descriptors indexed by their entityID. */
+  private final Map<String, EntityDescriptor> entityIdIndex;
+
+  /** The entity descriptors having the IdP role. */
+  private final List<EntityDescriptor> identityProviders;
+
+  /** The entity descriptors having the SP role. */
+  private final List<EntityDescriptor> serviceProviders;
+
+  /** Role lists for other roles than IdP and SP. Calculated on demand. */
+  private final Map<QName, List<EntityDescriptor>> otherRoles = new ConcurrentHashMap<>();
+
+  /** The secondary indexes. Built on demand. */
+  private volatile MetadataIndex index;
+
+  /** The IdP search index. Built on demand. */
+  private volatile IdpSearchIndex idpSearchIndex;
+
+  /**
+   * Constructor.
+   *
+   * @param metadata the metadata (an {@link EntityDescriptor} or {@link EntitiesDescriptor}) - may be {@code null}
+   */
+  public MetadataSnapshot(final XMLObject metadata) {
+    this(metadata, entitiesOf(metadata));
+  }
+
+  /**
+   * Creates a snapshot from a list of entity descriptors. This is used when the snapshot is a view over descriptors
+   * that do not belong to one metadata object. {@link #getMetadata()} will return {@code null} for such a snapshot.
+   *
+   * @param entityDescriptors the entity descriptors
+   * @return a snapshot
+   */
+  public static MetadataSnapshot of(final List<EntityDescriptor> entityDescriptors) {
+    return new MetadataSnapshot(null, new ArrayList<>(entityDescriptors));
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param metadata the metadata (may be {@code null})
+   * @param all all entity descriptors
+   */
+  private MetadataSnapshot(final XMLObject metadata, final List<EntityDescriptor> all) {
+    this.metadata = metadata;
+
+    final Map<String, EntityDescriptor> index = new HashMap<>(Math.max(16, all.size() * 4 / 3 + 1));
+    final List<EntityDescriptor> idps = new ArrayList<>();
+    final List<EntityDescriptor> sps = new ArrayList<>();
+    for (final EntityDescriptor ed : all) {
+      if (ed.getEntityID() != null) {
+        index.putIfAbsent(ed.getEntityID(), ed);
+      }
+      if (MetadataProviderPredicates.isIDP(ed)) {
+        idps.add(ed);
+      }
+      if (MetadataProviderPredicates.isSP(ed)) {
+        sps.add(ed);
+      }
+    }
+    this.entityDescriptors = Collections.unmodifiableList(all);
+    this.entityIdIndex = Collections.unmodifiableMap(index);
+    this.identityProviders = Collections.unmodifiableList(idps);
+    this.serviceProviders = Collections.unmodifiableList(sps);
+  }
+
+  /**
+   * Lists all entity descriptors from the supplied metadata.
+   *
+   * @param metadata the metadata
+   * @return a list of entity descriptors
+   */
+  private static List<EntityDescriptor> entitiesOf(final XMLObject metadata) {
+    final List<EntityDescriptor> all = new ArrayList<>();
+    if (metadata instanceof EntityDescriptor) {
+      all.add((EntityDescriptor) metadata);
+    }
+    else if (metadata instanceof EntitiesDescriptor) {
+      collect((EntitiesDescriptor) metadata, all);
+    }
+    else if (metadata != null) {
+      throw new IllegalArgumentException("Expected EntityDescriptor or EntitiesDescriptor");
+    }
+    return all;
+  }
+
+  /**
+   * Recursively collects all entity descriptors from the supplied entities descriptor.
+   *
+   * @param entitiesDescriptor the entities descriptor
+   * @param list the list to add to
+   */
+  private static void collect(final EntitiesDescriptor entitiesDescriptor, final List<EntityDescriptor> list) {
+    list.addAll(entitiesDescriptor.getEntityDescriptors());
+    for (final EntitiesDescriptor ed : entitiesDescriptor.getEntitiesDescriptors()) {
+      collect(ed, list);
+    }
+  }
+
+  /**
+   * Gets the metadata object that this snapshot was built from.
+   *
+   * @return the metadata or {@code null}
+   */
+  public XMLObject getMetadata() {
+    return this.metadata;
+  }
+
+  /**
+   * Gets all entity descriptors of the snapshot.
+   *
+   * @return an unmodifiable list of entity descriptors
+   */
+  public List<EntityDescriptor> getEntityDescriptors() {
+    return this.entityDescriptors;
+  }
+
+  /**
+   * Gets all entity descriptors having the given role. If {@code role} is {@code null}, all descriptors are returned.
+   *
+   * @param role the role descriptor QName
+   * @return an unmodifiable list of entity descriptors
+   */
+  public List<EntityDescriptor> getEntityDescriptors(final QName role) {
+    if (role == null) {
+      return this.entityDescriptors;
+    }
+    if (IDPSSODescriptor.DEFAULT_ELEMENT_NAME.equals(role)) {
+      return this.identityProviders;
+    }
+    if (SPSSODescriptor.DEFAULT_ELEMENT_NAME.equals(role)) {
+      return this.serviceProviders;
+    }
+    return this.otherRoles.computeIfAbsent(role, r -> this.entityDescriptors.stream()
+        .filter(AbstractMetadataProvider.EntityDescriptorIterator.filterRole(r))
+        .toList());
+  }
+
+  /**
+   * Gets the entity descriptors having the IdP role.
+   *
+   * @return an unmodifiable list of entity descriptors
+   */
+  public List<EntityDescriptor> getIdentityProviders() {
+    return this.identityProviders;
+  }
+
+  /**
+   * Gets the entity descriptors having the SP role.
+   *
+   * @return an unmodifiable list of entity descriptors
+   */
+  public List<EntityDescriptor> getServiceProviders() {
+    return this.serviceProviders;
+  }
+
+  /**
+   * Gets the entity descriptor having the given entityID. If the metadata contains duplicates, the first occurrence is
+   * returned.
+   *
+   * @param entityID the entityID
+   * @return the entity descriptor or {@code null}
+   */
+  public EntityDescriptor getEntityDescriptor(final String entityID) {
+    return entityID != null ? this.entityIdIndex.get(entityID) : null;
+  }
+
+  /**
+   * Gets the entity ID:s of the snapshot.
+   *
+   * @return an unmodifiable set of entity ID:s
+   */
+  public Set<String> getEntityIds() {
+    return this.entityIdIndex.keySet();
+  }
+
+  /**
+   * Gets the secondary indexes for the snapshot. The indexes are built the first time this method is called.
+   *
+   * @return the metadata index
+   */
+  public MetadataIndex getIndex() {
+    MetadataIndex i = this.index;
+    if (i == null) {
+      synchronized (this) {
+        i = this.index;
+        if (i == null) {
+          i = new MetadataIndex(this.entityDescriptors);
+          this.index = i;
+        }
+      }
+    }
+    return i;
+  }
+
+  /**
+   * Tells whether the secondary indexes have been built for this snapshot.
+   *
+   * @return {@code true} if {@link #getIndex()} has been called, and {@code false} otherwise
+   */
+  public boolean isIndexed() {
+    return this.index != null;
+  }
+
+  /**
+   * Gets the IdP search index for the snapshot. The index is built the first time this method is called.
+   *
+   * @return the IdP search index
+   */
+  public IdpSearchIndex getIdpSearchIndex() {
+    IdpSearchIndex i = this.idpSearchIndex;
+    if (i == null) {
+      synchronized (this) {
+        i = this.idpSearchIndex;
+        if (i == null) {
+          i = new IdpSearchIndex(this.identityProviders);
+          this.idpSearchIndex = i;
+        }
+      }
+    }
+    return i;
+  }
+
+  /**
+   * Tells whether the IdP search index has been built for this snapshot.
+   *
+   * @return {@code true} if {@link #getIdpSearchIndex()} has been called, and {@code false} otherwise
+   */
+  public boolean isIdpSearchIndexed() {
+    return this.idpSearchIndex != null;
+  }
+
+  /**
+   * Gets the number of entity descriptors in the snapshot.
+   *
+   * @return the number of descriptors
+   */
+  public int size() {
+    return this.entityDescriptors.size();
+  }
+
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata.provider;
+
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpRequestInterceptor;
+import org.apache.hc.core5.http.HttpResponseInterceptor;
+import org.apache.hc.core5.http.io.entity.HttpEntityWrapper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.function.LongFunction;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Support for compressed metadata downloads.
+ * <p>
+ * The interceptors of this class make the HTTP client ask for gzip or deflate encoded responses and decompress
+ * responses as a stream while they are read. The number of transferred and uncompressed bytes are counted, and the
+ * statistics for the last response read on the current thread can be obtained using
+ * {@link #takeTransferStatistics()}. Since the OpenSAML resolvers read and process a response on the same thread, this
+ * is how the providers get the statistics for each download. In the same way, the status code of the last response is
+ * available using {@link #takeStatusCode()}.
+ * </p>
+ * <p>
+ * The interceptors are installed by {@link HTTPMetadataProvider#createDefaultHttpClient(java.security.KeyStore,
+ * javax.net.ssl.HostnameVerifier)}. Users that supply their own {@code HttpClient} may install them using
+ * {@link #getRequestInterceptor()} and {@link #getResponseInterceptor()}.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public final class MetadataTransferSupport {
+
+  /** The value for the Accept-Encoding header. */
+  public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+  /** Statistics for the last response read by the current thread. */
+  private static final ThreadLocal<TransferStatistics> lastTransfer = new ThreadLocal<>();
+
+  /** The status code of the last response received by the current thread. */
+  private static final ThreadLocal<Integer> lastStatusCode = new ThreadLocal<>();
+
+  /** Adds the Accept-Encoding header (unless already set). */
+  private static final HttpRequestInterceptor requestInterceptor = (request, entity, context) -> {
+    lastTransfer.remove();
+    lastStatusCode.remove();
+    if (!request.containsHeader(HttpHeaders.ACCEPT_ENCODING)) {
+      request.addHeader(HttpHeaders.ACCEPT_ENCODING, ACCEPT_ENCODING);
+    }
+  };
+
+  /** Records the status code and replaces the response entity with a decompressing and counting entity. */
+  private static final HttpResponseInterceptor responseInterceptor = (response, entityDetails, context) -> {
+    lastStatusCode.set(response.getCode());
+    if (!(response instanceof final ClassicHttpResponse classicResponse) || classicResponse.getEntity() == null) {
+      return;
+    }
+    final HttpEntity entity = classicResponse.getEntity();
+    final Header encodingHeader = response.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+    final String encoding = encodingHeader != null && encodingHeader.getValue() != null
+        ? encodingHeader.getValue().trim().toLowerCase(Locale.ROOT)
+        : null;
+
+    if (encoding == null || encoding.isEmpty() || "identity".equals(encoding)) {
+      classicResponse.setEntity(new CountingEntity(entity, null));
+    }
+    else if ("gzip".equals(encoding) || "x-gzip".equals(encoding) || "deflate".equals(encoding)) {
+      classicResponse.setEntity(new CountingEntity(entity, encoding));
+      response.removeHeaders(HttpHeaders.CONTENT_LENGTH);
+      response.removeHeaders(HttpHeaders.CONTENT_ENCODING);
+      response.removeHeaders(HttpHeaders.CONTENT_MD5);
+    }
+    // Else: Leave other encodings to the client.
+  };
+
+  /**
+   * Gets the request interceptor that asks for compressed responses.
+   *
+   * @return a request interceptor
+   */
+  public static HttpRequestInterceptor getRequestInterceptor() {
+    return requestInterceptor;
+  }
+
+  /**
+   * Gets the response interceptor that decompresses responses and counts the transferred bytes.
+   *
+   * @return a response interceptor
+   */
+  public static HttpResponseInterceptor getResponseInterceptor() {
+    return responseInterceptor;
+  }
+
+  /**
+   * Gets, and clears, the statistics for the last response that was read by the current thread.
+   *
+   * @return the statistics, or {@code null} if no statistics are available
+   */
+  public static TransferStatistics takeTransferStatistics() {
+    final TransferStatistics statistics = lastTransfer.get();
+    lastTransfer.remove();
+    return statistics;
+  }
+
+  /**
+   * Gets, and clears, the status code of the last response that was received by the current thread.
+   *
+   * @return the status code, or {@code null} if not available (for example if the HTTP client was not configured with
+   *     the interceptors of this class)
+   */
+  public static Integer takeStatusCode() {
+    final Integer statusCode = lastStatusCode.get();
+    lastStatusCode.remove();
+    return statusCode;
+  }
+
+  /**
+   * An entity wrapper that (optionally) decompresses the content and counts the bytes read.
+   */
+  private static class CountingEntity extends HttpEntityWrapper {
+
+    /** The content encoding ({@code null} if not compressed). */
+    private final String encoding;
+
+    CountingEntity(final HttpEntity entity, final String encoding) {
+      super(entity);
+      this.encoding = encoding;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public InputStream getContent() throws IOException {
+      if (this.encoding == null) {
+        return new CountingInputStream(super.getContent(), n -> new TransferStatistics(null, n, n));
+      }
+      final CountingInputStream transferred = new CountingInputStream(super.getContent(), null);
+      final InputStream decompressed = "deflate".equals(this.encoding)
+          ? deflateStream(transferred)
+          : new GZIPInputStream(transferred, 8192);
+
+      return new CountingInputStream(decompressed,
+          n -> new TransferStatistics(this.encoding, transferred.getCount(), n));
+    }
+
+    /**
+     * Creates a stream for the deflate encoding. Some servers send raw deflate data instead of the zlib format
+     * mandated by the specification, so we check the header.
+     *
+     * @param in the compressed stream
+     * @return a decompressing stream
+     * @throws IOException for read errors
+     */
+    private static InputStream deflateStream(final InputStream in) throws IOException {
+      final PushbackInputStream pushback = new PushbackInputStream(in, 2);
+      final byte[] header = new byte[2];
+      final int read = pushback.readNBytes(header, 0, 2);
+      if (read > 0) {
+        pushback.unread(header, 0, read);
+      }
+      final boolean zlib =
+          read == 2 && (header[0] & 0x0F) == 8 && ((header[0] & 0xFF) << 8 | header[1] & 0xFF) % 31 == 0;
+      return new InflaterInputStream(pushback, new Inflater(!zlib), 8192);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getContentLength() {
+      return this.encoding != null ? -1L : super.getContentLength();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getContentEncoding() {
+      return this.encoding != null ? null : super.getContentEncoding();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isStreaming() {
+      return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isRepeatable() {
+      return false;
+    }
+  }
+
+  /**
+   * An input stream that counts the number of bytes read. The outermost stream publishes the statistics when the end
+   * of the stream is reached, or when the stream is closed.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+
+    /** The number of bytes read. */
+    private long count = 0;
+
+    /** Whether statistics have been published. */
+    private boolean published = false;
+
+    /**
+     * Creates the statistics given the number of bytes read by this stream - if {@code null}, this stream does not
+     * publish statistics.
+     */
+    private final LongFunction<TransferStatistics> statistics;
+
+    CountingInputStream(final InputStream in, final LongFunction<TransferStatistics> statistics) {
+      super(in);
+      this.statistics = statistics;
+    }
+
+    long getCount() {
+      return this.count;
+    }
+
+    private void publish() {
+      if (this.statistics != null && !this.published) {
+        this.published = true;
+        lastTransfer.set(this.statistics.apply(this.count));
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read() throws IOException {
+      final int b = super.read();
+      if (b == -1) {
+        this.publish();
+      }
+      else {
+        this.count++;
+      }
+      return b;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      final int n = super.read(b, off, len);
+      if (n == -1) {
+        this.publish();
+      }
+      else {
+        this.count += n;
+      }
+      return n;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long skip(final long n) throws IOException {
+      final long skipped = super.skip(n);
+      this.count += skipped;
+      return skipped;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws IOException {
+      this.publish();
+      super.close();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+
+  // Hidden constructor
+  private MetadataTransferSupport() {
+  }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata.provider;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache for identifiers that were not found, for example entity ID:s that an MDQ server answered with 404.
+ * <p>
+ * Each entry expires after a configurable time-to-live. When the cache is full, the least recently used entry is
+ * evicted.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class NegativeResultCache {
+
+  /** The time-to-live for entries (in millis). */
+  private final long ttl;
+
+  /** The maximum number of entries. */
+  private final int maxEntries;
+
+  /** Identifiers and the time (in millis) when they expire. Access ordered, so that eviction is LRU. */
+  private final LinkedHashMap<String, Long> entries;
+
+  /** The number of lookups that were answered from the cache. */
+  private final AtomicLong hits = new AtomicLong();
+
+  /** The number of lookups that were not answered from the cache. */
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param ttl the time-to-live for entries
+   * @param maxEntries the maximum number of entries
+   */
+  public NegativeResultCache(final Duration ttl, final int maxEntries) {
+    this.ttl = Objects.requireNonNull(ttl, "ttl must not be null").toMillis();
+    if (this.ttl <= 0) {
+      throw new IllegalArgumentException("ttl must be positive");
+    }
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be at least 1");
+    }
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, Long> eldest) {
+        return this.size() > NegativeResultCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Tells whether the supplied identifier is cached as not found. The hit and miss counters are updated.
+   *
+   * @param id the identifier
+   * @return {@code true} if the identifier is cached as not found, and {@code false} otherwise
+   */
+  public boolean contains(final String id) {
+    if (id != null) {
+      synchronized (this.entries) {
+        final Long expires = this.entries.get(id);
+        if (expires != null) {
+          if (expires > System.currentTimeMillis()) {
+            this.hits.incrementAndGet();
+            return true;
+          }
+          this.entries.remove(id);
+        }
+      }
+    }
+    this.misses.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Records that the supplied identifier was not found.
+   *
+   * @param id the identifier
+   */
+  public void put(final String id) {
+    if (id != null) {
+      synchronized (this.entries) {
+        this.entries.put(id, System.currentTimeMillis() + this.ttl);
+      }
+    }
+  }
+
+  /**
+   * Removes the supplied identifier from the cache.
+   *
+   * @param id the identifier
+   */
+  public void remove(final String id) {
+    if (id != null) {
+      synchronized (this.entries) {
+        this.entries.remove(id);
+      }
+    }
+  }
+
+  /**
+   * Removes all entries from the cache. The counters are not reset.
+   */
+  public void clear() {
+    synchronized (this.entries) {
+      this.entries.clear();
+    }
+  }
+
+  /**
+   * Gets the number of entries in the cache (including expired entries that have not yet been removed).
+   *
+   * @return the number of entries
+   */
+  public int size() {
+    synchronized (this.entries) {
+      return this.entries.size();
+    }
+  }
+
+  /**
+   * Gets the number of lookups that were answered from the cache.
+   *
+   * @return the number of cache hits
+   */
+  public long getHits() {
+    return this.hits.get();
+  }
+
+  /**
+   * Gets the number of lookups that were not answered from the cache.
+   *
+   * @return the number of cache misses
+   */
+  public long getMisses() {
+    return this.misses.get();
+  }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata.provider;
+
+import java.time.Duration;
+
+/**
+ * A {@link MetadataProviderMetrics} implementation that does nothing. This is the default for all providers.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public final class NoOpMetadataProviderMetrics implements MetadataProviderMetrics {
+
+  /** The singleton instance. */
+  public static final NoOpMetadataProviderMetrics INSTANCE = new NoOpMetadataProviderMetrics();
+
+  // Hidden
+  private NoOpMetadataProviderMetrics() {
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void downloadCompleted(final String providerId, final Duration duration, final long transferredBytes,
+      final long uncompressedBytes) {
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void parseCompleted(final String providerId, final Duration duration) {
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void filterCompleted(final String providerId, final String filter, final Duration duration) {
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void entitiesFiltered(final String providerId, final int before, final int after) {
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void snapshotUpdated(final String providerId, final int entities) {
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void refreshFailed(final String providerId, final Throwable cause) {
+  }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata.provider;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Timer;
+
+import org.apache.hc.client5.http.classic.HttpClient;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.io.UnmarshallingException;
+import org.opensaml.saml.metadata.resolver.impl.FileBackedHTTPMetadataResolver;
+import org.opensaml.saml.metadata.resolver.impl.FilesystemMetadataResolver;
+import org.opensaml.saml.metadata.resolver.impl.HTTPMetadataResolver;
+
+import net.shibboleth.shared.resolver.ResolverException;
+
+/**
+ * Factory methods for the OpenSAML reloading resolvers used by the providers.
+ * <p>
+ * The created resolvers let their provider fetch, unmarshall and refresh the metadata, i.e., they delegate to
+ * {@link AbstractMetadataProvider#fetchMetadata(AbstractMetadataProvider.MetadataFetcher)},
+ * {@link AbstractMetadataProvider#unmarshallMetadata(InputStream, AbstractMetadataProvider.MetadataUnmarshaller)} and
+ * {@link AbstractMetadataProvider#refreshMetadata(AbstractMetadataProvider.MetadataRefresher)}. Since the OpenSAML
+ * resolvers do not offer any other extension points for this, each resolver type needs a subclass of its own. These
+ * subclasses are kept here, so that the delegation is the same for all providers.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+final class ReloadingResolvers {
+
+  /**
+   * Creates a {@link FilesystemMetadataResolver} that delegates to the supplied provider.
+   *
+   * @param provider the provider
+   * @param timer the timer for the resolver's refreshes (may be {@code null})
+   * @param metadataFile the metadata file
+   * @return a resolver
+   * @throws ResolverException for errors creating the resolver
+   */
+  static FilesystemMetadataResolver createFilesystemResolver(
+      final AbstractMetadataProvider provider, final Timer timer, final File metadataFile) throws ResolverException {
+
+    return new FilesystemMetadataResolver(timer, metadataFile) {
+      @Override
+      protected XMLObject unmarshallMetadata(final InputStream metadataInput) throws UnmarshallingException {
+        return provider.unmarshallMetadata(metadataInput, super::unmarshallMetadata);
+      }
+
+      @Override
+      protected byte[] fetchMetadata() throws ResolverException {
+        return provider.fetchMetadata(super::fetchMetadata);
+      }
+
+      @Override
+      public void refresh() throws ResolverException {
+        provider.refreshMetadata(super::refresh);
+      }
+    };
+  }
+
+  /**
+   * Creates a {@link HTTPMetadataResolver}, or a {@link FileBackedHTTPMetadataResolver} if a backup file is given, that
+   * delegates to the supplied provider.
+   *
+   * @param provider the provider
+   * @param httpClient the HTTP client
+   * @param metadataUrl the metadata URL
+   * @param backupFile the backup file (may be {@code null})
+   * @return a resolver
+   * @throws ResolverException for errors creating the resolver
+   */
+  static HTTPMetadataResolver createHttpResolver(final AbstractMetadataProvider provider,
+      final HttpClient httpClient, final String metadataUrl, final String backupFile) throws ResolverException {
+
+    if (backupFile != null) {
+      return new FileBackedHTTPMetadataResolver(httpClient, metadataUrl, backupFile) {
+        @Override
+        protected XMLObject unmarshallMetadata(final InputStream metadataInput) throws UnmarshallingException {
+          return provider.unmarshallMetadata(metadataInput, super::unmarshallMetadata);
+        }
+
+        @Override
+        protected byte[] fetchMetadata() throws ResolverException {
+          return provider.fetchMetadata(super::fetchMetadata);
+        }
+
+        @Override
+        public void refresh() throws ResolverException {
+          provider.refreshMetadata(super::refresh);
+        }
+      };
+    }
+    return new HTTPMetadataResolver(httpClient, metadataUrl) {
+      @Override
+      protected XMLObject unmarshallMetadata(final InputStream metadataInput) throws UnmarshallingException {
+        return provider.unmarshallMetadata(metadataInput, super::unmarshallMetadata);
+      }
+
+      @Override
+      protected byte[] fetchMetadata() throws ResolverException {
+        return provider.fetchMetadata(super::fetchMetadata);
+      }
+
+      @Override
+      public void refresh() throws ResolverException {
+        provider.refreshMetadata(super::refresh);
+      }
+    };
+  }
+
+  // Hidden
+  private ReloadingResolvers() {
+  }
+
+}
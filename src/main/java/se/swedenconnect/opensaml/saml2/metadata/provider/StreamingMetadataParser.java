@@ -0,0 +1,758 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata.provider;
+
+import net.shibboleth.shared.xml.DOMTypeSupport;
+import net.shibboleth.shared.xml.ParserPool;
+import net.shibboleth.shared.xml.XMLParserException;
+import org.apache.xml.security.exceptions.XMLSecurityException;
+import org.apache.xml.security.stax.ext.InboundXMLSec;
+import org.apache.xml.security.stax.ext.XMLSec;
+import org.apache.xml.security.stax.ext.XMLSecurityProperties;
+import org.apache.xml.security.stax.securityEvent.SecurityEvent;
+import org.apache.xml.security.stax.securityEvent.SecurityEventListener;
+import org.apache.xml.security.stax.securityEvent.SignedElementSecurityEvent;
+import org.apache.xml.security.stax.securityToken.SecurityToken;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.UnmarshallingException;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.common.xml.SAMLSchemaBuilder;
+import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.Extensions;
+import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.RoleDescriptor;
+import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.validation.Schema;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * A streaming (StAX) parser for SAML metadata.
+ * <p>
+ * The parser reads the metadata entity by entity and applies role restrictions, schema validation and
+ * inclusion/exclusion predicates to each entity as it is read. Only the entities that are accepted are kept, and the
+ * metadata document as a whole is never built as a DOM tree. This means that peak heap usage for large metadata
+ * aggregates is much lower than when the complete document is parsed and then filtered.
+ * </p>
+ * <p>
+ * If signature verification certificates are assigned, the signature of the metadata root element is verified, using
+ * the Apache Santuario streaming API, over the same stream that the entities are read from. Just as for OpenSAML's
+ * {@code SignatureValidationFilter}, the signature must follow the SAML signature profile, i.e., it must be a child of
+ * the root element, have one reference pointing to the root element, and use only the enveloped signature and exclusive
+ * canonicalization transforms. Trust is evaluated for the signature covering the root element only, so signatures on
+ * individual entities are not required to be made by a trusted key.
+ * </p>
+ * <p>
+ * Note: Nested {@code EntitiesDescriptor} elements are flattened, i.e., all accepted entity descriptors are added
+ * directly to the returned {@code EntitiesDescriptor}.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class StreamingMetadataParser {
+
+  /** Logging instance. */
+  private static final Logger log = LoggerFactory.getLogger(StreamingMetadataParser.class);
+
+  /** The name of the {@code ds:Signature} element. */
+  private static final QName SIGNATURE_ELEMENT_NAME = new QName(SignatureConstants.XMLSIG_NS, "Signature");
+
+  /** The transforms allowed by the SAML signature profile. */
+  private static final Set<String> ALLOWED_TRANSFORMS = Set.of(SignatureConstants.TRANSFORM_ENVELOPED_SIGNATURE,
+      SignatureConstants.TRANSFORM_C14N_EXCL_OMIT_COMMENTS, SignatureConstants.TRANSFORM_C14N_EXCL_WITH_COMMENTS);
+
+  /** The certificates accepted as signing certificates. If {@code null}, no signature verification is performed. */
+  private List<X509Certificate> signatureVerificationCertificates;
+
+  /** The schema to validate each entity against. If {@code null}, no schema validation is performed. */
+  private Schema schema;
+
+  /** Tells whether only entities having SP or IdP roles should be kept. */
+  private boolean keepOnlySpAndIdps;
+
+  /** Inclusion predicates. */
+  private List<Predicate<EntityDescriptor>> inclusionPredicates;
+
+  /** Exclusion predicates. */
+  private List<Predicate<EntityDescriptor>> exclusionPredicates;
+
+  /**
+   * A predicate that is tested against the entityID before the entity is parsed. Entities that do not match are
+   * skipped.
+   */
+  private Predicate<String> entityIdPredicate;
+
+  /** The StAX factory. */
+  private final XMLInputFactory inputFactory;
+
+  /** The number of entities processed by the last parse. */
+  private volatile int lastProcessedCount = -1;
+
+  /**
+   * Constructor.
+   */
+  public StreamingMetadataParser() {
+    this.inputFactory = XMLInputFactory.newFactory();
+    this.inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    this.inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    this.inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    this.inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+  }
+
+  /**
+   * Parses the supplied metadata stream.
+   *
+   * @param metadataInput the metadata stream
+   * @return an {@link EntitiesDescriptor} holding all accepted entities
+   * @throws UnmarshallingException for parsing, validation and signature verification errors
+   */
+  public XMLObject parse(final InputStream metadataInput) throws UnmarshallingException {
+
+    final long start = System.nanoTime();
+    final SignatureListener signatureListener = this.signatureVerificationCertificates != null
+        ? new SignatureListener(this.signatureVerificationCertificates)
+        : null;
+
+    XMLStreamReader reader = null;
+    try {
+      reader = this.inputFactory.createXMLStreamReader(metadataInput);
+      if (signatureListener != null) {
+        final XMLSecurityProperties properties = new XMLSecurityProperties();
+        if (this.signatureVerificationCertificates.size() == 1) {
+          properties.setSignatureVerificationKey(this.signatureVerificationCertificates.get(0).getPublicKey());
+        }
+        final InboundXMLSec inboundXMLSec = XMLSec.getInboundWSSec(properties);
+        reader = inboundXMLSec.processInMessage(reader, null, signatureListener);
+      }
+
+      final ParseContext context = new ParseContext(reader);
+
+      // Move to the root element ...
+      //
+      while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {
+      }
+      if (!reader.isStartElement()) {
+        throw new UnmarshallingException("No metadata found in stream");
+      }
+      final QName rootName = reader.getName();
+      final String rootId = reader.getAttributeValue(null, EntitiesDescriptor.ID_ATTRIB_NAME);
+
+      final XMLObject result;
+      if (EntitiesDescriptor.DEFAULT_ELEMENT_NAME.equals(rootName)) {
+        final EntitiesDescriptor entities =
+            (EntitiesDescriptor) XMLObjectSupport.buildXMLObject(EntitiesDescriptor.DEFAULT_ELEMENT_NAME);
+        entities.setID(reader.getAttributeValue(null, EntitiesDescriptor.ID_ATTRIB_NAME));
+        entities.setName(reader.getAttributeValue(null, EntitiesDescriptor.NAME_ATTRIB_NAME));
+        final String validUntil = reader.getAttributeValue(null, EntitiesDescriptor.VALID_UNTIL_ATTRIB_NAME);
+        if (validUntil != null) {
+          entities.setValidUntil(DOMTypeSupport.stringToInstant(validUntil));
+        }
+        final String cacheDuration = reader.getAttributeValue(null, EntitiesDescriptor.CACHE_DURATION_ATTRIB_NAME);
+        if (cacheDuration != null) {
+          entities.setCacheDuration(DOMTypeSupport.stringToDuration(cacheDuration));
+        }
+        this.parseEntities(context, entities, true);
+        result = entities;
+      }
+      else if (EntityDescriptor.DEFAULT_ELEMENT_NAME.equals(rootName)) {
+        final EntityDescriptor ed = this.parseEntity(context, true);
+        result = ed != null
+            ? ed
+            : XMLObjectSupport.buildXMLObject(EntitiesDescriptor.DEFAULT_ELEMENT_NAME);
+      }
+      else {
+        throw new UnmarshallingException("Unexpected metadata root element - " + rootName);
+      }
+
+      // Read the rest of the stream (the signature is checked when the root element has been processed) ...
+      //
+      while (reader.hasNext()) {
+        reader.next();
+      }
+
+      if (signatureListener != null) {
+        validateSignatureProfile(context.rootSignature, rootId);
+        signatureListener.assertValid(rootName);
+      }
+      log.debug("Metadata parsed in streaming mode - {} entities processed, {} accepted [{} ms]",
+          context.processed, context.accepted, (System.nanoTime() - start) / 1_000_000L);
+      this.lastProcessedCount = context.processed;
+
+      return result;
+    }
+    catch (final XMLStreamException | XMLSecurityException | IllegalArgumentException e) {
+      throw new UnmarshallingException("Failed to parse metadata - " + e.getMessage(), e);
+    }
+    finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        }
+        catch (final XMLStreamException ignored) {
+        }
+      }
+    }
+  }
+
+  /**
+   * Parses the children of an {@code EntitiesDescriptor}. The reader is positioned at the start element and will be
+   * positioned at the end element when the method returns.
+   *
+   * @param context the parse context
+   * @param entities the object to add the entity descriptors to
+   * @param root whether the element is the metadata root element
+   * @throws XMLStreamException for parsing errors
+   * @throws UnmarshallingException for unmarshalling and validation errors
+   */
+  private void parseEntities(final ParseContext context, final EntitiesDescriptor entities, final boolean root)
+      throws XMLStreamException, UnmarshallingException {
+
+    final XMLStreamReader reader = context.reader;
+    context.pushNamespaces();
+    while (reader.hasNext()) {
+      final int event = reader.next();
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        break;
+      }
+      if (event != XMLStreamConstants.START_ELEMENT) {
+        continue;
+      }
+      final QName name = reader.getName();
+      if (EntityDescriptor.DEFAULT_ELEMENT_NAME.equals(name)) {
+        final EntityDescriptor ed = this.parseEntity(context, false);
+        if (ed != null) {
+          entities.getEntityDescriptors().add(ed);
+        }
+      }
+      else if (EntitiesDescriptor.DEFAULT_ELEMENT_NAME.equals(name)) {
+        this.parseEntities(context, entities, false);
+      }
+      else if (root && Extensions.DEFAULT_ELEMENT_NAME.equals(name)) {
+        final Element element = context.buildElement();
+        entities.setExtensions((Extensions) XMLObjectSupport.getUnmarshaller(element).unmarshall(element));
+      }
+      else if (root && SIGNATURE_ELEMENT_NAME.equals(name) && context.rootSignature == null) {
+        // The signature is verified by the security reader, but we need to check its references and transforms ...
+        context.rootSignature = context.buildElement();
+      }
+      else {
+        // Other signatures or nested extensions ...
+        context.skipElement();
+      }
+    }
+    context.popNamespaces();
+  }
+
+  /**
+   * Parses an entity descriptor. The reader is positioned at the start element and will be positioned at the end
+   * element when the method returns.
+   *
+   * @param context the parse context
+   * @param root whether the element is the metadata root element
+   * @return the entity descriptor, or {@code null} if it was not accepted
+   * @throws XMLStreamException for parsing errors
+   * @throws UnmarshallingException for unmarshalling and validation errors
+   */
+  private EntityDescriptor parseEntity(final ParseContext context, final boolean root)
+      throws XMLStreamException, UnmarshallingException {
+    context.processed++;
+
+    final String entityID = context.reader.getAttributeValue(null, EntityDescriptor.ENTITY_ID_ATTRIB_NAME);
+    final boolean matchesEntityId =
+        this.entityIdPredicate == null || entityID != null && this.entityIdPredicate.test(entityID);
+    if (!matchesEntityId && !root) {
+      log.trace("Entity '{}' does not match entityID predicate - skipping", entityID);
+      context.skipElement();
+      return null;
+    }
+
+    final Element element = context.buildElement();
+    if (root) {
+      context.rootSignature = getSignatureElement(element);
+    }
+    if (!matchesEntityId) {
+      log.trace("Entity '{}' does not match entityID predicate - skipping", entityID);
+      return null;
+    }
+
+    if (this.keepOnlySpAndIdps && !hasSpOrIdpRole(element)) {
+      log.trace("Entity '{}' is neither an SP nor an IdP - skipping", entityID);
+      return null;
+    }
+    if (this.schema != null) {
+      try {
+        this.schema.newValidator().validate(new DOMSource(element));
+      }
+      catch (final SAXException | IOException e) {
+        throw new UnmarshallingException(
+            String.format("Schema validation failed for entity '%s' - %s", entityID, e.getMessage()), e);
+      }
+    }
+
+    final EntityDescriptor ed = (EntityDescriptor) XMLObjectSupport.getUnmarshaller(element).unmarshall(element);
+
+    if (this.keepOnlySpAndIdps) {
+      ed.getRoleDescriptors().removeIf(r -> !(r instanceof IDPSSODescriptor || r instanceof SPSSODescriptor));
+    }
+    if (this.inclusionPredicates != null) {
+      for (final Predicate<EntityDescriptor> p : this.inclusionPredicates) {
+        if (!p.test(ed)) {
+          log.trace("Entity '{}' does not match inclusion predicate - skipping", entityID);
+          return null;
+        }
+      }
+    }
+    if (this.exclusionPredicates != null) {
+      for (final Predicate<EntityDescriptor> p : this.exclusionPredicates) {
+        if (p.test(ed)) {
+          log.trace("Entity '{}' matches exclusion predicate - skipping", entityID);
+          return null;
+        }
+      }
+    }
+    context.accepted++;
+    return ed;
+  }
+
+  /**
+   * Gets the {@code ds:Signature} child element of the supplied element.
+   *
+   * @param element the element
+   * @return the signature element, or {@code null} if the element has no signature
+   */
+  private static Element getSignatureElement(final Element element) {
+    for (Node n = element.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n.getNodeType() == Node.ELEMENT_NODE && SignatureConstants.XMLSIG_NS.equals(n.getNamespaceURI())
+          && SIGNATURE_ELEMENT_NAME.getLocalPart().equals(n.getLocalName())) {
+        return (Element) n;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Checks that the signature of the root element follows the SAML signature profile. The signature must have exactly
+   * one reference, the reference URI must be empty or point to the ID of the root element, and only the enveloped
+   * signature and exclusive canonicalization transforms may be used.
+   *
+   * @param signature the {@code ds:Signature} element of the root element (may be {@code null})
+   * @param rootId the ID of the root element (may be {@code null})
+   * @throws UnmarshallingException if the signature does not follow the profile
+   */
+  static void validateSignatureProfile(final Element signature, final String rootId) throws UnmarshallingException {
+    if (signature == null) {
+      throw new UnmarshallingException("Metadata root element is not signed");
+    }
+    final List<Element> signedInfo = getChildElements(signature, "SignedInfo");
+    if (signedInfo.size() != 1) {
+      throw new UnmarshallingException("Metadata signature must have one SignedInfo element");
+    }
+    final List<Element> references = getChildElements(signedInfo.get(0), "Reference");
+    if (references.size() != 1) {
+      throw new UnmarshallingException("Metadata signature must have exactly one reference");
+    }
+    final Element reference = references.get(0);
+    final String uri = reference.hasAttributeNS(null, "URI") ? reference.getAttributeNS(null, "URI") : null;
+    if (uri == null || !uri.isEmpty() && (rootId == null || !uri.equals("#" + rootId))) {
+      throw new UnmarshallingException(
+          String.format("Metadata signature reference URI '%s' does not point to the root element", uri));
+    }
+    for (final Element transforms : getChildElements(reference, "Transforms")) {
+      for (final Element transform : getChildElements(transforms, "Transform")) {
+        final String algorithm = transform.getAttributeNS(null, "Algorithm");
+        if (!ALLOWED_TRANSFORMS.contains(algorithm)) {
+          throw new UnmarshallingException(
+              String.format("Metadata signature uses transform '%s', which is not allowed", algorithm));
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the child elements having the given name in the XML signature namespace.
+   *
+   * @param element the parent element
+   * @param localName the local name of the child elements
+   * @return a list of elements
+   */
+  private static List<Element> getChildElements(final Element element, final String localName) {
+    final List<Element> elements = new ArrayList<>();
+    for (Node n = element.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n.getNodeType() == Node.ELEMENT_NODE && SignatureConstants.XMLSIG_NS.equals(n.getNamespaceURI())
+          && localName.equals(n.getLocalName())) {
+        elements.add((Element) n);
+      }
+    }
+    return elements;
+  }
+
+  /**
+   * Tells whether the supplied entity descriptor element has an SP or IdP role.
+   *
+   * @param element the entity descriptor element
+   * @return {@code true} if the element has an SP or IdP role
+   */
+  private static boolean hasSpOrIdpRole(final Element element) {
+    for (Node n = element.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n.getNodeType() == Node.ELEMENT_NODE && SAMLConstants.SAML20MD_NS.equals(n.getNamespaceURI())
+          && (IDPSSODescriptor.DEFAULT_ELEMENT_LOCAL_NAME.equals(n.getLocalName())
+          || SPSSODescriptor.DEFAULT_ELEMENT_LOCAL_NAME.equals(n.getLocalName())
+          || RoleDescriptor.DEFAULT_ELEMENT_LOCAL_NAME.equals(n.getLocalName()) && isSpOrIdpType((Element) n))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Tells whether a {@code md:RoleDescriptor} element has an xsi:type that is an SP or IdP role.
+   *
+   * @param element the element
+   * @return {@code true} if the type is SP or IdP
+   */
+  private static boolean isSpOrIdpType(final Element element) {
+    final String type = element.getAttributeNS(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "type");
+    return type != null
+        && (type.endsWith(IDPSSODescriptor.TYPE_LOCAL_NAME) || type.endsWith(SPSSODescriptor.TYPE_LOCAL_NAME));
+  }
+
+  /**
+   * Assigns the certificates that are accepted as signing certificates for the metadata. If assigned, a valid signature
+   * on the metadata root element is required, and the signature must have been made using the public key of one of the
+   * certificates.
+   * <p>
+   * If more than one certificate is assigned, the signature must contain a {@code ds:KeyInfo} element holding the
+   * signer key (or certificate).
+   * </p>
+   *
+   * @param signatureVerificationCertificates the certificates
+   */
+  public void setSignatureVerificationCertificates(final List<X509Certificate> signatureVerificationCertificates) {
+    this.signatureVerificationCertificates =
+        signatureVerificationCertificates != null && !signatureVerificationCertificates.isEmpty()
+            ? signatureVerificationCertificates
+            : null;
+  }
+
+  /**
+   * Assigns whether each entity should be validated against the SAML metadata schema.
+   *
+   * @param performSchemaValidation whether to perform schema validation
+   * @throws SAXException if the schema can not be loaded
+   */
+  public void setPerformSchemaValidation(final boolean performSchemaValidation) throws SAXException {
+    this.schema = performSchemaValidation
+        ? new SAMLSchemaBuilder(SAMLSchemaBuilder.SAML1Version.SAML_11).getSAMLSchema()
+        : null;
+  }
+
+  /**
+   * Assigns whether only SP and IdP entities (and role descriptors) should be kept.
+   *
+   * @param keepOnlySpAndIdps whether to keep only SPs and IdPs
+   */
+  public void setKeepOnlySpAndIdps(final boolean keepOnlySpAndIdps) {
+    this.keepOnlySpAndIdps = keepOnlySpAndIdps;
+  }
+
+  /**
+   * Assigns the inclusion predicates. An entity must match all predicates to be kept.
+   *
+   * @param inclusionPredicates the predicates
+   */
+  public void setInclusionPredicates(final List<Predicate<EntityDescriptor>> inclusionPredicates) {
+    this.inclusionPredicates = inclusionPredicates;
+  }
+
+  /**
+   * Assigns the exclusion predicates. An entity matching any of the predicates is removed.
+   *
+   * @param exclusionPredicates the predicates
+   */
+  public void setExclusionPredicates(final List<Predicate<EntityDescriptor>> exclusionPredicates) {
+    this.exclusionPredicates = exclusionPredicates;
+  }
+
+  /**
+   * Assigns a predicate that is tested against each entityID before the entity is parsed. Entities whose entityID does
+   * not match are skipped without being parsed.
+   *
+   * @param entityIdPredicate the predicate
+   */
+  public void setEntityIdPredicate(final Predicate<String> entityIdPredicate) {
+    this.entityIdPredicate = entityIdPredicate;
+  }
+
+  /**
+   * Gets the number of entities that were processed, i.e., the number of entities before filtering, by the last
+   * successful call to {@link #parse(InputStream)}.
+   *
+   * @return the number of processed entities, or -1 if no metadata has been parsed
+   */
+  public int getLastProcessedCount() {
+    return this.lastProcessedCount;
+  }
+
+  /**
+   * Holds the reader and the in-scope namespace declarations.
+   */
+  private static class ParseContext {
+
+    /** The reader. */
+    private final XMLStreamReader reader;
+
+    /** The namespace declarations of the elements we have descended into. */
+    private final Deque<Map<String, String>> namespaces = new ArrayDeque<>();
+
+    /** Number of processed entities. */
+    private int processed = 0;
+
+    /** Number of accepted entities. */
+    private int accepted = 0;
+
+    /** The {@code ds:Signature} element of the root element. */
+    private Element rootSignature;
+
+    /** The parser pool. */
+    private final ParserPool parserPool;
+
+    ParseContext(final XMLStreamReader reader) {
+      this.reader = reader;
+      this.parserPool = Objects.requireNonNull(XMLObjectProviderRegistrySupport.getParserPool(),
+          "No parser pool available");
+    }
+
+    /**
+     * Saves the namespace declarations of the current element.
+     */
+    void pushNamespaces() {
+      final Map<String, String> declarations = new HashMap<>();
+      for (int i = 0; i < this.reader.getNamespaceCount(); i++) {
+        declarations.put(Objects.requireNonNullElse(this.reader.getNamespacePrefix(i), ""),
+            Objects.requireNonNullElse(this.reader.getNamespaceURI(i), ""));
+      }
+      this.namespaces.push(declarations);
+    }
+
+    /**
+     * Removes the namespace declarations of the current element.
+     */
+    void popNamespaces() {
+      this.namespaces.pop();
+    }
+
+    /**
+     * Skips the current element. When the method returns, the reader is positioned at the end element.
+     *
+     * @throws XMLStreamException for parsing errors
+     */
+    void skipElement() throws XMLStreamException {
+      int depth = 1;
+      while (depth > 0 && this.reader.hasNext()) {
+        final int event = this.reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          depth++;
+        }
+        else if (event == XMLStreamConstants.END_ELEMENT) {
+          depth--;
+        }
+      }
+    }
+
+    /**
+     * Builds a DOM element for the current element. All in-scope namespace declarations are added to the element. When
+     * the method returns, the reader is positioned at the end element.
+     *
+     * @return a DOM element
+     * @throws XMLStreamException for parsing errors
+     * @throws UnmarshallingException if no document can be created
+     */
+    Element buildElement() throws XMLStreamException, UnmarshallingException {
+      final Document document;
+      try {
+        document = this.parserPool.newDocument();
+      }
+      catch (final XMLParserException e) {
+        throw new UnmarshallingException(e);
+      }
+
+      Node current = document;
+      Element top = null;
+      int depth = 0;
+      while (true) {
+        switch (this.reader.getEventType()) {
+        case XMLStreamConstants.START_ELEMENT:
+          final Element element = document.createElementNS(emptyToNull(this.reader.getNamespaceURI()),
+              qualifiedName(this.reader.getPrefix(), this.reader.getLocalName()));
+          if (top == null) {
+            top = element;
+            // Iterate from the outermost scope so that inner declarations override outer ones.
+            final Map<String, String> inScope = new HashMap<>();
+            this.namespaces.descendingIterator().forEachRemaining(inScope::putAll);
+            inScope.forEach((prefix, uri) -> declareNamespace(element, prefix, uri));
+          }
+          for (int i = 0; i < this.reader.getNamespaceCount(); i++) {
+            declareNamespace(element, Objects.requireNonNullElse(this.reader.getNamespacePrefix(i), ""),
+                Objects.requireNonNullElse(this.reader.getNamespaceURI(i), ""));
+          }
+          for (int i = 0; i < this.reader.getAttributeCount(); i++) {
+            element.setAttributeNS(emptyToNull(this.reader.getAttributeNamespace(i)),
+                qualifiedName(this.reader.getAttributePrefix(i), this.reader.getAttributeLocalName(i)),
+                this.reader.getAttributeValue(i));
+          }
+          current.appendChild(element);
+          current = element;
+          depth++;
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          depth--;
+          current = current.getParentNode();
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.SPACE:
+          current.appendChild(document.createTextNode(this.reader.getText()));
+          break;
+        case XMLStreamConstants.CDATA:
+          current.appendChild(document.createCDATASection(this.reader.getText()));
+          break;
+        case XMLStreamConstants.COMMENT:
+          current.appendChild(document.createComment(this.reader.getText()));
+          break;
+        default:
+          break;
+        }
+        if (depth == 0) {
+          break;
+        }
+        this.reader.next();
+      }
+      return top;
+    }
+
+    private static void declareNamespace(final Element element, final String prefix, final String uri) {
+      element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+          prefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix, uri);
+    }
+
+    private static String qualifiedName(final String prefix, final String localName) {
+      return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+
+    private static String emptyToNull(final String s) {
+      return s == null || s.isEmpty() ? null : s;
+    }
+  }
+
+  /**
+   * Listens for security events from the streaming signature verification and checks that the root element was signed
+   * using a trusted key. A key is trusted if it is the public key of one of the configured certificates.
+   * <p>
+   * Only the signature covering the root element is evaluated, so signatures on other elements (such as individual
+   * entities) do not affect the outcome.
+   * </p>
+   */
+  private static class SignatureListener implements SecurityEventListener {
+
+    /** The trusted certificates. */
+    private final List<X509Certificate> trustedCertificates;
+
+    /** Whether the root element was signed. */
+    private boolean rootSigned = false;
+
+    /** Whether the root element was signed using a key that is not trusted. */
+    private boolean untrustedKey = false;
+
+    SignatureListener(final List<X509Certificate> trustedCertificates) {
+      this.trustedCertificates = trustedCertificates;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void registerSecurityEvent(final SecurityEvent securityEvent) throws XMLSecurityException {
+      if (securityEvent instanceof final SignedElementSecurityEvent signedElement
+          && signedElement.isSigned() && signedElement.getElementPath().size() == 1) {
+        this.rootSigned = true;
+        if (!this.isTrusted(signedElement.getSecurityToken())) {
+          this.untrustedKey = true;
+        }
+      }
+    }
+
+    /**
+     * Tells whether the key of the supplied token is trusted. Just as for the {@code ExplicitKeySignatureTrustEngine},
+     * trust is based on the public key, and not on the certificate that holds it.
+     *
+     * @param token the token that was used to verify the signature
+     * @return {@code true} if the key is trusted, and {@code false} otherwise
+     * @throws XMLSecurityException for errors reading the key
+     */
+    private boolean isTrusted(final SecurityToken token) throws XMLSecurityException {
+      if (token == null) {
+        return false;
+      }
+      final X509Certificate[] certificates = token.getX509Certificates();
+      final PublicKey key = certificates != null && certificates.length > 0
+          ? certificates[0].getPublicKey()
+          : token.getPublicKey();
+      return key != null && this.trustedCertificates.stream().anyMatch(c -> c.getPublicKey().equals(key));
+    }
+
+    /**
+     * Asserts that the root element was signed by a trusted key.
+     *
+     * @param rootName the name of the root element (for logging)
+     * @throws UnmarshallingException if the signature is missing or not trusted
+     */
+    void assertValid(final QName rootName) throws UnmarshallingException {
+      if (!this.rootSigned) {
+        throw new UnmarshallingException("Metadata root element " + rootName + " is not signed");
+      }
+      if (this.untrustedKey) {
+        throw new UnmarshallingException("Metadata signature was not made by a trusted key");
+      }
+    }
+  }
+
+}
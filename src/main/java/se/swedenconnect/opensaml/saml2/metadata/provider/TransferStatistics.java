@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata.provider;
+
+/**
+ * Statistics for a metadata download.
+ *
+ * @param contentEncoding the content encoding of the response ({@code null} if the response was not compressed)
+ * @param transferredBytes the number of bytes transferred, i.e., the compressed size if the response was compressed
+ * @param uncompressedBytes the number of bytes after decompression
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public record TransferStatistics(String contentEncoding, long transferredBytes, long uncompressedBytes) {
+
+  /**
+   * Tells whether the response was compressed.
+   *
+   * @return whether the response was compressed
+   */
+  public boolean isCompressed() {
+    return this.contentEncoding != null;
+  }
+
+}
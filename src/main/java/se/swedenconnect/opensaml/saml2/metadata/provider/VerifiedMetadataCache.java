@@ -0,0 +1,296 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata.provider;
+
+import net.shibboleth.shared.xml.SerializeSupport;
+import net.shibboleth.shared.xml.XMLParserException;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.core.xml.io.UnmarshallingException;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.saml2.common.TimeBoundSAMLObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A file cache for metadata that has been verified and filtered by a {@link MetadataProvider}.
+ * <p>
+ * The cache file holds the post-filter metadata in compressed form together with a digest of the source bytes the
+ * metadata was created from. When a provider starts, and the digest of the source bytes matches the digest of the cache
+ * file, the cached metadata can be used directly. This means that signature verification, schema validation and
+ * filtering do not have to be repeated.
+ * </p>
+ * <p>
+ * The file format is: a magic number, the format version, the digest, the validity time of the metadata (or -1), an
+ * HMAC (empty if no key is used) and the deflated metadata XML. If any part does not match, or if the cached metadata
+ * is no longer valid, the cache is ignored.
+ * </p>
+ * <p>
+ * The digest only binds the cache to its source, it does not protect the cache. If a key is assigned, an HMAC over the
+ * digest, the validity time and the deflated metadata is stored, and a cache file whose HMAC can not be verified using
+ * the key is ignored. Without a key, whoever can write to the cache file can make the provider trust any metadata. The
+ * cache file is created readable and writable by its owner only (on file systems supporting POSIX permissions).
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class VerifiedMetadataCache {
+
+  /** Logging instance. */
+  private static final Logger log = LoggerFactory.getLogger(VerifiedMetadataCache.class);
+
+  /** Magic number for the cache file ("MDVC"). */
+  private static final int MAGIC = 0x4D445643;
+
+  /** The current format version. */
+  public static final int FORMAT_VERSION = 2;
+
+  /** The digest algorithm used. */
+  private static final String DIGEST_ALGORITHM = "SHA-256";
+
+  /** The MAC algorithm used. */
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+
+  /** The cache file. */
+  private final File file;
+
+  /** The key used to calculate the HMAC of the cache file. If {@code null}, no HMAC is used. */
+  private final SecretKey macKey;
+
+  /**
+   * Constructor for a cache that is not integrity protected.
+   *
+   * @param file the cache file
+   */
+  public VerifiedMetadataCache(final File file) {
+    this(file, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param file the cache file
+   * @param macKey the key used to calculate the HMAC of the cache file (if {@code null}, no HMAC is used)
+   */
+  public VerifiedMetadataCache(final File file, final SecretKey macKey) {
+    this.file = Objects.requireNonNull(file, "file must not be null");
+    this.macKey = macKey;
+  }
+
+  /**
+   * Calculates the digest that binds cached metadata to its source. The digest covers the source bytes and a string
+   * describing the configuration that was used to verify and filter the metadata, so that a configuration change
+   * invalidates the cache.
+   *
+   * @param source the source bytes (the stream is read until its end, but not closed)
+   * @param configuration the provider configuration (may be {@code null})
+   * @return the digest
+   * @throws IOException for read errors
+   */
+  public static byte[] digest(final InputStream source, final String configuration) throws IOException {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+      if (configuration != null) {
+        digest.update(configuration.getBytes(StandardCharsets.UTF_8));
+      }
+      digest.update((byte) 0);
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = source.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+      return digest.digest();
+    }
+    catch (final NoSuchAlgorithmException e) {
+      throw new SecurityException(e);
+    }
+  }
+
+  /**
+   * Loads the cached metadata if the cache file exists and was created from source bytes having the given digest.
+   *
+   * @param digest the digest of the source bytes
+   * @return the cached metadata, or {@code null} if the cache can not be used
+   */
+  public XMLObject load(final byte[] digest) {
+    if (!this.file.isFile()) {
+      return null;
+    }
+    try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(
+        this.file.toPath())))) {
+
+      if (in.readInt() != MAGIC) {
+        log.info("{} is not a metadata cache file - ignoring", this.file);
+        return null;
+      }
+      final int version = in.readInt();
+      if (version != FORMAT_VERSION) {
+        log.info("Metadata cache file {} has format version {}, expected {} - ignoring",
+            this.file, version, FORMAT_VERSION);
+        return null;
+      }
+      final byte[] cachedDigest = new byte[in.readUnsignedShort()];
+      in.readFully(cachedDigest);
+      if (!Arrays.equals(digest, cachedDigest)) {
+        log.debug("Metadata cache file {} does not match the current metadata source - ignoring", this.file);
+        return null;
+      }
+      final long validUntil = in.readLong();
+      if (validUntil >= 0 && Instant.ofEpochMilli(validUntil).isBefore(Instant.now())) {
+        log.debug("Metadata in cache file {} is no longer valid - ignoring", this.file);
+        return null;
+      }
+      final byte[] mac = new byte[in.readUnsignedShort()];
+      in.readFully(mac);
+      final byte[] deflated = in.readAllBytes();
+      if (this.macKey != null
+          && !MessageDigest.isEqual(mac, this.calculateMac(cachedDigest, validUntil, deflated))) {
+        log.warn("Metadata cache file {} has an invalid HMAC - ignoring", this.file);
+        return null;
+      }
+      try (final InputStream xml = new InflaterInputStream(new ByteArrayInputStream(deflated))) {
+        final XMLObject metadata =
+            XMLObjectSupport.unmarshallFromInputStream(XMLObjectProviderRegistrySupport.getParserPool(), xml);
+        log.debug("Metadata loaded from cache file {}", this.file);
+        return metadata;
+      }
+    }
+    catch (final IOException | XMLParserException | UnmarshallingException e) {
+      log.warn("Failed to load metadata from cache file {} - {}", this.file, e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Stores the supplied metadata in the cache file. Errors are logged and otherwise ignored.
+   *
+   * @param digest the digest of the source bytes the metadata was created from
+   * @param metadata the verified and filtered metadata
+   */
+  public void store(final byte[] digest, final XMLObject metadata) {
+    final Instant validUntil = metadata instanceof final TimeBoundSAMLObject t ? t.getValidUntil() : null;
+    final long validUntilMillis = validUntil != null ? validUntil.toEpochMilli() : -1L;
+    Path tmp = null;
+    try {
+      final ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+      try (final DeflaterOutputStream xml = new DeflaterOutputStream(deflated)) {
+        SerializeSupport.writeNode(XMLObjectSupport.marshall(metadata), xml);
+      }
+      final byte[] mac = this.macKey != null
+          ? this.calculateMac(digest, validUntilMillis, deflated.toByteArray())
+          : new byte[0];
+
+      final File dir = this.file.getAbsoluteFile().getParentFile();
+      if (dir != null && !dir.exists()) {
+        dir.mkdirs();
+      }
+      tmp = createOwnerOnlyTempFile(dir != null ? dir.toPath() : Path.of("."), this.file.getName());
+      try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeShort(digest.length);
+        out.write(digest);
+        out.writeLong(validUntilMillis);
+        out.writeShort(mac.length);
+        out.write(mac);
+        deflated.writeTo(out);
+      }
+      Files.move(tmp, this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      log.debug("Metadata saved to cache file {}", this.file);
+    }
+    catch (final IOException | MarshallingException e) {
+      log.warn("Failed to save metadata to cache file {} - {}", this.file, e.getMessage());
+      if (tmp != null) {
+        tmp.toFile().delete();
+      }
+    }
+  }
+
+  /**
+   * Creates a temporary file that is readable and writable by its owner only (if the file system supports POSIX
+   * permissions).
+   *
+   * @param dir the directory
+   * @param prefix the file name prefix
+   * @return the path of the file
+   * @throws IOException for errors creating the file
+   */
+  private static Path createOwnerOnlyTempFile(final Path dir, final String prefix) throws IOException {
+    if (dir.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+      return Files.createTempFile(dir, prefix, ".tmp",
+          PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    }
+    return Files.createTempFile(dir, prefix, ".tmp");
+  }
+
+  /**
+   * Calculates the HMAC for the cache file contents.
+   *
+   * @param digest the source digest
+   * @param validUntil the validity time (or -1)
+   * @param deflated the deflated metadata
+   * @return the HMAC
+   */
+  private byte[] calculateMac(final byte[] digest, final long validUntil, final byte[] deflated) {
+    try {
+      final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+      mac.init(this.macKey);
+      mac.update(digest);
+      mac.update(ByteBuffer.allocate(Long.BYTES).putLong(validUntil).array());
+      return mac.doFinal(deflated);
+    }
+    catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new SecurityException(e);
+    }
+  }
+
+  /**
+   * Gets the cache file.
+   *
+   * @return the cache file
+   */
+  public File getFile() {
+    return this.file;
+  }
+
+}
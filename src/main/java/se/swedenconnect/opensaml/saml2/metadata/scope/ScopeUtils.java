@@ -105,6 +105,20 @@ public class ScopeUtils {
       // Not a scoped attribute
       return false;
     }
+    return isDomainMatch(scope, domainValue);
+  }
+
+  /**
+   * Given a {@code shibmd:Scope} element, the method tests whether the supplied domain matches the scope.
+   *
+   * @param scope the Scope element
+   * @param domainValue the domain, i.e., the scope part of a scoped value
+   * @return true if there is a match and false otherwise
+   */
+  public static boolean isDomainMatch(final XMLObject scope, final String domainValue) {
+    if (domainValue == null) {
+      return false;
+    }
 
     final boolean isRegexp;
     final String scopeValue;
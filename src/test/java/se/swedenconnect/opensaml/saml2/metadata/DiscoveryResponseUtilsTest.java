@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.opensaml.saml.ext.idpdisco.DiscoveryResponse;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+
+import se.swedenconnect.opensaml.OpenSAMLTestBase;
+import se.swedenconnect.opensaml.saml2.metadata.build.DiscoveryResponseBuilder;
+import se.swedenconnect.opensaml.saml2.metadata.build.EntityDescriptorBuilder;
+import se.swedenconnect.opensaml.saml2.metadata.build.ExtensionsBuilder;
+import se.swedenconnect.opensaml.saml2.metadata.build.SPSSODescriptorBuilder;
+
+/**
+ * Test cases for {@link DiscoveryResponseUtils}.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class DiscoveryResponseUtilsTest extends OpenSAMLTestBase {
+
+  private static final String LOCATION1 = "https://sp.example.com/disco/1";
+
+  private static final String LOCATION2 = "https://localhost:8443/sp/disco/2";
+
+  /**
+   * Tests that the discovery response elements of an SP are returned sorted by their index.
+   */
+  @Test
+  public void testGetDiscoveryResponses() {
+    final List<DiscoveryResponse> responses = DiscoveryResponseUtils.getDiscoveryResponses(createSp());
+    Assertions.assertEquals(2, responses.size());
+    Assertions.assertEquals(LOCATION1, responses.get(0).getLocation());
+    Assertions.assertEquals(LOCATION2, responses.get(1).getLocation());
+
+    Assertions.assertTrue(DiscoveryResponseUtils.getDiscoveryResponses(null).isEmpty());
+  }
+
+  /**
+   * Tests that a return URL is only accepted if it is registered for the SP, and that the location having the lowest
+   * index is used if no return URL is given.
+   */
+  @Test
+  public void testGetResponseLocation() {
+    final EntityDescriptor sp = createSp();
+
+    Assertions.assertEquals(LOCATION1, DiscoveryResponseUtils.getResponseLocation(sp, null));
+    Assertions.assertEquals(LOCATION2, DiscoveryResponseUtils.getResponseLocation(sp, LOCATION2));
+    final String returnUrl = LOCATION2 + "?state=abc";
+    Assertions.assertEquals(returnUrl, DiscoveryResponseUtils.getResponseLocation(sp, returnUrl));
+    Assertions.assertNull(DiscoveryResponseUtils.getResponseLocation(sp, "https://other.example.com/disco"));
+    Assertions.assertNull(DiscoveryResponseUtils.getResponseLocation(null, null));
+  }
+
+  /**
+   * Tests creating the URL for a discovery response.
+   */
+  @Test
+  public void testCreateResponseUrl() {
+    Assertions.assertEquals(LOCATION2 + "?state=abc&entityID=https%3A%2F%2Fidp.example.com",
+        DiscoveryResponseUtils.createResponseUrl(LOCATION2 + "?state=abc", null, "https://idp.example.com"));
+    Assertions.assertEquals(LOCATION1 + "?idp=https%3A%2F%2Fidp.example.com",
+        DiscoveryResponseUtils.createResponseUrl(LOCATION1, "idp", "https://idp.example.com"));
+
+    // No IdP selected ...
+    Assertions.assertEquals(LOCATION1, DiscoveryResponseUtils.createResponseUrl(LOCATION1, null, null));
+  }
+
+  private static EntityDescriptor createSp() {
+    return EntityDescriptorBuilder.builder()
+        .entityID("https://sp.example.com")
+        .ssoDescriptor(SPSSODescriptorBuilder.builder()
+            .extensions(ExtensionsBuilder.builder()
+                .extension(
+                    DiscoveryResponseBuilder.builder(LOCATION2, 2).build(),
+                    DiscoveryResponseBuilder.builder(LOCATION1, 1).build())
+                .build())
+            .build())
+        .build();
+  }
+
+}
@@ -15,15 +15,24 @@
  */
 package se.swedenconnect.opensaml.saml2.metadata.provider;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
 
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
@@ -32,6 +41,7 @@ import org.opensaml.core.xml.util.XMLObjectSupport;
 import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.RoleDescriptor;
 import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
@@ -60,6 +70,57 @@ public abstract class BaseMetadataProviderTest extends OpenSAMLTestBase {
    */
   protected abstract AbstractMetadataProvider createMetadataProvider(final Resource resource) throws Exception;
 
+  /**
+   * Runs a test using the supplied provider. The provider is destroyed when the test has been run (if it was
+   * initialized).
+   *
+   * @param <T> the provider type
+   * @param provider the provider
+   * @param test the test
+   * @throws Exception for errors
+   */
+  protected static <T extends MetadataProvider> void withProvider(final T provider, final ProviderTest<T> test)
+      throws Exception {
+    try {
+      test.run(provider);
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * Creates a provider for the supplied resource (see {@link #createMetadataProvider(Resource)}) and runs a test using
+   * it. The provider is destroyed when the test has been run (if it was initialized).
+   *
+   * @param resource metadata source
+   * @param test the test
+   * @throws Exception for errors
+   */
+  protected void withProvider(final Resource resource, final ProviderTest<AbstractMetadataProvider> test)
+      throws Exception {
+    withProvider(this.createMetadataProvider(resource), test);
+  }
+
+  /**
+   * A test run by {@link BaseMetadataProviderTest#withProvider(MetadataProvider, ProviderTest)}.
+   *
+   * @param <T> the provider type
+   */
+  @FunctionalInterface
+  protected interface ProviderTest<T extends MetadataProvider> {
+
+    /**
+     * Runs the test.
+     *
+     * @param provider the provider
+     * @throws Exception for errors
+     */
+    void run(final T provider) throws Exception;
+  }
+
   /**
    * Tests the methods that gets entity descriptors from a provider.
    *
@@ -143,6 +204,44 @@ public abstract class BaseMetadataProviderTest extends OpenSAMLTestBase {
     }
   }
 
+  /**
+   * Tests that the entity lists are served from a snapshot that is built once per metadata update, and that the lists
+   * returned by {@code getIdentityProviders} and {@code getServiceProviders} may be modified by the caller.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testSnapshot() throws Exception {
+    final AbstractMetadataProvider provider =
+        this.createMetadataProvider(new ClassPathResource("/metadata/sveleg-fedtest-complex.xml"));
+
+    try {
+      provider.initialize();
+
+      final MetadataSnapshot snapshot = provider.getSnapshot();
+      Assertions.assertSame(snapshot, provider.getSnapshot());
+      Assertions.assertSame(snapshot.getIdentityProviders(), provider.getSnapshot().getIdentityProviders());
+      Assertions.assertThrows(UnsupportedOperationException.class, () -> snapshot.getIdentityProviders().clear());
+
+      final List<EntityDescriptor> idps = provider.getIdentityProviders();
+      Assertions.assertEquals(snapshot.getIdentityProviders(), idps);
+      Assertions.assertEquals(snapshot.getServiceProviders(), provider.getServiceProviders());
+      for (final EntityDescriptor ed : provider.iterator(IDPSSODescriptor.DEFAULT_ELEMENT_NAME)) {
+        Assertions.assertTrue(idps.contains(ed));
+      }
+
+      // The caller owns the returned list ...
+      final int size = idps.size();
+      idps.clear();
+      Assertions.assertEquals(size, provider.getIdentityProviders().size());
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
   /**
    * Tests getting the DOM of the entire metadata held by the provider.
    *
@@ -169,6 +268,43 @@ public abstract class BaseMetadataProviderTest extends OpenSAMLTestBase {
     }
   }
 
+  /**
+   * Tests that the DOM is released when the provider is configured to do so, and that the metadata DOM can still be
+   * obtained.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testReleaseDOM() throws Exception {
+    final AbstractMetadataProvider provider =
+        this.createMetadataProvider(new ClassPathResource("/metadata/sveleg-fedtest.xml"));
+    try {
+      provider.setReleaseDOM(true);
+      provider.initialize();
+      Assertions.assertNull(provider.getMetadata().getDOM());
+      for (final EntityDescriptor e : provider.iterator()) {
+        Assertions.assertNull(e.getDOM());
+        for (final RoleDescriptor r : e.getRoleDescriptors()) {
+          Assertions.assertNull(r.getDOM());
+        }
+      }
+
+      final Element dom = provider.getMetadataDOM();
+      Assertions.assertNotNull(dom);
+      Assertions.assertNull(provider.getMetadata().getDOM());
+      for (final EntityDescriptor e : provider.iterator()) {
+        Assertions.assertNull(e.getDOM());
+      }
+      final EntitiesDescriptor ed = (EntitiesDescriptor) XMLObjectSupport.getUnmarshaller(dom).unmarshall(dom);
+      Assertions.assertEquals(45, ed.getEntityDescriptors().size());
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
   /**
    * Tests schema validation filter.
    *
@@ -239,7 +375,133 @@ public abstract class BaseMetadataProviderTest extends OpenSAMLTestBase {
     return Stream.of(
         Arguments.of(MetadataProviderPredicates.includeOnlyIDPs(), Integer.valueOf(2)),
         Arguments.of(MetadataProviderPredicates.includeOnlyIDPsAndMe(TEST_SP), Integer.valueOf(3)),
-        Arguments.of(MetadataProviderPredicates.includeOnlySPs(), Integer.valueOf(43)));
+        Arguments.of(MetadataProviderPredicates.includeOnlySPs(), Integer.valueOf(43)),
+        Arguments.of(MetadataProviderPredicates.includeOnlyEntityIds(
+            List.of(TEST_IDP, TEST_SP, "https://not.in.metadata.example.com")), Integer.valueOf(2)));
+  }
+
+  /**
+   * Tests that inclusion and exclusion predicates are combined.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testInclusionAndExclusionPredicates() throws Exception {
+    final AbstractMetadataProvider provider =
+        this.createMetadataProvider(new ClassPathResource("/metadata/sveleg-fedtest.xml"));
+    try {
+      provider.setInclusionPredicates(List.of(MetadataProviderPredicates.includeOnlySPs()));
+      provider.setExclusionPredicates(List.of(MetadataProviderPredicates.excludeEntityIds(List.of(TEST_SP))));
+      provider.initialize();
+      final List<EntityDescriptor> list = new ArrayList<>();
+      provider.iterator().forEach(list::add);
+      Assertions.assertEquals(42, list.size());
+      Assertions.assertNull(provider.getEntityDescriptor(TEST_SP));
+      Assertions.assertNull(provider.getEntityDescriptor(TEST_IDP));
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * Tests querying using the secondary indexes.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testFindEntityDescriptors() throws Exception {
+    final AbstractMetadataProvider provider =
+        this.createMetadataProvider(new ClassPathResource("/metadata/sveleg-fedtest.xml"));
+    try {
+      provider.initialize();
+
+      final MetadataQuery idpQuery = MetadataQuery.builder()
+          .role(IDPSSODescriptor.DEFAULT_ELEMENT_NAME)
+          .entityCategories("http://id.elegnamnden.se/ec/1.0/loa3-pnr")
+          .assuranceCertifications("http://id.elegnamnden.se/loa/1.0/loa4")
+          .scope("3xasecurity.com")
+          .build();
+      final List<EntityDescriptor> idps = provider.findEntityDescriptors(idpQuery);
+      Assertions.assertEquals(2, idps.size());
+      Assertions.assertTrue(idps.stream().anyMatch(e -> TEST_IDP.equals(e.getEntityID())));
+
+      Assertions.assertEquals(List.of("https://midp.svelegtest.se/idp"),
+          provider.findEntityDescriptors(MetadataQuery.builder()
+              .entityCategories("http://id.elegnamnden.se/ec/1.0/loa3-pnr", "http://id.elegnamnden.se/ec/1.0/loa3-int")
+              .build())
+              .stream().map(EntityDescriptor::getEntityID).toList());
+
+      Assertions.assertTrue(provider.findEntityDescriptors(MetadataQuery.builder()
+          .role(IDPSSODescriptor.DEFAULT_ELEMENT_NAME)
+          .scope("other.example.com")
+          .build()).isEmpty());
+
+      // The indexes should give the same result as evaluating the query for each entity ...
+      final MetadataQuery spQuery = MetadataQuery.builder()
+          .role(SPSSODescriptor.DEFAULT_ELEMENT_NAME)
+          .entityCategories("http://id.elegnamnden.se/ec/1.0/loa3-pnr")
+          .nameIdFormats("urn:oasis:names:tc:SAML:2.0:nameid-format:persistent")
+          .build();
+      final List<EntityDescriptor> expected = new ArrayList<>();
+      provider.iterator().forEach(e -> {
+        if (spQuery.test(e)) {
+          expected.add(e);
+        }
+      });
+      Assertions.assertFalse(expected.isEmpty());
+      Assertions.assertEquals(expected, provider.findEntityDescriptors(spQuery));
+      Assertions.assertEquals(provider.getSnapshot().size(),
+          provider.findEntityDescriptors(MetadataQuery.builder().build()).size());
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * Tests searching for IdP:s by name, with diacritics folded and matches in the requested language ranked higher.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testSearchIdentityProviders() throws Exception {
+    final AbstractMetadataProvider provider =
+        this.createMetadataProvider(new ClassPathResource("/metadata/sveleg-fedtest.xml"));
+    try {
+      provider.initialize();
+
+      // Diacritics are folded, so "legitimeringstjanst" matches "Legitimeringstjänst" ...
+      List<IdpSearchIndex.Match> matches = provider.searchIdentityProviders("legitimeringstjanst", "sv", 10);
+      Assertions.assertEquals(2, matches.size());
+      Assertions.assertEquals(TEST_IDP, matches.get(0).entityID());
+      Assertions.assertEquals("E-legitimationsnämndens Legitimeringstjänst för test", matches.get(0).displayName());
+
+      matches = provider.searchIdentityProviders("E-IDENT board mob", "en", 10);
+      Assertions.assertEquals(1, matches.size());
+      Assertions.assertEquals("https://midp.svelegtest.se/idp", matches.get(0).entityID());
+      Assertions.assertEquals("The e-Identification Board Mobile Test Identity Provider", matches.get(0).displayName());
+
+      // Matches in the requested language are ranked higher ...
+      final int enScore = provider.searchIdentityProviders("board", "en", 1).get(0).score();
+      Assertions.assertTrue(enScore > provider.searchIdentityProviders("board", "sv", 1).get(0).score());
+
+      // SP:s are not indexed ...
+      Assertions.assertTrue(provider.searchIdentityProviders("transportstyrelsen", null, 10).isEmpty());
+      Assertions.assertTrue(provider.searchIdentityProviders("xyz", null, 10).isEmpty());
+      Assertions.assertEquals(1, provider.searchIdentityProviders(" ", null, 1).size());
+      Assertions.assertEquals(2, provider.searchIdentityProviders(null, null, 0).size());
+      Assertions.assertTrue(provider.getSnapshot().isIdpSearchIndexed());
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
   }
 
   /**
@@ -272,4 +534,142 @@ public abstract class BaseMetadataProviderTest extends OpenSAMLTestBase {
     }
   }
 
+  /**
+   * Tests that metadata is loaded from the verified metadata cache, without being filtered, when the source has not
+   * changed.
+   *
+   * @param dir temporary directory
+   * @throws Exception for errors
+   */
+  @Test
+  public void testVerifiedMetadataCache(@TempDir final File dir) throws Exception {
+    this.assumeVerifiedMetadataCacheSupported();
+
+    final File cacheFile = new File(dir, "sveleg-fedtest.cache");
+    final AtomicInteger calls = new AtomicInteger();
+    final Predicate<EntityDescriptor> predicate = MetadataProviderPredicates.describedAs("include-all", e -> {
+      calls.incrementAndGet();
+      return true;
+    });
+
+    this.withProvider(new ClassPathResource("/metadata/sveleg-fedtest.xml"), provider -> {
+      provider.setVerifiedMetadataCacheFile(cacheFile);
+      provider.setInclusionPredicates(List.of(predicate));
+      provider.initialize();
+      Assertions.assertTrue(cacheFile.isFile());
+      Assertions.assertEquals(45, calls.get());
+      Assertions.assertEquals(45, provider.getSnapshot().size());
+    });
+
+    calls.set(0);
+    this.withProvider(new ClassPathResource("/metadata/sveleg-fedtest.xml"), provider -> {
+      provider.setVerifiedMetadataCacheFile(cacheFile);
+      provider.setInclusionPredicates(List.of(predicate));
+      provider.initialize();
+      Assertions.assertEquals(0, calls.get());
+      Assertions.assertEquals(45, provider.getSnapshot().size());
+      Assertions.assertNotNull(provider.getEntityDescriptor(TEST_IDP));
+    });
+  }
+
+  /**
+   * Tests that a verified metadata cache protected by a key is only used by a provider having the same key, and that
+   * the cache file is created readable by its owner only.
+   *
+   * @param dir temporary directory
+   * @throws Exception for errors
+   */
+  @Test
+  public void testVerifiedMetadataCacheKey(@TempDir final File dir) throws Exception {
+    this.assumeVerifiedMetadataCacheSupported();
+
+    final File cacheFile = new File(dir, "sveleg-fedtest.cache");
+    final SecretKey key = new SecretKeySpec("0123456789abcdef0123456789abcdef".getBytes(), "HmacSHA256");
+    final SecretKey otherKey = new SecretKeySpec("fedcba9876543210fedcba9876543210".getBytes(), "HmacSHA256");
+
+    this.withProvider(new ClassPathResource("/metadata/sveleg-fedtest.xml"), provider -> {
+      provider.setVerifiedMetadataCacheFile(cacheFile);
+      provider.setVerifiedMetadataCacheKey(key);
+      provider.initialize();
+      Assertions.assertTrue(cacheFile.isFile());
+      Assertions.assertEquals(1, provider.getVerificationCount());
+      if (cacheFile.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+        Assertions.assertEquals(PosixFilePermissions.fromString("rw-------"),
+            Files.getPosixFilePermissions(cacheFile.toPath()));
+      }
+    });
+
+    // Another key - the cache must not be used ...
+    this.withProvider(new ClassPathResource("/metadata/sveleg-fedtest.xml"), provider -> {
+      provider.setVerifiedMetadataCacheFile(cacheFile);
+      provider.setVerifiedMetadataCacheKey(otherKey);
+      provider.initialize();
+      Assertions.assertEquals(1, provider.getVerificationCount());
+    });
+
+    // The cache was re-written using the other key ...
+    this.withProvider(new ClassPathResource("/metadata/sveleg-fedtest.xml"), provider -> {
+      provider.setVerifiedMetadataCacheFile(cacheFile);
+      provider.setVerifiedMetadataCacheKey(otherKey);
+      provider.initialize();
+      Assertions.assertEquals(0, provider.getVerificationCount());
+      Assertions.assertEquals(45, provider.getSnapshot().size());
+    });
+  }
+
+  /**
+   * Tests that the verified metadata cache is bound to the inclusion predicates, and that it is not used if the
+   * predicates can not be identified.
+   *
+   * @param dir temporary directory
+   * @throws Exception for errors
+   */
+  @Test
+  public void testVerifiedMetadataCachePredicates(@TempDir final File dir) throws Exception {
+    this.assumeVerifiedMetadataCacheSupported();
+
+    final File cacheFile = new File(dir, "sveleg-fedtest.cache");
+
+    this.withProvider(new ClassPathResource("/metadata/sveleg-fedtest.xml"), provider -> {
+      provider.setVerifiedMetadataCacheFile(cacheFile);
+      provider.setInclusionPredicates(List.of(MetadataProviderPredicates.includeOnlyEntityIds(
+          List.of(TEST_IDP, TEST_SP))));
+      provider.initialize();
+      Assertions.assertTrue(cacheFile.isFile());
+      Assertions.assertEquals(2, provider.getSnapshot().size());
+    });
+
+    // Other entityID:s - the cache must not be used ...
+    this.withProvider(new ClassPathResource("/metadata/sveleg-fedtest.xml"), provider -> {
+      provider.setVerifiedMetadataCacheFile(cacheFile);
+      provider.setInclusionPredicates(List.of(MetadataProviderPredicates.includeOnlyEntityIds(List.of(TEST_IDP))));
+      provider.initialize();
+      Assertions.assertEquals(1, provider.getSnapshot().size());
+      Assertions.assertNull(provider.getEntityDescriptor(TEST_SP));
+    });
+
+    // A predicate that can not be identified - no cache is used ...
+    final File cacheFile2 = new File(dir, "sveleg-fedtest2.cache");
+    this.withProvider(new ClassPathResource("/metadata/sveleg-fedtest.xml"), provider -> {
+      provider.setVerifiedMetadataCacheFile(cacheFile2);
+      provider.setInclusionPredicates(List.of(e -> true));
+      provider.initialize();
+      Assertions.assertEquals(45, provider.getSnapshot().size());
+      Assertions.assertFalse(cacheFile2.exists());
+    });
+  }
+
+  /**
+   * The verified metadata cache can only be used by providers whose resolvers let the provider unmarshall the metadata.
+   * Skips the current test for other providers.
+   *
+   * @throws Exception for errors
+   */
+  private void assumeVerifiedMetadataCacheSupported() throws Exception {
+    final AbstractMetadataProvider provider =
+        this.createMetadataProvider(new ClassPathResource("/metadata/sveleg-fedtest.xml"));
+    Assumptions.assumeTrue(provider.isCustomUnmarshallingSupported(),
+        "The verified metadata cache is not supported by " + provider.getClass().getSimpleName());
+  }
+
 }
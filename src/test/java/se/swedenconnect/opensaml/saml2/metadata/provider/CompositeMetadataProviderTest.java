@@ -15,13 +15,21 @@
  */
 package se.swedenconnect.opensaml.saml2.metadata.provider;
 
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.resolver.CriteriaSet;
+import net.shibboleth.shared.resolver.ResolverException;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opensaml.core.criterion.EntityIdCriterion;
 import org.opensaml.core.xml.XMLObject;
 import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
 import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.metadata.resolver.MetadataResolver;
+import org.opensaml.saml.metadata.resolver.filter.MetadataFilter;
+import org.opensaml.saml.metadata.resolver.impl.FilesystemMetadataResolver;
 import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
@@ -31,11 +39,22 @@ import org.springframework.core.io.Resource;
 import org.w3c.dom.Element;
 import se.swedenconnect.opensaml.OpenSAMLTestBase;
 
+import javax.xml.namespace.QName;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Test cases for the {@code CompositeMetadataProvider} class.
@@ -161,6 +180,618 @@ public class CompositeMetadataProviderTest extends OpenSAMLTestBase {
     }
   }
 
+  /**
+   * Tests that duplicate entries (from two providers reading the same metadata) are removed.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testDuplicates() throws Exception {
+    final CompositeMetadataProvider provider =
+        new CompositeMetadataProvider("MetadataService", Arrays.asList(new FilesystemMetadataProvider(part1.getFile()),
+            new FilesystemMetadataProvider(part2.getFile()), new FilesystemMetadataProvider(part1.getFile()),
+            new FilesystemMetadataProvider(part3.getFile())));
+
+    try {
+      provider.initialize();
+
+      final EntitiesDescriptor metadata = (EntitiesDescriptor) provider.getMetadata();
+      Assertions.assertEquals(45, metadata.getEntityDescriptors().size());
+      Assertions.assertSame(metadata, provider.getMetadata());
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * Tests that the composite view exposes the underlying providers' entity descriptors without copying them, and that
+   * copies are only made for the compiled metadata.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testView() throws Exception {
+    final FilesystemMetadataProvider p1 = new FilesystemMetadataProvider(part1.getFile());
+    final CompositeMetadataProvider provider =
+        new CompositeMetadataProvider("MetadataService", Arrays.asList(p1,
+            new FilesystemMetadataProvider(part2.getFile()), new FilesystemMetadataProvider(part3.getFile())));
+
+    try {
+      provider.initialize();
+
+      final EntityDescriptor ed = p1.iterator().iterator().next();
+      Assertions.assertTrue(provider.getSnapshot().getEntityDescriptors().contains(ed));
+      Assertions.assertSame(ed, provider.getSnapshot().getEntityDescriptor(ed.getEntityID()));
+
+      final EntitiesDescriptor metadata = (EntitiesDescriptor) provider.getMetadata();
+      Assertions.assertEquals(45, metadata.getEntityDescriptors().size());
+      Assertions.assertFalse(metadata.getEntityDescriptors().contains(ed));
+      Assertions.assertTrue(metadata.getEntityDescriptors().stream().allMatch(e -> e.getSignature() == null));
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * Tests initializing the underlying providers in parallel.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testParallelInitialization() throws Exception {
+    final CompositeMetadataProvider provider =
+        new CompositeMetadataProvider("MetadataService", Arrays.asList(new FilesystemMetadataProvider(part1.getFile()),
+            new FilesystemMetadataProvider(part2.getFile()), new FilesystemMetadataProvider(part3.getFile())));
+    provider.setParallelInitialization(true);
+    provider.setInitializationTimeout(Duration.ofSeconds(30));
+
+    try {
+      provider.initialize();
+
+      Assertions.assertEquals(3, provider.getInitializationTimes().size());
+      Assertions.assertEquals(2, provider.getIdentityProviders().size());
+      Assertions.assertEquals(43, provider.getServiceProviders().size());
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * Tests that all underlying providers whose initialization was started are destroyed if the parallel initialization
+   * times out, including the provider that did not complete its initialization.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testParallelInitializationTimeout() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final FilesystemMetadataProvider p1 = new FilesystemMetadataProvider(part1.getFile());
+    final FilesystemMetadataProvider p2 = new FilesystemMetadataProvider(part2.getFile()) {
+
+      @Override
+      protected void initializeMetadataResolver() throws ComponentInitializationException {
+        super.initializeMetadataResolver();
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        }
+        catch (final InterruptedException e) {
+          throw new ComponentInitializationException("Interrupted", e);
+        }
+      }
+    };
+    final CompositeMetadataProvider provider = new CompositeMetadataProvider("MetadataService", List.of(p1, p2));
+    provider.setParallelInitialization(true);
+    provider.setInitializationTimeout(Duration.ofMillis(100));
+
+    try {
+      Assertions.assertThrows(ComponentInitializationException.class, provider::initialize);
+    }
+    finally {
+      release.countDown();
+    }
+
+    final long deadline = System.currentTimeMillis() + 5_000L;
+    while (!(p1.isDestroyed() && p2.isDestroyed()) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50L);
+    }
+    Assertions.assertTrue(p1.isDestroyed());
+    Assertions.assertTrue(p2.isDestroyed());
+  }
+
+  /**
+   * Tests querying the underlying resolvers in parallel.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testParallelResolution() throws Exception {
+    final CompositeMetadataProvider provider =
+        new CompositeMetadataProvider("MetadataService", Arrays.asList(new FilesystemMetadataProvider(part1.getFile()),
+            new FilesystemMetadataProvider(part2.getFile()), new FilesystemMetadataProvider(part3.getFile())));
+    provider.setParallelResolution(true);
+    provider.setResolutionTimeout(Duration.ofSeconds(10));
+
+    try {
+      provider.initialize();
+
+      Assertions.assertNotNull(provider.getEntityDescriptor(TEST_IDP, IDPSSODescriptor.DEFAULT_ELEMENT_NAME));
+      Assertions.assertNotNull(provider.getEntityDescriptor(TEST_SP, SPSSODescriptor.DEFAULT_ELEMENT_NAME));
+      Assertions.assertNull(provider.getEntityDescriptor("http://not.an.entity"));
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * Tests that parallel resolution returns the hit from a resolver as soon as all resolvers before it have responded,
+   * without waiting for slower resolvers further down the list.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testParallelResolutionFirstHit() throws Exception {
+    final CompositeMetadataProvider provider = new CompositeMetadataProvider("MetadataService",
+        List.of(new FilesystemMetadataProvider(part2.getFile()), new SlowProvider(part1.getFile(), 2_000L)));
+    provider.setParallelResolution(true);
+    provider.setResolutionTimeout(Duration.ofSeconds(10));
+
+    try {
+      provider.initialize();
+
+      final long start = System.currentTimeMillis();
+      final EntityDescriptor ed =
+          provider.getMetadataResolver().resolveSingle(new CriteriaSet(new EntityIdCriterion(TEST_IDP)));
+      Assertions.assertNotNull(ed);
+      Assertions.assertTrue(System.currentTimeMillis() - start < 1_000L);
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * Tests that a resolver that responds after the resolution timeout, but within its own timeout, is not counted as
+   * failing by the circuit breaker, and that a resolver exceeding its own timeout is.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testParallelResolutionChildTimeout() throws Exception {
+    final CriteriaSet criteria = new CriteriaSet(new EntityIdCriterion(TEST_IDP));
+    for (final boolean exceedChildTimeout : List.of(false, true)) {
+      final SlowProvider slow = new SlowProvider(part2.getFile(), 500L);
+      final CompositeMetadataProvider provider = new CompositeMetadataProvider("MetadataService", List.of(slow));
+      provider.setParallelResolution(true);
+      provider.setResolutionTimeout(Duration.ofMillis(100));
+      provider.setChildResolutionTimeout(exceedChildTimeout ? Duration.ofMillis(200) : Duration.ofSeconds(5));
+      provider.setCircuitBreakerThreshold(1);
+      provider.setCircuitBreakerOpenDuration(Duration.ofMinutes(1));
+
+      try {
+        provider.initialize();
+
+        Assertions.assertNull(provider.getMetadataResolver().resolveSingle(criteria));
+        // Let the lookup complete ...
+        Thread.sleep(1_000L);
+        Assertions.assertNull(provider.getMetadataResolver().resolveSingle(criteria));
+        Assertions.assertEquals(exceedChildTimeout ? 1 : 2, slow.getLookups());
+      }
+      finally {
+        if (provider.isInitialized()) {
+          provider.destroy();
+        }
+      }
+    }
+  }
+
+  /**
+   * Tests that only the providers whose metadata has changed are read again when the composite metadata is
+   * collected.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testIncrementalCollection(@TempDir final File dir) throws Exception {
+    final File file = new File(dir, "metadata.xml");
+    Files.copy(part2.getInputStream(), file.toPath());
+
+    final TestProvider p1 = new TestProvider(part1.getFile());
+    final TestProvider p2 = new TestProvider(file);
+    final CompositeMetadataProvider provider = new CompositeMetadataProvider("MetadataService", List.of(p1, p2));
+    provider.setBackgroundRebuild(false);
+
+    try {
+      provider.initialize();
+      Assertions.assertNotNull(provider.getEntityDescriptor(TEST_IDP));
+      final int p1Reads = p1.getIteratorCalls();
+      final int p2Reads = p2.getIteratorCalls();
+      Assertions.assertTrue(p1Reads > 0);
+
+      // Replace the metadata of the second provider ...
+      Files.copy(part3.getInputStream(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      Assertions.assertTrue(file.setLastModified(System.currentTimeMillis() + 10_000L));
+      p2.refresh();
+
+      Assertions.assertNotNull(provider.getEntityDescriptor(TEST_SP));
+      Assertions.assertNull(provider.getSnapshot().getEntityDescriptor(TEST_IDP));
+
+      // The entries of the unchanged provider should have been re-used ...
+      Assertions.assertEquals(p1Reads, p1.getIteratorCalls());
+      Assertions.assertTrue(p2.getIteratorCalls() > p2Reads);
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * Tests that the change sets of the underlying providers are reported after the composite view has been updated,
+   * and that an entity removed from one provider, but still served by another, is not reported as removed.
+   *
+   * @param dir temporary directory
+   * @throws Exception for errors
+   */
+  @Test
+  public void testChangeListener(@TempDir final File dir) throws Exception {
+    final File file1 = new File(dir, "metadata1.xml");
+    final File file2 = new File(dir, "metadata2.xml");
+    Files.copy(new ClassPathResource("/metadata/sveleg-fedtest.xml").getInputStream(), file1.toPath());
+    Files.copy(file1.toPath(), file2.toPath());
+    final AtomicBoolean exclude1 = new AtomicBoolean(false);
+    final AtomicBoolean exclude2 = new AtomicBoolean(false);
+
+    final FilesystemMetadataProvider p1 = new FilesystemMetadataProvider(file1);
+    p1.setExclusionPredicates(List.of(e -> exclude1.get() && TEST_SP.equals(e.getEntityID())));
+    final FilesystemMetadataProvider p2 = new FilesystemMetadataProvider(file2);
+    p2.setExclusionPredicates(List.of(e -> exclude2.get() && TEST_SP.equals(e.getEntityID())));
+    final CompositeMetadataProvider provider = new CompositeMetadataProvider("MetadataService", List.of(p1, p2));
+
+    final List<MetadataChangeSet> changes = new CopyOnWriteArrayList<>();
+    final List<Boolean> servedOnDelivery = new CopyOnWriteArrayList<>();
+    try {
+      provider.initialize();
+      provider.addChangeListener(c -> {
+        servedOnDelivery.add(provider.getSnapshot().getEntityDescriptor(TEST_SP) != null);
+        changes.add(c);
+      });
+      Assertions.assertNotNull(provider.getEntityDescriptor(TEST_SP));
+
+      // Remove the entity from the provider that serves it, it is still served by the other provider ...
+      exclude1.set(true);
+      Assertions.assertTrue(file1.setLastModified(file1.lastModified() + 10_000L));
+      p1.refresh();
+      Thread.sleep(500L);
+      Assertions.assertTrue(changes.isEmpty());
+
+      // Remove it from the other provider as well ...
+      exclude2.set(true);
+      Assertions.assertTrue(file2.setLastModified(file2.lastModified() + 10_000L));
+      p2.refresh();
+      final long deadline = System.currentTimeMillis() + 5_000L;
+      while (changes.isEmpty() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(20L);
+      }
+      Assertions.assertEquals(1, changes.size());
+      Assertions.assertEquals("MetadataService", changes.get(0).providerId());
+      Assertions.assertEquals(Set.of(TEST_SP), changes.get(0).removed());
+      Assertions.assertTrue(changes.get(0).added().isEmpty());
+
+      // The change set was delivered after the updated view was installed ...
+      Assertions.assertEquals(List.of(false), servedOnDelivery);
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * Tests that compiled metadata is re-used if no underlying metadata changed, and that previously compiled metadata
+   * is left untouched when the metadata is compiled again.
+   *
+   * @param dir temporary directory
+   * @throws Exception for errors
+   */
+  @Test
+  public void testCompiledMetadata(@TempDir final File dir) throws Exception {
+    final File file = new File(dir, "metadata.xml");
+    Files.copy(part2.getInputStream(), file.toPath());
+
+    final TestProvider p1 = new TestProvider(part1.getFile());
+    final TestProvider p2 = new TestProvider(file);
+    p2.setSkipUnchangedMetadata(true);
+    final CompositeMetadataProvider provider = new CompositeMetadataProvider("MetadataService", List.of(p1, p2));
+    provider.setBackgroundRebuild(false);
+
+    try {
+      provider.initialize();
+      final EntitiesDescriptor metadata = (EntitiesDescriptor) provider.getMetadata();
+      Assertions.assertNotNull(metadata);
+      final int size = metadata.getEntityDescriptors().size();
+
+      // Refresh with unchanged metadata - the compiled metadata should be re-used ...
+      Assertions.assertTrue(file.setLastModified(System.currentTimeMillis() + 10_000L));
+      p2.refresh();
+      Assertions.assertSame(metadata, provider.getMetadata());
+
+      // Change the metadata - a new copy is compiled, and the old one is left as is ...
+      Files.copy(part3.getInputStream(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      Assertions.assertTrue(file.setLastModified(System.currentTimeMillis() + 20_000L));
+      p2.refresh();
+      final EntitiesDescriptor metadata2 = (EntitiesDescriptor) provider.getMetadata();
+      Assertions.assertNotSame(metadata, metadata2);
+
+      Assertions.assertEquals(size, metadata.getEntityDescriptors().size());
+      for (final EntityDescriptor ed : metadata.getEntityDescriptors()) {
+        Assertions.assertSame(metadata, ed.getParent());
+      }
+      for (final EntityDescriptor ed : metadata2.getEntityDescriptors()) {
+        Assertions.assertSame(metadata2, ed.getParent());
+      }
+      Assertions.assertTrue(metadata2.getEntityDescriptors().stream().anyMatch(e -> TEST_SP.equals(e.getEntityID())));
+      Assertions.assertFalse(metadata2.getEntityDescriptors().stream().anyMatch(e -> TEST_IDP.equals(e.getEntityID())));
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * Tests that a lookup is routed to the provider holding the entity, and that the role is checked.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testRouting() throws Exception {
+    final TestProvider p1 = new TestProvider(part1.getFile());
+    final TestProvider p2 = new TestProvider(part2.getFile());
+    final TestProvider p3 = new TestProvider(part3.getFile());
+    final CompositeMetadataProvider provider =
+        new CompositeMetadataProvider("MetadataService", List.of(p1, p2, p3));
+
+    try {
+      provider.initialize();
+      provider.getSnapshot();
+
+      final EntityDescriptor ed = provider.getEntityDescriptor(TEST_SP);
+      Assertions.assertNotNull(ed);
+      Assertions.assertEquals(TEST_SP, ed.getEntityID());
+      Assertions.assertEquals(0, p1.getLookups());
+      Assertions.assertEquals(0, p2.getLookups());
+      Assertions.assertEquals(1, p3.getLookups());
+
+      // Role mismatch ...
+      Assertions.assertNotNull(provider.getEntityDescriptor(TEST_SP, SPSSODescriptor.DEFAULT_ELEMENT_NAME));
+      Assertions.assertNull(provider.getEntityDescriptor(TEST_SP, IDPSSODescriptor.DEFAULT_ELEMENT_NAME));
+      Assertions.assertNull(provider.getEntityDescriptor(TEST_IDP, SPSSODescriptor.DEFAULT_ELEMENT_NAME));
+
+      // Unknown entity - there are no dynamic providers, so no provider is asked ...
+      final int p1Lookups = p1.getLookups();
+      final int p2Lookups = p2.getLookups();
+      Assertions.assertNull(provider.getEntityDescriptor("http://not.an.entity"));
+      Assertions.assertEquals(p1Lookups, p1.getLookups());
+      Assertions.assertEquals(p2Lookups, p2.getLookups());
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * Tests that all providers are queried if the provider that holds the entity according to the routing index no
+   * longer returns it.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testRoutingOwnerLostEntry() throws Exception {
+    final TestProvider p1 = new TestProvider(part1.getFile());
+    final TestProvider p2 = new TestProvider(part2.getFile());
+    final CompositeMetadataProvider provider = new CompositeMetadataProvider("MetadataService", List.of(p1, p2));
+
+    try {
+      provider.initialize();
+      provider.getSnapshot();
+
+      p2.hide(TEST_IDP);
+      final EntityDescriptor ed = provider.getEntityDescriptor(TEST_IDP, IDPSSODescriptor.DEFAULT_ELEMENT_NAME);
+      Assertions.assertNotNull(ed);
+      Assertions.assertEquals(TEST_IDP, ed.getEntityID());
+      Assertions.assertEquals(1, p2.getLookups());
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * Tests that entities that are not part of the composite view are looked up at the dynamic providers only.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testRoutingDynamicProviders() throws Exception {
+    final TestProvider p1 = new TestProvider(part1.getFile());
+    final TestProvider p2 = new TestProvider(part2.getFile());
+
+    // A nested composite provider is treated as a dynamic provider. We let it hide its entities from the view,
+    // just as a dynamic provider that has not yet fetched an entity.
+    final TestProvider p3 = new TestProvider(part3.getFile());
+    final CompositeMetadataProvider dynamic = new CompositeMetadataProvider("Dynamic", List.of(p3)) {
+      @Override
+      public Iterable<EntityDescriptor> iterator() {
+        return List.of();
+      }
+    };
+    final CompositeMetadataProvider provider =
+        new CompositeMetadataProvider("MetadataService", List.of(p1, p2, dynamic));
+
+    try {
+      provider.initialize();
+      Assertions.assertNull(provider.getSnapshot().getEntityDescriptor(TEST_SP));
+
+      final EntityDescriptor ed = provider.getEntityDescriptor(TEST_SP, SPSSODescriptor.DEFAULT_ELEMENT_NAME);
+      Assertions.assertNotNull(ed);
+      Assertions.assertEquals(TEST_SP, ed.getEntityID());
+      Assertions.assertNull(provider.getEntityDescriptor(TEST_SP, IDPSSODescriptor.DEFAULT_ELEMENT_NAME));
+      Assertions.assertNull(provider.getEntityDescriptor("http://not.an.entity"));
+
+      Assertions.assertEquals(0, p1.getLookups());
+      Assertions.assertEquals(0, p2.getLookups());
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * Tests that entities that are not part of the composite view are looked up at the dynamic providers using parallel
+   * resolution, i.e., that a slow dynamic provider is subject to the resolution timeout and the circuit breaker.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testParallelResolutionDynamicProviders() throws Exception {
+    final AtomicInteger lookups = new AtomicInteger();
+    final CompositeMetadataProvider dynamic =
+        new CompositeMetadataProvider("Dynamic", List.of(new TestProvider(part3.getFile()))) {
+          @Override
+          public Iterable<EntityDescriptor> iterator() {
+            return List.of();
+          }
+
+          @Override
+          public EntityDescriptor getEntityDescriptor(final String entityID, final QName role)
+              throws ResolverException {
+            lookups.incrementAndGet();
+            try {
+              Thread.sleep(500L);
+            }
+            catch (final InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            return super.getEntityDescriptor(entityID, role);
+          }
+        };
+    final CompositeMetadataProvider provider = new CompositeMetadataProvider("MetadataService",
+        List.of(new FilesystemMetadataProvider(part1.getFile()), dynamic));
+    provider.setParallelResolution(true);
+    provider.setResolutionTimeout(Duration.ofMillis(100));
+    provider.setChildResolutionTimeout(Duration.ofMillis(200));
+    provider.setCircuitBreakerThreshold(1);
+    provider.setCircuitBreakerOpenDuration(Duration.ofMinutes(1));
+
+    try {
+      provider.initialize();
+      Assertions.assertNull(provider.getSnapshot().getEntityDescriptor(TEST_SP));
+
+      // We don't wait for the slow provider ...
+      long start = System.currentTimeMillis();
+      Assertions.assertNull(provider.getEntityDescriptor(TEST_SP));
+      Assertions.assertTrue(System.currentTimeMillis() - start < 400L);
+
+      // Let the lookup complete. It exceeded the child timeout, so the provider is skipped the next time ...
+      Thread.sleep(1_000L);
+      start = System.currentTimeMillis();
+      Assertions.assertNull(provider.getEntityDescriptor(TEST_SP));
+      Assertions.assertTrue(System.currentTimeMillis() - start < 400L);
+      Assertions.assertEquals(1, lookups.get());
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * Tests that an entity that was added to an underlying provider is found while the composite view is still being
+   * collected in the background.
+   *
+   * @param dir temporary directory
+   * @throws Exception for errors
+   */
+  @Test
+  public void testLookupDuringBackgroundRebuild(@TempDir final File dir) throws Exception {
+    final File file = new File(dir, "metadata.xml");
+    Files.copy(part2.getInputStream(), file.toPath());
+
+    final CountDownLatch latch = new CountDownLatch(1);
+    final AtomicBoolean block = new AtomicBoolean(false);
+    final TestProvider p1 = new TestProvider(part1.getFile()) {
+      @Override
+      public XMLObject getMetadata() {
+        if (block.get()) {
+          try {
+            latch.await();
+          }
+          catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return super.getMetadata();
+      }
+    };
+    final TestProvider p2 = new TestProvider(file);
+    final CompositeMetadataProvider provider = new CompositeMetadataProvider("MetadataService", List.of(p1, p2));
+
+    try {
+      provider.initialize();
+      Assertions.assertNotNull(provider.getEntityDescriptor(TEST_IDP));
+
+      // Add the SP to the second provider, and block the collection of a new view ...
+      Files.copy(part3.getInputStream(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      Assertions.assertTrue(file.setLastModified(System.currentTimeMillis() + 10_000L));
+      p2.refresh();
+      block.set(true);
+
+      final EntityDescriptor ed = provider.getEntityDescriptor(TEST_SP, SPSSODescriptor.DEFAULT_ELEMENT_NAME);
+      Assertions.assertNotNull(ed);
+      Assertions.assertEquals(TEST_SP, ed.getEntityID());
+      Assertions.assertNull(provider.getSnapshot().getEntityDescriptor(TEST_SP));
+
+      // Let the rebuild complete ...
+      block.set(false);
+      latch.countDown();
+      final long deadline = System.currentTimeMillis() + 5_000L;
+      while (provider.getSnapshot().getEntityDescriptor(TEST_SP) == null && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50L);
+      }
+      Assertions.assertNotNull(provider.getSnapshot().getEntityDescriptor(TEST_SP));
+    }
+    finally {
+      latch.countDown();
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
   @Test
   public void testValidUntil() throws Exception {
 
@@ -223,4 +854,156 @@ public class CompositeMetadataProviderTest extends OpenSAMLTestBase {
     }
   }
 
+  /**
+   * Tests that a nested composite provider does not have to compile its metadata when the outer provider collects its
+   * view, and that the validity of the nested provider is used.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testNestedComposite() throws Exception {
+    final Instant validUntil = Instant.parse("2028-01-01T12:00:00.00Z");
+    final EntitiesDescriptor two = unmarshall(part2.getInputStream(), EntitiesDescriptor.class);
+    two.setValidUntil(validUntil);
+
+    final AtomicInteger compilations = new AtomicInteger();
+    final CompositeMetadataProvider nested = new CompositeMetadataProvider("Nested",
+        List.of(new StaticMetadataProvider(two), new FilesystemMetadataProvider(part3.getFile()))) {
+      @Override
+      public XMLObject getMetadata() {
+        compilations.incrementAndGet();
+        return super.getMetadata();
+      }
+    };
+    final CompositeMetadataProvider provider = new CompositeMetadataProvider("MetadataService",
+        List.of(new FilesystemMetadataProvider(part1.getFile()), nested));
+
+    try {
+      provider.initialize();
+
+      Assertions.assertEquals(2, provider.getIdentityProviders().size());
+      Assertions.assertEquals(43, provider.getServiceProviders().size());
+      final EntitiesDescriptor metadata = (EntitiesDescriptor) provider.getMetadata();
+      Assertions.assertEquals(45, metadata.getEntityDescriptors().size());
+      Assertions.assertEquals(validUntil, metadata.getValidUntil());
+      Assertions.assertEquals(0, compilations.get());
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * A filesystem provider that counts how many times its entries are read.
+   */
+  private static class TestProvider extends FilesystemMetadataProvider {
+
+    /** The number of calls to iterator(). */
+    private final AtomicInteger iteratorCalls = new AtomicInteger();
+
+    /** The number of entity descriptor lookups. */
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    /** Entity ID:s that the provider pretends not to have when queried. */
+    private final Set<String> hidden = ConcurrentHashMap.newKeySet();
+
+    TestProvider(final File file) {
+      super(file);
+    }
+
+    @Override
+    public Iterable<EntityDescriptor> iterator() {
+      this.iteratorCalls.incrementAndGet();
+      return super.iterator();
+    }
+
+    @Override
+    public EntityDescriptor getEntityDescriptor(final String entityID, final QName role) throws ResolverException {
+      this.lookups.incrementAndGet();
+      return this.hidden.contains(entityID) ? null : super.getEntityDescriptor(entityID, role);
+    }
+
+    int getIteratorCalls() {
+      return this.iteratorCalls.get();
+    }
+
+    int getLookups() {
+      return this.lookups.get();
+    }
+
+    void hide(final String entityID) {
+      this.hidden.add(entityID);
+    }
+  }
+
+  /**
+   * A provider whose resolver is slow to respond to lookups.
+   */
+  private static class SlowProvider extends FilesystemMetadataProvider {
+
+    /** The file. */
+    private final File file;
+
+    /** The delay for each lookup (in millis). */
+    private final long delay;
+
+    /** The resolver. */
+    private FilesystemMetadataResolver resolver;
+
+    /** The number of lookups. */
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    SlowProvider(final File file, final long delay) {
+      super(file);
+      this.file = file;
+      this.delay = delay;
+    }
+
+    @Override
+    public MetadataResolver getMetadataResolver() {
+      return this.resolver;
+    }
+
+    @Override
+    protected void createMetadataResolver(final boolean requireValidMetadata, final boolean failFastInitialization,
+        final MetadataFilter filter) throws ResolverException {
+      this.resolver = new FilesystemMetadataResolver(this.file) {
+        @Override
+        public EntityDescriptor resolveSingle(final CriteriaSet criteria) throws ResolverException {
+          SlowProvider.this.lookups.incrementAndGet();
+          try {
+            Thread.sleep(SlowProvider.this.delay);
+          }
+          catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return super.resolveSingle(criteria);
+        }
+      };
+      this.resolver.setId(this.getID());
+      this.resolver.setRequireValidMetadata(requireValidMetadata);
+      this.resolver.setFailFastInitialization(failFastInitialization);
+      this.resolver.setMetadataFilter(filter);
+      this.resolver.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());
+    }
+
+    @Override
+    protected void initializeMetadataResolver() throws ComponentInitializationException {
+      this.resolver.initialize();
+    }
+
+    @Override
+    protected void destroyMetadataResolver() {
+      if (this.resolver != null) {
+        this.resolver.destroy();
+      }
+    }
+
+    int getLookups() {
+      return this.lookups.get();
+    }
+  }
+
 }
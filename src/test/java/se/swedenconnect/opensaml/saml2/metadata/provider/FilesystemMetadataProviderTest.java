@@ -15,8 +15,25 @@
  */
 package se.swedenconnect.opensaml.saml2.metadata.provider;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opensaml.core.xml.XMLObject;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
 
+import net.shibboleth.shared.resolver.ResolverException;
+
 /**
  * Test cases for the {@code FilesystemMetadataProvider}.
  * <p>
@@ -33,4 +50,170 @@ public class FilesystemMetadataProviderTest extends BaseMetadataProviderTest {
     return new FilesystemMetadataProvider(resource.getFile());
   }
 
+  /**
+   * Tests that verification and filtering is skipped when the metadata file is touched, but unchanged.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testSkipUnchangedMetadata(@TempDir final File dir) throws Exception {
+    final File metadataFile = copyMetadataFile(dir);
+    final AtomicInteger calls = new AtomicInteger();
+
+    withProvider(new FilesystemMetadataProvider(metadataFile), provider -> {
+      provider.setSkipUnchangedMetadata(true);
+      provider.setInclusionPredicates(List.of(e -> {
+        calls.incrementAndGet();
+        return true;
+      }));
+      provider.initialize();
+      final XMLObject metadata = provider.getMetadata();
+      Assertions.assertEquals(45, calls.get());
+      Assertions.assertEquals(1, provider.getVerificationCount());
+
+      Assertions.assertTrue(metadataFile.setLastModified(metadataFile.lastModified() + 10_000L));
+      provider.refresh();
+
+      Assertions.assertEquals(45, calls.get());
+      Assertions.assertEquals(1, provider.getVerificationCount());
+      Assertions.assertEquals(1, provider.getSkippedVerificationCount());
+      Assertions.assertSame(metadata, provider.getMetadata());
+      Assertions.assertNotNull(provider.getEntityDescriptor(TEST_IDP));
+    });
+  }
+
+  /**
+   * Tests that a refresh reports the removed, added and modified entities to the change listeners.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testChangeListener(@TempDir final File dir) throws Exception {
+    final File metadataFile = copyMetadataFile(dir);
+    final AtomicBoolean excludeSp = new AtomicBoolean(false);
+    final List<MetadataChangeSet> changes = new ArrayList<>();
+
+    withProvider(new FilesystemMetadataProvider(metadataFile), provider -> {
+      provider.setSkipUnchangedMetadata(false);
+      provider.setExclusionPredicates(List.of(e -> excludeSp.get() && TEST_SP.equals(e.getEntityID())));
+      provider.initialize();
+      provider.addChangeListener(changes::add);
+
+      // Remove an entity ...
+      excludeSp.set(true);
+      Assertions.assertTrue(metadataFile.setLastModified(metadataFile.lastModified() + 10_000L));
+      provider.refresh();
+
+      Assertions.assertEquals(1, changes.size());
+      Assertions.assertEquals(Set.of(TEST_SP), changes.get(0).removed());
+      Assertions.assertTrue(changes.get(0).added().isEmpty());
+      Assertions.assertTrue(changes.get(0).modified().isEmpty());
+
+      // Add it again, and modify another entity ...
+      excludeSp.set(false);
+      final String contents = Files.readString(metadataFile.toPath());
+      Files.writeString(metadataFile.toPath(), contents.replace(
+          "The e-Identification Board Test Identity Provider", "The e-Identification Board Test IdP"));
+      Assertions.assertTrue(metadataFile.setLastModified(System.currentTimeMillis() + 20_000L));
+      provider.refresh();
+
+      Assertions.assertEquals(2, changes.size());
+      Assertions.assertEquals(Set.of(TEST_SP), changes.get(1).added());
+      Assertions.assertEquals(Set.of(TEST_IDP), changes.get(1).modified());
+      Assertions.assertTrue(changes.get(1).removed().isEmpty());
+    });
+  }
+
+  /**
+   * Tests that downloads, parsing, filtering and failed refreshes are reported to the metrics.
+   *
+   * @param dir temporary directory
+   * @throws Exception for errors
+   */
+  @Test
+  public void testMetrics(@TempDir final File dir) throws Exception {
+    final File metadataFile = copyMetadataFile(dir);
+    final InMemoryMetadataProviderMetrics metrics = new InMemoryMetadataProviderMetrics();
+
+    withProvider(new FilesystemMetadataProvider(metadataFile), provider -> {
+      provider.setMetrics(metrics);
+      provider.setExclusionPredicates(List.of(e -> TEST_SP.equals(e.getEntityID())));
+      provider.initialize();
+
+      InMemoryMetadataProviderMetrics.Statistics statistics = metrics.getStatistics(provider.getID());
+      Assertions.assertNotNull(statistics);
+      Assertions.assertEquals(1, statistics.download().count());
+      Assertions.assertEquals(metadataFile.length(), statistics.uncompressedBytes());
+      Assertions.assertEquals(1, statistics.parse().count());
+      // The role restriction and the predicates are applied in one pass, but timed separately ...
+      Assertions.assertEquals(1, statistics.getFilter(MetadataProviderMetrics.FILTER_ROLE).count());
+      Assertions.assertEquals(1, statistics.getFilter(MetadataProviderMetrics.FILTER_PREDICATE).count());
+      Assertions.assertEquals(0, statistics.getFilter(MetadataProviderMetrics.FILTER_SIGNATURE).count());
+      Assertions.assertEquals(45, statistics.entitiesBeforeFiltering());
+      Assertions.assertTrue(statistics.entitiesAfterFiltering() < 45);
+      Assertions.assertEquals(statistics.entitiesAfterFiltering(), statistics.snapshotSize());
+      Assertions.assertEquals(0, statistics.refreshFailures());
+
+      // A failed refresh ...
+      Assertions.assertTrue(metadataFile.delete());
+      Assertions.assertThrows(ResolverException.class, () -> provider.refresh());
+
+      statistics = metrics.getStatistics(provider.getID());
+      Assertions.assertEquals(1, statistics.refreshFailures());
+      Assertions.assertNotNull(statistics.lastFailure());
+    });
+  }
+
+  /**
+   * Tests that a provider registered with a refresh scheduler is refreshed by the scheduler, and that it is
+   * unregistered from the scheduler when it is destroyed.
+   *
+   * @param dir temporary directory
+   * @throws Exception for errors
+   */
+  @Test
+  public void testRefreshScheduler(@TempDir final File dir) throws Exception {
+    final File metadataFile = copyMetadataFile(dir);
+
+    final MetadataRefreshScheduler scheduler = new MetadataRefreshScheduler();
+    scheduler.setMinRefreshDelay(Duration.ofMillis(50));
+    scheduler.setMaxRefreshDelay(Duration.ofMillis(100));
+    scheduler.initialize();
+
+    final FilesystemMetadataProvider provider = new FilesystemMetadataProvider(metadataFile);
+    try {
+      withProvider(provider, p -> {
+        p.setSkipUnchangedMetadata(true);
+        p.setRefreshScheduler(scheduler);
+        p.initialize();
+        Assertions.assertTrue(scheduler.isRegistered(p));
+
+        Assertions.assertTrue(metadataFile.setLastModified(metadataFile.lastModified() + 10_000L));
+        final long deadline = System.currentTimeMillis() + 5_000L;
+        while (p.getSkippedVerificationCount() == 0 && System.currentTimeMillis() < deadline) {
+          Thread.sleep(20L);
+        }
+        Assertions.assertTrue(p.getSkippedVerificationCount() > 0);
+        Assertions.assertEquals(1, p.getVerificationCount());
+      });
+      Assertions.assertFalse(scheduler.isRegistered(provider));
+    }
+    finally {
+      scheduler.destroy();
+    }
+  }
+
+  /**
+   * Copies the test metadata to a file in the supplied directory, so that a test may touch or modify it.
+   *
+   * @param dir the directory
+   * @return the metadata file
+   * @throws IOException for errors copying the file
+   */
+  private static File copyMetadataFile(final File dir) throws IOException {
+    final File metadataFile = new File(dir, "sveleg-fedtest.xml");
+    Files.copy(new ClassPathResource("/metadata/sveleg-fedtest.xml").getInputStream(), metadataFile.toPath());
+    return metadataFile;
+  }
+
 }
@@ -16,6 +16,11 @@
 package se.swedenconnect.opensaml.saml2.metadata.provider;
 
 import net.shibboleth.shared.component.ComponentInitializationException;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.util.Callback;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
@@ -25,9 +30,12 @@ import se.swedenconnect.opensaml.OpenSAMLTestBase;
 import se.swedenconnect.opensaml.TestWebServer;
 import se.swedenconnect.security.credential.utils.X509Utils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.security.cert.X509Certificate;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Additional test cases for HTTPMetadataProvider.
@@ -59,6 +67,51 @@ public class HTTPMetadataProvider2Test extends OpenSAMLTestBase {
     }
   }
 
+  @Test
+  public void testCompressedTransfer() throws Exception {
+    final byte[] metadata = new ClassPathResource("/metadata/sveleg-fedtest.xml").getInputStream().readAllBytes();
+    final TestWebServer server = new TestWebServer(new Handler.Abstract() {
+      @Override
+      public boolean handle(final Request request, final Response response, final Callback callback)
+          throws Exception {
+        final String acceptEncoding = request.getHeaders().get(HttpHeader.ACCEPT_ENCODING);
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+          final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+          try (final GZIPOutputStream gzip = new GZIPOutputStream(bos)) {
+            gzip.write(metadata);
+          }
+          response.getHeaders().put(HttpHeader.CONTENT_ENCODING, "gzip");
+          response.write(true, ByteBuffer.wrap(bos.toByteArray()), callback);
+        }
+        else {
+          response.write(true, ByteBuffer.wrap(metadata), callback);
+        }
+        return true;
+      }
+    }, null, null);
+    server.start();
+
+    HTTPMetadataProvider provider = null;
+    try {
+      provider = new HTTPMetadataProvider(server.getUrl(), null);
+      provider.setFailFastInitialization(true);
+      provider.initialize();
+
+      Assertions.assertNotNull(provider.getEntityDescriptor(BaseMetadataProviderTest.TEST_IDP));
+      final TransferStatistics statistics = provider.getLastTransferStatistics();
+      Assertions.assertNotNull(statistics);
+      Assertions.assertEquals("gzip", statistics.contentEncoding());
+      Assertions.assertEquals(metadata.length, statistics.uncompressedBytes());
+      Assertions.assertTrue(statistics.transferredBytes() < statistics.uncompressedBytes());
+    }
+    finally {
+      if (provider != null) {
+        provider.destroy();
+      }
+      server.stop();
+    }
+  }
+
   @Test
   public void testSwedenConnect() throws Exception {
     final X509Certificate signingCert = decodeCertificate(new ClassPathResource("sweden-connect-prod.crt"));
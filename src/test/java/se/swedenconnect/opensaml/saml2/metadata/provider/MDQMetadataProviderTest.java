@@ -28,8 +28,10 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.opensaml.core.xml.io.MarshallingException;
 import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.metadata.resolver.impl.AbstractDynamicMetadataResolver;
 import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
 import se.swedenconnect.opensaml.OpenSAMLTestBase;
@@ -41,6 +43,13 @@ import java.net.URLDecoder;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 class MDQMetadataProviderTest extends OpenSAMLTestBase {
@@ -55,12 +64,14 @@ class MDQMetadataProviderTest extends OpenSAMLTestBase {
   /** The web server that serves the metadata. */
   private static final TestWebServer server;
 
+  /** The MDQ request handler. */
+  private static final MDQHandler handler;
+
   static {
     try {
       trustStore = loadKeyStore("src/test/resources/trust.jks", "secret", null);
-      server = new TestWebServer(new MDQHandler(
-          new MDQProvider(new ClassPathResource("/metadata/sveleg-fedtest.xml"))),
-          "src/test/resources/localhost.jks", "secret");
+      handler = new MDQHandler(new MDQProvider(new ClassPathResource("/metadata/sveleg-fedtest.xml")));
+      server = new TestWebServer(handler, "src/test/resources/localhost.jks", "secret");
     }
     catch (final Exception e) {
       throw new RuntimeException(e);
@@ -129,6 +140,481 @@ class MDQMetadataProviderTest extends OpenSAMLTestBase {
     Assertions.assertNull(ed3);
   }
 
+  @Test
+  void testPrefetch() throws Exception {
+
+    final MDQMetadataProvider provider = new MDQMetadataProvider(server.getUrl(),
+        HTTPMetadataProvider.createDefaultHttpClient(trustStore, null),
+        cacheDir.getAbsolutePath());
+    provider.setPrefetchEntityIds(List.of("https://idp.svelegtest.se/idp",
+        "https://sickelstatest.transportstyrelsen.se/extweb/", "https://not.found.com"));
+    provider.initialize();
+
+    // The entities should be available without any lookups ...
+    Assertions.assertEquals(1, provider.getIdentityProviders().size());
+    Assertions.assertEquals(1, provider.getServiceProviders().size());
+
+    Assertions.assertEquals(2, provider.prefetch());
+    provider.destroy();
+  }
+
+  @Test
+  void testNegativeCache() throws Exception {
+
+    final MDQMetadataProvider provider = new MDQMetadataProvider(server.getUrl(),
+        HTTPMetadataProvider.createDefaultHttpClient(trustStore, null),
+        cacheDir.getAbsolutePath());
+    provider.setNegativeCacheTtl(Duration.ofMinutes(1));
+    provider.initialize();
+
+    Assertions.assertNull(provider.getEntityDescriptor("https://not.found.com"));
+    Assertions.assertEquals(0, provider.getNegativeCacheHits());
+    Assertions.assertEquals(1, provider.getNegativeCacheMisses());
+
+    Assertions.assertNull(provider.getEntityDescriptor("https://not.found.com"));
+    Assertions.assertEquals(1, provider.getNegativeCacheHits());
+    Assertions.assertEquals(1, provider.getNegativeCacheMisses());
+
+    Assertions.assertNotNull(provider.getEntityDescriptor("https://idp.svelegtest.se/idp"));
+    Assertions.assertEquals(2, provider.getNegativeCacheMisses());
+    provider.destroy();
+  }
+
+  /**
+   * Tests that only 404 responses are negatively cached, and that other errors are reported as fetch failures.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  void testNegativeCacheServerError() throws Exception {
+
+    final MDQMetadataProvider provider = new MDQMetadataProvider(server.getUrl(),
+        HTTPMetadataProvider.createDefaultHttpClient(trustStore, null),
+        cacheDir.getAbsolutePath());
+    provider.setNegativeCacheTtl(Duration.ofMinutes(1));
+    final InMemoryMetadataProviderMetrics metrics = new InMemoryMetadataProviderMetrics();
+    provider.setMetrics(metrics);
+    provider.initialize();
+
+    // A 503 response is not a definite "not found", so it should not be cached ...
+    final int requests = handler.getRequestCount();
+    Assertions.assertNull(provider.getEntityDescriptor("https://error.example.com"));
+    Assertions.assertNull(provider.getEntityDescriptor("https://error.example.com"));
+    Assertions.assertEquals(0, provider.getNegativeCacheHits());
+    Assertions.assertEquals(requests + 2, handler.getRequestCount());
+    Assertions.assertEquals(2, metrics.getStatistics(provider.getID()).refreshFailures());
+
+    // But a 404 should ...
+    Assertions.assertNull(provider.getEntityDescriptor("https://not.found.com"));
+    Assertions.assertNull(provider.getEntityDescriptor("https://not.found.com"));
+    Assertions.assertEquals(1, provider.getNegativeCacheHits());
+    Assertions.assertEquals(requests + 3, handler.getRequestCount());
+    provider.destroy();
+  }
+
+  @Test
+  void testCoalescedLookups() throws Exception {
+
+    final MDQMetadataProvider provider = new MDQMetadataProvider(server.getUrl(),
+        HTTPMetadataProvider.createDefaultHttpClient(trustStore, null),
+        cacheDir.getAbsolutePath());
+    provider.initialize();
+
+    final int requests = handler.getRequestCount();
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final List<Future<EntityDescriptor>> lookups = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        lookups.add(executor.submit(() -> provider.getEntityDescriptor("https://idp.svelegtest.se/idp")));
+      }
+      for (final Future<EntityDescriptor> lookup : lookups) {
+        Assertions.assertNotNull(lookup.get());
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+    Assertions.assertEquals(requests + 1, handler.getRequestCount());
+    provider.destroy();
+  }
+
+  /**
+   * Tests that lookups of cached entities are answered from the cache, and not coalesced.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  void testCachedLookupsNotCoalesced() throws Exception {
+
+    final MDQMetadataProvider provider = new MDQMetadataProvider(server.getUrl(),
+        HTTPMetadataProvider.createDefaultHttpClient(trustStore, null),
+        cacheDir.getAbsolutePath());
+    provider.initialize();
+
+    final EntityDescriptor ed = provider.getEntityDescriptor("https://idp.svelegtest.se/idp");
+    Assertions.assertNotNull(ed);
+    final int requests = handler.getRequestCount();
+    final long coalesced = provider.getCoalescedLookups();
+
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final List<Future<EntityDescriptor>> lookups = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        lookups.add(executor.submit(() -> provider.getEntityDescriptor("https://idp.svelegtest.se/idp")));
+      }
+      for (final Future<EntityDescriptor> lookup : lookups) {
+        Assertions.assertSame(ed, lookup.get());
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+    Assertions.assertEquals(requests, handler.getRequestCount());
+    Assertions.assertEquals(coalesced, provider.getCoalescedLookups());
+    provider.destroy();
+  }
+
+  @Test
+  void testTransformedIdentifiers() throws Exception {
+
+    final MDQMetadataProvider provider = new MDQMetadataProvider(server.getUrl(),
+        HTTPMetadataProvider.createDefaultHttpClient(trustStore, null),
+        cacheDir.getAbsolutePath());
+    provider.setUseTransformedIdentifiers(true);
+    provider.initialize();
+
+    final EntityDescriptor ed = provider.getEntityDescriptor("https://idp.svelegtest.se/idp");
+    Assertions.assertNotNull(ed);
+    Assertions.assertEquals(1, provider.getIdentityProviders().size());
+
+    final String transformed = MDQRequestURLBuilder.toTransformedIdentifier("https://idp.svelegtest.se/idp");
+    Assertions.assertTrue(transformed.matches("\\{sha1\\}[0-9a-f]{40}"));
+
+    // The entity is saved under its entity ID ...
+    Assertions.assertTrue(new IndexedFilesystemLoadSaveManager(cacheDir.getAbsolutePath())
+        .exists("https://idp.svelegtest.se/idp"));
+    provider.destroy();
+  }
+
+  /**
+   * Tests that the cache directory is not read at startup, and that entities saved there are read when they are
+   * requested, instead of being fetched from the MDQ server.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  void testCacheDirectory() throws Exception {
+
+    final MDQMetadataProvider provider = new MDQMetadataProvider(server.getUrl(),
+        HTTPMetadataProvider.createDefaultHttpClient(trustStore, null),
+        cacheDir.getAbsolutePath());
+    provider.initialize();
+    Assertions.assertNotNull(provider.getEntityDescriptor("https://idp.svelegtest.se/idp"));
+    Assertions.assertNotNull(provider.getEntityDescriptor("https://sickelstatest.transportstyrelsen.se/extweb/"));
+    provider.destroy();
+
+    final IndexedFilesystemLoadSaveManager cache = new IndexedFilesystemLoadSaveManager(cacheDir.getAbsolutePath());
+    final List<IndexedFilesystemLoadSaveManager.IndexEntry> entries = cache.getIndexEntries();
+    Assertions.assertEquals(2, entries.size());
+    Assertions.assertTrue(entries.stream().allMatch(e -> e.expiry() != null && e.length() > 0));
+    Assertions.assertEquals(1, entries.stream().filter(e -> e.hasRole(IDPSSODescriptor.DEFAULT_ELEMENT_NAME)).count());
+
+    final MDQMetadataProvider provider2 = new MDQMetadataProvider(server.getUrl(),
+        HTTPMetadataProvider.createDefaultHttpClient(trustStore, null),
+        cacheDir.getAbsolutePath());
+    provider2.initialize();
+    try {
+      // Nothing is read at startup ...
+      Assertions.assertTrue(provider2.getIdentityProviders().isEmpty());
+      Assertions.assertTrue(provider2.getServiceProviders().isEmpty());
+
+      final int requests = handler.getRequestCount();
+      final EntityDescriptor ed = provider2.getEntityDescriptor("https://idp.svelegtest.se/idp");
+      Assertions.assertNotNull(ed);
+      Assertions.assertEquals("https://idp.svelegtest.se/idp", ed.getEntityID());
+      Assertions.assertEquals(requests, handler.getRequestCount());
+      Assertions.assertEquals(1, provider2.getIdentityProviders().size());
+      Assertions.assertTrue(provider2.getServiceProviders().isEmpty());
+
+      // The entity read from the directory is weighed ...
+      final MDQMetadataProvider.CacheStatistics statistics = provider2.getCacheStatistics();
+      Assertions.assertEquals(1, statistics.directoryHits());
+      Assertions.assertEquals(entries.stream()
+          .filter(e -> e.hasRole(IDPSSODescriptor.DEFAULT_ELEMENT_NAME))
+          .mapToLong(IndexedFilesystemLoadSaveManager.IndexEntry::length)
+          .sum(), statistics.weight());
+
+      // Entities not in the cache directory are fetched ...
+      Assertions.assertNull(provider2.getEntityDescriptor("https://not.found.com"));
+      Assertions.assertEquals(requests + 1, handler.getRequestCount());
+    }
+    finally {
+      provider2.destroy();
+    }
+  }
+
+  /**
+   * Tests that the listing methods use the entities held by the resolver, and that {@code getMetadata()} returns
+   * copies that are left untouched when new entities are added.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  void testMetadataFromResolver() throws Exception {
+
+    final MDQMetadataProvider provider = new MDQMetadataProvider(server.getUrl(),
+        HTTPMetadataProvider.createDefaultHttpClient(trustStore, null),
+        cacheDir.getAbsolutePath());
+    provider.initialize();
+
+    final EntityDescriptor idp = provider.getEntityDescriptor("https://idp.svelegtest.se/idp");
+    Assertions.assertNotNull(idp);
+    Assertions.assertSame(idp, provider.getIdentityProviders().get(0));
+
+    final EntitiesDescriptor metadata = (EntitiesDescriptor) provider.getMetadata();
+    Assertions.assertEquals(1, metadata.getEntityDescriptors().size());
+    Assertions.assertNotSame(idp, metadata.getEntityDescriptors().get(0));
+    Assertions.assertSame(metadata, provider.getMetadata());
+
+    final EntityDescriptor sp = provider.getEntityDescriptor("https://sickelstatest.transportstyrelsen.se/extweb/");
+    Assertions.assertNotNull(sp);
+    Assertions.assertSame(sp, provider.getServiceProviders().get(0));
+
+    final EntitiesDescriptor metadata2 = (EntitiesDescriptor) provider.getMetadata();
+    Assertions.assertNotSame(metadata, metadata2);
+    Assertions.assertEquals(2, metadata2.getEntityDescriptors().size());
+    Assertions.assertEquals(1, metadata.getEntityDescriptors().size());
+    provider.destroy();
+  }
+
+  /**
+   * Tests that the number of entities held by the resolver is bounded, and that an evicted entity is fetched again.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  void testBoundedCache() throws Exception {
+
+    final MDQMetadataProvider provider = new MDQMetadataProvider(server.getUrl(),
+        HTTPMetadataProvider.createDefaultHttpClient(trustStore, null), null);
+    provider.setMaxCacheEntries(1);
+    provider.initialize();
+
+    Assertions.assertNotNull(provider.getEntityDescriptor("https://idp.svelegtest.se/idp"));
+    Assertions.assertNotNull(provider.getEntityDescriptor("https://sickelstatest.transportstyrelsen.se/extweb/"));
+
+    MDQMetadataProvider.CacheStatistics statistics = provider.getCacheStatistics();
+    Assertions.assertEquals(1, statistics.size());
+    Assertions.assertEquals(1, statistics.evictions());
+    Assertions.assertEquals(2, statistics.misses());
+
+    // The resolver and the listing methods agree ...
+    Assertions.assertEquals(1, ((EntitiesDescriptor) provider.getMetadata()).getEntityDescriptors().size());
+    Assertions.assertTrue(provider.getIdentityProviders().isEmpty());
+    Assertions.assertEquals(1, provider.getServiceProviders().size());
+
+    // A cache hit ...
+    Assertions.assertNotNull(provider.getEntityDescriptor("https://sickelstatest.transportstyrelsen.se/extweb/"));
+    Assertions.assertEquals(1, provider.getCacheStatistics().hits());
+
+    // The evicted entity is fetched again ...
+    final int requests = handler.getRequestCount();
+    Assertions.assertNotNull(provider.getEntityDescriptor("https://idp.svelegtest.se/idp"));
+    Assertions.assertEquals(requests + 1, handler.getRequestCount());
+
+    statistics = provider.getCacheStatistics();
+    Assertions.assertEquals(1, statistics.size());
+    Assertions.assertEquals(2, statistics.evictions());
+    Assertions.assertEquals(1, provider.getIdentityProviders().size());
+    Assertions.assertTrue(provider.getServiceProviders().isEmpty());
+    provider.destroy();
+  }
+
+  /**
+   * Tests that an entity evicted from memory is kept in the cache directory, and is read from there the next time it
+   * is requested.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  void testBoundedCacheWithDirectory() throws Exception {
+
+    final MDQMetadataProvider provider = new MDQMetadataProvider(server.getUrl(),
+        HTTPMetadataProvider.createDefaultHttpClient(trustStore, null),
+        cacheDir.getAbsolutePath());
+    provider.setMaxCacheEntries(1);
+    provider.initialize();
+    try {
+      Assertions.assertNotNull(provider.getEntityDescriptor("https://idp.svelegtest.se/idp"));
+      Assertions.assertNotNull(provider.getEntityDescriptor("https://sickelstatest.transportstyrelsen.se/extweb/"));
+      Assertions.assertEquals(1, provider.getCacheStatistics().evictions());
+
+      // The evicted entity is read from the cache directory ...
+      final int requests = handler.getRequestCount();
+      Assertions.assertNotNull(provider.getEntityDescriptor("https://idp.svelegtest.se/idp"));
+      Assertions.assertEquals(requests, handler.getRequestCount());
+
+      final MDQMetadataProvider.CacheStatistics statistics = provider.getCacheStatistics();
+      Assertions.assertEquals(1, statistics.size());
+      Assertions.assertEquals(2, statistics.evictions());
+      Assertions.assertEquals(3, statistics.misses());
+      Assertions.assertEquals(1, statistics.directoryHits());
+      Assertions.assertEquals(new IndexedFilesystemLoadSaveManager(cacheDir.getAbsolutePath())
+          .getIndexEntry("https://idp.svelegtest.se/idp").length(), statistics.weight());
+      Assertions.assertEquals(1, provider.getIdentityProviders().size());
+      Assertions.assertTrue(provider.getServiceProviders().isEmpty());
+    }
+    finally {
+      provider.destroy();
+    }
+  }
+
+  /**
+   * Tests that the total weight of the entities held by the resolver is bounded.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  void testBoundedCacheWeight() throws Exception {
+
+    final MDQMetadataProvider provider = new MDQMetadataProvider(server.getUrl(),
+        HTTPMetadataProvider.createDefaultHttpClient(trustStore, null),
+        cacheDir.getAbsolutePath());
+    provider.setMaxCacheWeight(1L);
+    provider.initialize();
+
+    Assertions.assertNotNull(provider.getEntityDescriptor("https://idp.svelegtest.se/idp"));
+    final long weight = provider.getCacheStatistics().weight();
+    Assertions.assertTrue(weight > 1L);
+
+    // The most recently fetched entity is kept, even if it is heavier than the limit ...
+    Assertions.assertNotNull(provider.getEntityDescriptor("https://sickelstatest.transportstyrelsen.se/extweb/"));
+    final MDQMetadataProvider.CacheStatistics statistics = provider.getCacheStatistics();
+    Assertions.assertEquals(1, statistics.size());
+    Assertions.assertEquals(1, statistics.evictions());
+    Assertions.assertTrue(statistics.weight() > 1L);
+    Assertions.assertEquals(1, ((EntitiesDescriptor) provider.getMetadata()).getEntityDescriptors().size());
+    provider.destroy();
+  }
+
+  @Test
+  void testRefreshAhead() throws Exception {
+
+    final MDQMetadataProvider provider = new MDQMetadataProvider(server.getUrl(),
+        HTTPMetadataProvider.createDefaultHttpClient(trustStore, null),
+        cacheDir.getAbsolutePath());
+    // Make sure that the entity is always within the refresh-ahead window ...
+    provider.setRefreshAheadTime(Duration.ofHours(9));
+    provider.setRefreshAheadCheckInterval(Duration.ofMillis(100));
+    provider.setStaleGracePeriod(Duration.ofMinutes(5));
+    provider.initialize();
+
+    final int requests = handler.getRequestCount();
+    Assertions.assertNotNull(provider.getEntityDescriptor("https://idp.svelegtest.se/idp"));
+
+    final long deadline = System.currentTimeMillis() + 5000L;
+    while (provider.getBackgroundRefreshes() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50L);
+    }
+    Assertions.assertTrue(provider.getBackgroundRefreshes() > 0);
+    Assertions.assertTrue(handler.getRequestCount() > requests + 1);
+    Assertions.assertNotNull(provider.getEntityDescriptor("https://idp.svelegtest.se/idp"));
+    provider.destroy();
+  }
+
+  /**
+   * Tests that a lookup that times out waiting for a lookup in progress falls back to the previously resolved copy, and
+   * that it continues to wait if there is no such copy.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  void testCoalescingWaitTimeout() throws Exception {
+
+    final MDQMetadataProvider provider = new MDQMetadataProvider(server.getUrl(),
+        HTTPMetadataProvider.createDefaultHttpClient(trustStore, null), null);
+    provider.setCoalescingWaitTimeout(Duration.ofMillis(100));
+    // Make the resolver refresh the entity on the next lookup after 200 ms (the entity expires after 2 seconds) ...
+    final AbstractDynamicMetadataResolver resolver = (AbstractDynamicMetadataResolver) provider.getMetadataResolver();
+    resolver.setMinCacheDuration(Duration.ofSeconds(2));
+    resolver.setMaxCacheDuration(Duration.ofSeconds(2));
+    resolver.setRefreshDelayFactor(0.1f);
+    provider.initialize();
+
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      final EntityDescriptor ed = provider.getEntityDescriptor("https://idp.svelegtest.se/idp");
+      Assertions.assertNotNull(ed);
+      Thread.sleep(300L);
+
+      handler.setResponseDelay(1000L);
+      final Future<EntityDescriptor> refresh =
+          executor.submit(() -> provider.getEntityDescriptor("https://idp.svelegtest.se/idp"));
+      Thread.sleep(200L);
+
+      // The refresh is in progress, so we get the previously resolved copy ...
+      final long start = System.currentTimeMillis();
+      Assertions.assertSame(ed, provider.getEntityDescriptor("https://idp.svelegtest.se/idp"));
+      Assertions.assertTrue(System.currentTimeMillis() - start < 700L);
+      Assertions.assertEquals(1, provider.getStaleLookups());
+      Assertions.assertNotNull(refresh.get());
+
+      // No previously resolved copy, the lookup should wait for the result ...
+      final Future<EntityDescriptor> lookup =
+          executor.submit(() -> provider.getEntityDescriptor("https://sickelstatest.transportstyrelsen.se/extweb/"));
+      Thread.sleep(200L);
+      Assertions.assertNotNull(provider.getEntityDescriptor("https://sickelstatest.transportstyrelsen.se/extweb/"));
+      Assertions.assertNotNull(lookup.get());
+      Assertions.assertEquals(1, provider.getStaleLookups());
+    }
+    finally {
+      handler.setResponseDelay(0L);
+      executor.shutdownNow();
+      provider.destroy();
+    }
+  }
+
+  /**
+   * Tests that the previously resolved copy is not used after the expiration time calculated by the resolver.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  void testCoalescingWaitTimeoutExpiredCopy() throws Exception {
+
+    final MDQMetadataProvider provider = new MDQMetadataProvider(server.getUrl(),
+        HTTPMetadataProvider.createDefaultHttpClient(trustStore, null), null);
+    provider.setCoalescingWaitTimeout(Duration.ofMillis(100));
+    final AbstractDynamicMetadataResolver resolver = (AbstractDynamicMetadataResolver) provider.getMetadataResolver();
+    resolver.setMinCacheDuration(Duration.ofMillis(100));
+    resolver.setMaxCacheDuration(Duration.ofMillis(200));
+    provider.initialize();
+
+    final ExecutorService executor = Executors.newFixedThreadPool(1);
+    try {
+      final EntityDescriptor ed = provider.getEntityDescriptor("https://idp.svelegtest.se/idp");
+      Assertions.assertNotNull(ed);
+      Thread.sleep(300L);
+
+      handler.setResponseDelay(500L);
+      final Future<EntityDescriptor> refresh =
+          executor.submit(() -> provider.getEntityDescriptor("https://idp.svelegtest.se/idp"));
+      Thread.sleep(100L);
+
+      // The copy has expired, so the lookup waits for the refresh ...
+      final EntityDescriptor refreshed = provider.getEntityDescriptor("https://idp.svelegtest.se/idp");
+      Assertions.assertNotNull(refreshed);
+      Assertions.assertNotSame(ed, refreshed);
+      Assertions.assertEquals(0, provider.getStaleLookups());
+      Assertions.assertNotNull(refresh.get());
+    }
+    finally {
+      handler.setResponseDelay(0L);
+      executor.shutdownNow();
+      provider.destroy();
+    }
+  }
+
   //  @Test
   //  public void testList() throws Exception {
   //    final MDQMetadataProvider provider = new MDQMetadataProvider("https://md.nordu.net",
@@ -180,7 +666,7 @@ class MDQMetadataProviderTest extends OpenSAMLTestBase {
         }
       }
       for (final EntityDescriptor ed : this.metadata.getEntityDescriptors()) {
-        if (ed.getEntityID().equals(id)) {
+        if (ed.getEntityID().equals(id) || MDQRequestURLBuilder.toTransformedIdentifier(ed.getEntityID()).equals(id)) {
           return ed;
         }
       }
@@ -191,14 +677,39 @@ class MDQMetadataProviderTest extends OpenSAMLTestBase {
 
   public static class MDQHandler extends Handler.Abstract {
 
+    /** Lookups of entity ID:s starting with this prefix give a 503 response. */
+    public static final String ERROR_ENTITY_PREFIX = "https://error.";
+
     private final Function<String, EntityDescriptor> resourceProvider;
 
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    /** The time (millis) to wait before a response is sent. */
+    private volatile long responseDelay;
+
     public MDQHandler(final Function<String, EntityDescriptor> resourceProvider) {
       this.resourceProvider = resourceProvider;
     }
 
+    public int getRequestCount() {
+      return this.requestCount.get();
+    }
+
+    public void setResponseDelay(final long responseDelay) {
+      this.responseDelay = responseDelay;
+    }
+
     @Override
     public boolean handle(final Request request, final Response response, final Callback callback) {
+      this.requestCount.incrementAndGet();
+      if (this.responseDelay > 0) {
+        try {
+          Thread.sleep(this.responseDelay);
+        }
+        catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
       final int pos = request.getHttpURI().asString().indexOf("/entities/");
       if (pos == -1) {
         Response.writeError(request, response, callback, HttpStatus.NOT_FOUND_404);
@@ -207,7 +718,10 @@ class MDQMetadataProviderTest extends OpenSAMLTestBase {
         final String id = request.getHttpURI().asString().substring(pos + "/entities/".length());
         final String entityId = URLDecoder.decode(id, StandardCharsets.UTF_8);
         final EntityDescriptor ed = this.resourceProvider.apply(entityId);
-        if (ed == null) {
+        if (entityId.startsWith(ERROR_ENTITY_PREFIX)) {
+          Response.writeError(request, response, callback, HttpStatus.SERVICE_UNAVAILABLE_503);
+        }
+        else if (ed == null) {
           Response.writeError(request, response, callback, HttpStatus.NOT_FOUND_404);
         }
         else {
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.saml2.metadata.provider;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.UnmarshallingException;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.security.x509.X509Credential;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+import org.w3c.dom.Element;
+
+import net.shibboleth.shared.xml.SerializeSupport;
+import se.swedenconnect.opensaml.saml2.metadata.EntitiesDescriptorContainer;
+
+/**
+ * Test cases for the {@code FilesystemMetadataProvider} running in streaming ingestion mode.
+ * <p>
+ * See {@link BaseMetadataProviderTest} for test cases.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class StreamingFilesystemMetadataProviderTest extends BaseMetadataProviderTest {
+
+  /** {@inheritDoc} */
+  @Override
+  protected AbstractMetadataProvider createMetadataProvider(final Resource resource) throws Exception {
+    final FilesystemMetadataProvider provider = new FilesystemMetadataProvider(resource.getFile());
+    provider.setStreamingIngestion(true);
+    return provider;
+  }
+
+  /**
+   * Tests that the entityID predicate of the streaming parser skips entities before they are parsed.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testEntityIdPredicate() throws Exception {
+    final StreamingMetadataParser parser = new StreamingMetadataParser();
+    parser.setKeepOnlySpAndIdps(true);
+    parser.setEntityIdPredicate(Set.of(TEST_IDP, TEST_SP)::contains);
+
+    try (final InputStream is = new ClassPathResource("/metadata/sveleg-fedtest.xml").getInputStream()) {
+      final XMLObject metadata = parser.parse(is);
+      Assertions.assertTrue(metadata instanceof EntitiesDescriptor);
+      final EntitiesDescriptor entities = (EntitiesDescriptor) metadata;
+      Assertions.assertEquals(2, entities.getEntityDescriptors().size());
+      Assertions.assertNotNull(entities.getValidUntil());
+    }
+  }
+
+  /**
+   * Tests that nested entities descriptors are flattened.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testComplexMetadata() throws Exception {
+    final AbstractMetadataProvider provider =
+        this.createMetadataProvider(new ClassPathResource("/metadata/sveleg-fedtest-complex.xml"));
+    try {
+      provider.initialize();
+      Assertions.assertNotNull(provider.getEntityDescriptor(TEST_IDP));
+      Assertions.assertNotNull(provider.getEntityDescriptor(TEST_SP));
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * Tests that signed metadata is accepted if it is signed by a trusted key.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testSignatureValid() throws Exception {
+    final X509Credential credential = getSigningCredential();
+    final String signed = signMetadata(credential);
+
+    final StreamingMetadataParser parser = new StreamingMetadataParser();
+    parser.setSignatureVerificationCertificates(List.of(credential.getEntityCertificate()));
+    final XMLObject metadata = parser.parse(toStream(signed));
+    Assertions.assertTrue(metadata instanceof EntitiesDescriptor);
+    Assertions.assertFalse(((EntitiesDescriptor) metadata).getEntityDescriptors().isEmpty());
+
+    // Several certificates - the key is given by the KeyInfo of the signature ...
+    final StreamingMetadataParser parser2 = new StreamingMetadataParser();
+    parser2.setSignatureVerificationCertificates(
+        List.of(getOtherCredential().getEntityCertificate(), credential.getEntityCertificate()));
+    Assertions.assertNotNull(parser2.parse(toStream(signed)));
+  }
+
+  /**
+   * Tests that signed metadata is rejected if an entity has been modified after signing.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testSignatureModifiedEntity() throws Exception {
+    final X509Credential credential = getSigningCredential();
+    final String signed = signMetadata(credential);
+    Assertions.assertTrue(signed.contains(TEST_IDP + "\""));
+    final String modified = signed.replace(TEST_IDP + "\"", TEST_IDP + "/modified\"");
+
+    final StreamingMetadataParser parser = new StreamingMetadataParser();
+    parser.setSignatureVerificationCertificates(List.of(credential.getEntityCertificate()));
+    Assertions.assertThrows(UnmarshallingException.class, () -> parser.parse(toStream(modified)));
+  }
+
+  /**
+   * Tests that signed metadata is rejected if it is signed by a key that is not trusted.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testSignatureUntrustedKey() throws Exception {
+    final String signed = signMetadata(getSigningCredential());
+
+    final StreamingMetadataParser parser = new StreamingMetadataParser();
+    parser.setSignatureVerificationCertificates(List.of(getOtherCredential().getEntityCertificate()));
+    Assertions.assertThrows(UnmarshallingException.class, () -> parser.parse(toStream(signed)));
+
+    final X509Certificate other = getOtherCredential().getEntityCertificate();
+    final StreamingMetadataParser parser2 = new StreamingMetadataParser();
+    parser2.setSignatureVerificationCertificates(List.of(other, other));
+    Assertions.assertThrows(UnmarshallingException.class, () -> parser2.parse(toStream(signed)));
+  }
+
+  /**
+   * Tests that unsigned metadata is rejected if signature verification certificates are assigned.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testSignatureMissing() throws Exception {
+    final StreamingMetadataParser parser = new StreamingMetadataParser();
+    parser.setSignatureVerificationCertificates(List.of(getSigningCredential().getEntityCertificate()));
+    try (final InputStream is = new ClassPathResource("/metadata/sveleg-fedtest-part2.xml").getInputStream()) {
+      Assertions.assertThrows(UnmarshallingException.class, () -> parser.parse(is));
+    }
+  }
+
+  /**
+   * Tests that a root signature that does not follow the SAML signature profile is rejected.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testSignatureProfile() throws Exception {
+    final String enveloped = "http://www.w3.org/2000/09/xmldsig#enveloped-signature";
+    final String excC14n = "http://www.w3.org/2001/10/xml-exc-c14n#";
+
+    StreamingMetadataParser.validateSignatureProfile(signatureElement("#root", enveloped, excC14n), "root");
+    StreamingMetadataParser.validateSignatureProfile(signatureElement("", enveloped, excC14n), "root");
+
+    // Reference to another element ...
+    Assertions.assertThrows(UnmarshallingException.class, () -> StreamingMetadataParser.validateSignatureProfile(
+        signatureElement("#entity", enveloped, excC14n), "root"));
+    Assertions.assertThrows(UnmarshallingException.class, () -> StreamingMetadataParser.validateSignatureProfile(
+        signatureElement("#root", enveloped, excC14n), null));
+
+    // Transform not allowed by the profile ...
+    Assertions.assertThrows(UnmarshallingException.class, () -> StreamingMetadataParser.validateSignatureProfile(
+        signatureElement("#root", enveloped, "http://www.w3.org/TR/1999/REC-xpath-19991116"), "root"));
+
+    // Several references ...
+    final Element twoReferences = signatureElement("#root", enveloped, excC14n);
+    final Element signedInfo = (Element) twoReferences.getFirstChild();
+    signedInfo.appendChild(signedInfo.getFirstChild().cloneNode(true));
+    Assertions.assertThrows(UnmarshallingException.class,
+        () -> StreamingMetadataParser.validateSignatureProfile(twoReferences, "root"));
+
+    // Missing signature ...
+    Assertions.assertThrows(UnmarshallingException.class,
+        () -> StreamingMetadataParser.validateSignatureProfile(null, "root"));
+  }
+
+  private static Element signatureElement(final String uri, final String... transforms) throws Exception {
+    final StringBuilder sb = new StringBuilder("<ds:Signature xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\">")
+        .append("<ds:SignedInfo><ds:Reference URI=\"").append(uri).append("\"><ds:Transforms>");
+    for (final String t : transforms) {
+      sb.append("<ds:Transform Algorithm=\"").append(t).append("\"/>");
+    }
+    sb.append("</ds:Transforms></ds:Reference></ds:SignedInfo></ds:Signature>");
+    return XMLObjectProviderRegistrySupport.getParserPool().parse(toStream(sb.toString())).getDocumentElement();
+  }
+
+  private static X509Credential getSigningCredential() throws Exception {
+    try (final InputStream is = new ClassPathResource("/credentials/litsec_sign.jks").getInputStream()) {
+      return loadKeyStoreCredential(is, "secret", "litsec_ab", "secret");
+    }
+  }
+
+  private static X509Credential getOtherCredential() throws Exception {
+    try (final InputStream is = new ClassPathResource("/credentials/other.jks").getInputStream()) {
+      return loadKeyStoreCredential(is, "secret", "test", "secret");
+    }
+  }
+
+  private static String signMetadata(final X509Credential credential) throws Exception {
+    final EntitiesDescriptor metadata;
+    try (final InputStream is = new ClassPathResource("/metadata/sveleg-fedtest-part2.xml").getInputStream()) {
+      metadata = unmarshall(is, EntitiesDescriptor.class);
+    }
+    new EntitiesDescriptorContainer(metadata, credential).sign();
+    return SerializeSupport.nodeToString(XMLObjectSupport.marshall(metadata));
+  }
+
+  private static InputStream toStream(final String xml) {
+    return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+  }
+
+}